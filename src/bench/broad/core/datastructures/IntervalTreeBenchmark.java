@@ -0,0 +1,84 @@
+package broad.core.datastructures;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tree construction and single-base ("read start") queries, the access pattern used by
+ * fillExperimentWindowCounter and the preprocessors.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntervalTreeBenchmark {
+
+	private static final int N_QUERIES = 100000;
+
+	@Param({"10000", "100000"})
+	public int nIntervals;
+
+	private int[] starts;
+	private int[] ends;
+	private int[] queries;
+	private IntervalTree<String> tree;
+
+	@Setup
+	public void setup() {
+		Random rnd = new Random(42);
+		int span = nIntervals*1000;
+		starts = new int[nIntervals];
+		ends = new int[nIntervals];
+		for (int i=0; i<nIntervals; i++) {
+			starts[i] = rnd.nextInt(span);
+			ends[i] = starts[i]+50+rnd.nextInt(2000);
+		}
+		queries = new int[N_QUERIES];
+		for (int i=0; i<N_QUERIES; i++) {
+			queries[i] = rnd.nextInt(span);
+		}
+		tree = build();
+	}
+
+	private IntervalTree<String> build() {
+		IntervalTree<String> t = new IntervalTree<String>();
+		for (int i=0; i<nIntervals; i++) {
+			t.put(starts[i], ends[i], "w"+i);
+		}
+		return t;
+	}
+
+	@Benchmark
+	public IntervalTree<String> buildTree() {
+		return build();
+	}
+
+	@Benchmark
+	public int pointQueries() {
+		int hits = 0;
+		for (int q:queries) {
+			if (tree.numOverlappers(q, q+1)>0) {
+				java.util.Iterator<IntervalTree.Node<String>> oIter = tree.overlappers(q, q+1);
+				while (oIter.hasNext()) {
+					oIter.next();
+					hits++;
+				}
+			}
+		}
+		return hits;
+	}
+}
@@ -0,0 +1,39 @@
+package broad.core.math;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a single window p-value, as computed for every non-empty window when -sigTest is set.
+ * The cost grows with the window count k, since Fp() sums k Poisson terms.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanStatisticsBenchmark {
+
+	@Param({"5", "50", "500"})
+	public int k;
+
+	public double lambda = 0.05;
+	public double window = 400;
+	public double tLen = 5000;
+
+	@Benchmark
+	public double calculatePVal() {
+		return ScanStatistics.calculatePVal(k, lambda, window, tLen);
+	}
+}
@@ -0,0 +1,107 @@
+package umms.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares two JMH JSON result files (e.g. bench/baseline.json and a new run) and reports the
+ * relative change of each benchmark's primary score. Throughput scores regress when they drop,
+ * time-per-operation scores regress when they rise.
+ *
+ * Usage: BenchmarkCompare <baseline.json> <current.json> [maximum allowed regression, percent (default 10)]
+ *
+ * The exit code is 1 if any benchmark regressed by more than the allowed amount.
+ */
+public class BenchmarkCompare {
+
+	private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+	private static final Pattern MODE = Pattern.compile("\"mode\"\\s*:\\s*\"([^\"]+)\"");
+	private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+	private static final Pattern SCORE = Pattern.compile("\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE]+|\"NaN\")");
+	private static final Pattern UNIT = Pattern.compile("\"scoreUnit\"\\s*:\\s*\"([^\"]+)\"");
+
+	static class Result {
+		String mode;
+		double score;
+		String unit;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length<2) {
+			System.err.println("Usage: BenchmarkCompare <baseline.json> <current.json> [max regression %]");
+			System.exit(2);
+		}
+		File baseFile = new File(args[0]);
+		if (!baseFile.exists()) {
+			System.err.println("No baseline found at "+baseFile+" (create one with 'ant bench.baseline')");
+			System.exit(2);
+		}
+		double maxRegression = args.length>2 ? Double.parseDouble(args[2]) : 10.0;
+
+		Map<String, Result> base = readResults(baseFile);
+		Map<String, Result> cur = readResults(new File(args[1]));
+
+		int nRegressed = 0;
+		System.out.println(String.format("%-90s %14s %14s %9s", "Benchmark", "baseline", "current", "change"));
+		for (String key:cur.keySet()) {
+			Result c = cur.get(key);
+			Result b = base.get(key);
+			if (b==null) {
+				System.out.println(String.format("%-90s %14s %14.3f %9s  %s", key, "-", c.score, "new", c.unit));
+				continue;
+			}
+			double change = 100.0*(c.score-b.score)/b.score;
+			// for throughput larger is better, for all time-based modes smaller is better:
+			boolean regressed = c.mode.equals("thrpt") ? change<-maxRegression : change>maxRegression;
+			if (regressed) {
+				nRegressed++;
+			}
+			System.out.println(String.format("%-90s %14.3f %14.3f %8.1f%%  %s%s", key, b.score, c.score, change, c.unit,
+												regressed ? "  REGRESSION" : ""));
+		}
+		for (String key:base.keySet()) {
+			if (!cur.containsKey(key)) {
+				System.out.println(String.format("%-90s %14.3f %14s %9s", key, base.get(key).score, "-", "missing"));
+			}
+		}
+		System.out.println(nRegressed+" benchmark(s) regressed by more than "+maxRegression+"%");
+		System.exit(nRegressed>0 ? 1 : 0);
+	}
+
+	/* minimal reader for the JMH JSON result format: one entry per "benchmark" key, keyed by name and parameters */
+	static Map<String, Result> readResults(File f) throws IOException {
+		String json = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		Matcher m = BENCHMARK.matcher(json);
+		int start = m.find() ? m.start() : -1;
+		while (start>=0) {
+			String name = m.group(1);
+			int end = m.find() ? m.start() : json.length();
+			String entry = json.substring(start, end);
+
+			String key = name;
+			Matcher pm = PARAMS.matcher(entry);
+			if (pm.find()) {
+				key += " ["+pm.group(1).replaceAll("[\"\\s]", "")+"]";
+			}
+			Matcher sm = SCORE.matcher(entry);
+			Matcher mm = MODE.matcher(entry);
+			Matcher um = UNIT.matcher(entry);
+			if (sm.find() && mm.find() && um.find()) {
+				Result r = new Result();
+				r.mode = mm.group(1);
+				r.score = sm.group(1).startsWith("\"") ? Double.NaN : Double.parseDouble(sm.group(1));
+				r.unit = um.group(1);
+				results.put(key, r);
+			}
+			start = end<json.length() ? end : -1;
+		}
+		return results;
+	}
+}
@@ -0,0 +1,132 @@
+package umms.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import umms.core.annotation.Gene;
+
+/**
+ * Generates synthetic inputs (sequences, alignments, read names and gene models) for the
+ * micro-benchmarks. All generators take an explicit Random so that every benchmark run sees
+ * exactly the same data for a given seed.
+ */
+public class SyntheticData {
+
+	private static final char[] BASES = {'A','C','G','T'};
+
+	public static String randomBases(Random rnd, int len) {
+		char[] s = new char[len];
+		for (int i=0; i<len; i++) {
+			s[i] = BASES[rnd.nextInt(4)];
+		}
+		return new String(s);
+	}
+
+	private static HashMap<String, String> repeats = new HashMap<String, String>();
+
+	/* 'unit' repeated up to length len (cached, since the same few strings are used for every read) */
+	static synchronized String repeat(String unit, int len) {
+		String key = unit+len;
+		String s = repeats.get(key);
+		if (s==null) {
+			StringBuilder sb = new StringBuilder();
+			while (sb.length()<len) {
+				sb.append(unit);
+			}
+			s = sb.substring(0, len);
+			repeats.put(key, s);
+		}
+		return s;
+	}
+
+	/* header with nChr references of chrLen bases each, named chr1..chrN */
+	public static SAMFileHeader makeHeader(int nChr, int chrLen) {
+		SAMSequenceDictionary dict = new SAMSequenceDictionary();
+		for (int i=1; i<=nChr; i++) {
+			dict.addSequence(new SAMSequenceRecord("chr"+i, chrLen));
+		}
+		SAMFileHeader header = new SAMFileHeader();
+		header.setSequenceDictionary(dict);
+		header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+		return header;
+	}
+
+	/* inDrop-style read name: <readID>:<bc1>:<bc2>:<umi> */
+	public static String inDropReadName(Random rnd, long readId, String[] bc1, String[] bc2, int umiLen) {
+		return "read"+readId+":"+bc1[rnd.nextInt(bc1.length)]+":"+bc2[rnd.nextInt(bc2.length)]+":"+randomBases(rnd, umiLen);
+	}
+
+	public static String[] randomBarcodes(Random rnd, int n, int len) {
+		String[] bcs = new String[n];
+		for (int i=0; i<n; i++) {
+			bcs[i] = randomBases(rnd, len);
+		}
+		return bcs;
+	}
+
+	public static SAMRecord makeRecord(SAMFileHeader header, String readName, String chr, int start,
+										boolean negStrand, int readLen, int nh) {
+		SAMRecord r = new SAMRecord(header);
+		r.setReadName(readName);
+		r.setReferenceName(chr);
+		r.setAlignmentStart(start);
+		r.setReadNegativeStrandFlag(negStrand);
+		r.setCigarString(readLen+"M");
+		r.setMappingQuality(nh>1 ? 0 : 50);
+		// strict validation rejects zero-length reads, so give every read a (constant) sequence and qualities:
+		r.setReadString(repeat("ACGT", readLen));
+		r.setBaseQualityString(repeat("I", readLen));
+		r.setAttribute("NH", nh);
+		return r;
+	}
+
+	/* uniformly placed alignments over all references of the header */
+	public static SAMRecord[] makeRecords(Random rnd, SAMFileHeader header, int n, float mmFraction) {
+		List<SAMSequenceRecord> seqs = header.getSequenceDictionary().getSequences();
+		SAMRecord[] recs = new SAMRecord[n];
+		for (int i=0; i<n; i++) {
+			SAMSequenceRecord seq = seqs.get(rnd.nextInt(seqs.size()));
+			int start = 1+rnd.nextInt(seq.getSequenceLength()-100);
+			int nh = rnd.nextFloat()<mmFraction ? 2+rnd.nextInt(4) : 1;
+			recs[i] = makeRecord(header, "read"+i, seq.getSequenceName(), start, rnd.nextBoolean(), 50, nh);
+		}
+		return recs;
+	}
+
+	/* gene with nExons exons of exonLen bases separated by intronLen bases, starting at gStart */
+	public static Gene makeGene(String chr, String name, String strand, int gStart, int nExons, int exonLen, int intronLen) {
+		List<Integer> eStarts = new ArrayList<Integer>();
+		List<Integer> eEnds = new ArrayList<Integer>();
+		int pos = gStart;
+		for (int i=0; i<nExons; i++) {
+			eStarts.add(pos);
+			eEnds.add(pos+exonLen);
+			pos += exonLen+intronLen;
+		}
+		int gEnd = eEnds.get(eEnds.size()-1);
+		return new Gene(chr, gStart, gEnd, name, strand, eStarts, eEnds);
+	}
+
+	/* nReads four-line fastq records with barcodes prepended to the sequence */
+	public static String fastqText(Random rnd, int nReads, String[] barcodes, int umiLen, int readLen) {
+		StringBuilder sb = new StringBuilder();
+		char[] qual = new char[readLen];
+		java.util.Arrays.fill(qual, 'I');
+		String qStr = new String(qual);
+		for (int i=0; i<nReads; i++) {
+			String bc = barcodes[rnd.nextInt(barcodes.length)];
+			String seq = bc+randomBases(rnd, umiLen);
+			seq += randomBases(rnd, readLen-seq.length());
+			sb.append("@M00001:1:000000000-A0000:1:1101:").append(i).append(":1 1:N:0:1\n");
+			sb.append(seq).append("\n+\n").append(qStr).append("\n");
+		}
+		return sb.toString();
+	}
+}
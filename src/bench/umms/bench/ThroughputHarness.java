@@ -0,0 +1,235 @@
+package umms.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+import umms.esat.NewESAT;
+import umms.esat.RunMetrics;
+
+/**
+ * Runs NewESAT in-process on synthetic workloads (see WorkloadGenerator) over a set of configurations
+ * and reports, for every run, the metrics of each NewESAT stage (see RunMetrics), the overall alignment
+ * throughput, the peak heap and the GC count and time.
+ *
+ * A configuration is <workload>-<multimap>, where workload is "bulk" or "sc" (inDrop single-cell,
+ * run with -inPrep) and multimap is any NewESAT -multimap value, e.g. "bulk-normal" or "sc-proper".
+ * Workloads are generated under -dir on first use and reused afterwards; all generator options
+ * (-reads, -nExp, -nGenes, -mmFraction, ...) are passed through.
+ */
+public class ThroughputHarness {
+
+	static final String usage = "Usage: ThroughputHarness -dir <work directory>"+
+			"\n\t-configs <comma-separated configurations [default: bulk-normal,bulk-proper,sc-normal,sc-proper]>"+
+			"\n\t-repeats <runs per configuration [default: 1]>"+
+			"\n\t-esatArgs <additional NewESAT arguments, quoted [default: none]>"+
+			"\n\t-verbose [keep NewESAT INFO logging]"+
+			"\n\t(all WorkloadGenerator options are accepted and used when a workload is generated)";
+
+	static Logger logger = Logger.getLogger(ThroughputHarness.class.getName());
+
+	/* the measurements of a single run */
+	static class RunResult {
+		String config;
+		int run;
+		double wallSec;
+		long alignments;
+		long peakHeap;
+		long gcCount;
+		double gcSec;
+		List<RunMetrics.Stage> stages = new ArrayList<RunMetrics.Stage>();
+	}
+
+	public static void main(String[] args) throws Exception {
+		ArgumentMap argMap = CLUtil.getParameters(args, usage, "harness");
+		if (!argMap.isPresent("dir")) {
+			System.err.println(usage);
+			System.exit(1);
+		}
+		File dir = new File(argMap.get("dir"));
+		String[] configs = argMap.get("configs", "bulk-normal,bulk-proper,sc-normal,sc-proper").split(",");
+		int repeats = argMap.getInteger("repeats", 1);
+		String esatArgs = argMap.get("esatArgs", "").trim();
+		if (!argMap.isPresent("verbose")) {
+			Logger.getRootLogger().setLevel(Level.WARN);
+		}
+
+		List<RunResult> results = new ArrayList<RunResult>();
+		for (String config:configs) {
+			String[] parts = config.split("-");
+			if (parts.length!=2 || !(parts[0].equals("bulk") || parts[0].equals("sc"))) {
+				throw new IllegalArgumentException("Illegal configuration "+config+" (expected <bulk|sc>-<multimap>)");
+			}
+			boolean singleCell = parts[0].equals("sc");
+			File wDir = new File(dir, parts[0]);
+			WorkloadGenerator gen = prepareWorkload(wDir, singleCell, args);
+			long alignments = readAlignmentCount(new File(wDir, "workload.txt"));
+
+			for (int run=1; run<=repeats; run++) {
+				List<String> esat = new ArrayList<String>();
+				esat.add("-alignments");
+				esat.add(gen.getAlignmentsFile().getAbsolutePath());
+				esat.add(gen.geneMapping ? "-geneMapping" : "-annotations");
+				esat.add(gen.getAnnotationFile().getAbsolutePath());
+				esat.add("-multimap");
+				esat.add(parts[1]);
+				if (singleCell) {
+					esat.add("-inPrep");
+				}
+				File outDir = new File(dir, "out_"+config);
+				outDir.mkdirs();
+				esat.add("-out");
+				esat.add(new File(outDir, "run"+run).getAbsolutePath());
+				if (esatArgs.length()>0) {
+					for (String a:esatArgs.split("\\s+")) {
+						esat.add(a);
+					}
+				}
+				// force a fresh preprocessing pass for every run:
+				deletePreprocessedFiles(wDir);
+
+				RunResult r = runOnce(esat.toArray(new String[0]));
+				r.config = config;
+				r.run = run;
+				r.alignments = alignments;
+				results.add(r);
+				System.out.println(format(r));
+			}
+		}
+		File report = new File(dir, "harness_"+new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date())+".tsv");
+		writeReport(results, report);
+		System.out.println("Report written to "+report);
+	}
+
+	static WorkloadGenerator prepareWorkload(File wDir, boolean singleCell, String[] args) throws IOException {
+		// pass all generator options through, but fix the output directory and the workload type:
+		List<String> gArgs = new ArrayList<String>();
+		for (int i=0; i<args.length; i++) {
+			if (args[i].equals("-dir") || args[i].equals("-configs") || args[i].equals("-repeats") || args[i].equals("-esatArgs")) {
+				i++;
+			} else if (!args[i].equals("-verbose") && !args[i].equals("-singleCell")) {
+				gArgs.add(args[i]);
+			}
+		}
+		gArgs.add("-outDir");
+		gArgs.add(wDir.getPath());
+		if (singleCell) {
+			gArgs.add("-singleCell");
+		}
+		WorkloadGenerator gen = new WorkloadGenerator(gArgs.toArray(new String[0]));
+		if (!new File(wDir, "workload.txt").exists()) {
+			System.out.println("Generating "+(singleCell ? "single-cell" : "bulk")+" workload in "+wDir+"...");
+			gen.generate();
+		}
+		return gen;
+	}
+
+	static RunResult runOnce(String[] esatArgs) throws Exception {
+		RunResult r = new RunResult();
+		System.gc();
+		List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+		for (MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType()==MemoryType.HEAP) {
+				pool.resetPeakUsage();
+				heapPools.add(pool);
+			}
+		}
+		long gcCount0 = 0;
+		long gcTime0 = 0;
+		for (GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount0 += gc.getCollectionCount();
+			gcTime0 += gc.getCollectionTime();
+		}
+
+		long start = System.nanoTime();
+		NewESAT esat = new NewESAT(esatArgs);
+		r.wallSec = (System.nanoTime()-start)/1e9;
+
+		for (MemoryPoolMXBean pool:heapPools) {
+			r.peakHeap += pool.getPeakUsage().getUsed();
+		}
+		for (GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()) {
+			r.gcCount += gc.getCollectionCount();
+			r.gcSec += gc.getCollectionTime();
+		}
+		r.gcCount -= gcCount0;
+		r.gcSec = (r.gcSec-gcTime0)/1000.0;
+		r.stages.addAll(esat.getMetrics().getStages());
+		return r;
+	}
+
+	static void deletePreprocessedFiles(File wDir) {
+		File[] files = wDir.listFiles();
+		if (files==null) {
+			return;
+		}
+		for (File f:files) {
+			if (f.getName().contains("_inPrep") || f.getName().contains("_nextPrep")) {
+				f.delete();
+			}
+		}
+	}
+
+	static long readAlignmentCount(File description) throws IOException {
+		java.io.BufferedReader br = new java.io.BufferedReader(new java.io.FileReader(description));
+		String s;
+		long n = 0;
+		while ((s = br.readLine())!=null) {
+			if (s.startsWith("alignments\t")) {
+				n = Long.parseLong(s.split("\t")[1]);
+			}
+		}
+		br.close();
+		return n;
+	}
+
+	static String format(RunResult r) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-14s run %d: %8.2f sec  %10.0f alignments/sec  peak heap %7.1f MB  GC %d (%.2f sec)",
+				r.config, r.run, r.wallSec, r.alignments/r.wallSec, r.peakHeap/1048576.0, r.gcCount, r.gcSec));
+		for (RunMetrics.Stage s:r.stages) {
+			sb.append(String.format("\n\t%-14s %8.2f sec  CPU %8.2f sec  %10d records  alloc %8.1f MB/sec  peak heap %7.1f MB",
+					s.getName(), s.getWallSec(), s.getCpuSec(), s.getRecords(), s.getAllocRate()/1048576.0, s.getPeakHeap()/1048576.0));
+		}
+		return sb.toString();
+	}
+
+	/* long-format report: one line per configuration, run and metric */
+	static void writeReport(List<RunResult> results, File f) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(f));
+		w.write("config\trun\tmetric\tvalue\n");
+		for (RunResult r:results) {
+			String key = r.config+"\t"+r.run+"\t";
+			w.write(key+"wallSec\t"+r.wallSec+"\n");
+			w.write(key+"alignments\t"+r.alignments+"\n");
+			w.write(key+"alignmentsPerSec\t"+r.alignments/r.wallSec+"\n");
+			w.write(key+"peakHeapBytes\t"+r.peakHeap+"\n");
+			w.write(key+"gcCount\t"+r.gcCount+"\n");
+			w.write(key+"gcSec\t"+r.gcSec+"\n");
+			for (RunMetrics.Stage s:r.stages) {
+				String sKey = key+"stage."+s.getName()+".";
+				w.write(sKey+"wallSec\t"+s.getWallSec()+"\n");
+				w.write(sKey+"cpuSec\t"+s.getCpuSec()+"\n");
+				w.write(sKey+"records\t"+s.getRecords()+"\n");
+				w.write(sKey+"bytes\t"+s.getBytes()+"\n");
+				w.write(sKey+"allocBytes\t"+s.getAllocBytes()+"\n");
+				w.write(sKey+"peakHeapBytes\t"+s.getPeakHeap()+"\n");
+			}
+		}
+		w.close();
+	}
+}
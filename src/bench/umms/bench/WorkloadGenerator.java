@@ -0,0 +1,435 @@
+package umms.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+
+/**
+ * Writes a complete synthetic NewESAT input set, so that end-to-end performance work has a
+ * reproducible workload that does not depend on patient data:
+ *
+ *   genome.dict         fake genome dictionary (SAM header with @SQ lines)
+ *   annotation.bed      BED12 annotation (or genes.refGene.txt, a UCSC-style gene-to-transcript map)
+ *   <exp>_<n>.bam       coordinate-sorted, indexed BAM files
+ *   alignments.txt      the -alignments file list (<experimentID>\t<BAM file>)
+ *   workload.txt        the generator parameters and the number of alignments written
+ *
+ * Reads are drawn from genes with log-normal expression. A fraction (-bias) of each gene's reads
+ * start near the 3' end (normally distributed, -biasWidth bases), the rest are uniform over the
+ * transcript, and -noise of all reads are intergenic. Multimapped reads (-mmFraction) get NH>1 and
+ * additional secondary alignments at random positions. With -singleCell, read names follow the inDrop
+ * convention <readID>:<bc1>:<bc2>:<umi>, and each molecule is PCR-duplicated at rate -dupRate.
+ */
+public class WorkloadGenerator {
+
+	static final String usage = "Usage: WorkloadGenerator -outDir <output directory [default: .]>"+
+			"\n\t-nChr <number of references [default: 4]>"+
+			"\n\t-chrLen <reference length [default: 5000000]>"+
+			"\n\t-nGenes <number of genes [default: 1000]>"+
+			"\n\t-nExp <number of experiments [default: 2]>"+
+			"\n\t-filesPerExp <BAM files per experiment [default: 1]>"+
+			"\n\t-reads <reads per BAM file [default: 200000]>"+
+			"\n\t-bias <fraction of genic reads near the 3' end [default: 0.8]>"+
+			"\n\t-biasWidth <standard deviation of the 3' read distribution, in bases [default: 300]>"+
+			"\n\t-noise <fraction of intergenic reads [default: 0.05]>"+
+			"\n\t-mmFraction <fraction of multimapped reads [default: 0.05]>"+
+			"\n\t-geneMapping [write a gene-to-transcript map instead of a BED file]"+
+			"\n\t-singleCell [inDrop-style read names]"+
+			"\n\t\t-nCells <number of cells [default: 100]>"+
+			"\n\t\t-ambient <fraction of reads from low-count (empty droplet) barcodes [default: 0.1]>"+
+			"\n\t\t-dupRate <PCR duplication rate [default: 0.3]>"+
+			"\n\t-seed <random seed [default: 42]>";
+
+	static Logger logger = Logger.getLogger(WorkloadGenerator.class.getName());
+
+	private static final int READ_LEN = 50;
+	private static final int UMI_LEN = 6;
+	private static final int BC_LEN = 8;
+
+	/* generator parameters */
+	File outDir;
+	int nChr;
+	int chrLen;
+	int nGenes;
+	int nExp;
+	int filesPerExp;
+	int readsPerFile;
+	double bias;
+	double biasWidth;
+	double noise;
+	double mmFraction;
+	boolean geneMapping;
+	boolean singleCell;
+	int nCells;
+	double ambient;
+	double dupRate;
+	long seed;
+
+	/* generated model */
+	private Random rnd;
+	private SAMFileHeader header;
+	private List<SynthGene> genes = new ArrayList<SynthGene>();
+	private double[] geneCdf;
+	private String[][] cells;        // {bc1, bc2} per cell
+	private double[] cellCdf;
+	private String[][] ambientCells;
+	private long alignmentsWritten = 0;
+
+	/* a gene with its (sorted, non-overlapping) exons */
+	static class SynthGene {
+		String name;
+		String chr;
+		boolean negative;
+		int[] starts;
+		int[] ends;
+		int tLen;
+
+		int getStart() { return starts[0]; }
+		int getEnd() { return ends[ends.length-1]; }
+
+		/* genomic position of the base 'dist' bases upstream of the 3' end (negative: downstream, into the extension) */
+		int genomicFrom3p(int dist) {
+			if (dist<0) {
+				return negative ? getStart()+dist : getEnd()-1-dist;
+			}
+			if (!negative) {
+				for (int e=ends.length-1; e>=0; e--) {
+					int len = ends[e]-starts[e];
+					if (dist<len) {
+						return ends[e]-1-dist;
+					}
+					dist -= len;
+				}
+			} else {
+				for (int e=0; e<starts.length; e++) {
+					int len = ends[e]-starts[e];
+					if (dist<len) {
+						return starts[e]+dist;
+					}
+					dist -= len;
+				}
+			}
+			return -1;    // past the 5' end
+		}
+	}
+
+	public WorkloadGenerator() {
+		// defaults:
+		nChr = 4;
+		chrLen = 5000000;
+		nGenes = 1000;
+		nExp = 2;
+		filesPerExp = 1;
+		readsPerFile = 200000;
+		bias = 0.8;
+		biasWidth = 300;
+		noise = 0.05;
+		mmFraction = 0.05;
+		geneMapping = false;
+		singleCell = false;
+		nCells = 100;
+		ambient = 0.1;
+		dupRate = 0.3;
+		seed = 42;
+	}
+
+	public WorkloadGenerator(String[] args) {
+		this();
+		ArgumentMap argMap = CLUtil.getParameters(args, usage, "generate");
+		outDir = new File(argMap.getOutputDir());    // (CLUtil keeps -outDir apart from the other arguments)
+		nChr = argMap.getInteger("nChr", nChr);
+		chrLen = argMap.getInteger("chrLen", chrLen);
+		nGenes = argMap.getInteger("nGenes", nGenes);
+		nExp = argMap.getInteger("nExp", nExp);
+		filesPerExp = argMap.getInteger("filesPerExp", filesPerExp);
+		readsPerFile = argMap.getInteger("reads", readsPerFile);
+		bias = argMap.getDouble("bias", bias);
+		biasWidth = argMap.getDouble("biasWidth", biasWidth);
+		noise = argMap.getDouble("noise", noise);
+		mmFraction = argMap.getDouble("mmFraction", mmFraction);
+		geneMapping = argMap.isPresent("geneMapping");
+		singleCell = argMap.isPresent("singleCell");
+		nCells = argMap.getInteger("nCells", nCells);
+		ambient = argMap.getDouble("ambient", ambient);
+		dupRate = argMap.getDouble("dupRate", dupRate);
+		seed = argMap.getInteger("seed", (int) seed);
+	}
+
+	public static void main(String[] args) throws IOException {
+		new WorkloadGenerator(args).generate();
+	}
+
+	/**
+	 * Writes all workload files to outDir.
+	 *
+	 * @return	the -alignments file list
+	 */
+	public File generate() throws IOException {
+		long startTime = System.nanoTime();
+		outDir.mkdirs();
+		rnd = new Random(seed);
+
+		makeHeader();
+		makeGenes();
+		if (singleCell) {
+			makeCells();
+		}
+		writeDictionary(new File(outDir, "genome.dict"));
+		if (geneMapping) {
+			writeGeneMap(getAnnotationFile());
+		} else {
+			writeBED(getAnnotationFile());
+		}
+
+		File fileList = getAlignmentsFile();
+		BufferedWriter listWriter = new BufferedWriter(new FileWriter(fileList));
+		for (int e=1; e<=nExp; e++) {
+			for (int f=1; f<=filesPerExp; f++) {
+				File bam = new File(outDir, "exp"+e+"_"+f+".bam");
+				writeBAM(bam);
+				listWriter.write("exp"+e+"\t"+bam.getAbsolutePath()+"\n");
+			}
+		}
+		listWriter.close();
+		writeDescription(new File(outDir, "workload.txt"));
+
+		logger.info("Workload with "+alignmentsWritten+" alignments written to "+outDir+" in "+(System.nanoTime()-startTime)/1e9+" sec");
+		return fileList;
+	}
+
+	public File getAlignmentsFile() {
+		return new File(outDir, "alignments.txt");
+	}
+
+	public File getAnnotationFile() {
+		return new File(outDir, geneMapping ? "genes.refGene.txt" : "annotation.bed");
+	}
+
+	public long getAlignmentsWritten() {
+		return alignmentsWritten;
+	}
+
+	private void makeHeader() {
+		header = SyntheticData.makeHeader(nChr, chrLen);
+	}
+
+	private void makeGenes() {
+		// place genes along each chromosome with random spacing; some are close enough that extensions get trimmed
+		int genesPerChr = (int) Math.ceil((double) nGenes/nChr);
+		int gIdx = 0;
+		for (SAMSequenceRecord seq:header.getSequenceDictionary().getSequences()) {
+			int pos = 1000+rnd.nextInt(5000);
+			for (int i=0; i<genesPerChr && gIdx<nGenes; i++) {
+				int nExons = 1+rnd.nextInt(8);
+				SynthGene g = new SynthGene();
+				g.name = "GENE"+(gIdx+1);
+				g.chr = seq.getSequenceName();
+				g.negative = rnd.nextBoolean();
+				g.starts = new int[nExons];
+				g.ends = new int[nExons];
+				for (int e=0; e<nExons; e++) {
+					int eLen = 100+rnd.nextInt(400);
+					g.starts[e] = pos;
+					g.ends[e] = pos+eLen;
+					g.tLen += eLen;
+					pos += eLen+200+rnd.nextInt(3000);
+				}
+				if (g.getEnd()+1000>=seq.getSequenceLength()) {
+					break;
+				}
+				genes.add(g);
+				gIdx++;
+				pos = g.getEnd()+200+rnd.nextInt(10000);
+			}
+		}
+		// log-normal expression levels:
+		geneCdf = new double[genes.size()];
+		double sum = 0;
+		for (int i=0; i<genes.size(); i++) {
+			sum += Math.exp(1.5*rnd.nextGaussian());
+			geneCdf[i] = sum;
+		}
+		for (int i=0; i<geneCdf.length; i++) {
+			geneCdf[i] /= sum;
+		}
+		if (genes.size()<nGenes) {
+			logger.warn("Only "+genes.size()+" of "+nGenes+" genes fit on the genome; increase -chrLen or -nChr");
+		}
+	}
+
+	private void makeCells() {
+		cells = new String[nCells][];
+		cellCdf = new double[nCells];
+		double sum = 0;
+		for (int i=0; i<nCells; i++) {
+			cells[i] = new String[] {SyntheticData.randomBases(rnd, BC_LEN), SyntheticData.randomBases(rnd, BC_LEN)};
+			sum += Math.exp(0.7*rnd.nextGaussian());
+			cellCdf[i] = sum;
+		}
+		for (int i=0; i<nCells; i++) {
+			cellCdf[i] /= sum;
+		}
+		// background (empty droplet) barcodes, each with very few reads:
+		ambientCells = new String[10*nCells][];
+		for (int i=0; i<ambientCells.length; i++) {
+			ambientCells[i] = new String[] {SyntheticData.randomBases(rnd, BC_LEN), SyntheticData.randomBases(rnd, BC_LEN)};
+		}
+	}
+
+	private static int sampleCdf(double[] cdf, double u) {
+		int idx = java.util.Arrays.binarySearch(cdf, u);
+		if (idx<0) {
+			idx = -idx-1;
+		}
+		return Math.min(idx, cdf.length-1);
+	}
+
+	private void writeDictionary(File f) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(f));
+		w.write("@HD\tVN:1.4\tSO:coordinate\n");
+		for (SAMSequenceRecord seq:header.getSequenceDictionary().getSequences()) {
+			w.write("@SQ\tSN:"+seq.getSequenceName()+"\tLN:"+seq.getSequenceLength()+"\n");
+		}
+		w.close();
+	}
+
+	private void writeBED(File f) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(f));
+		for (SynthGene g:genes) {
+			StringBuilder sizes = new StringBuilder();
+			StringBuilder offsets = new StringBuilder();
+			for (int e=0; e<g.starts.length; e++) {
+				sizes.append(g.ends[e]-g.starts[e]).append(",");
+				offsets.append(g.starts[e]-g.getStart()).append(",");
+			}
+			w.write(g.chr+"\t"+g.getStart()+"\t"+g.getEnd()+"\t"+g.name+"\t0\t"+(g.negative ? "-" : "+")+"\t"+
+					g.getStart()+"\t"+g.getEnd()+"\t0\t"+g.starts.length+"\t"+sizes+"\t"+offsets+"\n");
+		}
+		w.close();
+	}
+
+	private void writeGeneMap(File f) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(f));
+		w.write("name\tchrom\tstrand\ttxStart\ttxEnd\texonStarts\texonEnds\tname2\n");
+		int tIdx = 1;
+		for (SynthGene g:genes) {
+			String strand = g.negative ? "-" : "+";
+			writeTranscript(w, "NM_"+(tIdx++), g, strand, 0, g.starts.length);
+			// about a third of the multi-exon genes get a second isoform that skips the first exon:
+			if (g.starts.length>1 && rnd.nextInt(3)==0) {
+				writeTranscript(w, "NM_"+(tIdx++), g, strand, 1, g.starts.length);
+			}
+		}
+		w.close();
+	}
+
+	private void writeTranscript(BufferedWriter w, String tName, SynthGene g, String strand, int first, int last) throws IOException {
+		StringBuilder eStarts = new StringBuilder();
+		StringBuilder eEnds = new StringBuilder();
+		for (int e=first; e<last; e++) {
+			eStarts.append(g.starts[e]).append(",");
+			eEnds.append(g.ends[e]).append(",");
+		}
+		w.write(tName+"\t"+g.chr+"\t"+strand+"\t"+g.starts[first]+"\t"+g.ends[last-1]+"\t"+eStarts+"\t"+eEnds+"\t"+g.name+"\n");
+	}
+
+	private void writeBAM(File bam) throws IOException {
+		SAMFileWriterFactory sf = new SAMFileWriterFactory();
+		sf.setCreateIndex(true);
+		// presorted=false: the writer sorts the records into coordinate order (spilling to disk if necessary)
+		SAMFileWriter writer = sf.makeBAMWriter(header, false, bam);
+		List<SAMSequenceRecord> seqs = header.getSequenceDictionary().getSequences();
+
+		int nRead = 0;
+		long readId = 0;
+		while (nRead<readsPerFile) {
+			String chr;
+			int pos;
+			boolean negative;
+			if (rnd.nextDouble()<noise) {
+				// intergenic read
+				SAMSequenceRecord seq = seqs.get(rnd.nextInt(seqs.size()));
+				chr = seq.getSequenceName();
+				pos = rnd.nextInt(seq.getSequenceLength()-READ_LEN);
+				negative = rnd.nextBoolean();
+			} else {
+				SynthGene g = genes.get(sampleCdf(geneCdf, rnd.nextDouble()));
+				chr = g.chr;
+				negative = g.negative;
+				pos = -1;
+				while (pos<0) {
+					int dist;
+					if (rnd.nextDouble()<bias) {
+						dist = (int) Math.round(rnd.nextGaussian()*biasWidth+biasWidth/2);
+					} else {
+						dist = rnd.nextInt(g.tLen);
+					}
+					pos = g.genomicFrom3p(dist);
+				}
+			}
+			int nh = rnd.nextDouble()<mmFraction ? 2+rnd.nextInt(3) : 1;
+
+			// a read name (and, for single-cell data, its PCR duplicates):
+			int copies = 1;
+			String name;
+			if (singleCell) {
+				String[] bc;
+				if (rnd.nextDouble()<ambient) {
+					bc = ambientCells[rnd.nextInt(ambientCells.length)];
+				} else {
+					bc = cells[sampleCdf(cellCdf, rnd.nextDouble())];
+				}
+				String umi = SyntheticData.randomBases(rnd, UMI_LEN);
+				while (rnd.nextDouble()<dupRate) {
+					copies++;
+				}
+				name = ":"+bc[0]+":"+bc[1]+":"+umi;
+			} else {
+				name = "";
+			}
+
+			for (int c=0; c<copies && nRead<readsPerFile; c++) {
+				String rName = "r"+(readId++)+name;
+				SAMRecord r = SyntheticData.makeRecord(header, rName, chr, pos+1, negative, READ_LEN, nh);
+				writer.addAlignment(r);
+				alignmentsWritten++;
+				// secondary alignments of multimapped reads at random positions:
+				for (int m=1; m<nh; m++) {
+					SAMSequenceRecord seq = seqs.get(rnd.nextInt(seqs.size()));
+					SAMRecord s = SyntheticData.makeRecord(header, rName, seq.getSequenceName(),
+											1+rnd.nextInt(seq.getSequenceLength()-READ_LEN), rnd.nextBoolean(), READ_LEN, nh);
+					s.setNotPrimaryAlignmentFlag(true);
+					writer.addAlignment(s);
+					alignmentsWritten++;
+				}
+				nRead++;
+			}
+		}
+		writer.close();
+		logger.info("Wrote "+nRead+" reads to "+bam);
+	}
+
+	private void writeDescription(File f) throws IOException {
+		BufferedWriter w = new BufferedWriter(new FileWriter(f));
+		w.write("nChr\t"+nChr+"\nchrLen\t"+chrLen+"\nnGenes\t"+genes.size()+"\nnExp\t"+nExp+"\nfilesPerExp\t"+filesPerExp+
+				"\nreads\t"+readsPerFile+"\nbias\t"+bias+"\nbiasWidth\t"+biasWidth+"\nnoise\t"+noise+"\nmmFraction\t"+mmFraction+
+				"\ngeneMapping\t"+geneMapping+"\nsingleCell\t"+singleCell+"\nnCells\t"+nCells+"\nambient\t"+ambient+
+				"\ndupRate\t"+dupRate+"\nseed\t"+seed+"\nalignments\t"+alignmentsWritten+"\n");
+		w.close();
+	}
+}
@@ -0,0 +1,57 @@
+package umms.core.fastq;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umms.bench.SyntheticData;
+
+/**
+ * Record parsing throughput of FastqParser.next() over an in-memory fastq, so that disk
+ * speed does not enter the measurement.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FastqParserBenchmark {
+
+	private static final int N_READS = 20000;
+
+	private String fastq;
+
+	@Setup
+	public void setup() {
+		Random rnd = new Random(42);
+		fastq = SyntheticData.fastqText(rnd, N_READS, SyntheticData.randomBarcodes(rnd, 96, 8), 6, 75);
+	}
+
+	@Benchmark
+	public int next() throws IOException {
+		FastqParser parser = new FastqParser();
+		parser.start(new BufferedReader(new StringReader(fastq)));
+		int n = 0;
+		while (parser.hasNext()) {
+			if (parser.next()!=null) {
+				n++;
+			}
+		}
+		parser.close();
+		return n;
+	}
+}
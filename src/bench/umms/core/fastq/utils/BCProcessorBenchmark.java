@@ -0,0 +1,80 @@
+package umms.core.fastq.utils;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umms.bench.SyntheticData;
+import umms.core.fastq.FastqSequence;
+
+/**
+ * Barcode parsing and sample assignment in BCProcessor. A fraction of the reads carry a
+ * single-base sequencing error in the sample barcode, which forces the Hamming-distance scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BCProcessorBenchmark {
+
+	private static final int N_READS = 20000;
+	private static final float ERROR_RATE = 0.05f;
+
+	@Param({"96", "384"})
+	public int nBarcodes;
+
+	private BCProcessor proc;
+	private HashMap<String, String> bcSampleMap;
+	private FastqSequence[] reads;
+
+	@Setup
+	public void setup() {
+		Random rnd = new Random(42);
+		proc = new BCProcessor();
+		proc.BC_FORMAT = "SSSSSSSSNNNNNN";
+		proc.BC_START_POS = 0;
+		proc.MAX_HAMMING_DIST = 1;
+		proc.init();
+
+		String[] barcodes = SyntheticData.randomBarcodes(rnd, nBarcodes, 8);
+		bcSampleMap = new HashMap<String, String>();
+		for (int i=0; i<barcodes.length; i++) {
+			bcSampleMap.put(barcodes[i], "sample"+i);
+		}
+		reads = new FastqSequence[N_READS];
+		for (int i=0; i<N_READS; i++) {
+			char[] bc = barcodes[rnd.nextInt(barcodes.length)].toCharArray();
+			if (rnd.nextFloat()<ERROR_RATE) {
+				bc[rnd.nextInt(bc.length)] = 'N';
+			}
+			String seq = new String(bc)+SyntheticData.randomBases(rnd, 60);
+			reads[i] = new FastqSequence("@read"+i, seq, "+", seq.replaceAll(".", "I"));
+		}
+	}
+
+	@Benchmark
+	public int assignBarcodes() {
+		int assigned = 0;
+		for (FastqSequence r:reads) {
+			String[] bcInfo = proc.parseBarcode(r);
+			if (proc.getClosestBc(bcSampleMap, bcInfo[0])!=null) {
+				assigned++;
+			}
+		}
+		return assigned;
+	}
+}
@@ -0,0 +1,87 @@
+package umms.core.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+import umms.bench.SyntheticData;
+import umms.core.annotation.Gene;
+
+/**
+ * UMI bookkeeping of the inDrop preprocessor: one call to updateUmiCounts() per read that
+ * overlaps an annotated gene. Each invocation starts from an empty UMI map, as for a new experiment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InDropPreprocessBenchmark {
+
+	private static final int N_READS = 50000;
+	private static final int N_GENES = 500;
+
+	@Param({"100", "2000"})
+	public int nCells;
+
+	private InDropPreprocess prep;
+	private SAMRecord[] reads;
+	private ArrayList<Vector<String>> oLaps;
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() throws IOException {
+		Random rnd = new Random(42);
+		/* no input files: the constructor only builds an (empty) exon map */
+		prep = new InDropPreprocess(new HashMap<String,ArrayList<File>>(), new TreeMap<String, Collection<Gene>>(),
+									false, 0, "normal", 400, true, "score3p");
+		SAMFileHeader header = SyntheticData.makeHeader(1, 10000000);
+		String[] bc1 = SyntheticData.randomBarcodes(rnd, (int)Math.ceil(Math.sqrt(nCells)), 8);
+		String[] bc2 = SyntheticData.randomBarcodes(rnd, (int)Math.ceil(Math.sqrt(nCells)), 8);
+		reads = new SAMRecord[N_READS];
+		oLaps = new ArrayList<Vector<String>>(N_READS);
+		for (int i=0; i<N_READS; i++) {
+			int g = rnd.nextInt(N_GENES);
+			String name = SyntheticData.inDropReadName(rnd, i, bc1, bc2, 6);
+			reads[i] = SyntheticData.makeRecord(header, name, "chr1", 1+g*10000+rnd.nextInt(1000), rnd.nextBoolean(), 50, 1);
+			Vector<String> oLap = new Vector<String>();
+			oLap.add("GENE"+g);
+			oLaps.add(oLap);
+		}
+	}
+
+	@Benchmark
+	public int updateUmiCounts() {
+		HashMap<String, HashMap<String, HashMap<String, HashMap<String, HashMap<String, Integer>>>>> umiCount =
+				new HashMap<String, HashMap<String, HashMap<String, HashMap<String, HashMap<String, Integer>>>>>();
+		int exemplars = 0;
+		for (int i=0; i<N_READS; i++) {
+			if (prep.updateUmiCounts(reads[i], oLaps.get(i), umiCount)) {
+				exemplars++;
+			}
+		}
+		return exemplars;
+	}
+}
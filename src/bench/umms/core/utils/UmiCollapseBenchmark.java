@@ -0,0 +1,127 @@
+package umms.core.utils;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Directional UMI collapsing (UmiCollapser.collapse()) of all (gene, cell) groups of 10000 cells, with 10 base
+ * UMIs of which one in five is a one-base error of another UMI of its group, with fewer reads. "pairwise" is the
+ * same clustering with a scan over all UMIs of the group for the neighbours of each UMI, for comparison. Each
+ * invocation collapses N_UMIS UMIs; with more UMIs per group, each cell has fewer genes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UmiCollapseBenchmark {
+
+	private static final int N_CELLS = 10000;
+	private static final int N_UMIS = 1000000;
+	private static final int UMI_LEN = 10;
+
+	@Param({"8", "64", "256"})
+	public int umisPerGroup;
+
+	@Param({"directional", "pairwise"})
+	public String method;
+
+	private LongIntMap[] index;
+	private long[][] umis;
+	private int[][] counts;
+
+	@Setup
+	public void setup() {
+		Random rnd = new Random(42);
+		int nGroups = N_UMIS/umisPerGroup;
+		index = new LongIntMap[nGroups];
+		umis = new long[nGroups][umisPerGroup];
+		counts = new int[nGroups][umisPerGroup];
+		for (int g=0; g<nGroups; g++) {
+			index[g] = new LongIntMap(umisPerGroup);
+			int n = 0;
+			while (n<umisPerGroup) {
+				long u;
+				int c;
+				if (n>0 && rnd.nextInt(5)==0) {
+					// a sequencing error of an earlier UMI:
+					int src = rnd.nextInt(n);
+					int shift = 2*rnd.nextInt(UMI_LEN);
+					u = umis[g][src]^((1L+rnd.nextInt(3))<<shift);
+					c = 1+rnd.nextInt(Math.max(1, counts[g][src]/4));
+				} else {
+					u = 1L<<(2*UMI_LEN)|(rnd.nextLong()&((1L<<(2*UMI_LEN))-1));
+					c = 1+rnd.nextInt(20);
+				}
+				if (index[g].get(u)>=0) {
+					continue;
+				}
+				index[g].put(u, n);
+				umis[g][n] = u;
+				counts[g][n] = c;
+				n++;
+			}
+		}
+	}
+
+	@Benchmark
+	public int collapse() {
+		int molecules = 0;
+		for (int g=0; g<umis.length; g++) {
+			if (method.equals("directional")) {
+				molecules += UmiCollapser.collapse(index[g], umis[g], counts[g], umisPerGroup, 1).length;
+			} else {
+				molecules += collapsePairwise(umis[g], counts[g], umisPerGroup);
+			}
+		}
+		return molecules;
+	}
+
+	/* directional clustering, comparing each UMI with all others */
+	private static int collapsePairwise(long[] umis, int[] counts, int n) {
+		long[] order = new long[n];
+		for (int i=0; i<n; i++) {
+			order[i] = ((long)(Integer.MAX_VALUE-counts[i])<<32)|i;
+		}
+		Arrays.sort(order);
+		boolean[] assigned = new boolean[n];
+		int[] queue = new int[n];
+		int molecules = 0;
+		for (int o=0; o<n; o++) {
+			int root = (int)order[o];
+			if (assigned[root]) {
+				continue;
+			}
+			assigned[root] = true;
+			queue[0] = root;
+			int head = 0;
+			int tail = 1;
+			while (head<tail) {
+				int u = queue[head++];
+				for (int v=0; v<n; v++) {
+					long x = umis[u]^umis[v];
+					if (!assigned[v] && Long.bitCount((x|(x>>>1))&0x5555555555555555L)==1 && counts[u]>=2*counts[v]-1) {
+						assigned[v] = true;
+						queue[tail++] = v;
+					}
+				}
+			}
+			molecules++;
+		}
+		return molecules;
+	}
+}
@@ -0,0 +1,122 @@
+package umms.esat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import broad.core.datastructures.IntervalTree;
+
+/**
+ * Benchmark for the window and gene counter updates of the second pass with several threads adding to the same
+ * counter table (WindowTable.setConcurrent()), in a single cell configuration: 1000 cell barcode columns (sparse
+ * counts), and reads concentrated on a few genes and cells, so that the threads often add to the same gene
+ * counter. Each invocation adds N_READS read starts, split evenly over the threads; with one thread the table
+ * is updated without compare-and-set, as in a sequential run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterAccumulationBenchmark {
+
+	private static final int N_READS = 1000000;
+	private static final int N_CELLS = 1000;
+	private static final int N_GENES = 200;
+	private static final int WINDOWS_PER_GENE = 10;
+	private static final int W_LEN = 400;
+
+	@Param({"1", "8", "32"})
+	public int threads;
+
+	private EventCounter[] windows;
+	private EventCounter[] genes;
+	private int[] readGene;
+	private int[] readWindow;
+	private int[] readStart;
+	private int[] readCell;
+	private float[] readWeight;
+	private ExecutorService pool;
+
+	@Setup
+	public void setup() {
+		Random rnd = new Random(42);
+		WindowTable table = new WindowTable(N_CELLS);
+		windows = new EventCounter[N_GENES*WINDOWS_PER_GENE];
+		genes = new EventCounter[N_GENES];
+		for (int g=0; g<N_GENES; g++) {
+			int gStart = g*WINDOWS_PER_GENE*W_LEN*2;
+			for (int w=0; w<WINDOWS_PER_GENE; w++) {
+				int wStart = gStart+w*W_LEN;
+				Window win = new Window("+", "chr1", wStart, wStart+W_LEN, "GENE"+g, w*W_LEN, (w+1)*W_LEN);
+				windows[g*WINDOWS_PER_GENE+w] = new EventCounter(table, table.addWindow("GENE"+g, "chr1", "+", win));
+			}
+			IntervalTree<String> eTree = new IntervalTree<String>();
+			eTree.put(gStart, gStart+WINDOWS_PER_GENE*W_LEN, "GENE"+g);
+			genes[g] = new EventCounter(table, table.addGene("GENE"+g, "chr1", "+", eTree));
+		}
+		table.allocateCounts();
+		table.setConcurrent(threads>1);
+
+		/* half of the reads go to one gene, and most reads to the first 100 cells; 10% are multimapped (NH 2-4) */
+		readGene = new int[N_READS];
+		readWindow = new int[N_READS];
+		readStart = new int[N_READS];
+		readCell = new int[N_READS];
+		readWeight = new float[N_READS];
+		for (int i=0; i<N_READS; i++) {
+			int g = rnd.nextBoolean() ? 0 : rnd.nextInt(N_GENES);
+			int w = rnd.nextInt(WINDOWS_PER_GENE);
+			readGene[i] = g;
+			readWindow[i] = g*WINDOWS_PER_GENE+w;
+			readStart[i] = g*WINDOWS_PER_GENE*W_LEN*2+w*W_LEN+rnd.nextInt(W_LEN);
+			readCell[i] = rnd.nextInt(10)<8 ? rnd.nextInt(100) : rnd.nextInt(N_CELLS);
+			readWeight[i] = rnd.nextInt(10)==0 ? 1f/(2+rnd.nextInt(3)) : 1f;
+		}
+		pool = Executors.newFixedThreadPool(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public void addCounts() throws Exception {
+		List<Future<?>> tasks = new ArrayList<Future<?>>();
+		final int chunk = (N_READS+threads-1)/threads;
+		for (int t=0; t<threads; t++) {
+			final int from = t*chunk;
+			final int to = Math.min(N_READS, from+chunk);
+			tasks.add(pool.submit(new Runnable() {
+				public void run() {
+					for (int i=from; i<to; i++) {
+						windows[readWindow[i]].addIntervalCount(readStart[i], readStart[i]+1, readCell[i], readWeight[i]);
+						genes[readGene[i]].addIntervalCount(readStart[i], readStart[i]+1, readCell[i], readWeight[i]);
+					}
+				}
+			}));
+		}
+		for (Future<?> f:tasks) {
+			f.get();
+		}
+	}
+}
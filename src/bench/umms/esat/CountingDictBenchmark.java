@@ -0,0 +1,118 @@
+package umms.esat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+
+import broad.core.datastructures.IntervalTree;
+import umms.bench.SyntheticData;
+import umms.core.annotation.Gene;
+import umms.core.annotation.TranscriptTable;
+
+/**
+ * Benchmarks for the read-start counting store (SAMSequenceCountingDictShort) and for the
+ * sliding-window scan over a single transcript (countWindowedReadStarts).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountingDictBenchmark {
+
+	private static final int N_READS = 100000;
+	private static final int CHR_LEN = 1000000;
+
+	@Param({"10", "50"})
+	public int nExons;
+
+	@Param({"false", "true"})
+	public boolean allWindows;
+
+	private SAMRecord[] reads;
+	private SAMSequenceCountingDictShort dict;
+	private float[] localCounts;
+	private Gene gene;
+	private TranscriptTable transcripts;
+	private HashMap<String, HashMap<String, IntervalTree<String>>> iTree;
+
+	@Setup
+	public void setup() {
+		Logger logger = Logger.getLogger(CountingDictBenchmark.class.getName());
+		logger.setLevel(Level.ERROR);
+		Random rnd = new Random(42);
+		SAMFileHeader header = SyntheticData.makeHeader(1, CHR_LEN);
+		reads = SyntheticData.makeRecords(rnd, header, N_READS, 0.1f);
+
+		/* a gene in the middle of the chromosome, with reads piled up towards its 3' end */
+		gene = SyntheticData.makeGene("chr1", "GENE1", "+", 100000, nExons, 200, 800);
+		HashMap<String, Collection<Gene>> annotations = new HashMap<String, Collection<Gene>>();
+		annotations.put("chr1", new ArrayList<Gene>());
+		annotations.get("chr1").add(gene);
+		transcripts = new TranscriptTable(annotations);
+
+		dict = new SAMSequenceCountingDictShort();
+		dict.setLogger(logger);
+		dict.copySequences(header.getSequenceDictionary());
+		for (SAMRecord r:reads) {
+			dict.updateCount(r, "normal", true);
+		}
+		int gEnd = gene.getEnd();
+		for (int i=0; i<N_READS; i++) {
+			int pos = gEnd-(int)Math.abs(rnd.nextGaussian()*1500);
+			SAMRecord r = SyntheticData.makeRecord(header, "g"+i, "chr1", Math.max(pos,1), false, 50, 1);
+			dict.updateCount(r, "normal", true);
+		}
+		localCounts = new float[CHR_LEN];
+
+		/* exon tree used to trim the extension against neighbouring genes */
+		iTree = new HashMap<String, HashMap<String, IntervalTree<String>>>();
+		iTree.put("+", new HashMap<String, IntervalTree<String>>());
+		iTree.put("-", new HashMap<String, IntervalTree<String>>());
+		iTree.get("+").put("chr1", new IntervalTree<String>());
+		iTree.get("-").put("chr1", new IntervalTree<String>());
+		for (int e=0; e<transcripts.getExonCount(0); e++) {
+			iTree.get("+").get("chr1").put(transcripts.getExonStart(0, e), transcripts.getExonEnd(0, e), gene.getName());
+		}
+	}
+
+	@Benchmark
+	public SAMSequenceCountingDictShort updateCount() {
+		for (SAMRecord r:reads) {
+			dict.updateCount(r, "normal", true);
+		}
+		return dict;
+	}
+
+	@Benchmark
+	public float[] copyToLocalCounts() {
+		dict.copyToLocalCounts("chr1", "+", 0, 0, CHR_LEN, localCounts);
+		return localCounts;
+	}
+
+	@Benchmark
+	public void countWindowedReadStarts(Blackhole bh) {
+		bh.consume(dict.countWindowedReadStarts(transcripts, 0, iTree, 400, 0, 400, "score3p", 1.0f, allWindows));
+	}
+}
@@ -0,0 +1,135 @@
+package umms.core.annotation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import umms.core.annotation.Annotation.Strand;
+
+/**
+ * Compact, read-only view of the transcripts of an annotation map (reference -> genes), for the counting paths.
+ * The exons of all transcripts are kept in flat arrays (in the sorted order of Gene.getBlocks()), indexed by
+ * transcript through exonOffset, so that the windows, gene intervals and exon interval trees can be built without
+ * the Annotation objects that Gene.getExonSet(), getExons() and getBlocks() create on every call.
+ *
+ * Transcripts are numbered in the iteration order of the annotation map and of the genes of each reference; the
+ * names and references are shared with the genes. Coordinates are those of the annotations (0-based, right-open).
+ */
+public class TranscriptTable {
+
+	private String[] names;
+	private String[] chrs;           // reference of each transcript
+	private Strand[] strands;
+	private int[] exonOffset;        // exons of transcript t: exonOffset[t]..exonOffset[t+1]-1
+	private int[] exonStart;
+	private int[] exonEnd;
+	private LinkedHashMap<String, int[]> references = new LinkedHashMap<String, int[]>();   // map key -> transcripts
+
+	public TranscriptTable(Map<String, Collection<Gene>> annotations) {
+		int nTranscripts = 0;
+		for (String chr:annotations.keySet()) {
+			nTranscripts += annotations.get(chr).size();
+		}
+		names = new String[nTranscripts];
+		chrs = new String[nTranscripts];
+		strands = new Strand[nTranscripts];
+		exonOffset = new int[nTranscripts+1];
+		List<int[]> exons = new ArrayList<int[]>();
+		int t = 0;
+		for (String chr:annotations.keySet()) {
+			int[] refTranscripts = new int[annotations.get(chr).size()];
+			int i = 0;
+			for (Gene g:annotations.get(chr)) {
+				names[t] = g.getName();
+				chrs[t] = g.getChr();
+				strands[t] = g.getOrientation();
+				Set<? extends SingleInterval> blocks = g.blocks.getBlocks();
+				int[] starts = new int[blocks.size()];
+				int[] ends = new int[blocks.size()];
+				int e = 0;
+				for (SingleInterval b:blocks) {
+					starts[e] = b.getStart();
+					ends[e] = b.getEnd();
+					e++;
+				}
+				exons.add(starts);
+				exons.add(ends);
+				exonOffset[t+1] = exonOffset[t]+e;
+				refTranscripts[i++] = t++;
+			}
+			references.put(chr, refTranscripts);
+		}
+		exonStart = new int[exonOffset[nTranscripts]];
+		exonEnd = new int[exonOffset[nTranscripts]];
+		for (t=0; t<nTranscripts; t++) {
+			System.arraycopy(exons.get(2*t), 0, exonStart, exonOffset[t], exonOffset[t+1]-exonOffset[t]);
+			System.arraycopy(exons.get(2*t+1), 0, exonEnd, exonOffset[t], exonOffset[t+1]-exonOffset[t]);
+		}
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+	/* the references (keys of the annotation map), in their order */
+	public Set<String> getReferences() {
+		return references.keySet();
+	}
+
+	/* the transcripts of a reference, in annotation order (none if it has no annotations) */
+	public int[] getTranscripts(String chr) {
+		int[] t = references.get(chr);
+		return t==null ? new int[0] : t;
+	}
+
+	public String getName(int t) {
+		return names[t];
+	}
+
+	public String getChr(int t) {
+		return chrs[t];
+	}
+
+	public Strand getStrand(int t) {
+		return strands[t];
+	}
+
+	public boolean isNegativeStrand(int t) {
+		return strands[t]==Strand.NEGATIVE;
+	}
+
+	public int getExonCount(int t) {
+		return exonOffset[t+1]-exonOffset[t];
+	}
+
+	/* start of exon e (0..getExonCount(t)-1, in coordinate order) of transcript t */
+	public int getExonStart(int t, int e) {
+		return exonStart[exonOffset[t]+e];
+	}
+
+	public int getExonEnd(int t, int e) {
+		return exonEnd[exonOffset[t]+e];
+	}
+
+	/* lowest coordinate of the transcript (start of its first exon) */
+	public int getStart(int t) {
+		return exonStart[exonOffset[t]];
+	}
+
+	/* highest coordinate of the transcript (end of its last exon) */
+	public int getEnd(int t) {
+		return exonEnd[exonOffset[t+1]-1];
+	}
+
+	public int getTotalExonCount() {
+		return exonStart.length;
+	}
+
+	/* approximate size of the table, without the (shared) names and references */
+	public long getMemoryBytes() {
+		return 3L*8*names.length+4L*exonOffset.length+8L*exonStart.length+references.size()*64L+4L*names.length;
+	}
+}
@@ -359,7 +359,7 @@ public class BCProcessor extends CommandLineProgram {
 	}
 
 	
-	private String getClosestBc(HashMap<String, String> bcSampleMap, String observedBC) {
+	String getClosestBc(HashMap<String, String> bcSampleMap, String observedBC) {
 		// TODO Add hemming distance comparison
 		String barcode = bcSampleMap.containsKey(observedBC) ? observedBC : null;
 		
@@ -388,7 +388,7 @@ public class BCProcessor extends CommandLineProgram {
 	}
 	
 	//	TODO: HANDLE THE CASE WHERE ANY OF THE START/ENDS ARE 0
-	private String[] parseBarcode(FastqSequence r) {
+	String[] parseBarcode(FastqSequence r) {
 		if(this.IN_READ_NAME ) {
 			return parseBarcodeFromName(r.getName());
 		} else {
@@ -0,0 +1,262 @@
+package umms.core.sequence;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+import umms.core.annotation.Annotation;
+import umms.core.annotation.Annotation.Strand;
+import umms.core.annotation.Gene;
+
+/**
+ * Sequences of many genes at once, for ExtractSequence.writeFasta() and getSequenceForGene(Collection, ...): the
+ * genes are grouped by chromosome, and each chromosome is read once (from the packed genome of the directory if it
+ * has one, see PackedGenome, or else from its <chr>.fa file) by one of nThreads workers, which extracts the exons of
+ * its genes in position order and masks their repeats with one sweep over the sorted okRepeats intervals of the
+ * chromosome. The sequences are those of ExtractSequence.getSequenceForGene(Gene, PackedGenome, ...), and are
+ * returned, or written, in the order of the genes given.
+ *
+ * The chromosomes are read in the order in which they first appear in the genes; as a chromosome FASTA file is held
+ * in memory while its genes are extracted, up to nThreads of them are in memory at the same time, and the sequences
+ * of a chromosome are kept until they have been written.
+ */
+public class BatchSequenceExtractor {
+
+	static Logger logger = Logger.getLogger(BatchSequenceExtractor.class.getName());
+
+	private String genomeDirectory;
+	private boolean repeatMask;
+	private Map<String, IntervalTree<Annotation>> okRepeats;
+	private int nThreads;
+
+	/**
+	 * @param repeatMask if true, soft-masked (lowercase) bases are replaced by N, unless okRepeats (if not null) has
+	 * a repeat of the chromosome there
+	 */
+	public BatchSequenceExtractor(String genomeDirectory, boolean repeatMask, Map<String, IntervalTree<Annotation>> okRepeats, int nThreads) {
+		this.genomeDirectory = genomeDirectory;
+		this.repeatMask = repeatMask;
+		this.okRepeats = okRepeats;
+		this.nThreads = nThreads;
+	}
+
+	/* the sequences of the genes, in their order (null for the genes of a chromosome that could not be read) */
+	public List<String> extract(List<Gene> genes) throws InterruptedException {
+		List<String> sequences = new ArrayList<String>(genes.size());
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			int[] slot = new int[genes.size()];
+			Map<String, Future<String[]>> byChr = submit(pool, genes, slot);
+			String chr = null;
+			String[] s = null;
+			for (int i=0; i<genes.size(); i++) {
+				if (!genes.get(i).getChr().equals(chr)) {
+					chr = genes.get(i).getChr();
+					s = get(chr, byChr.get(chr));
+				}
+				sequences.add(s==null ? null : s[slot[i]]);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return sequences;
+	}
+
+	/* writes the sequences of the genes as FASTA records (>name, then the sequence on one line), in their order;
+	 * returns the number of records written */
+	public int writeFasta(List<Gene> genes, Writer writer) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		int written = 0;
+		try {
+			int[] slot = new int[genes.size()];
+			Map<String, Future<String[]>> byChr = submit(pool, genes, slot);
+			String chr = null;
+			String[] s = null;
+			for (int i=0; i<genes.size(); i++) {
+				Gene gene = genes.get(i);
+				if (!gene.getChr().equals(chr)) {
+					chr = gene.getChr();
+					s = get(chr, byChr.get(chr));
+				}
+				if (s==null) {
+					continue;
+				}
+				writer.write(">"+gene.getName()+"\n");
+				writer.write(s[slot[i]]+"\n");
+				s[slot[i]] = null;
+				written++;
+				if (written%1000==0) {
+					logger.info("Wrote "+written+" sequences");
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return written;
+	}
+
+	/* one task per chromosome, in the order of first appearance, returning the sequences of the genes of the
+	 * chromosome (gene i at slot[i]) */
+	private Map<String, Future<String[]>> submit(ExecutorService pool, final List<Gene> genes, int[] slot) {
+		final LinkedHashMap<String, List<Integer>> indices = new LinkedHashMap<String, List<Integer>>();
+		for (int i=0; i<genes.size(); i++) {
+			String chr = genes.get(i).getChr();
+			if (!indices.containsKey(chr)) {
+				indices.put(chr, new ArrayList<Integer>());
+			}
+			slot[i] = indices.get(chr).size();
+			indices.get(chr).add(i);
+		}
+		LinkedHashMap<String, Future<String[]>> byChr = new LinkedHashMap<String, Future<String[]>>();
+		for (final String chr:indices.keySet()) {
+			byChr.put(chr, pool.submit(new Callable<String[]>() {
+				public String[] call() throws Exception {
+					return extractChromosome(chr, genes, indices.get(chr));
+				}
+			}));
+		}
+		return byChr;
+	}
+
+	/* the result of a chromosome, or null (logged) if it could not be read */
+	private static String[] get(String chr, Future<String[]> f) throws InterruptedException {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			logger.warn("Skipping "+chr+": "+e.getCause());
+			return null;
+		}
+	}
+
+	String[] extractChromosome(String chr, List<Gene> genes, List<Integer> indices) throws IOException {
+		long start = System.nanoTime();
+		PackedGenome packed = ExtractSequence.getPackedGenome(genomeDirectory, chr);
+		String chrom = packed!=null ? null : ExtractSequence.getFirstSequence(genomeDirectory+"/"+chr+".fa").getSequenceBases();
+
+		// the exons of the genes, sorted by start: {slot of the gene, exon number, start, end}
+		Annotation[][] exons = new Annotation[indices.size()][];
+		List<int[]> requests = new ArrayList<int[]>();
+		for (int k=0; k<indices.size(); k++) {
+			exons[k] = genes.get(indices.get(k)).getExons();
+			for (int e=0; e<exons[k].length; e++) {
+				requests.add(new int[] {k, e, exons[k][e].getStart(), exons[k][e].getEnd()});
+			}
+		}
+		requests.sort(new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return a[2]!=b[2] ? Integer.compare(a[2], b[2]) : Integer.compare(a[3], b[3]);
+			}
+		});
+
+		int[][] ok = okIntervals(chr);
+		String[][] exonBases = new String[indices.size()][];
+		for (int k=0; k<indices.size(); k++) {
+			exonBases[k] = new String[exons[k].length];
+		}
+		int r = 0;     // first ok interval that ends after the current exon start
+		for (int[] q:requests) {
+			String bases = packed!=null ? packed.getBases(chr, q[2], q[3]) : chrom.substring(q[2], q[3]);
+			if (repeatMask) {
+				while (ok!=null && r<ok[0].length && ok[1][r]<=q[2]) {
+					r++;
+				}
+				bases = mask(bases, q[2], ok, r);
+			}
+			exonBases[q[0]][q[1]] = bases;
+		}
+
+		String[] sequences = new String[indices.size()];
+		StringBuilder sequence = new StringBuilder();
+		for (int k=0; k<indices.size(); k++) {
+			sequence.setLength(0);
+			for (int e=0; e<exons[k].length; e++) {
+				for (int n=0; n<ExtractSequence.numNs; n++) {
+					sequence.append('N');
+				}
+				String bases = exonBases[k][e];
+				sequence.append(exons[k][e].getOrientation().equals(Strand.NEGATIVE) ? ExtractSequence.reverseComplement(bases) : bases);
+			}
+			String s = sequence.toString();
+			sequences[k] = genes.get(indices.get(k)).getOrientation().equals(Strand.NEGATIVE) ? Sequence.reverseSequence(s) : s;
+		}
+		logger.debug("Extracted "+indices.size()+" genes of "+chr+" in "+String.format("%.2f", (System.nanoTime()-start)/1e9)+" sec");
+		return sequences;
+	}
+
+	/* the soft-masked bases of bases (starting at position start) replaced by N, but for those in the ok intervals
+	 * (from interval r on; all are masked if ok is null) */
+	private static String mask(String bases, int start, int[][] ok, int r) {
+		char[] chars = null;
+		for (int i=0; i<bases.length(); i++) {
+			char c = bases.charAt(i);
+			if (c!='a' && c!='c' && c!='g' && c!='t') {
+				continue;
+			}
+			int p = start+i;
+			while (ok!=null && r<ok[0].length && ok[1][r]<=p) {
+				r++;
+			}
+			if (ok!=null && r<ok[0].length && ok[0][r]<=p) {
+				continue;
+			}
+			if (chars==null) {
+				chars = bases.toCharArray();
+			}
+			chars[i] = 'N';
+		}
+		return chars==null ? bases : new String(chars);
+	}
+
+	/* the repeats of okRepeats on the chromosome, merged into sorted, disjoint {starts, ends}; null if there are none
+	 * (all repeats are masked) */
+	private int[][] okIntervals(String chr) {
+		IntervalTree<Annotation> tree = okRepeats==null ? null : okRepeats.get(chr);
+		if (tree==null || tree.isEmpty()) {
+			return null;
+		}
+		List<int[]> merged = new ArrayList<int[]>();
+		Iterator<Node<Annotation>> it = tree.iterator();
+		while (it.hasNext()) {
+			Node<Annotation> n = it.next();
+			if (n.getEnd()<=n.getStart()) {
+				continue;
+			}
+			int[] last = merged.isEmpty() ? null : merged.get(merged.size()-1);
+			if (last!=null && n.getStart()<=last[1]) {
+				last[1] = Math.max(last[1], n.getEnd());
+			} else {
+				merged.add(new int[] {n.getStart(), n.getEnd()});
+			}
+		}
+		int[][] ok = new int[2][merged.size()];
+		for (int i=0; i<merged.size(); i++) {
+			ok[0][i] = merged.get(i)[0];
+			ok[1][i] = merged.get(i)[1];
+		}
+		return ok;
+	}
+
+	/* the genes of a map (chromosome -> genes), in its order */
+	public static List<Gene> flatten(Map<String, ? extends Collection<Gene>> genesByChr) {
+		List<Gene> genes = new ArrayList<Gene>();
+		for (String chr:genesByChr.keySet()) {
+			genes.addAll(genesByChr.get(chr));
+		}
+		return genes;
+	}
+}
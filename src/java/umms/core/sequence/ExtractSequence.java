@@ -21,23 +21,30 @@ public class ExtractSequence {
 	
 	static int numNs=0;
 
+	/**
+	 * The sequences of the genes (see BatchSequenceExtractor), reading each chromosome once; the genes of a
+	 * chromosome that cannot be read are left out
+	 */
 	public static Map getSequenceForGene(Collection<Gene> Annotation, String genomeDirectory, boolean repeatMask, Map<String, IntervalTree<Annotation>> okRepeats)throws Exception{
 		Map rtrn=new TreeMap();
-		Map<String, Set> AnnotationByChr=splitByChr(Annotation);
-		
-		for(String chr: AnnotationByChr.keySet()){
-			Set<Gene> set=AnnotationByChr.get(chr);
-			String sequenceFile=genomeDirectory+"/"+chr+".fa";
-			Sequence chrom = getFirstSequence(sequenceFile);
-			for(Gene align: set){
-				//System.err.println(align.toBED());
-				rtrn.put(align, getSequenceForGene(align, chrom, repeatMask, okRepeats));
-			}
+		List<Gene> genes=new ArrayList<Gene>(Annotation);
+		List<String> sequences=new BatchSequenceExtractor(genomeDirectory, repeatMask, okRepeats, Runtime.getRuntime().availableProcessors()).extract(genes);
+		for(int i=0; i<genes.size(); i++){
+			if(sequences.get(i)!=null){rtrn.put(genes.get(i), sequences.get(i));}
 		}
 		return rtrn;
 	}
 	
 	
+	/**
+	 * The packed store (PackedGenome) of a genome directory, if the directory holds one with that chromosome; the
+	 * methods that read a genome directory use it in place of the chromosome FASTA file
+	 */
+	public static PackedGenome getPackedGenome(String genomeDirectory, String chr) throws IOException {
+		PackedGenome genome=PackedGenome.find(genomeDirectory);
+		return genome!=null && genome.contains(chr) ? genome : null;
+	}
+	
 	public static Sequence getFirstSequence(String fastaFile) throws IOException {
 		FastaSequenceIO fsio = new FastaSequenceIO(fastaFile);
 		List<Sequence> seq = fsio.loadAll();
@@ -82,6 +89,42 @@ public class ExtractSequence {
 		return getSequenceForGene(gene, chrom, repeatMask, okRepeats, true);
 	}
 	
+	/**
+	 * As getSequenceForGene(Gene, Sequence, ...), reading the exons from a packed genome
+	 */
+	public static String getSequenceForGene(Gene gene, PackedGenome genome, boolean repeatMask, Map<String, IntervalTree<Annotation>> okRepeats, boolean stranded){
+		StringBuilder sequence=new StringBuilder();
+		for(Annotation exon: gene.getExons()){
+			for(int i=0; i<numNs; i++){sequence.append('N');}
+			sequence.append(getSequenceUnoriented(exon, genome, repeatMask, okRepeats));
+		}
+		String sequenceString=sequence.toString();
+		if(gene.getOrientation().equals(Strand.NEGATIVE) && stranded){sequenceString=Sequence.reverseSequence(sequenceString);}
+		return sequenceString;
+	}
+	
+	/**
+	 * As getSequenceUnoriented(Annotation, Sequence, ...), reading the bases from a packed genome: soft-masked
+	 * bases are replaced by N if repeatMask, unless okRepeats (if not null) has a repeat of the chromosome there
+	 */
+	public static String getSequenceUnoriented(Annotation align, PackedGenome genome, boolean repeatMask, Map<String, IntervalTree<Annotation>> okRepeats){
+		String bases=maskRepeats(genome.getBases(align.getChr(), align.getStart(), align.getEnd()), align.getStart(), repeatMask, 
+				okRepeats==null ? null : okRepeats.get(align.getChr()));
+		if(align.getOrientation().equals(Strand.NEGATIVE)){return reverseComplement(bases);}
+		return bases;
+	}
+	
+	private static String maskRepeats(String bases, int start, boolean repeatMask, IntervalTree<Annotation> okRepeats){
+		if(!repeatMask){return bases;}
+		char[] chars=bases.toCharArray();
+		for(int i=0; i<chars.length; i++){
+			if(chars[i]=='a' || chars[i]=='c' || chars[i]=='g' || chars[i]=='t'){
+				if(okRepeats==null || okRepeats.isEmpty() || !okRepeats.overlappers(start+i, start+i+1).hasNext()){chars[i]='N';}
+			}
+		}
+		return new String(chars);
+	}
+	
 	public static String getSequenceUnoriented(Annotation align, Sequence chrom, boolean repeatMask, Map<String, IntervalTree<Annotation>> okRepeats)throws Exception{
 		//System.err.println(align);
 		SequenceRegion target = new SequenceRegion(chrom.getId());
@@ -133,6 +176,8 @@ public class ExtractSequence {
 		Sequence rtrn=new Sequence(gene.getName());
 		rtrn.setSequenceBases(sequenceString);
 		return rtrn;*/
+		PackedGenome genome=getPackedGenome(genomeDirectory, gene.getChr());
+		if(genome!=null){return getSequenceForGene(gene, genome, repeatMask, null, true);}
 		String sequenceFile=genomeDirectory+"/"+gene.getChr()+".fa";
 		Sequence chrom = getFirstSequence(sequenceFile);
 		return getSequenceForGene(gene, chrom, repeatMask, new TreeMap());
@@ -148,6 +193,8 @@ public class ExtractSequence {
 	 * @throws Exception
 	 */
 	public static String getGenomeSequence(Annotation annot, String genomeDirectory, boolean repeatMask) throws Exception {
+		PackedGenome genome=getPackedGenome(genomeDirectory, annot.getChr());
+		if(genome!=null){return maskRepeats(genome.getBases(annot.getChr(), annot.getStart(), annot.getEnd()), annot.getStart(), repeatMask, null);}
 		String sequenceFile=genomeDirectory+"/"+annot.getChr()+".fa";
 		Sequence chrom = getFirstSequence(sequenceFile);
 		SequenceRegion target = new SequenceRegion(chrom.getId(), annot);
@@ -157,6 +204,8 @@ public class ExtractSequence {
 	
 	
 	public static String getSequenceUnoriented(Annotation align, String genomeDirectory, boolean repeatMask, Map<String, IntervalTree<Annotation>> okRepeats)throws Exception{
+		PackedGenome genome=getPackedGenome(genomeDirectory, align.getChr());
+		if(genome!=null){return getSequenceUnoriented(align, genome, repeatMask, okRepeats);}
 		String sequenceFile=genomeDirectory+"/"+align.getChr()+".fa";
 		Sequence chrom = getFirstSequence(sequenceFile);
 		SequenceRegion target = new SequenceRegion(chrom.getId(), align.getChr(), align.getStart(), align.getEnd());
@@ -187,38 +236,30 @@ public class ExtractSequence {
 			j++;
 		}
 		
-		String rtrn="";
+		StringBuilder rtrn=new StringBuilder(reverse.length);
 		for(int i=0; i<reverse.length; i++){
-			if(reverse[i]=='A' || reverse[i]=='a'){rtrn+='T';}
-			if(reverse[i]=='T' || reverse[i]=='t'){rtrn+='A';}
-			if(reverse[i]=='C' || reverse[i]=='c'){rtrn+='G';}
-			if(reverse[i]=='G' || reverse[i]=='g'){rtrn+='C';}
-			if(reverse[i]=='N' || reverse[i]=='n'){rtrn+='N';}
+			if(reverse[i]=='A' || reverse[i]=='a'){rtrn.append('T');}
+			if(reverse[i]=='T' || reverse[i]=='t'){rtrn.append('A');}
+			if(reverse[i]=='C' || reverse[i]=='c'){rtrn.append('G');}
+			if(reverse[i]=='G' || reverse[i]=='g'){rtrn.append('C');}
+			if(reverse[i]=='N' || reverse[i]=='n'){rtrn.append('N');}
 		}
 		
-		return rtrn;
+		return rtrn.toString();
 	}
 	
 	public static void writeFasta(String save, Map<String, Collection<Gene>> genesByChr, String genomeDir, boolean repeatMask)throws Exception{
+		writeFasta(save, genesByChr, genomeDir, repeatMask, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Writes the sequences of the genes, in the order of the map, extracting up to nThreads chromosomes at the same
+	 * time (see BatchSequenceExtractor); the genes of a chromosome that cannot be read are skipped
+	 */
+	public static void writeFasta(String save, Map<String, Collection<Gene>> genesByChr, String genomeDir, boolean repeatMask, int nThreads)throws Exception{
 		FileWriter writer=new FileWriter(save);
-		
-		int i=0;
-		for(String chr: genesByChr.keySet()){
-			try{
-			System.err.println(chr);
-			String sequenceFile=genomeDir+"/"+chr+".fa";
-			Sequence chrom = getFirstSequence(sequenceFile);
-			Collection<Gene> genes=genesByChr.get(chr);
-			for(Gene gene: genes){
-				String seq=getSequenceForGene(gene, chrom, repeatMask, new TreeMap());
-				writer.write(">"+gene.getName()+"\n");
-				writer.write(seq+"\n");
-				i++;
-				if(i% 1000 ==0){System.err.println(i);}
-			}
-			}catch(Exception ex){System.err.println("Skipping "+chr);}
-		}
-				
+		BatchSequenceExtractor extractor=new BatchSequenceExtractor(genomeDir, repeatMask, null, nThreads);
+		extractor.writeFasta(BatchSequenceExtractor.flatten(genesByChr), writer);
 		writer.close();
 	}
 
@@ -230,12 +271,13 @@ public class ExtractSequence {
 			String genomeDir=args[1];
 			boolean repeatMask=new Boolean(args[2]);
 			String save=args[3];
-			writeFasta(save, genes, genomeDir, repeatMask);
+			int nThreads=args.length>4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+			writeFasta(save, genes, genomeDir, repeatMask, nThreads);
 		}
 		else{System.err.println(usage);}
 	}
 	
-	static String usage=" args[0]=genes \n args[1]=genomeDir \n args[2]=repeatMask \n args[3]=save";
+	static String usage=" args[0]=genes \n args[1]=genomeDir \n args[2]=repeatMask \n args[3]=save \n args[4]=threads (optional)";
 	
 	
 }
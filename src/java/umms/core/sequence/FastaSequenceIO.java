@@ -401,6 +401,11 @@ public class FastaSequenceIO {
 	 * @throws IOException
 	 */
 	public void extractRegions(List<? extends SequenceRegion> regions, boolean useRegionOrientation) throws IOException{
+		if(PackedGenome.isPackedGenome(file)) {
+			// (a genome converted by PackedGenome: sequences are named by the first word of their header)
+			PackedGenome.open(file).extractRegions(regions, useRegionOrientation);
+			return;
+		}
 		FileInputStream fis = new FileInputStream(file);
 		extractRegions(regions, useRegionOrientation, fis);
 		fis.close();
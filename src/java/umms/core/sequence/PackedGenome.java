@@ -0,0 +1,586 @@
+package umms.core.sequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+
+/**
+ * Genome sequences packed at 2 bits per base in one memory-mapped file, for random access to short regions without
+ * loading the chromosome FASTA files (see ExtractSequence, which uses the store of a genome directory when it holds
+ * one, and FastaSequenceIO.extractRegions(), which reads a store in place of a FASTA file).
+ *
+ * A genome is converted once, from a multi-FASTA file (sequences named by the first word of their header) or from a
+ * directory of <chr>.fa files (named by the file, first record only, as ExtractSequence reads them), with
+ *   PackedGenome -fasta <genome.fa> | -genomeDir <directory> -out <store>
+ * The bases A, C, G and T (either case) are packed; runs of N (either case) and runs of lowercase (soft-masked)
+ * bases are kept in run tables, and any other character (IUPAC codes, etc.) as an exception, so that the bases read
+ * back are exactly those of the FASTA lines. Layout:
+ *
+ *   header     MAGIC, VERSION, number of sequences (ints), offset of the index (long)
+ *   data       per sequence: the bases, 4 per byte (A=0, C=1, G=2, T=3; first base in the high bits)
+ *   index      per sequence: name, length (int), offset of its data (long), the N runs and the lowercase runs (number
+ *              of runs, then the starts and the ends, ints), and the exceptions (number, then positions (ints) and
+ *              characters (bytes))
+ *
+ * Each sequence is mapped when it is first read; regions are decoded from the mapping, so getBases() costs only the
+ * length of the region. Coordinates are 0-based and right-open, as in the annotations.
+ */
+public class PackedGenome {
+
+	static Logger logger = Logger.getLogger(PackedGenome.class.getName());
+
+	static final int MAGIC = 0x45535047;     // "ESPG"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 20;
+	/* the store file name looked up in a genome directory */
+	public static final String DEFAULT_NAME = "genome.packed";
+
+	static final String usage = "Usage: PackedGenome -fasta <genome fasta> | -genomeDir <directory of <chr>.fa files> -out <packed genome>"+
+			"\n\tConverts the genome sequences into a 2-bit packed, memory-mapped store. A store named "+DEFAULT_NAME+" in a genome"+
+			"\n\tdirectory is used by ExtractSequence in place of the <chr>.fa files of the directory.";
+
+	private static final char[] BASES = {'A', 'C', 'G', 'T'};
+	private static final char[][] DECODE = new char[256][4];
+	static {
+		for (int b=0; b<256; b++) {
+			for (int i=0; i<4; i++) {
+				DECODE[b][i] = BASES[(b>>>(6-2*i))&3];
+			}
+		}
+	}
+
+	private static HashMap<String, PackedGenome> opened = new HashMap<String, PackedGenome>();
+
+	private File file;
+	private FileChannel channel;
+	private LinkedHashMap<String, Integer> index = new LinkedHashMap<String, Integer>();
+	private int[] lengths;
+	private long[] offsets;
+	private int[][] nStarts;
+	private int[][] nEnds;
+	private int[][] lowerStarts;
+	private int[][] lowerEnds;
+	private int[][] otherPos;
+	private byte[][] otherChars;
+	private MappedByteBuffer[] maps;
+
+	public PackedGenome(File file) throws IOException {
+		this.file = file;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		if (raf.length()<HEADER_SIZE || raf.readInt()!=MAGIC) {
+			raf.close();
+			throw new IOException(file+" is not a packed genome");
+		}
+		int version = raf.readInt();
+		if (version!=VERSION) {
+			raf.close();
+			throw new IOException(file+" has packed genome version "+version+", expected "+VERSION);
+		}
+		int nSeq = raf.readInt();
+		long indexOffset = raf.readLong();
+		raf.seek(indexOffset);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), 1<<16));
+		lengths = new int[nSeq];
+		offsets = new long[nSeq];
+		nStarts = new int[nSeq][];
+		nEnds = new int[nSeq][];
+		lowerStarts = new int[nSeq][];
+		lowerEnds = new int[nSeq][];
+		otherPos = new int[nSeq][];
+		otherChars = new byte[nSeq][];
+		for (int s=0; s<nSeq; s++) {
+			index.put(in.readUTF(), s);
+			lengths[s] = in.readInt();
+			offsets[s] = in.readLong();
+			nStarts[s] = readInts(in);
+			nEnds[s] = readInts(in, nStarts[s].length);
+			lowerStarts[s] = readInts(in);
+			lowerEnds[s] = readInts(in, lowerStarts[s].length);
+			otherPos[s] = readInts(in);
+			otherChars[s] = new byte[otherPos[s].length];
+			in.readFully(otherChars[s]);
+		}
+		channel = raf.getChannel();
+		maps = new MappedByteBuffer[nSeq];
+	}
+
+	/* the store of a file, opened once per JVM */
+	public static synchronized PackedGenome open(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		PackedGenome g = opened.get(key);
+		if (g==null) {
+			g = new PackedGenome(file);
+			opened.put(key, g);
+			logger.info("Opened packed genome "+file+": "+g.index.size()+" sequences");
+		}
+		return g;
+	}
+
+	/* the store of a genome directory (DEFAULT_NAME in it), or of a packed genome file; null if there is none */
+	public static PackedGenome find(String genome) throws IOException {
+		File f = new File(genome);
+		if (f.isDirectory()) {
+			f = new File(f, DEFAULT_NAME);
+		}
+		return isPackedGenome(f) ? open(f) : null;
+	}
+
+	/* whether the file starts as a packed genome */
+	public static boolean isPackedGenome(File file) {
+		if (!file.isFile() || file.length()<HEADER_SIZE) {
+			return false;
+		}
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			int magic = in.readInt();
+			in.close();
+			return magic==MAGIC;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public Set<String> getSequenceNames() {
+		return index.keySet();
+	}
+
+	public boolean contains(String name) {
+		return index.containsKey(name);
+	}
+
+	/* the length of a sequence, -1 if there is none of that name */
+	public int getLength(String name) {
+		Integer s = index.get(name);
+		return s==null ? -1 : lengths[s];
+	}
+
+	/* the bases of sequence name in [start, end), as they are in the FASTA file */
+	public String getBases(String name, int start, int end) {
+		return getBases(name, start, end, false);
+	}
+
+	/* the bases of sequence name in [start, end), reverse complemented if reverseComplement (keeping the case and the
+	 * characters other than ACGT, as Sequence.reverse()) */
+	public String getBases(String name, int start, int end, boolean reverseComplement) {
+		Integer s = index.get(name);
+		if (s==null) {
+			logger.error("Sequence "+name+" is not in the packed genome "+file);
+			throw new IllegalArgumentException();
+		}
+		if (start<0 || end>lengths[s] || start>end) {
+			throw new StringIndexOutOfBoundsException("Region "+name+":"+start+"-"+end+" is outside of the sequence (length "+lengths[s]+")");
+		}
+		char[] bases = new char[end-start];
+		decode(s, start, end, bases);
+		if (reverseComplement) {
+			reverseComplement(bases);
+		}
+		return new String(bases);
+	}
+
+	private void decode(int s, int start, int end, char[] bases) {
+		MappedByteBuffer map = getMap(s);
+		int p = start;
+		while (p<end) {
+			char[] d = DECODE[map.get(p>>>2)&0xff];
+			int to = Math.min(end, (p|3)+1);
+			for (; p<to; p++) {
+				bases[p-start] = d[p&3];
+			}
+		}
+		for (int r=firstRun(nEnds[s], start); r<nStarts[s].length && nStarts[s][r]<end; r++) {
+			for (int i=Math.max(start, nStarts[s][r]); i<Math.min(end, nEnds[s][r]); i++) {
+				bases[i-start] = 'N';
+			}
+		}
+		for (int r=firstRun(lowerEnds[s], start); r<lowerStarts[s].length && lowerStarts[s][r]<end; r++) {
+			for (int i=Math.max(start, lowerStarts[s][r]); i<Math.min(end, lowerEnds[s][r]); i++) {
+				bases[i-start] = Character.toLowerCase(bases[i-start]);
+			}
+		}
+		int e = Arrays.binarySearch(otherPos[s], start);
+		for (e = e<0 ? -e-1 : e; e<otherPos[s].length && otherPos[s][e]<end; e++) {
+			bases[otherPos[s][e]-start] = (char)(otherChars[s][e]&0xff);
+		}
+	}
+
+	/* the first of the sorted, disjoint runs that ends after pos */
+	private static int firstRun(int[] ends, int pos) {
+		int r = Arrays.binarySearch(ends, pos);
+		return r<0 ? -r-1 : r+1;
+	}
+
+	private synchronized MappedByteBuffer getMap(int s) {
+		if (maps[s]==null) {
+			try {
+				maps[s] = channel.map(FileChannel.MapMode.READ_ONLY, offsets[s], (lengths[s]+3)/4);
+			} catch (IOException e) {
+				logger.error("Could not map "+file+": "+e);
+				throw new IllegalArgumentException();
+			}
+		}
+		return maps[s];
+	}
+
+	static void reverseComplement(char[] bases) {
+		for (int i=0, j=bases.length-1; i<=j; i++, j--) {
+			char a = complement(bases[i]);
+			bases[i] = complement(bases[j]);
+			bases[j] = a;
+		}
+	}
+
+	private static char complement(char c) {
+		switch (c) {
+		case 'A': return 'T';
+		case 'C': return 'G';
+		case 'G': return 'C';
+		case 'T': return 'A';
+		case 'a': return 't';
+		case 'c': return 'g';
+		case 'g': return 'c';
+		case 't': return 'a';
+		default: return c;
+		}
+	}
+
+	/**
+	 * Extracts sequence regions as FastaSequenceIO.extractRegions() does from a FASTA file: the bases of
+	 * [regionStart, regionEnd] (1-based, closed; to the end of the sequence for SequenceRegion.INF) are appended to
+	 * each region of a sequence of the store (by containing sequence id), and the end of a region that runs past its
+	 * sequence is reset.
+	 * @param useRegionOrientation if true it reverses the sequence extracted (of negative strand regions).
+	 */
+	public void extractRegions(List<? extends SequenceRegion> regions, boolean useRegionOrientation) {
+		Iterator<? extends SequenceRegion> it = regions.iterator();
+		while (it.hasNext()) {
+			SequenceRegion reg = it.next();
+			int length = getLength(reg.getContainingSequenceId());
+			if (length<0) {
+				continue;
+			}
+			int start = Math.max(0, reg.getRegionStart()-1);
+			int end = (int)Math.min(length, (long)reg.getRegionEnd());
+			if (start<end) {
+				reg.append(getBases(reg.getContainingSequenceId(), start, end));
+			}
+		}
+		it = regions.iterator();
+		while (it.hasNext()) {
+			SequenceRegion reg = it.next();
+			if ((reg.getStart()+reg.getSequenceBases().length())<reg.getEnd()) {
+				reg.setEnd(reg.getStart()+reg.getSequenceBases().length()-1);
+			}
+			if (useRegionOrientation && reg.isNegativeStrand()) {
+				reg.reverse();
+			}
+		}
+	}
+
+	/* writes a store, one sequence at a time */
+	public static class Writer {
+		private File outFile;
+		private DataOutputStream out;
+		private long offset = HEADER_SIZE;
+		private List<String> names = new ArrayList<String>();
+		private List<Integer> lengths = new ArrayList<Integer>();
+		private List<Long> offsets = new ArrayList<Long>();
+		private List<int[][]> nRuns = new ArrayList<int[][]>();
+		private List<int[][]> lowerRuns = new ArrayList<int[][]>();
+		private List<int[]> otherPos = new ArrayList<int[]>();
+		private List<byte[]> otherChars = new ArrayList<byte[]>();
+
+		/* the sequence being written */
+		private int length;
+		private int packed;
+		private IntList nStarts, nEnds, lowerStarts, lowerEnds, others;
+		private ByteList otherBytes;
+		private boolean inN, inLower;
+
+		public Writer(File outFile) throws IOException {
+			this.outFile = outFile;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), 1<<16));
+			out.write(new byte[HEADER_SIZE]);
+		}
+
+		public void startSequence(String name) {
+			if (names.contains(name)) {
+				logger.error("Sequence "+name+" is in the genome more than once");
+				throw new IllegalArgumentException();
+			}
+			names.add(name);
+			offsets.add(offset);
+			length = 0;
+			packed = 0;
+			nStarts = new IntList();
+			nEnds = new IntList();
+			lowerStarts = new IntList();
+			lowerEnds = new IntList();
+			others = new IntList();
+			otherBytes = new ByteList();
+			inN = false;
+			inLower = false;
+		}
+
+		/* adds the next base (a character of a FASTA sequence line) */
+		public void add(char c) throws IOException {
+			int code;
+			boolean n = false;
+			switch (c) {
+			case 'A': case 'a': code = 0; break;
+			case 'C': case 'c': code = 1; break;
+			case 'G': case 'g': code = 2; break;
+			case 'T': case 't': code = 3; break;
+			case 'N': case 'n': n = true; code = 0; break;
+			default:
+				code = 0;
+				others.add(length);
+				otherBytes.add((byte)c);
+			}
+			if (n!=inN) {
+				(n ? nStarts : nEnds).add(length);
+				inN = n;
+			}
+			boolean lower = c=='a' || c=='c' || c=='g' || c=='t' || c=='n';
+			if (lower!=inLower) {
+				(lower ? lowerStarts : lowerEnds).add(length);
+				inLower = lower;
+			}
+			packed = (packed<<2)|code;
+			length++;
+			if ((length&3)==0) {
+				out.write(packed);
+				packed = 0;
+				offset++;
+			}
+		}
+
+		public void endSequence() throws IOException {
+			if ((length&3)!=0) {
+				out.write(packed<<(2*(4-(length&3))));
+				offset++;
+			}
+			if (inN) {
+				nEnds.add(length);
+			}
+			if (inLower) {
+				lowerEnds.add(length);
+			}
+			lengths.add(length);
+			nRuns.add(new int[][] {nStarts.toArray(), nEnds.toArray()});
+			lowerRuns.add(new int[][] {lowerStarts.toArray(), lowerEnds.toArray()});
+			otherPos.add(others.toArray());
+			otherChars.add(otherBytes.toArray());
+		}
+
+		/* writes the index and the header */
+		public void close() throws IOException {
+			long indexOffset = offset;
+			for (int s=0; s<names.size(); s++) {
+				out.writeUTF(names.get(s));
+				out.writeInt(lengths.get(s));
+				out.writeLong(offsets.get(s));
+				writeInts(out, nRuns.get(s)[0], true);
+				writeInts(out, nRuns.get(s)[1], false);
+				writeInts(out, lowerRuns.get(s)[0], true);
+				writeInts(out, lowerRuns.get(s)[1], false);
+				writeInts(out, otherPos.get(s), true);
+				out.write(otherChars.get(s));
+			}
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(outFile, "rw");
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(names.size());
+			raf.writeLong(indexOffset);
+			raf.close();
+		}
+	}
+
+	/* converts a multi-FASTA file, naming the sequences by the first word of their header */
+	public static void convertFasta(File fasta, File outFile) throws IOException {
+		Writer w = new Writer(outFile);
+		InputStream in = new BufferedInputStream(new FileInputStream(fasta), 1<<16);
+		boolean open = false;
+		String name;
+		while ((name = nextHeader(in))!=null) {
+			String[] words = name.trim().split("\\s+");
+			w.startSequence(words[0]);
+			open = true;
+			readBases(in, w);
+			w.endSequence();
+		}
+		in.close();
+		if (!open) {
+			logger.warn("No sequences in "+fasta);
+		}
+		w.close();
+	}
+
+	/* converts the <chr>.fa files of a genome directory, naming the sequences by the file (first record only) */
+	public static void convertDirectory(File dir, File outFile) throws IOException {
+		String[] files = dir.list();
+		if (files==null) {
+			logger.error("Genome directory "+dir+" does not exist");
+			throw new IllegalArgumentException();
+		}
+		Arrays.sort(files);
+		Writer w = new Writer(outFile);
+		for (String f:files) {
+			if (!f.endsWith(".fa")) {
+				continue;
+			}
+			InputStream in = new BufferedInputStream(new FileInputStream(new File(dir, f)), 1<<16);
+			if (nextHeader(in)!=null) {
+				w.startSequence(f.substring(0, f.length()-3));
+				readBases(in, w);
+				w.endSequence();
+			}
+			in.close();
+		}
+		w.close();
+	}
+
+	/* skips to the next header line and returns it (without the >), or null at the end of the file */
+	private static String nextHeader(InputStream in) throws IOException {
+		int c;
+		boolean lineStart = true;
+		while ((c = in.read())>=0) {
+			if (lineStart && c=='>') {
+				StringBuilder header = new StringBuilder();
+				while ((c = in.read())>=0 && c!='\n' && c!='\r') {
+					header.append((char)c);
+				}
+				return header.toString();
+			}
+			lineStart = c=='\n' || c=='\r';
+		}
+		return null;
+	}
+
+	/* adds the bases of the sequence lines up to the next header line (left unread) or the end of the file */
+	private static void readBases(InputStream in, Writer w) throws IOException {
+		int c;
+		boolean lineStart = true;
+		while (true) {
+			in.mark(1);
+			if ((c = in.read())<0) {
+				return;
+			}
+			if (c=='\n' || c=='\r') {
+				lineStart = true;
+				continue;
+			}
+			if (lineStart && c=='>') {
+				in.reset();
+				return;
+			}
+			lineStart = false;
+			w.add((char)c);
+		}
+	}
+
+	static int[] readInts(DataInputStream in) throws IOException {
+		return readInts(in, in.readInt());
+	}
+
+	static int[] readInts(DataInputStream in, int n) throws IOException {
+		int[] a = new int[n];
+		for (int i=0; i<n; i++) {
+			a[i] = in.readInt();
+		}
+		return a;
+	}
+
+	static void writeInts(DataOutputStream out, int[] a, boolean withCount) throws IOException {
+		if (withCount) {
+			out.writeInt(a.length);
+		}
+		for (int v:a) {
+			out.writeInt(v);
+		}
+	}
+
+	static class IntList {
+		int[] a = new int[16];
+		int n = 0;
+
+		void add(int v) {
+			if (n==a.length) {
+				a = Arrays.copyOf(a, 2*n);
+			}
+			a[n++] = v;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(a, n);
+		}
+	}
+
+	static class ByteList {
+		byte[] a = new byte[16];
+		int n = 0;
+
+		void add(byte v) {
+			if (n==a.length) {
+				a = Arrays.copyOf(a, 2*n);
+			}
+			a[n++] = v;
+		}
+
+		byte[] toArray() {
+			return Arrays.copyOf(a, n);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+			BasicConfigurator.configure();
+		}
+		ArgumentMap argMap = CLUtil.getParameters(args, usage, "pack");
+		if (argMap.isPresent("fasta")==argMap.isPresent("genomeDir")) {
+			logger.error("Give one of -fasta or -genomeDir\n"+usage);
+			throw new IllegalArgumentException();
+		}
+		File outFile = new File(argMap.getOutput());
+		long start = System.nanoTime();
+		if (argMap.isPresent("fasta")) {
+			convertFasta(new File(argMap.get("fasta")), outFile);
+		} else {
+			convertDirectory(new File(argMap.get("genomeDir")), outFile);
+		}
+		PackedGenome g = new PackedGenome(outFile);
+		long bases = 0;
+		for (String name:g.getSequenceNames()) {
+			bases += g.getLength(name);
+		}
+		logger.info("Packed "+g.getSequenceNames().size()+" sequences, "+bases+" bases, into "+outFile+" ("+outFile.length()+" bytes) in "+
+					String.format("%.1f", (System.nanoTime()-start)/1e9)+" sec");
+	}
+}
@@ -0,0 +1,213 @@
+package umms.core.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileReader.QueryInterval;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.seekablestream.SeekableFileStream;
+import net.sf.samtools.util.RuntimeIOException;
+
+import org.apache.log4j.Logger;
+
+import umms.core.annotation.Gene;
+
+/**
+ * The parts of the genome whose alignments can be counted: the span of each annotated gene, extended by wExt
+ * on both sides (which covers the exons and the 3' or 5' extension of every transcript, whatever the task and
+ * strand), merged into sorted, non-overlapping regions per reference. With -regions, NewESAT and the
+ * single-cell preprocessors read only the alignments that overlap these regions, with one multi-interval query
+ * over the BAM index, so the compressed blocks that hold only alignments elsewhere are never read or inflated.
+ *
+ * Files are opened with open() over a stream that counts the compressed bytes read from them, and closed with
+ * close(); logCoverage() reports, per pass over the files (which reads each file once, in one or, per reference,
+ * several queries) and file, how much of it was read and skipped.
+ */
+public class AnnotatedRegions {
+
+	static Logger logger = Logger.getLogger(AnnotatedRegions.class.getName());
+
+	/* a BAM file stream that counts the bytes read */
+	static class CountingStream extends SeekableFileStream {
+		String pass;
+		long bytesRead = 0;
+
+		CountingStream(File file) throws FileNotFoundException {
+			super(file);
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if (n>0) {
+				bytesRead += n;
+			}
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b>=0) {
+				bytesRead++;
+			}
+			return b;
+		}
+	}
+
+	private HashMap<String, int[][]> regions = new HashMap<String, int[][]>();    // chr -> {starts, ends} (1-based, closed)
+	private long bases = 0;
+	private int nRegions = 0;
+	private HashMap<SAMFileReader, CountingStream> streams = new HashMap<SAMFileReader, CountingStream>();
+	private HashMap<File, File> indexFiles = new HashMap<File, File>();    // indexes that are not next to their BAM file
+	/* pass -> file -> {bytes read, file length} */
+	private TreeMap<String, TreeMap<String, long[]>> coverage = new TreeMap<String, TreeMap<String, long[]>>();
+
+	public AnnotatedRegions(Map<String, Collection<Gene>> annotations, int wExt) {
+		for (String chr:annotations.keySet()) {
+			List<long[]> spans = new ArrayList<long[]>();
+			for (Gene g:annotations.get(chr)) {
+				spans.add(new long[] {Math.max(1, g.getStart()+1-wExt), (long)g.getEnd()+wExt});
+			}
+			if (spans.isEmpty()) {
+				continue;
+			}
+			Collections.sort(spans, new Comparator<long[]>() {
+				public int compare(long[] a, long[] b) {
+					return Long.compare(a[0], b[0]);
+				}
+			});
+			List<long[]> merged = new ArrayList<long[]>();
+			long[] cur = spans.get(0);
+			for (long[] s:spans) {
+				if (s[0]<=cur[1]+1) {
+					cur[1] = Math.max(cur[1], s[1]);
+				} else {
+					merged.add(cur);
+					cur = s;
+				}
+			}
+			merged.add(cur);
+			int[][] r = new int[2][merged.size()];
+			for (int i=0; i<merged.size(); i++) {
+				r[0][i] = (int)merged.get(i)[0];
+				r[1][i] = (int)Math.min(Integer.MAX_VALUE, merged.get(i)[1]);
+				bases += r[1][i]-r[0][i]+1;
+			}
+			regions.put(chr, r);
+			nRegions += merged.size();
+		}
+		logger.info("Annotated regions: "+nRegions+" regions, "+bases+" bases");
+	}
+
+	/* the index to use for a BAM file, instead of one next to it */
+	public synchronized void setIndexFile(File bamFile, File indexFile) {
+		indexFiles.put(bamFile.getAbsoluteFile(), indexFile);
+	}
+
+	/* opens an (indexed) BAM file for region queries in a pass over the files, counting the bytes read from it */
+	public SAMFileReader open(File bamFile, String pass) {
+		File indexFile;
+		synchronized (this) {
+			indexFile = indexFiles.get(bamFile.getAbsoluteFile());
+		}
+		if (indexFile==null) {
+			String path = bamFile.getPath();
+			indexFile = new File((path.endsWith(".bam") ? path.substring(0, path.length()-4) : path)+".bai");
+			if (!indexFile.exists()) {
+				indexFile = new File(path+".bai");
+			}
+		}
+		if (!indexFile.exists()) {
+			logger.error("-regions needs an index of "+bamFile);
+			throw new IllegalArgumentException();
+		}
+		CountingStream stream;
+		try {
+			stream = new CountingStream(bamFile);
+			stream.pass = pass;
+		} catch (FileNotFoundException e) {
+			throw new RuntimeIOException(e);
+		}
+		SAMFileReader reader = new SAMFileReader(stream, indexFile, false);
+		synchronized (this) {
+			streams.put(reader, stream);
+		}
+		return reader;
+	}
+
+	/* the alignments of reader that overlap the regions (of reference refName only, unless it is null), in
+	 * coordinate order */
+	public SAMRecordIterator query(SAMFileReader reader, String refName) {
+		SAMFileHeader header = reader.getFileHeader();
+		List<QueryInterval> intervals = new ArrayList<QueryInterval>();
+		for (String chr:regions.keySet()) {
+			int ref = header.getSequenceIndex(chr);
+			if (ref<0 || (refName!=null && !refName.equals(chr))) {
+				continue;
+			}
+			int[][] r = regions.get(chr);
+			for (int i=0; i<r[0].length; i++) {
+				intervals.add(new QueryInterval(ref, r[0][i], r[1][i]));
+			}
+		}
+		QueryInterval[] q = intervals.toArray(new QueryInterval[intervals.size()]);
+		Arrays.sort(q);
+		return reader.queryOverlapping(q);
+	}
+
+	/* closes a reader from open(), adding the bytes read to the coverage of its file */
+	public synchronized void close(SAMFileReader reader, File bamFile) {
+		reader.close();
+		CountingStream stream = streams.remove(reader);
+		if (!coverage.containsKey(stream.pass)) {
+			coverage.put(stream.pass, new TreeMap<String, long[]>());
+		}
+		String path = bamFile.getAbsolutePath();
+		if (!coverage.get(stream.pass).containsKey(path)) {
+			coverage.get(stream.pass).put(path, new long[] {0, bamFile.length()});
+		}
+		coverage.get(stream.pass).get(path)[0] += stream.bytesRead;
+	}
+
+	/* logs the compressed bytes read of each file in each pass since the last call, and the fraction skipped */
+	public synchronized void logCoverage() {
+		for (String pass:coverage.keySet()) {
+			long read = 0;
+			long total = 0;
+			for (String path:coverage.get(pass).keySet()) {
+				long[] c = coverage.get(pass).get(path);
+				logger.info("Region coverage ("+pass+"): "+path+": read "+c[0]+" of "+c[1]+" compressed bytes ("+skipped(c[0], c[1])+"% skipped)");
+				read += c[0];
+				total += c[1];
+			}
+			logger.info("Region coverage ("+pass+"): read "+read+" of "+total+" compressed bytes in "+coverage.get(pass).size()+" files ("+
+						skipped(read, total)+"% skipped)");
+		}
+		coverage.clear();
+	}
+
+	private static String skipped(long read, long total) {
+		return total==0 ? "0" : String.format("%.1f", 100.0*(1-(double)read/total));
+	}
+
+	public int getRegionCount() {
+		return nRegions;
+	}
+
+	public long getBases() {
+		return bases;
+	}
+}
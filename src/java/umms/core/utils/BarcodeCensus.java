@@ -0,0 +1,217 @@
+package umms.core.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Read counts per cell barcode and experiment, collected while the single-cell reads are preprocessed. Barcodes
+ * are counted by their 2-bit packed bases (see InDropPreprocess.packBarcodeFromRead()) in a primitive map, exactly,
+ * as long as an experiment has at most maxExact distinct barcodes. Beyond that the experiment switches to bounded
+ * memory: a count-min sketch (conservative update) estimates the count of every barcode, and only the topK
+ * barcodes with the highest estimates are kept as candidates, with counts that may be overestimated by barcodes
+ * sharing their sketch cells. Barcodes that cannot be packed are always counted exactly.
+ *
+ * Cells can be called with a fixed minimum count (InDropPreprocess.filterLowcountBarcodes()) or at the knee of
+ * the ranked barcode counts of each experiment (getKneeThresholds()).
+ */
+public class BarcodeCensus {
+
+	static final Logger logger = Logger.getLogger(BarcodeCensus.class.getName());
+
+	public static final int DEFAULT_MAX_EXACT = 2000000;
+	static final int SKETCH_DEPTH = 4;
+	static final int SKETCH_BITS = 20;      // 2^20 counters per row
+	static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+	/* the barcodes of one experiment */
+	static class ExperimentCensus {
+		LongIntMap exact = new LongIntMap();      // packed barcode -> reads (null once the sketch is used)
+		HashMap<String, Integer> unpacked = new HashMap<String, Integer>();   // barcodes that cannot be packed
+		int[][] sketch;
+		LongIntMap candidates;                    // heavy-hitter candidates -> estimated reads
+		int minCandidate = 0;                     // smallest estimate kept at the last pruning of the candidates
+	}
+
+	private int maxExact;
+	private int topK;
+	private HashMap<String, ExperimentCensus> census = new HashMap<String, ExperimentCensus>();
+
+	public BarcodeCensus() {
+		this(DEFAULT_MAX_EXACT, 30000);
+	}
+
+	/* maxExact: distinct barcodes per experiment counted exactly; topK: barcodes kept per experiment beyond that */
+	public BarcodeCensus(int maxExact, int topK) {
+		this.maxExact = maxExact;
+		this.topK = topK;
+	}
+
+	public void add(String exp, SAMRecord r) {
+		ExperimentCensus c = census.get(exp);
+		if (c==null) {
+			c = new ExperimentCensus();
+			census.put(exp, c);
+		}
+		long bc = InDropPreprocess.packBarcodeFromRead(r);
+		if (bc<0) {
+			String bcStr = InDropPreprocess.getBarcodeFromRead(r);
+			Integer n = c.unpacked.get(bcStr);
+			c.unpacked.put(bcStr, n==null ? 1 : n+1);
+		} else if (c.exact!=null) {
+			c.exact.add(bc, 1);
+			if (c.exact.size()>maxExact) {
+				startSketch(exp, c);
+			}
+		} else {
+			addToSketch(c, bc, 1);
+		}
+	}
+
+	/* true if the counts of all experiments are exact */
+	public boolean isExact() {
+		for (ExperimentCensus c:census.values()) {
+			if (c.exact==null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* the (estimated) read counts of the barcodes, keyed <experiment>:<barcode> */
+	public HashMap<String, Integer> getCounts() {
+		HashMap<String, Integer> counts = new HashMap<String, Integer>();
+		for (String exp:census.keySet()) {
+			ExperimentCensus c = census.get(exp);
+			LongIntMap m = c.exact!=null ? c.exact : c.candidates;
+			for (long bc:m.keys()) {
+				counts.put(exp+":"+InDropPreprocess.unpackBarcode(bc), c.exact!=null ? m.get(bc) : estimate(c, bc));
+			}
+			for (String bcStr:c.unpacked.keySet()) {
+				counts.put(exp+":"+bcStr, c.unpacked.get(bcStr));
+			}
+		}
+		return counts;
+	}
+
+	private void startSketch(String exp, ExperimentCensus c) {
+		logger.info("More than "+maxExact+" barcodes in experiment "+exp+": counting the barcodes with a sketch and keeping the "+
+					topK+" most frequent ones");
+		c.sketch = new int[SKETCH_DEPTH][1<<SKETCH_BITS];
+		c.candidates = new LongIntMap(2*topK);
+		LongIntMap exact = c.exact;
+		c.exact = null;
+		for (long bc:exact.keys()) {
+			addToSketch(c, bc, exact.get(bc));
+		}
+	}
+
+	private static int cell(long bc, int row) {
+		return (int)((bc*SEEDS[row])>>>(64-SKETCH_BITS));
+	}
+
+	private static int estimate(ExperimentCensus c, long bc) {
+		int est = Integer.MAX_VALUE;
+		for (int row=0; row<SKETCH_DEPTH; row++) {
+			est = Math.min(est, c.sketch[row][cell(bc, row)]);
+		}
+		return est;
+	}
+
+	private void addToSketch(ExperimentCensus c, long bc, int n) {
+		// conservative update: only the cells below the new estimate are raised
+		int est = estimate(c, bc)+n;
+		for (int row=0; row<SKETCH_DEPTH; row++) {
+			int i = cell(bc, row);
+			if (c.sketch[row][i]<est) {
+				c.sketch[row][i] = est;
+			}
+		}
+		if (c.candidates.get(bc)>=0 || est>c.minCandidate) {
+			c.candidates.put(bc, est);
+			if (c.candidates.size()>=2*topK) {
+				pruneCandidates(c);
+			}
+		}
+	}
+
+	/* keeps the topK candidates with the highest estimates */
+	private void pruneCandidates(ExperimentCensus c) {
+		long[] bcs = c.candidates.keys();
+		int[] est = new int[bcs.length];
+		for (int i=0; i<bcs.length; i++) {
+			est[i] = c.candidates.get(bcs[i]);
+		}
+		int[] sorted = est.clone();
+		Arrays.sort(sorted);
+		c.minCandidate = sorted[sorted.length-topK];
+		LongIntMap kept = new LongIntMap(2*topK);
+		for (int i=0; i<bcs.length && kept.size()<topK; i++) {
+			if (est[i]>c.minCandidate) {
+				kept.put(bcs[i], est[i]);
+			}
+		}
+		for (int i=0; i<bcs.length && kept.size()<topK; i++) {
+			if (est[i]==c.minCandidate) {
+				kept.put(bcs[i], est[i]);
+			}
+		}
+		c.candidates = kept;
+	}
+
+	/*************************************************************************************
+	 * cell calling
+	 *************************************************************************************/
+
+	/* For each experiment, the read count at the knee of its barcode rank plot: the barcodes are ranked by their
+	 * counts, and the knee is the barcode furthest above the straight line from the first to the last barcode in
+	 * log10(rank), log10(count) coordinates, i.e. where the counts of the cells drop towards the background of
+	 * empty droplets. Barcodes with at least that count are called as cells. counts are keyed
+	 * <experiment>:<barcode>. */
+	public static HashMap<String, Integer> getKneeThresholds(HashMap<String, Integer> counts) {
+		HashMap<String, List<Integer>> expCounts = new HashMap<String, List<Integer>>();
+		for (String key:counts.keySet()) {
+			String exp = key.substring(0, key.lastIndexOf(':'));
+			if (!expCounts.containsKey(exp)) {
+				expCounts.put(exp, new ArrayList<Integer>());
+			}
+			expCounts.get(exp).add(counts.get(key));
+		}
+		HashMap<String, Integer> thresholds = new HashMap<String, Integer>();
+		for (String exp:expCounts.keySet()) {
+			List<Integer> c = expCounts.get(exp);
+			Collections.sort(c, Collections.reverseOrder());
+			thresholds.put(exp, c.get(getKneeIndex(c)));
+		}
+		return thresholds;
+	}
+
+	/* index of the knee in counts sorted in descending order */
+	static int getKneeIndex(List<Integer> counts) {
+		int n = counts.size();
+		if (n<3) {
+			return n-1;
+		}
+		double x0 = 0;
+		double y0 = Math.log10(counts.get(0));
+		double dx = Math.log10(n)-x0;
+		double dy = Math.log10(counts.get(n-1))-y0;
+		int knee = n-1;     // (no knee: all barcodes)
+		double best = 0;
+		for (int i=1; i<n-1; i++) {
+			// (positive) distance above the line, up to the constant length of the line:
+			double d = dx*(Math.log10(counts.get(i))-y0)-dy*(Math.log10(i+1)-x0);
+			if (d>best) {
+				best = d;
+				knee = i;
+			}
+		}
+		return knee;
+	}
+}
@@ -14,6 +14,7 @@ public class ExperimentMap {
 	private HashMap<Integer, String> index2exp = new HashMap<Integer, String>();   // index-to-experiment map
 	private boolean singleCell = false;                   // single-cell analysis flag
 	private HashMap<String,ArrayList<File>> fileMap = new HashMap<String, ArrayList<File>>();   // experiment-to-bamfile map
+	private HashMap<String, LongIntMap> barcodeIndex = new HashMap<String, LongIntMap>();     // experiment -> packed barcode -> index (single-cell)
 	private int nEntries = 0;
 
 	/* empty constructor */
@@ -54,6 +55,16 @@ public class ExperimentMap {
 			String bcStr = bc.toString();
 			exp2index.put(bcStr, i);
 			index2exp.put(i, bcStr);
+			// keys are <experiment>:<barcode>; barcodes have no ':'
+			int sep = bcStr.lastIndexOf(':');
+			long packed = InDropPreprocess.packBarcode(bcStr.substring(sep+1));
+			if (sep>=0 && packed>=0) {
+				String exp = bcStr.substring(0, sep);
+				if (!barcodeIndex.containsKey(exp)) {
+					barcodeIndex.put(exp, new LongIntMap());
+				}
+				barcodeIndex.get(exp).put(packed, i);
+			}
 			i++;
 		}
 		// log the number of entries in the maps:
@@ -66,6 +77,15 @@ public class ExperimentMap {
 		return index2exp.get(idx);
 	}
 	
+	/* the column names, in column order */
+	public List<String> getNames() {
+		List<String> names = new ArrayList<String>();
+		for (int i=0; i<nEntries; i++) {
+			names.add(index2exp.get(i));
+		}
+		return names;
+	}
+	
 	public Integer getIndex(String s) {
 		if (exp2index.containsKey(s)) {
 			return exp2index.get(s);
@@ -74,6 +94,15 @@ public class ExperimentMap {
 		}
 	}	
 	
+	/* single-cell: the indices of the barcodes of experiment exp that can be packed into a long (see 
+	 * InDropPreprocess.packBarcodeFromRead()), by packed barcode */
+	public LongIntMap getBarcodeIndex(String exp) {
+		if (!barcodeIndex.containsKey(exp)) {
+			return new LongIntMap();
+		}
+		return barcodeIndex.get(exp);
+	}
+	
 	public Integer getNexp() {
 		return nEntries;
 	}
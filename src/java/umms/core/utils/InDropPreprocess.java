@@ -14,6 +14,7 @@ import broad.core.datastructures.IntervalTree;
 import net.sf.samtools.SAMProgramRecord;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileHeader.SortOrder;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
@@ -26,6 +27,7 @@ import net.sf.samtools.SAMRecordIterator;
 import org.apache.log4j.Logger;
 
 import umms.core.annotation.Gene;
+import umms.core.annotation.TranscriptTable;
 import umms.core.annotation.BasicAnnotation;
 import umms.esat.SAMSequenceCountingDict;
 
@@ -36,6 +38,10 @@ public class InDropPreprocess {
 	/* output pre-processed BAM files */
 	HashMap<String,ArrayList<File>> bamFiles_prep = new HashMap<String,ArrayList<File>>();
 	HashMap<String,Integer> bcCounts = new HashMap<String, Integer>();
+	/* barcode read counts, collected while the preprocessed files are written */
+	BarcodeCensus census = new BarcodeCensus();
+	/* preprocessed files of an earlier run that were reused, so their barcodes still need to be counted */
+	HashMap<String,ArrayList<File>> uncountedFiles = new HashMap<String,ArrayList<File>>();
 	
 	public InDropPreprocess(HashMap<String,ArrayList<File>> bamFiles, 
 			Map<String, Collection<Gene>> annotations, 
@@ -78,6 +84,11 @@ public class InDropPreprocess {
 					bamFiles_prep.put(exp, new ArrayList<File>());
 				}
 				bamFiles_prep.get(exp).add(outFile);
+				// (this version does not count the barcodes while preprocessing; fillBarcodeCounts() reads the file)
+				if (!uncountedFiles.containsKey(exp)) {
+					uncountedFiles.put(exp, new ArrayList<File>());
+				}
+				uncountedFiles.get(exp).add(outFile);
 				SAMProgramRecord prepProg = new SAMProgramRecord("ESAT");
 				prepProg.setProgramVersion(PROGRAM_VERSION);
 				prepProg.setAttribute("task", task);
@@ -180,13 +191,102 @@ public class InDropPreprocess {
 		return BC;
 	}	
 	
+	/* The barcode of a read (as getBarcodeFromRead()) packed at 2 bits per base into a long, read from the read 
+	 * name without splitting it. Returns -1 if the name is not <readID>:<bc1>:<bc2>:<umi>, or the barcode is 
+	 * longer than 31 bases or has other bases than A, C, G and T; such reads are looked up by their barcode string. */
+	public static long packBarcodeFromRead(SAMRecord r) {
+		String readName = r.getReadName();
+		int c1 = readName.indexOf(':');
+		int c2 = c1<0 ? -1 : readName.indexOf(':', c1+1);
+		int c3 = c2<0 ? -1 : readName.indexOf(':', c2+1);
+		if (c3<0 || c3==readName.length()-1 || readName.indexOf(':', c3+1)>=0) {
+			return -1;
+		}
+		long bc = 1;     // leading 1, so that barcodes of different lengths differ
+		for (int i=c1+1; i<c3; i++) {
+			if (i==c2) {
+				continue;
+			}
+			int b = baseCode(readName.charAt(i));
+			if (b<0 || bc>=1L<<61) {
+				return -1;
+			}
+			bc = (bc<<2)|b;
+		}
+		return bc;
+	}
+	
+	/* a barcode packed as by packBarcodeFromRead(), or -1 if it cannot be packed */
+	public static long packBarcode(String bcStr) {
+		if (bcStr.length()>31) {
+			return -1;
+		}
+		long bc = 1;
+		for (int i=0; i<bcStr.length(); i++) {
+			int b = baseCode(bcStr.charAt(i));
+			if (b<0) {
+				return -1;
+			}
+			bc = (bc<<2)|b;
+		}
+		return bc;
+	}
+	
+	/* the barcode string of a packed barcode */
+	public static String unpackBarcode(long bc) {
+		int len = (63-Long.numberOfLeadingZeros(bc))/2;
+		char[] bases = new char[len];
+		for (int i=len-1; i>=0; i--) {
+			bases[i] = "ACGT".charAt((int)(bc&3));
+			bc >>>= 2;
+		}
+		return new String(bases);
+	}
+	
+	private static int baseCode(char c) {
+		switch (c) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+	
 	/* this version of InDropPreprocess does not have a umiMin parameter, and saves the first read mapping to 
 	 * gene/barcode/umi. The barcode and UMI are assumed to be concatenated with the read ID as <readID>:<bc1>:<bc2>:<umi>: 
 	 */
 	public InDropPreprocess(HashMap<String,ArrayList<File>> bamFiles, 
 			Map<String, Collection<Gene>> annotations, 
 			boolean qFilter, int qThresh, String multimap, int wExt, boolean stranded, String task) throws IOException {
+		this(bamFiles, annotations, qFilter, qThresh, multimap, wExt, stranded, task, new BarcodeCensus());
+	}
+	
+	/* as above, collecting the barcode read counts in census */
+	public InDropPreprocess(HashMap<String,ArrayList<File>> bamFiles, 
+			Map<String, Collection<Gene>> annotations, 
+			boolean qFilter, int qThresh, String multimap, int wExt, boolean stranded, String task,
+			BarcodeCensus census) throws IOException {
+		this(bamFiles, annotations, qFilter, qThresh, multimap, wExt, stranded, task, census, false);
+	}
+	
+	/* as above; with umiCollapse, the UMIs of each gene and cell are error corrected (see UmiCollapser) and the 
+	 * first read of each molecule is written, in a second pass over the alignments */
+	public InDropPreprocess(HashMap<String,ArrayList<File>> bamFiles, 
+			Map<String, Collection<Gene>> annotations, 
+			boolean qFilter, int qThresh, String multimap, int wExt, boolean stranded, String task,
+			BarcodeCensus census, boolean umiCollapse) throws IOException {
+		this(bamFiles, annotations, qFilter, qThresh, multimap, wExt, stranded, task, census, umiCollapse, null);
+	}
+	
+	/* as above; with regions, only the reads overlapping the annotated regions are read, through the BAM index (the
+	 * reads elsewhere cannot be assigned to a gene, so the preprocessed files are the same) */
+	public InDropPreprocess(HashMap<String,ArrayList<File>> bamFiles, 
+			Map<String, Collection<Gene>> annotations, 
+			boolean qFilter, int qThresh, String multimap, int wExt, boolean stranded, String task,
+			BarcodeCensus census, boolean umiCollapse, AnnotatedRegions regions) throws IOException {
 		
+		this.census = census;
 		SAMRecord r;
 		SAMFileWriterFactory sf = new SAMFileWriterFactory();
 		int readsIn = 0;
@@ -202,6 +302,15 @@ public class InDropPreprocess {
 			/* Keys: strand:chr:gene:wellBarcode:UMI:<count> */
 			HashMap<String, HashMap<String, HashMap<String, HashMap<String, HashMap<String, Integer>>>>> umiCount = 
 				new HashMap<String, HashMap<String, HashMap<String, HashMap<String, HashMap<String, Integer>>>>>();
+			/* with UMI collapsing, the UMIs of an experiment are collapsed together (at the end of the experiment, or
+			 * while a single sorted file is read). The reads are numbered through the files of the experiment, and
+			 * the exemplars are written by their number in a second pass over the files (see writeExemplars()) */
+			UmiCollapser collapser = umiCollapse ? new UmiCollapser(1) : null;
+			long records = 0;
+			ArrayList<File> collapseIn = new ArrayList<File>();     // the files to write in the second pass,
+			ArrayList<File> collapseOut = new ArrayList<File>();
+			ArrayList<SAMFileHeader> collapseHeaders = new ArrayList<SAMFileHeader>();
+			ArrayList<Long> collapseStart = new ArrayList<Long>();    // and the number of their first read
 
 			for (int i=0; i<bamFiles.get(exp).size(); i++){
 
@@ -210,7 +319,7 @@ public class InDropPreprocess {
 				// open the next BAM file in the list:
 				File bamFile = (File) bamFiles.get(exp).get(i);
 				logger.info("Processing file: "+bamFile+"...");
-				SAMFileReader bamReader = new SAMFileReader(bamFile);   // open as a non-eager reader
+				SAMFileReader bamReader = regions!=null ? regions.open(bamFile, "preprocess") : new SAMFileReader(bamFile);   // open as a non-eager reader
 				SAMFileHeader bamHeader = bamReader.getFileHeader();    // get the header information
 				
 				// create the pre-processed output BAM file:
@@ -228,6 +337,9 @@ public class InDropPreprocess {
 				prepProg.setProgramVersion(PROGRAM_VERSION);
 				prepProg.setAttribute("task", task);
 				prepProg.setAttribute("wExt", ""+wExt);
+				if (umiCollapse) {
+					prepProg.setAttribute("umiCollapse", "directional");
+				}
 				boolean makeNewPrepFile = true;     // by default, make a new file.
 				
 				// check for the existence of this file:
@@ -244,7 +356,8 @@ public class InDropPreprocess {
 							String oldVer = sp.getProgramVersion();
 							String oldTask = sp.getAttribute("task");
 							int oldWExt = Integer.parseInt(sp.getAttribute("wExt"));
-							if (oldVer.equals(PROGRAM_VERSION) && oldTask.equals(task) && oldWExt==wExt) {
+							boolean oldUmiCollapse = sp.getAttribute("umiCollapse")!=null;
+							if (oldVer.equals(PROGRAM_VERSION) && oldTask.equals(task) && oldWExt==wExt && oldUmiCollapse==umiCollapse) {
 								makeNewPrepFile = false;	
 							}
 						}
@@ -253,18 +366,37 @@ public class InDropPreprocess {
 
 				if (!makeNewPrepFile) {
 					// close the input file
-					bamReader.close();
+					if (regions!=null) {
+						regions.close(bamReader, bamFile);
+					} else {
+						bamReader.close();
+					}
+					// (the barcodes of the existing file are counted by fillBarcodeCounts())
+					if (!uncountedFiles.containsKey(exp)) {
+						uncountedFiles.put(exp, new ArrayList<File>());
+					}
+					uncountedFiles.get(exp).add(outFile);
 					// skip creating a new output file:
 					continue;
 				}
 				
 				// copy the header from the input BAM file:
 				bamHeader.addProgramRecord(prepProg);
-				SAMFileWriter bamWriter = sf.makeBAMWriter(bamHeader, false, outFile);
+				SAMFileWriter bamWriter = null;
+				if (collapser==null) {
+					bamWriter = sf.makeBAMWriter(bamHeader, false, outFile);
+				} else {
+					collapseIn.add(bamFile);
+					collapseOut.add(outFile);
+					collapseHeaders.add(bamHeader);
+					collapseStart.add(records);
+				}
 
 				//bamReader.setValidationStringency(ValidationStringency.LENIENT);	
 				bamReader.setValidationStringency(ValidationStringency.STRICT);	
-				SAMRecordIterator bamIterator = bamReader.iterator();
+				SAMRecordIterator bamIterator = regions!=null ? regions.query(bamReader, null) : bamReader.iterator();
+				UmiSweep sweep = collapser!=null && bamFiles.get(exp).size()==1 && bamHeader.getSortOrder()==SortOrder.coordinate ?
+									new UmiSweep(eMap) : null;
 
 				int readCount = 0;
 				int writeCount = 0;
@@ -273,6 +405,7 @@ public class InDropPreprocess {
 					try {
 						r = bamIterator.next();
 						readCount+=1;
+						long record = records++;
 						int mmCount=SAMSequenceCountingDict.getMultimapCount(r);
 						if (mmCount>1 && multimap.equals("ignore")) {
 							// skip multimapped reads if "ignore" is selected:
@@ -282,19 +415,22 @@ public class InDropPreprocess {
 						// check if read start overlaps any transcript in the annotations:
 						Vector<String> oLaps = readStartOverlap(r, eMap); 
 						if (!oLaps.isEmpty()) {
+							if (sweep!=null) {
+								for (UmiSweep.ActiveGene a:sweep.advance(r)) {
+									collapser.finish(a.strand, a.chr, a.gene);
+								}
+								sweep.addGenes(r, oLaps);
+							}
 							// if so, extract the cell barcode and UMI, and add counts for the overlapping transcript(s)
-							if (updateUmiCounts(r,oLaps,umiCount)) {
+							if (collapser!=null) {
+								// (the exemplars are written in the second pass)
+								addUmis(r, oLaps, collapser, record);
+							} else if (updateUmiCounts(r,oLaps,umiCount)) {
 								/* write this read out as the exemplar read for this cell/transcript/UMI */
 								bamWriter.addAlignment(r);
 								writeCount+=1;
 								/* update the count for this exp:barcode */
-								String bc = getBarcodeFromRead(r);
-								String expBc = exp+":"+bc;
-								if (bcCounts.containsKey(expBc)) {
-									bcCounts.put(expBc, bcCounts.get(expBc)+1);
-								} else {
-									bcCounts.put(expBc, 1);
-								}
+								census.add(exp, r);
 							}
 						}
 					} catch (SAMFormatException e) {
@@ -304,8 +440,14 @@ public class InDropPreprocess {
 					}
 				}
 				
-				bamReader.close();
-				bamWriter.close();
+				if (regions!=null) {
+					regions.close(bamReader, bamFile);
+				} else {
+					bamReader.close();
+				}
+				if (bamWriter!=null) {
+					bamWriter.close();
+				}
 				
 				long loopEndTime = System.nanoTime();    // loop timer
 				logger.info("Reads: "+readCount+" writes: "+writeCount);
@@ -313,56 +455,118 @@ public class InDropPreprocess {
 				readsIn+=readCount;
 				readsOut+=writeCount;
 			}
+			if (collapser!=null && !collapseIn.isEmpty()) {
+				collapser.finishAll();
+				long[] exemplars = collapser.getExemplars();
+				logger.info("Experiment "+exp+": UMIs: "+collapser.getUmiCount()+" collapsed into "+exemplars.length+" molecules");
+				int e = 0;
+				for (int k=0; k<collapseIn.size(); k++) {
+					long end = k+1<collapseIn.size() ? collapseStart.get(k+1) : records;
+					int last = e;
+					while (last<exemplars.length && exemplars[last]<end) {
+						last++;
+					}
+					readsOut += writeExemplars(exp, collapseIn.get(k), collapseOut.get(k), collapseHeaders.get(k), regions,
+												collapseStart.get(k), exemplars, e, last);
+					e = last;
+				}
+			}
 		}
 		logger.info("Preprocessing complete: Total reads in: "+readsIn+" Total reads out: "+readsOut);
+		bcCounts = census.getCounts();
+	}
+	
+	/* adds read number record to the barcode/UMI of each of the overlapping genes in collapser */
+	public static void addUmis(SAMRecord r, Vector<String> oLaps, UmiCollapser collapser, long record) {
+		String readName = r.getReadName();
+		String[] fields = readName.split(":");
+		if (fields.length != 4) {
+			logger.warn("Improper read name: "+readName);
+			return;
+		}
+		String chr = r.getReferenceName();
+		String strand = r.getReadNegativeStrandFlag() ? "-" : "+";
+		collapser.add(strand, chr, oLaps, fields[1]+fields[2], fields[3], record);
+	}
+	
+	/* Second pass of UMI collapsing: reads bamFile again, with its reads numbered from firstRecord as in the first
+	 * pass, and writes the reads numbered exemplars[from..to-1] (ascending) to outFile, in their input order,
+	 * counting their barcodes. Returns the number of reads written. */
+	private int writeExemplars(String exp, File bamFile, File outFile, SAMFileHeader header, AnnotatedRegions regions,
+								long firstRecord, long[] exemplars, int from, int to) {
+		SAMFileReader bamReader = regions!=null ? regions.open(bamFile, "preprocessExemplars") : new SAMFileReader(bamFile);
+		bamReader.setValidationStringency(ValidationStringency.STRICT);
+		SAMFileWriter bamWriter = new SAMFileWriterFactory().makeBAMWriter(header, false, outFile);
+		int e = from;
+		try {
+			SAMRecordIterator bamIterator = regions!=null ? regions.query(bamReader, null) : bamReader.iterator();
+			long record = firstRecord;
+			while (e<to && bamIterator.hasNext()) {
+				SAMRecord r;
+				try {
+					r = bamIterator.next();
+				} catch (SAMFormatException ex) {
+					// (skipped without a number in the first pass as well)
+					continue;
+				}
+				if (record++==exemplars[e]) {
+					bamWriter.addAlignment(r);
+					census.add(exp, r);
+					e++;
+				}
+			}
+		} finally {
+			bamWriter.close();
+			if (regions!=null) {
+				regions.close(bamReader, bamFile);
+			} else {
+				bamReader.close();
+			}
+		}
+		if (e<to) {
+			throw new IllegalStateException(bamFile+" has fewer reads than in the first pass");
+		}
+		logger.info("Exemplars written to "+outFile+": "+(to-from));
+		return to-from;
 	}
 	
 	public HashMap<String,ArrayList<File>> getPreprocessedFiles() {
 		return bamFiles_prep;
 	}
 	
+	/* Adds the barcodes of the preprocessed files that were reused from an earlier run (and so not counted while
+	 * preprocessing) to the census, and returns the number of reads read. */
 	public int fillBarcodeCounts() {
 		SAMRecord r;
 		int rCount = 0;
-		// Only fill bcCounts if it is empty:
-		if (bcCounts.isEmpty()) {
-			// If it is empty, fill it with data from PCR-duplicate-cleaned files:
-			/* open the input alignments file */
-			for (String exp:bamFiles_prep.keySet()) {
-				for (int i=0; i<bamFiles_prep.get(exp).size(); i++){
-					// open the next BAM file in the list:
-					File bamFile = (File) bamFiles_prep.get(exp).get(i);
-					logger.info("Processing file: "+bamFile+"...");
-					long loopStartTime = System.nanoTime();    // loop timer
-					SAMFileReader bamReader = new SAMFileReader(bamFile);   // open as a non-eager reader
-					// process all reads:
-					bamReader.setValidationStringency(ValidationStringency.STRICT);	
-					SAMRecordIterator bamIterator = bamReader.iterator();
+		for (String exp:uncountedFiles.keySet()) {
+			for (File bamFile:uncountedFiles.get(exp)) {
+				logger.info("Processing file: "+bamFile+"...");
+				long loopStartTime = System.nanoTime();    // loop timer
+				SAMFileReader bamReader = new SAMFileReader(bamFile);   // open as a non-eager reader
+				// process all reads:
+				bamReader.setValidationStringency(ValidationStringency.STRICT);	
+				SAMRecordIterator bamIterator = bamReader.iterator();
 
-					while (bamIterator.hasNext()) {
-						try {
-							r = bamIterator.next();
-							rCount++;
-							/* update the count for this exp:barcode */
-							String bc = getBarcodeFromRead(r);
-							String expBc = exp+":"+bc;
-							if (bcCounts.containsKey(expBc)) {
-								bcCounts.put(expBc, bcCounts.get(expBc)+1);
-							} else {
-								bcCounts.put(expBc, 1);
-							}
-						} catch (SAMFormatException e) {
-							// skip SAM Format errors but log a warning:
-							logger.warn(e.getMessage());
-							continue;
-						}
+				while (bamIterator.hasNext()) {
+					try {
+						r = bamIterator.next();
+						rCount++;
+						/* update the count for this exp:barcode */
+						census.add(exp, r);
+					} catch (SAMFormatException e) {
+						// skip SAM Format errors but log a warning:
+						logger.warn(e.getMessage());
+						continue;
 					}
-					bamReader.close();
-					long loopEndTime = System.nanoTime();    // loop timer
-					logger.info("Counting barcodes in file: "+bamFile+" took "+(loopEndTime-loopStartTime)/1e9+" sec\n");
 				}
+				bamReader.close();
+				long loopEndTime = System.nanoTime();    // loop timer
+				logger.info("Counting barcodes in file: "+bamFile+" took "+(loopEndTime-loopStartTime)/1e9+" sec\n");
 			}
 		}
+		uncountedFiles.clear();
+		bcCounts = census.getCounts();
 		return rCount;
 	}
 	
@@ -401,6 +605,29 @@ public class InDropPreprocess {
 		return bcStats;
 	}
 
+	/* Keeps the barcodes at or above the knee of the barcode rank plot of their experiment (see
+	 * BarcodeCensus.getKneeThresholds()), and returns a HashMap with some statistics and the threshold of each
+	 * experiment (keyed threshold:<experiment>) */
+	public HashMap<String, Integer> filterBarcodesAtKnee() {
+		HashMap<String, Integer> thresholds = BarcodeCensus.getKneeThresholds(bcCounts);
+		HashMap<String, Integer> bcStats = new HashMap<String, Integer>();
+		bcStats.put("startCount", bcCounts.size());
+		List<String> badBc = new ArrayList<String>();
+		for (String bc:bcCounts.keySet()) {
+			if (bcCounts.get(bc)<thresholds.get(bc.substring(0, bc.lastIndexOf(':')))) {
+				badBc.add(bc);
+			}
+		}
+		for (String bc:badBc) {
+			bcCounts.remove(bc);
+		}
+		bcStats.put("endCount", bcCounts.size());
+		for (String exp:thresholds.keySet()) {
+			bcStats.put("threshold:"+exp, thresholds.get(exp));
+		}
+		return bcStats;
+	}
+
 	public boolean updateUmiCounts(SAMRecord r, Vector<String> oLaps, 
 			HashMap<String, HashMap<String, HashMap<String, HashMap<String, HashMap<String, Integer>>>>> umiCount,
 			int umiMin) {
@@ -549,38 +776,34 @@ public class InDropPreprocess {
 										int wExt, boolean stranded, String task) {
 		// Builds a set of IntervalTrees, one per chromosome, containing all exons, plus all extensions:
 		HashMap<String, HashMap<String, IntervalTree<String>>> eTree = new HashMap<String, HashMap<String, IntervalTree<String>>>();
+		TranscriptTable transcripts = new TranscriptTable(annotations);
 		
 		/* first pass: create interval trees with exon coordinates from annotations */
-		for (String chr:annotations.keySet()) {
-			for (Gene g:annotations.get(chr)) {
+		for (String chr:transcripts.getReferences()) {
+			for (int t:transcripts.getTranscripts(chr)) {
 				if (!eTree.containsKey(chr)) {
 					eTree.put(chr, new HashMap<String, IntervalTree<String>>());
 				}
-				String gStrand = g.getStrand().toString();
+				String gStrand = transcripts.getStrand(t).toString();
 				if (!eTree.get(chr).containsKey(gStrand)) {
 					eTree.get(chr).put(gStrand, new IntervalTree<String>());
 				}
 				
-				Iterator<BasicAnnotation> eIter = (Iterator<BasicAnnotation>) g.getBlocks().iterator();  // exon iterator
-				String gName = g.getName();  // gene symbol
-				while (eIter.hasNext()) {
-					BasicAnnotation a = eIter.next();
-					int aStart = a.getStart();
-					int aEnd = a.getEnd();
-					// create a tree for this chromosome, if necessary:
+				String gName = transcripts.getName(t);  // gene symbol
+				for (int e=0; e<transcripts.getExonCount(t); e++) {
 					// Add the interval with the gene symbol as the name:
-					eTree.get(chr).get(gStrand).put(aStart,aEnd,gName);
+					eTree.get(chr).get(gStrand).put(transcripts.getExonStart(t, e), transcripts.getExonEnd(t, e), gName);
 				}
 			}
 		}
 		
 		/* second pass: add extensions */
-		for (String chr:annotations.keySet()) {
-			for (Gene g:annotations.get(chr)) {
-				String gStrand = g.getStrand().toString();
-				String gName = g.getName();
-				int gStart = g.getStart();   // lowest gene coordinate
-				int gEnd = g.getEnd();       // highest gene coordinate
+		for (String chr:transcripts.getReferences()) {
+			for (int t:transcripts.getTranscripts(chr)) {
+				String gStrand = transcripts.getStrand(t).toString();
+				String gName = transcripts.getName(t);
+				int gStart = transcripts.getStart(t);   // lowest gene coordinate
+				int gEnd = transcripts.getEnd(t);       // highest gene coordinate
 				int extStart;
 				int extEnd;
 				// Compute extended transcript coordinates:
@@ -0,0 +1,106 @@
+package umms.core.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing long->int map with linear probing, for keys >=0 (such as 2-bit packed barcodes, see
+ * InDropPreprocess.packBarcode()); -1 marks an empty slot. get() returns -1 for keys that are not in the map.
+ * Lookups may run in several threads once the map is filled.
+ */
+public class LongIntMap {
+	private static final long EMPTY = -1;
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+	private int mask;
+
+	public LongIntMap() {
+		this(16);
+	}
+
+	public LongIntMap(int capacity) {
+		int c = Integer.highestOneBit(Math.max(2*capacity, 16)-1)<<1;
+		keys = new long[c];
+		Arrays.fill(keys, EMPTY);
+		values = new int[c];
+		mask = c-1;
+	}
+
+	private static int hash(long key) {
+		long h = key*0x9E3779B97F4A7C15L;
+		return (int)(h^(h>>>32));
+	}
+
+	public void put(long key, int value) {
+		int i = hash(key)&mask;
+		while (keys[i]!=EMPTY) {
+			if (keys[i]==key) {
+				values[i] = value;
+				return;
+			}
+			i = (i+1)&mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		size++;
+		if (size*2>keys.length) {
+			rehash(keys.length*2);
+		}
+	}
+
+	public int get(long key) {
+		int i = hash(key)&mask;
+		while (keys[i]!=EMPTY) {
+			if (keys[i]==key) {
+				return values[i];
+			}
+			i = (i+1)&mask;
+		}
+		return -1;
+	}
+
+	/* adds delta to the value of key (0 if it is not in the map) and returns the new value */
+	public int add(long key, int delta) {
+		int i = hash(key)&mask;
+		while (keys[i]!=EMPTY) {
+			if (keys[i]==key) {
+				values[i] += delta;
+				return values[i];
+			}
+			i = (i+1)&mask;
+		}
+		put(key, delta);
+		return delta;
+	}
+
+	/* the keys in the map, in slot order */
+	public long[] keys() {
+		long[] k = new long[size];
+		int n = 0;
+		for (int i=0; i<keys.length; i++) {
+			if (keys[i]!=EMPTY) {
+				k[n++] = keys[i];
+			}
+		}
+		return k;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[capacity];
+		Arrays.fill(keys, EMPTY);
+		values = new int[capacity];
+		mask = capacity-1;
+		size = 0;
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldKeys[i]!=EMPTY) {
+				put(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+}
@@ -14,6 +14,7 @@ import broad.core.datastructures.IntervalTree;
 import net.sf.samtools.SAMProgramRecord;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileHeader.SortOrder;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
@@ -25,6 +26,7 @@ import net.sf.samtools.SAMRecordIterator;
 import org.apache.log4j.Logger;
 
 import umms.core.annotation.Gene;
+import umms.core.annotation.TranscriptTable;
 import umms.core.annotation.BasicAnnotation;
 import umms.esat.SAMSequenceCountingDict;
 
@@ -38,6 +40,24 @@ public class NexteraPreprocess {
 	public NexteraPreprocess(HashMap<String,ArrayList<File>> bamFiles, 
 			Map<String, Collection<Gene>> annotations, 
 			boolean qFilter, int qThresh, String multimap, int wExt, boolean stranded, String task, int umiMin) throws IOException {
+		this(bamFiles, annotations, qFilter, qThresh, multimap, wExt, stranded, task, umiMin, false);
+	}
+	
+	/* as above; with umiCollapse, the UMIs of each gene and cell are error corrected (see UmiCollapser) before the
+	 * UMIs with at least umiMin reads are written, in a second pass over each file */
+	public NexteraPreprocess(HashMap<String,ArrayList<File>> bamFiles, 
+			Map<String, Collection<Gene>> annotations, 
+			boolean qFilter, int qThresh, String multimap, int wExt, boolean stranded, String task, int umiMin,
+			boolean umiCollapse) throws IOException {
+		this(bamFiles, annotations, qFilter, qThresh, multimap, wExt, stranded, task, umiMin, umiCollapse, null);
+	}
+	
+	/* as above; with regions, only the reads overlapping the annotated regions are read, through the BAM index (the
+	 * reads elsewhere cannot be assigned to a gene, so the preprocessed files are the same) */
+	public NexteraPreprocess(HashMap<String,ArrayList<File>> bamFiles, 
+			Map<String, Collection<Gene>> annotations, 
+			boolean qFilter, int qThresh, String multimap, int wExt, boolean stranded, String task, int umiMin,
+			boolean umiCollapse, AnnotatedRegions regions) throws IOException {
 		
 		SAMRecord r;
 		SAMFileWriterFactory sf = new SAMFileWriterFactory();
@@ -62,7 +82,7 @@ public class NexteraPreprocess {
 				// open the next BAM file in the list:
 				File bamFile = (File) bamFiles.get(exp).get(i);
 				logger.info("Processing file: "+bamFile+"...");
-				SAMFileReader bamReader = new SAMFileReader(bamFile);   // open as a non-eager reader
+				SAMFileReader bamReader = regions!=null ? regions.open(bamFile, "preprocess") : new SAMFileReader(bamFile);   // open as a non-eager reader
 				SAMFileHeader bamHeader = bamReader.getFileHeader();    // get the header information
 				
 				// create the pre-processed output BAM file:
@@ -81,6 +101,9 @@ public class NexteraPreprocess {
 				prepProg.setAttribute("task", task);
 				prepProg.setAttribute("wExt", ""+wExt);
 				prepProg.setAttribute("umiMin", ""+umiMin);
+				if (umiCollapse) {
+					prepProg.setAttribute("umiCollapse", "directional");
+				}
 				boolean makeNewPrepFile = true;     // by default, make a new file.
 				
 				// check for the existence of this file:
@@ -98,8 +121,9 @@ public class NexteraPreprocess {
 							String oldTask = sp.getAttribute("task");
 							int oldWExt = Integer.parseInt(sp.getAttribute("wExt"));
 							int oldUmiMin = Integer.parseInt(sp.getAttribute("umiMin"));
+							boolean oldUmiCollapse = sp.getAttribute("umiCollapse")!=null;
 							if (oldVer.equals(PROGRAM_VERSION) && oldTask.equals(task) &&
-									oldWExt==wExt && oldUmiMin==umiMin) {
+									oldWExt==wExt && oldUmiMin==umiMin && oldUmiCollapse==umiCollapse) {
 								makeNewPrepFile = false;
 							}
 						}
@@ -108,25 +132,35 @@ public class NexteraPreprocess {
 
 				if (!makeNewPrepFile) {
 					// close the input file
-					bamReader.close();
+					if (regions!=null) {
+						regions.close(bamReader, bamFile);
+					} else {
+						bamReader.close();
+					}
 					// skip creating a new output file:
 					continue;
 				}
 				
 				// copy the header from the input BAM file:
 				bamHeader.addProgramRecord(prepProg);
-				SAMFileWriter bamWriter = sf.makeBAMWriter(bamHeader, false, outFile);
+				// (with UMI collapsing, the exemplars are written in a second pass, see writeExemplars())
+				SAMFileWriter bamWriter = umiCollapse ? null : sf.makeBAMWriter(bamHeader, false, outFile);
 
 				//bamReader.setValidationStringency(ValidationStringency.LENIENT);	
 				bamReader.setValidationStringency(ValidationStringency.STRICT);	
-				SAMRecordIterator bamIterator = bamReader.iterator();
+				SAMRecordIterator bamIterator = regions!=null ? regions.query(bamReader, null) : bamReader.iterator();
+				// with coordinate-sorted reads, only the UMI counts of genes that can still get reads are kept:
+				UmiSweep sweep = bamHeader.getSortOrder()==SortOrder.coordinate ? new UmiSweep(eMap) : null;
+				UmiCollapser collapser = umiCollapse ? new UmiCollapser(umiMin) : null;
 
 				int readCount = 0;
 				int writeCount = 0;
+				long records = 0;    // (the reads are numbered for UMI collapsing)
 				
 				while (bamIterator.hasNext()) {
 					try {
 						r = bamIterator.next();
+						long record = records++;
 						int mmCount=SAMSequenceCountingDict.getMultimapCount(r);
 						if (mmCount>1 && multimap.equals("ignore")) {
 							// skip multimapped reads if "ignore" is selected:
@@ -137,8 +171,21 @@ public class NexteraPreprocess {
 						// check if read start overlaps any transcript in the annotations:
 						Vector<String> oLaps = readStartOverlap(r, eMap); 
 						if (!oLaps.isEmpty()) {
+							if (sweep!=null) {
+								for (UmiSweep.ActiveGene a:sweep.advance(r)) {
+									if (collapser!=null) {
+										collapser.finish(a.strand, a.chr, a.gene);
+									} else {
+										umiCount.get(a.strand).get(a.chr).remove(a.gene);
+									}
+								}
+								sweep.addGenes(r, oLaps);
+							}
 							// if so, extract the cell barcode and UMI, and add counts for the overlapping transcript(s)
-							if (updateUmiCounts(r,oLaps,umiCount,umiMin)) {
+							if (collapser!=null) {
+								// (the exemplars are written in the second pass)
+								addUmis(r, oLaps, collapser, record);
+							} else if (updateUmiCounts(r,oLaps,umiCount,umiMin)) {
 								/* write this read out as the exemplar read for this cell/transcript/UMI */
 								bamWriter.addAlignment(r);
 								writeCount+=1;
@@ -151,11 +198,24 @@ public class NexteraPreprocess {
 					}
 				}
 				
-				bamReader.close();
-				bamWriter.close();
+				if (regions!=null) {
+					regions.close(bamReader, bamFile);
+				} else {
+					bamReader.close();
+				}
+				if (collapser!=null) {
+					collapser.finishAll();
+					logger.info("UMIs: "+collapser.getUmiCount()+" molecules: "+collapser.getMoleculeCount());
+					writeCount = writeExemplars(bamFile, outFile, bamHeader, regions, collapser.getExemplars());
+				} else {
+					bamWriter.close();
+				}
 				
 				long loopEndTime = System.nanoTime();    // loop timer
 				logger.info("Reads: "+readCount+" writes: "+writeCount);
+				if (sweep!=null) {
+					logger.info("UMI counts kept for at most "+sweep.getPeakGenes()+" genes at a time");
+				}
 				logger.info("Preprocessing file: "+bamFile+" took "+(loopEndTime-loopStartTime)/1e9+" sec\n");
 				readsIn+=readCount;
 				readsOut+=writeCount;
@@ -226,6 +286,60 @@ public class NexteraPreprocess {
 		return writeExemplar;
 	}
 	
+	/* adds read number record to the well barcode/UMI of each of the overlapping genes in collapser */
+	public static void addUmis(SAMRecord r, Vector<String> oLaps, UmiCollapser collapser, long record) {
+		String readName = r.getReadName();
+		String[] fields = readName.split(":");
+		int lastField = fields.length - 1;
+		if (!fields[lastField].contains("_")) {
+			logger.warn("Improper read name: "+readName);
+			return;
+		}
+		String[] wbc_umi = fields[lastField].split("_");
+		String chr = r.getReferenceName();
+		String strand = r.getReadNegativeStrandFlag() ? "-" : "+";
+		collapser.add(strand, chr, oLaps, wbc_umi[0], wbc_umi[1], record);
+	}
+	
+	/* Second pass of UMI collapsing: reads bamFile again, with its reads numbered from 0 as in the first pass, and
+	 * writes the reads numbered exemplars (ascending) to outFile, in their input order. Returns the number of reads
+	 * written. */
+	private static int writeExemplars(File bamFile, File outFile, SAMFileHeader header, AnnotatedRegions regions,
+										long[] exemplars) {
+		SAMFileReader bamReader = regions!=null ? regions.open(bamFile, "preprocessExemplars") : new SAMFileReader(bamFile);
+		bamReader.setValidationStringency(ValidationStringency.STRICT);
+		SAMFileWriter bamWriter = new SAMFileWriterFactory().makeBAMWriter(header, false, outFile);
+		int e = 0;
+		try {
+			SAMRecordIterator bamIterator = regions!=null ? regions.query(bamReader, null) : bamReader.iterator();
+			long record = 0;
+			while (e<exemplars.length && bamIterator.hasNext()) {
+				SAMRecord r;
+				try {
+					r = bamIterator.next();
+				} catch (SAMFormatException ex) {
+					// (skipped without a number in the first pass as well)
+					continue;
+				}
+				if (record++==exemplars[e]) {
+					bamWriter.addAlignment(r);
+					e++;
+				}
+			}
+		} finally {
+			bamWriter.close();
+			if (regions!=null) {
+				regions.close(bamReader, bamFile);
+			} else {
+				bamReader.close();
+			}
+		}
+		if (e<exemplars.length) {
+			throw new IllegalStateException(bamFile+" has fewer reads than in the first pass");
+		}
+		return e;
+	}
+	
 	public static Vector<String> readStartOverlap(SAMRecord r, HashMap<String, HashMap<String, IntervalTree<String>>> eMap) {
 		String chr;		// alignment chromosome
 		String strand;	// alignment strand   /* TODO: add unstranded */
@@ -256,38 +370,34 @@ public class NexteraPreprocess {
 										int wExt, boolean stranded, String task) {
 		// Builds a set of IntervalTrees, one per chromosome, containing all exons, plus all extensions:
 		HashMap<String, HashMap<String, IntervalTree<String>>> eTree = new HashMap<String, HashMap<String, IntervalTree<String>>>();
+		TranscriptTable transcripts = new TranscriptTable(annotations);
 		
 		/* first pass: create interval trees with exon coordinates from annotations */
-		for (String chr:annotations.keySet()) {
-			for (Gene g:annotations.get(chr)) {
+		for (String chr:transcripts.getReferences()) {
+			for (int t:transcripts.getTranscripts(chr)) {
 				if (!eTree.containsKey(chr)) {
 					eTree.put(chr, new HashMap<String, IntervalTree<String>>());
 				}
-				String gStrand = g.getStrand().toString();
+				String gStrand = transcripts.getStrand(t).toString();
 				if (!eTree.get(chr).containsKey(gStrand)) {
 					eTree.get(chr).put(gStrand, new IntervalTree<String>());
 				}
 				
-				Iterator<BasicAnnotation> eIter = (Iterator<BasicAnnotation>) g.getBlocks().iterator();  // exon iterator
-				String gName = g.getName();  // gene symbol
-				while (eIter.hasNext()) {
-					BasicAnnotation a = eIter.next();
-					int aStart = a.getStart();
-					int aEnd = a.getEnd();
-					// create a tree for this chromosome, if necessary:
+				String gName = transcripts.getName(t);  // gene symbol
+				for (int e=0; e<transcripts.getExonCount(t); e++) {
 					// Add the interval with the gene symbol as the name:
-					eTree.get(chr).get(gStrand).put(aStart,aEnd,gName);
+					eTree.get(chr).get(gStrand).put(transcripts.getExonStart(t, e), transcripts.getExonEnd(t, e), gName);
 				}
 			}
 		}
 		
 		/* second pass: add extensions */
-		for (String chr:annotations.keySet()) {
-			for (Gene g:annotations.get(chr)) {
-				String gStrand = g.getStrand().toString();
-				String gName = g.getName();
-				int gStart = g.getStart();   // lowest gene coordinate
-				int gEnd = g.getEnd();       // highest gene coordinate
+		for (String chr:transcripts.getReferences()) {
+			for (int t:transcripts.getTranscripts(chr)) {
+				String gStrand = transcripts.getStrand(t).toString();
+				String gName = transcripts.getName(t);
+				int gStart = transcripts.getStart(t);   // lowest gene coordinate
+				int gEnd = transcripts.getEnd(t);       // highest gene coordinate
 				int extStart;
 				int extEnd;
 				// Compute extended transcript coordinates:
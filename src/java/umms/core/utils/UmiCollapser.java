@@ -0,0 +1,215 @@
+package umms.core.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * UMI error correction for the single-cell preprocessors, with the directional adjacency method: the UMIs of a
+ * gene in one cell are the nodes of a graph with an edge from UMI a to UMI b if they differ in one base and a has
+ * at least 2*n(b)-1 reads, so that b is likely a sequencing error of a. Starting from the UMI with the most reads,
+ * each UMI not yet assigned absorbs all UMIs it reaches over the edges, and becomes one molecule with the reads
+ * of all of them. The neighbours of a UMI are enumerated (3 per base of its 2-bit packed sequence, see 
+ * InDropPreprocess.packBarcode()) and looked up in a hash map, so a group of n UMIs of length L is collapsed in
+ * O(n*L) rather than by comparing all pairs. Small groups (at most SCAN_MAX UMIs, most of them) are faster to
+ * scan, so their neighbours are found by comparing the packed UMIs. UMIs that cannot be packed (N bases, longer
+ * than 31 bases) are molecules on their own.
+ *
+ * The preprocessors add every read of a gene and cell by its record number (its position in the alignments they
+ * read), and collapse the UMIs of a gene with finish() once no more reads of the gene can follow (see UmiSweep),
+ * or with finishAll() at the end. Only the packed UMI, its read count and the record number of its first read
+ * are kept per UMI, not the reads. The exemplars, the first reads of the UMIs at the roots of the molecules with
+ * at least umiMin reads, are collected by record number (a read whose start overlaps several genes is written
+ * once, even if it is an exemplar of more than one of them), and written in a second pass over the alignments.
+ */
+public class UmiCollapser {
+	
+	static final int SCAN_MAX = 256;      // groups up to this size are scanned for neighbours
+	static final long LOW_BITS = 0x5555555555555555L;
+	
+	/* the UMIs of one gene in one cell */
+	static class UmiGroup {
+		LongIntMap index = new LongIntMap();          // packed UMI -> UMI number
+		HashMap<String, Integer> unpacked = null;     // UMIs that cannot be packed -> UMI number
+		int size = 0;
+		long[] umis = new long[4];                    // packed UMI, or -1
+		int[] counts = new int[4];
+		long[] records = new long[4];                 // record number of the first read of each UMI
+	}
+	
+	private int umiMin;
+	/* Keys: strand\tchr\tgene, cell barcode */
+	private HashMap<String, HashMap<String, UmiGroup>> groups = new HashMap<String, HashMap<String, UmiGroup>>();
+	/* record numbers of the exemplars of the genes finished so far (-> 1) */
+	private LongIntMap exemplars = new LongIntMap();
+	private long umisIn = 0;
+	private long moleculesOut = 0;
+	
+	public UmiCollapser(int umiMin) {
+		this.umiMin = umiMin;
+	}
+	
+	/* adds read number record (>=0) of the genes with cell barcode cell and UMI umi */
+	public void add(String strand, String chr, List<String> genes, String cell, String umi, long record) {
+		for (String gene:genes) {
+			add(strand, chr, gene, cell, umi, record);
+		}
+	}
+	
+	private void add(String strand, String chr, String gene, String cell, String umi, long record) {
+		String gKey = strand+"\t"+chr+"\t"+gene;
+		HashMap<String, UmiGroup> cells = groups.get(gKey);
+		if (cells==null) {
+			cells = new HashMap<String, UmiGroup>();
+			groups.put(gKey, cells);
+		}
+		UmiGroup g = cells.get(cell);
+		if (g==null) {
+			g = new UmiGroup();
+			cells.put(cell, g);
+		}
+		long packed = InDropPreprocess.packBarcode(umi);
+		int u;
+		if (packed>=0) {
+			u = g.index.get(packed);
+		} else {
+			if (g.unpacked==null) {
+				g.unpacked = new HashMap<String, Integer>();
+			}
+			Integer uObj = g.unpacked.get(umi);
+			u = uObj==null ? -1 : uObj;
+		}
+		if (u<0) {
+			u = g.size++;
+			if (u==g.umis.length) {
+				g.umis = Arrays.copyOf(g.umis, 2*u);
+				g.counts = Arrays.copyOf(g.counts, 2*u);
+				g.records = Arrays.copyOf(g.records, 2*u);
+			}
+			g.umis[u] = packed;
+			g.records[u] = record;
+			if (packed>=0) {
+				g.index.put(packed, u);
+			} else {
+				g.unpacked.put(umi, u);
+			}
+			umisIn++;
+		}
+		g.counts[u]++;
+	}
+	
+	/* collapses the UMIs of gene in all cells and returns the number of new exemplars (not yet exemplars of 
+	 * another gene) */
+	public int finish(String strand, String chr, String gene) {
+		HashMap<String, UmiGroup> cells = groups.remove(strand+"\t"+chr+"\t"+gene);
+		if (cells==null) {
+			return 0;
+		}
+		int added = 0;
+		for (UmiGroup g:cells.values()) {
+			int[] roots = collapse(g.index, g.umis, g.counts, g.size, umiMin);
+			for (int root:roots) {
+				if (exemplars.add(g.records[root], 1)==1) {
+					added++;
+				}
+			}
+		}
+		moleculesOut += added;
+		return added;
+	}
+	
+	/* finishes all remaining genes */
+	public int finishAll() {
+		int added = 0;
+		for (String gKey:groups.keySet().toArray(new String[groups.size()])) {
+			String[] k = gKey.split("\t", 3);
+			added += finish(k[0], k[1], k[2]);
+		}
+		return added;
+	}
+	
+	/* the record numbers of the exemplars of the genes finished so far, in ascending order (the reads to write) */
+	public long[] getExemplars() {
+		long[] e = exemplars.keys();
+		Arrays.sort(e);
+		return e;
+	}
+	
+	/* distinct UMIs added and molecules (exemplars) found so far */
+	public long getUmiCount() {
+		return umisIn;
+	}
+	
+	public long getMoleculeCount() {
+		return moleculesOut;
+	}
+	
+	/* Directional adjacency clustering of the n UMIs umis[0..n-1] (packed, or -1) with read counts counts, where
+	 * index maps the packed UMIs to their numbers. Returns the numbers of the root UMIs of the molecules with at 
+	 * least umiMin reads, in the order of their counts (ties in UMI number order). */
+	public static int[] collapse(LongIntMap index, long[] umis, int[] counts, int n, int umiMin) {
+		// order the UMIs by count, most reads first:
+		long[] order = new long[n];
+		for (int i=0; i<n; i++) {
+			order[i] = ((long)(Integer.MAX_VALUE-counts[i])<<32)|i;
+		}
+		Arrays.sort(order);
+		boolean[] assigned = new boolean[n];
+		int[] queue = new int[n];
+		int[] roots = new int[n];
+		int nRoots = 0;
+		for (int o=0; o<n; o++) {
+			int root = (int)order[o];
+			if (assigned[root]) {
+				continue;
+			}
+			// absorb everything reachable from root over the directed edges:
+			assigned[root] = true;
+			queue[0] = root;
+			int head = 0;
+			int tail = 1;
+			int reads = 0;
+			while (head<tail) {
+				int u = queue[head++];
+				reads += counts[u];
+				long packed = umis[u];
+				if (packed<0) {
+					continue;
+				}
+				int minCount = (counts[u]+1)/2;     // n(u) >= 2*n(v)-1
+				if (n<=SCAN_MAX) {
+					int lz = Long.numberOfLeadingZeros(packed);
+					for (int v=0; v<n; v++) {
+						long x = packed^umis[v];
+						// (one base apart: exactly one 2-bit base differs, and both UMIs have the same length)
+						if (Long.bitCount((x|(x>>>1))&LOW_BITS)==1 && !assigned[v] && counts[v]<=minCount &&
+								umis[v]>=0 && Long.numberOfLeadingZeros(umis[v])==lz) {
+							assigned[v] = true;
+							queue[tail++] = v;
+						}
+					}
+					continue;
+				}
+				int len = (63-Long.numberOfLeadingZeros(packed))/2;
+				for (int p=0; p<len; p++) {
+					int shift = 2*p;
+					long base = (packed>>>shift)&3;
+					for (long b=0; b<4; b++) {
+						if (b==base) {
+							continue;
+						}
+						int v = index.get((packed&~(3L<<shift))|(b<<shift));
+						if (v>=0 && !assigned[v] && counts[v]<=minCount) {
+							assigned[v] = true;
+							queue[tail++] = v;
+						}
+					}
+				}
+			}
+			if (reads>=umiMin) {
+				roots[nRoots++] = root;
+			}
+		}
+		return Arrays.copyOf(roots, nRoots);
+	}
+}
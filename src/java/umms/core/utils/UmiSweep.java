@@ -0,0 +1,119 @@
+package umms.core.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Vector;
+
+import broad.core.datastructures.IntervalTree;
+import net.sf.samtools.SAMRecord;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sweep over the read starts of a coordinate-sorted BAM file for the single-cell preprocessors, which keep UMI
+ * state per gene: the sweep tracks the genes with state by the end of their extended interval (in the exon 
+ * interval map of the preprocessor), and reports a gene as finished once a read starts at or after that end, or
+ * on another reference. No later read of the file can overlap a finished gene, so its state can be dropped (or
+ * its UMIs collapsed, see UmiCollapser).
+ */
+class UmiSweep {
+	
+	static Logger logger = Logger.getLogger(UmiSweep.class.getName());
+
+	/* a gene with UMI state, ordered by the end of its extended interval */
+	static class ActiveGene implements Comparable<ActiveGene> {
+		int end;
+		String strand;
+		String chr;
+		String gene;
+		
+		ActiveGene(int end, String strand, String chr, String gene) {
+			this.end = end;
+			this.strand = strand;
+			this.chr = chr;
+			this.gene = gene;
+		}
+		
+		public int compareTo(ActiveGene o) {
+			return Integer.compare(end, o.end);
+		}
+	}
+	
+	private HashMap<String, HashMap<String, Integer>> geneEnds;    // chr -> strand\tgene -> end of its last interval
+	private String chr = null;
+	private int lastStart = 0;
+	private PriorityQueue<ActiveGene> active = new PriorityQueue<ActiveGene>();
+	private HashSet<String> activeKeys = new HashSet<String>();
+	private int peakGenes = 0;
+	private boolean sorted = true;
+	
+	UmiSweep(HashMap<String, HashMap<String, IntervalTree<String>>> eMap) {
+		geneEnds = new HashMap<String, HashMap<String, Integer>>();
+		for (String c:eMap.keySet()) {
+			HashMap<String, Integer> ends = new HashMap<String, Integer>();
+			for (String strand:eMap.get(c).keySet()) {
+				Iterator<IntervalTree.Node<String>> nIter = eMap.get(c).get(strand).iterator();
+				while (nIter.hasNext()) {
+					IntervalTree.Node<String> n = nIter.next();
+					for (String g:n.getContainedValues()) {
+						String key = strand+"\t"+g;
+						if (!ends.containsKey(key) || ends.get(key)<n.getEnd()) {
+							ends.put(key, n.getEnd());
+						}
+					}
+				}
+			}
+			geneEnds.put(c, ends);
+		}
+	}
+	
+	/* the genes that the read start of r has passed; call before counting r */
+	ArrayList<ActiveGene> advance(SAMRecord r) {
+		ArrayList<ActiveGene> done = new ArrayList<ActiveGene>();
+		if (!sorted) {
+			return done;
+		}
+		String rChr = r.getReferenceName();
+		int aStart = r.getAlignmentStart();
+		if (!rChr.equals(chr)) {
+			// a new reference: all genes of the previous one are done
+			done.addAll(active);
+			active.clear();
+			activeKeys.clear();
+			chr = rChr;
+		} else if (aStart<lastStart) {
+			logger.warn("Reads are not sorted by coordinate ("+r.getReadName()+"); keeping the UMI state of all genes from here on");
+			sorted = false;
+			return done;
+		}
+		lastStart = aStart;
+		while (!active.isEmpty() && active.peek().end<=aStart) {
+			ActiveGene a = active.poll();
+			activeKeys.remove(a.strand+"\t"+a.gene);
+			done.add(a);
+		}
+		return done;
+	}
+	
+	/* registers the genes overlapped by the read start of r (after advance()) */
+	void addGenes(SAMRecord r, Vector<String> oLaps) {
+		if (!sorted) {
+			return;
+		}
+		String strand = r.getReadNegativeStrandFlag() ? "-" : "+";
+		for (String g:oLaps) {
+			String key = strand+"\t"+g;
+			if (activeKeys.add(key)) {
+				active.add(new ActiveGene(geneEnds.get(chr).get(key), strand, chr, g));
+			}
+		}
+		peakGenes = Math.max(peakGenes, active.size());
+	}
+	
+	int getPeakGenes() {
+		return peakGenes;
+	}
+}
@@ -0,0 +1,84 @@
+package umms.esat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import umms.core.annotation.BEDFileParser;
+import umms.core.annotation.Gene;
+import umms.core.annotation.TranscriptTable;
+
+/**
+ * Annotations kept in memory across NewESAT runs in the same JVM (see ESATDaemon): the genes of each annotation
+ * (BED) or gene mapping file, by reference, and their TranscriptTable. A file is loaded by the first run that uses
+ * it and again only when its modification time or length has changed; runs that hold the annotations of the
+ * earlier version keep them. The annotations are shared by concurrent runs, which only read them.
+ */
+public class AnnotationCache {
+
+	static final Logger logger = Logger.getLogger(AnnotationCache.class.getName());
+
+	/* the annotations of one version of a file */
+	public static class Entry {
+		private long lastModified;
+		private long length;
+		private Map<String, Collection<Gene>> annotations;
+		private Hashtable<String, Gene> geneTable;     // (gene mapping files only)
+		private TranscriptTable transcripts;
+
+		public Map<String, Collection<Gene>> getAnnotations() {
+			return annotations;
+		}
+
+		public Hashtable<String, Gene> getGeneTable() {
+			return geneTable;
+		}
+
+		public TranscriptTable getTranscripts() {
+			return transcripts;
+		}
+	}
+
+	private HashMap<String, Entry> entries = new HashMap<String, Entry>();     // (<mapping|bed>:<absolute path>)
+	private int loads = 0;
+
+	/* the annotations of a BED file, or of a gene mapping file (geneMapping), loading them if the file is new or
+	 * has changed */
+	public synchronized Entry get(File file, boolean geneMapping) throws IOException {
+		// (loaded while holding the lock, so that concurrent runs do not load the same file twice)
+		String key = (geneMapping ? "mapping:" : "bed:")+file.getAbsolutePath();
+		Entry e = entries.get(key);
+		if (e!=null && e.lastModified==file.lastModified() && e.length==file.length()) {
+			return e;
+		}
+		if (e!=null) {
+			logger.info("Annotations "+file+" have changed since they were loaded: reloading");
+		}
+		e = new Entry();
+		e.lastModified = file.lastModified();
+		e.length = file.length();
+		long start = System.nanoTime();
+		if (geneMapping) {
+			e.geneTable = NewESAT.loadGeneTableFromFile(file);
+			e.annotations = NewESAT.geneMapToAnnotations(e.geneTable);
+		} else {
+			e.annotations = BEDFileParser.loadDataByChr(file);
+		}
+		e.transcripts = new TranscriptTable(e.annotations);
+		entries.put(key, e);
+		loads++;
+		logger.info("Loaded annotations "+file+": "+e.transcripts.size()+" transcripts in "+
+					String.format("%.1f", (System.nanoTime()-start)/1e9)+" sec");
+		return e;
+	}
+
+	/* the number of times a file has been (re)loaded */
+	public synchronized int getLoadCount() {
+		return loads;
+	}
+}
@@ -0,0 +1,500 @@
+package umms.esat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.IntervalTree;
+import umms.core.utils.ExperimentMap;
+
+/**
+ * Checkpoint snapshots of the two counting passes of a NewESAT run, so that a killed run can continue with
+ * -resume instead of starting over.
+ *
+ * After every completed alignment file the counting code hands its new state to the checkpoint:
+ *   - read start counting: the start counts of the file, which the counting thread then leaves alone (it goes on
+ *     with a new, empty dictionary). The writer thread merges them, in the order handed over, into the counts of
+ *     the counting thread, which the thread takes back when it is done (takeCounts()). With several counting
+ *     threads, every thread's counts are a separate part of the snapshot.
+ *   - second pass: a copy of the window counter columns of one experiment and the list of its files read so far.
+ * The snapshots are written by a single background thread (to a temporary file that then replaces the previous
+ * snapshot), so the counting threads do not wait for them. If the previous snapshot is still being written when
+ * a file completes, the new state is kept (replacing older state of the same experiment) and written as soon as
+ * that snapshot is done. The start counts of at most one file per part wait for the writer: a counting thread
+ * that completes another file before the writer has taken them waits until it has, so that the counts held
+ * for the snapshots do not grow with the number of files.
+ *
+ * The read start counts are stored as <out>.checkpoint.counts; once the first pass is complete, this file is
+ * marked complete and the second pass stores its counters in <out>.checkpoint.windows. Both files start with
+ * a description of the run (input files, annotations and counting parameters), and are only used to resume a
+ * run with the same description. They are deleted when the run finishes.
+ */
+public class Checkpoint {
+
+	static final Logger logger = Logger.getLogger(Checkpoint.class.getName());
+
+	static final int MAGIC = 0x45534143;     // "ESAC"
+	static final int VERSION = 1;
+
+	private File countsFile;
+	private File windowsFile;
+	private String description;
+	private ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			// a daemon, so that a failed run can still exit (an interrupted write leaves the previous snapshot intact)
+			Thread t = new Thread(r, "checkpoint-writer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private int writing = 0;           // snapshots submitted to the writer and not yet done
+	private boolean pending = false;   // state that changed while a snapshot was being written
+	private boolean countsDone = false;
+
+	/* counts of each part: merged by the writer thread (only used on that thread), and handed over by the counting 
+	 * threads since the last snapshot; and all files counted into each part */
+	private TreeMap<Integer, SAMSequenceCountingDict> countParts = new TreeMap<Integer, SAMSequenceCountingDict>();
+	private TreeMap<Integer, List<SAMSequenceCountingDict>> newCounts = new TreeMap<Integer, List<SAMSequenceCountingDict>>();
+	private TreeMap<Integer, List<String>> countFiles = new TreeMap<Integer, List<String>>();
+	private TreeMap<String, double[]> windowParts = new TreeMap<String, double[]>();
+	private TreeMap<String, int[]> windowColumns = new TreeMap<String, int[]>();
+	private TreeMap<String, List<String>> windowFiles = new TreeMap<String, List<String>>();
+	private int nCounters;
+
+	private int snapshots = 0;
+	private int coalesced = 0;
+
+	/* if not resuming, any snapshots of an earlier run with the same output name are removed */
+	public Checkpoint(File outFile, String description, boolean resume) {
+		this.countsFile = new File(outFile.getAbsolutePath()+".checkpoint.counts");
+		this.windowsFile = new File(outFile.getAbsolutePath()+".checkpoint.windows");
+		this.description = description;
+		if (!resume) {
+			countsFile.delete();
+			windowsFile.delete();
+		}
+	}
+
+	/*************************************************************************************
+	 * read start counting pass
+	 *************************************************************************************/
+
+	/* new counts of one counting part: the counts of the given files (which the caller will not change any more) */
+	public synchronized void countsUpdated(int part, SAMSequenceCountingDict counts, List<String> files) {
+		// (counts of the part are only waiting while a snapshot is being written, which takes them when it is done)
+		while (newCounts.containsKey(part) && !newCounts.get(part).isEmpty()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		if (!newCounts.containsKey(part)) {
+			newCounts.put(part, new ArrayList<SAMSequenceCountingDict>());
+			countFiles.put(part, new ArrayList<String>());
+		}
+		newCounts.get(part).add(counts);
+		countFiles.get(part).addAll(files);
+		schedule(false);
+	}
+
+	/* all counts handed over for one part, merged in the order handed over (null if there are none); the part is
+	 * no longer in later snapshots */
+	public SAMSequenceCountingDict takeCounts(final int part) {
+		// on the writer thread, after the snapshots scheduled so far (the counts not in one of them are taken now,
+		// so that a snapshot of pending state scheduled later cannot take them):
+		Future<SAMSequenceCountingDict> f;
+		synchronized (this) {
+			final List<SAMSequenceCountingDict> counts = newCounts.remove(part);
+			countFiles.remove(part);
+			f = writer.submit(new Callable<SAMSequenceCountingDict>() {
+				public SAMSequenceCountingDict call() {
+					mergeCounts(part, counts);
+					return countParts.remove(part);
+				}
+			});
+		}
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/* the first pass is complete: counts (which will not change any more) hold all files */
+	public synchronized void countsComplete(SAMSequenceCountingDict counts, List<String> files) {
+		countsDone = true;
+		newCounts.clear();
+		countFiles.clear();
+		newCounts.put(0, new ArrayList<SAMSequenceCountingDict>());
+		newCounts.get(0).add(counts);
+		countFiles.put(0, new ArrayList<String>(files));
+		schedule(true);
+	}
+
+	/* adds counts to the merged counts of a part (on the writer thread) */
+	private void mergeCounts(int part, List<SAMSequenceCountingDict> counts) {
+		if (counts==null) {
+			return;
+		}
+		for (SAMSequenceCountingDict c:counts) {
+			if (countParts.containsKey(part)) {
+				countParts.get(part).mergeCounts(c);
+			} else {
+				countParts.put(part, c);
+			}
+		}
+	}
+
+	/* Restores the start counts of the last snapshot and returns the files they include, or null if there is no
+	 * usable snapshot. complete[0] is set if the snapshot holds the whole first pass; the counts are then added to
+	 * bamDict (which must hold the sequence dictionary), and otherwise they are the first counts of part 0, so that
+	 * they are in all later snapshots (and in takeCounts(0)). */
+	public List<String> restoreCounts(SAMSequenceCountingDict bamDict, boolean[] complete) throws IOException {
+		if (!countsFile.exists()) {
+			logger.info("No checkpoint "+countsFile+" found, starting from the beginning.");
+			return null;
+		}
+		DataInputStream in = open(countsFile);
+		try {
+			complete[0] = in.readBoolean();
+			int nParts = in.readInt();
+			List<String> files = new ArrayList<String>();
+			SAMSequenceCountingDict counts = null;
+			for (int p=0; p<nParts; p++) {
+				files.addAll(readStrings(in));
+				SAMSequenceCountingDict partDict = bamDict.newInstance();
+				partDict.setLogger(bamDict.logger);
+				partDict.copySequences(bamDict);
+				partDict.readCounts(in);
+				if (counts==null) {
+					counts = partDict;
+				} else {
+					counts.mergeCounts(partDict);
+				}
+			}
+			if (complete[0]) {
+				if (counts!=null) {
+					bamDict.mergeCounts(counts);
+				}
+			} else if (counts!=null) {
+				countsUpdated(0, counts, files);
+			}
+			logger.info("Restored the read start counts of "+files.size()+" files from "+countsFile+
+						(complete[0] ? " (read start counting complete)" : ""));
+			if (!complete[0]) {
+				windowsFile.delete();    // (cannot be newer than these counts, but be safe)
+			}
+			return files;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*************************************************************************************
+	 * second pass
+	 *************************************************************************************/
+
+	/* all window and gene counters of the tree, in a fixed order */
+	static List<EventCounter> getCounters(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree) {
+		List<EventCounter> counters = new ArrayList<EventCounter>();
+		for (String strand:new TreeMap<String, HashMap<String, IntervalTree<EventCounter>>>(windowTree).keySet()) {
+			for (String chr:new TreeMap<String, IntervalTree<EventCounter>>(windowTree.get(strand)).keySet()) {
+				Iterator<EventCounter> eIter = windowTree.get(strand).get(chr).valueIterator();
+				while (eIter.hasNext()) {
+					counters.add(eIter.next());
+				}
+			}
+		}
+		return counters;
+	}
+
+	/* the counter columns of an experiment: the experiment itself, or all of its barcodes */
+	static int[] getColumns(ExperimentMap eMap, String exp) {
+		List<Integer> cols = new ArrayList<Integer>();
+		for (int i=0; i<eMap.getNexp(); i++) {
+			String name = eMap.getName(i);
+			if (eMap.isSingleCell() ? name.startsWith(exp+":") : name.equals(exp)) {
+				cols.add(i);
+			}
+		}
+		int[] c = new int[cols.size()];
+		for (int i=0; i<c.length; i++) {
+			c[i] = cols.get(i);
+		}
+		return c;
+	}
+
+	/* new state of one experiment in the second pass: its counter columns after the given files */
+	public void windowCountsUpdated(String exp, List<EventCounter> counters, int[] cols, List<String> files) {
+		// copy the columns (on the calling thread, which owns them):
+		double[] values = new double[counters.size()*cols.length];
+		int k = 0;
+		for (EventCounter e:counters) {
+			for (int c:cols) {
+				values[k++] = e.getExactCounts(c);
+			}
+		}
+		synchronized (this) {
+			nCounters = counters.size();
+			windowParts.put(exp, values);
+			windowColumns.put(exp, cols);
+			windowFiles.put(exp, new ArrayList<String>(files));
+			schedule(false);
+		}
+	}
+
+	/* Restores the counter columns of all experiments in the last second-pass snapshot and returns the files read
+	 * for each experiment (empty if there is no snapshot). */
+	public HashMap<String, Set<String>> restoreWindowCounts(List<EventCounter> counters) throws IOException {
+		HashMap<String, Set<String>> done = new HashMap<String, Set<String>>();
+		if (!windowsFile.exists()) {
+			return done;
+		}
+		DataInputStream in = open(windowsFile);
+		try {
+			int n = in.readInt();
+			if (n!=counters.size()) {
+				throw new IOException(windowsFile+" has "+n+" window counters, but the restored read start counts give "+counters.size());
+			}
+			int nParts = in.readInt();
+			for (int p=0; p<nParts; p++) {
+				String exp = in.readUTF();
+				List<String> files = readStrings(in);
+				int[] cols = new int[in.readInt()];
+				for (int i=0; i<cols.length; i++) {
+					cols[i] = in.readInt();
+				}
+				double[] values = new double[n*cols.length];
+				int k = 0;
+				for (EventCounter e:counters) {
+					for (int c:cols) {
+						double x = in.readDouble();
+						values[k++] = x;
+						e.addExactCount(c, x);
+					}
+				}
+				done.put(exp, new HashSet<String>(files));
+				// keep the restored state, so that later snapshots still include this experiment:
+				synchronized (this) {
+					nCounters = n;
+					windowParts.put(exp, values);
+					windowColumns.put(exp, cols);
+					windowFiles.put(exp, files);
+				}
+				logger.info("Restored the window counts of experiment "+exp+" ("+files.size()+" files) from "+windowsFile);
+			}
+		} finally {
+			in.close();
+		}
+		return done;
+	}
+
+	/*************************************************************************************
+	 * snapshot writing
+	 *************************************************************************************/
+
+	/* write the current state in the background, or, if a snapshot is being written, when it is done (must hold
+	 * the lock) */
+	private void schedule(final boolean force) {
+		if (writing>0 && !force) {
+			pending = true;
+			coalesced++;
+			return;
+		}
+		writing++;
+		pending = false;
+		snapshots++;
+		final boolean reset = force;
+		final boolean countsComplete = countsDone;
+		final TreeMap<Integer, List<SAMSequenceCountingDict>> cNew = new TreeMap<Integer, List<SAMSequenceCountingDict>>();
+		for (Integer p:newCounts.keySet()) {
+			cNew.put(p, newCounts.get(p));
+			newCounts.put(p, new ArrayList<SAMSequenceCountingDict>());
+		}
+		final TreeMap<Integer, List<String>> cFiles = new TreeMap<Integer, List<String>>();
+		for (Integer p:countFiles.keySet()) {
+			cFiles.put(p, new ArrayList<String>(countFiles.get(p)));
+		}
+		final TreeMap<String, double[]> wParts = new TreeMap<String, double[]>(windowParts);
+		final TreeMap<String, int[]> wCols = new TreeMap<String, int[]>(windowColumns);
+		final TreeMap<String, List<String>> wFiles = new TreeMap<String, List<String>>(windowFiles);
+		final int n = nCounters;
+		writer.submit(new Runnable() {
+			public void run() {
+				try {
+					long start = System.nanoTime();
+					if (reset) {
+						countParts.clear();
+					}
+					for (Integer p:cNew.keySet()) {
+						mergeCounts(p, cNew.get(p));
+					}
+					if (wParts.isEmpty()) {
+						writeCounts(countParts, cFiles, countsComplete);
+					} else {
+						writeWindows(wParts, wCols, wFiles, n);
+					}
+					logger.debug("Checkpoint written in "+(System.nanoTime()-start)/1e9+" sec");
+				} catch (Exception e) {
+					logger.warn("Could not write checkpoint: "+e);
+				} finally {
+					synchronized (Checkpoint.this) {
+						writing--;
+						if (writing==0 && pending) {
+							schedule(false);
+						}
+						Checkpoint.this.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	private void writeCounts(TreeMap<Integer, SAMSequenceCountingDict> parts, TreeMap<Integer, List<String>> files,
+							boolean complete) throws IOException {
+		File tmp = new File(countsFile.getPath()+".tmp");
+		DataOutputStream out = create(tmp);
+		out.writeBoolean(complete);
+		out.writeInt(parts.size());
+		for (Integer p:parts.keySet()) {
+			writeStrings(out, files.get(p));
+			parts.get(p).writeCounts(out);
+		}
+		out.close();
+		replace(tmp, countsFile);
+	}
+
+	private void writeWindows(TreeMap<String, double[]> parts, TreeMap<String, int[]> cols, TreeMap<String, List<String>> files,
+							int n) throws IOException {
+		File tmp = new File(windowsFile.getPath()+".tmp");
+		DataOutputStream out = create(tmp);
+		out.writeInt(n);
+		out.writeInt(parts.size());
+		for (String exp:parts.keySet()) {
+			out.writeUTF(exp);
+			writeStrings(out, files.get(exp));
+			out.writeInt(cols.get(exp).length);
+			for (int c:cols.get(exp)) {
+				out.writeInt(c);
+			}
+			for (double x:parts.get(exp)) {
+				out.writeDouble(x);
+			}
+		}
+		out.close();
+		replace(tmp, windowsFile);
+	}
+
+	/* waits for the last snapshot; if the run is finished, the checkpoint files are removed */
+	public void close(boolean finished) {
+		// (a snapshot that is done may still schedule the pending state)
+		synchronized (this) {
+			while (writing>0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		logger.info(snapshots+" checkpoint snapshots written, "+coalesced+" updates combined with later ones while a snapshot was being written");
+		if (finished) {
+			countsFile.delete();
+			windowsFile.delete();
+		}
+	}
+
+	private DataOutputStream create(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeString(out, description);
+		return out;
+	}
+
+	private DataInputStream open(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+		if (in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+			in.close();
+			throw new IOException(f+" is not a checkpoint of this version of NewESAT");
+		}
+		if (!readString(in).equals(description)) {
+			in.close();
+			logger.error("The checkpoint "+f+" was written by a run with different input files or parameters; "+
+						"remove it (or the -resume flag) to start over.");
+			throw new IOException("Checkpoint does not match this run");
+		}
+		return in;
+	}
+
+	static void replace(File tmp, File f) throws IOException {
+		if (!tmp.renameTo(f)) {
+			f.delete();
+			if (!tmp.renameTo(f)) {
+				throw new IOException("Could not rename "+tmp+" to "+f);
+			}
+		}
+	}
+
+	/* strings that may be longer than writeUTF() allows */
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, "UTF-8");
+	}
+
+	static void writeStrings(DataOutputStream out, List<String> l) throws IOException {
+		out.writeInt(l.size());
+		for (String s:l) {
+			writeString(out, s);
+		}
+	}
+
+	static List<String> readStrings(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		List<String> l = new ArrayList<String>();
+		for (int i=0; i<n; i++) {
+			l.add(readString(in));
+		}
+		return l;
+	}
+}
@@ -0,0 +1,337 @@
+package umms.esat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary count matrix, written by NewESAT -matrix next to the .window.txt and .gene.txt files (<out>.window.cmat
+ * and <out>.gene.cmat) with the same rows and columns, and a reader that fetches single rows, columns or slices
+ * from the memory-mapped file without reading all of it.
+ *
+ * The matrix is cut into tiles of ROW_BLOCK rows by COL_BLOCK columns. Each tile holds its rows in compressed
+ * row format (per row, the non-zero counts as in SAMSequenceCountingDict.writeNonZero()), deflated on its own;
+ * tiles without counts are not stored. A row is read from the tiles of its row block, a column from the tiles of
+ * its column block. File layout:
+ *
+ *   header     MAGIC, VERSION, rows, columns, ROW_BLOCK, COL_BLOCK (ints), offset of the names, offset of the index (longs)
+ *   tiles      by row block, then column block
+ *   names      deflated: the row header line (label columns), the row names (label columns of each row, tab
+ *              separated, as in the text file) and the column names
+ *   index      per tile, by row block then column block: offset (long) and length (int, 0 for an empty tile)
+ */
+public class CountMatrix {
+
+	static final int MAGIC = 0x45534d58;     // "ESMX"
+	static final int VERSION = 1;
+	static final int ROW_BLOCK = 256;
+	static final int COL_BLOCK = 1024;
+	static final int HEADER_SIZE = 6*4+2*8;
+
+	/*************************************************************************************
+	 * writer
+	 *************************************************************************************/
+
+	/* Writes the rows of a matrix in order; the rows of one row block are kept until the block is full. */
+	public static class Writer {
+		private File file;
+		private DataOutputStream out;
+		private long pos;
+		private String rowHeader;
+		private List<String> columns;
+		private List<String> rowNames = new ArrayList<String>();
+		private List<float[]> blockRows = new ArrayList<float[]>();
+		private ArrayList<Long> tileOffsets = new ArrayList<Long>();
+		private ArrayList<Integer> tileLengths = new ArrayList<Integer>();
+
+		/* rowHeader: the names of the label columns of the rows, tab separated */
+		public Writer(File file, String rowHeader, List<String> columns) throws IOException {
+			this.file = file;
+			this.rowHeader = rowHeader;
+			this.columns = columns;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1<<16));
+			out.write(new byte[HEADER_SIZE]);     // (filled in by close())
+			pos = HEADER_SIZE;
+		}
+
+		public void addRow(String name, float[] counts) throws IOException {
+			if (counts.length!=columns.size()) {
+				throw new IllegalArgumentException("Row "+name+" has "+counts.length+" counts, expected "+columns.size());
+			}
+			rowNames.add(name);
+			blockRows.add(counts.clone());
+			if (blockRows.size()==ROW_BLOCK) {
+				writeBlock();
+			}
+		}
+
+		public int getRowCount() {
+			return rowNames.size();
+		}
+
+		private void writeBlock() throws IOException {
+			int nCols = columns.size();
+			for (int c0=0; c0<nCols || c0==0; c0+=COL_BLOCK) {
+				int c1 = Math.min(nCols, c0+COL_BLOCK);
+				boolean empty = true;
+				for (float[] row:blockRows) {
+					for (int c=c0; c<c1 && empty; c++) {
+						empty = row[c]==0;
+					}
+				}
+				tileOffsets.add(pos);
+				if (empty) {
+					tileLengths.add(0);
+					continue;
+				}
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream tile = new DataOutputStream(new DeflaterOutputStream(bytes));
+				for (float[] row:blockRows) {
+					SAMSequenceCountingDict.writeNonZero(tile, Arrays.copyOfRange(row, c0, c1));
+				}
+				tile.close();
+				bytes.writeTo(out);
+				tileLengths.add(bytes.size());
+				pos += bytes.size();
+			}
+			blockRows.clear();
+		}
+
+		/* closes the file without completing it and removes it (after a failed run) */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// (the file is removed anyway)
+			}
+			file.delete();
+		}
+
+		public void close() throws IOException {
+			if (!blockRows.isEmpty()) {
+				writeBlock();
+			}
+			long namesOffset = pos;
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream names = new DataOutputStream(new DeflaterOutputStream(bytes));
+			Checkpoint.writeString(names, rowHeader);
+			Checkpoint.writeStrings(names, rowNames);
+			Checkpoint.writeStrings(names, columns);
+			names.close();
+			bytes.writeTo(out);
+			pos += bytes.size();
+			long indexOffset = pos;
+			for (int t=0; t<tileOffsets.size(); t++) {
+				out.writeLong(tileOffsets.get(t));
+				out.writeInt(tileLengths.get(t));
+			}
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(rowNames.size());
+			raf.writeInt(columns.size());
+			raf.writeInt(ROW_BLOCK);
+			raf.writeInt(COL_BLOCK);
+			raf.writeLong(namesOffset);
+			raf.writeLong(indexOffset);
+			raf.close();
+		}
+	}
+
+	/*************************************************************************************
+	 * reader
+	 *************************************************************************************/
+
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private MappedByteBuffer map;      // the whole file, if it can be mapped at once (otherwise tiles are mapped as read)
+	private int nRows;
+	private int nCols;
+	private int rowBlock;
+	private int colBlock;
+	private int nColBlocks;
+	private long[] tileOffset;
+	private int[] tileLength;
+	private String rowHeader;
+	private List<String> rowNames;
+	private List<String> columns;
+	private HashMap<String, Integer> rowIndex = null;
+	private HashMap<String, Integer> colIndex = null;
+
+	public CountMatrix(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		if (channel.size()<=Integer.MAX_VALUE) {
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		ByteBuffer h = region(0, HEADER_SIZE);
+		if (h.getInt()!=MAGIC) {
+			throw new IOException(file+" is not an ESAT count matrix");
+		}
+		int version = h.getInt();
+		if (version!=VERSION) {
+			throw new IOException(file+" has count matrix version "+version+", expected "+VERSION);
+		}
+		nRows = h.getInt();
+		nCols = h.getInt();
+		rowBlock = h.getInt();
+		colBlock = h.getInt();
+		long namesOffset = h.getLong();
+		long indexOffset = h.getLong();
+		nColBlocks = Math.max(1, (nCols+colBlock-1)/colBlock);
+		int nTiles = (nRows+rowBlock-1)/rowBlock*nColBlocks;
+		ByteBuffer index = region(indexOffset, nTiles*12);
+		tileOffset = new long[nTiles];
+		tileLength = new int[nTiles];
+		for (int t=0; t<nTiles; t++) {
+			tileOffset[t] = index.getLong();
+			tileLength[t] = index.getInt();
+		}
+		DataInputStream names = inflate(region(namesOffset, (int)(indexOffset-namesOffset)));
+		rowHeader = Checkpoint.readString(names);
+		rowNames = Checkpoint.readStrings(names);
+		columns = Checkpoint.readStrings(names);
+	}
+
+	public int getRowCount() {
+		return nRows;
+	}
+
+	public int getColumnCount() {
+		return nCols;
+	}
+
+	/* the names of the label columns of the rows, tab separated */
+	public String getRowHeader() {
+		return rowHeader;
+	}
+
+	/* the label columns of a row, tab separated (e.g. <gene>\t<chr>\t<strand> for gene rows) */
+	public String getRowName(int row) {
+		return rowNames.get(row);
+	}
+
+	public String getColumnName(int col) {
+		return columns.get(col);
+	}
+
+	public List<String> getRowNames() {
+		return rowNames;
+	}
+
+	public List<String> getColumnNames() {
+		return columns;
+	}
+
+	/* the index of the row with that name, or -1 */
+	public synchronized int getRowIndex(String name) {
+		if (rowIndex==null) {
+			rowIndex = indexNames(rowNames);
+		}
+		Integer i = rowIndex.get(name);
+		return i==null ? -1 : i;
+	}
+
+	/* the index of the column with that name, or -1 */
+	public synchronized int getColumnIndex(String name) {
+		if (colIndex==null) {
+			colIndex = indexNames(columns);
+		}
+		Integer i = colIndex.get(name);
+		return i==null ? -1 : i;
+	}
+
+	private static HashMap<String, Integer> indexNames(List<String> names) {
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		for (int i=0; i<names.size(); i++) {
+			index.put(names.get(i), i);
+		}
+		return index;
+	}
+
+	public float[] getRow(int row) throws IOException {
+		return getSlice(row, row+1, 0, nCols)[0];
+	}
+
+	public float[] getColumn(int col) throws IOException {
+		float[][] slice = getSlice(0, nRows, col, col+1);
+		float[] c = new float[nRows];
+		for (int r=0; r<nRows; r++) {
+			c[r] = slice[r][0];
+		}
+		return c;
+	}
+
+	/* the counts of rows rowFrom..rowTo-1 in columns colFrom..colTo-1, reading only the tiles they overlap */
+	public float[][] getSlice(int rowFrom, int rowTo, int colFrom, int colTo) throws IOException {
+		if (rowFrom<0 || rowTo>nRows || rowFrom>rowTo || colFrom<0 || colTo>nCols || colFrom>colTo) {
+			throw new IndexOutOfBoundsException("Slice ["+rowFrom+","+rowTo+")x["+colFrom+","+colTo+") of a "+nRows+"x"+nCols+" matrix");
+		}
+		float[][] slice = new float[rowTo-rowFrom][colTo-colFrom];
+		if (colFrom==colTo) {
+			return slice;
+		}
+		for (int rb=rowFrom/rowBlock; rb*rowBlock<rowTo; rb++) {
+			int r0 = rb*rowBlock;
+			int r1 = Math.min(nRows, r0+rowBlock);
+			for (int cb=colFrom/colBlock; cb*colBlock<colTo; cb++) {
+				int t = rb*nColBlocks+cb;
+				if (tileLength[t]==0) {
+					continue;
+				}
+				int c0 = cb*colBlock;
+				float[] row = new float[Math.min(nCols, c0+colBlock)-c0];
+				DataInputStream tile = inflate(region(tileOffset[t], tileLength[t]));
+				for (int r=r0; r<r1 && r<rowTo; r++) {
+					Arrays.fill(row, 0);
+					SAMSequenceCountingDict.readNonZero(tile, row);
+					if (r<rowFrom) {
+						continue;
+					}
+					for (int c=Math.max(c0, colFrom); c<Math.min(c0+row.length, colTo); c++) {
+						slice[r-rowFrom][c-colFrom] = row[c-c0];
+					}
+				}
+			}
+		}
+		return slice;
+	}
+
+	public void close() throws IOException {
+		map = null;
+		raf.close();
+	}
+
+	private ByteBuffer region(long offset, int length) throws IOException {
+		if (map!=null) {
+			ByteBuffer b = map.duplicate();
+			b.position((int)offset);
+			b.limit((int)offset+length);
+			return b.slice();
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+	}
+
+	private static DataInputStream inflate(ByteBuffer b) {
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		return new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes))));
+	}
+}
@@ -0,0 +1,224 @@
+package umms.esat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+
+/**
+ * Long-running NewESAT service for many small runs: the annotation files are loaded by the first job that uses
+ * them and kept in memory (AnnotationCache), so later jobs skip the JVM start-up and the annotation loading.
+ *
+ * Jobs are submitted as files <name>.job in a spool directory, holding the NewESAT arguments (whitespace
+ * separated; lines starting with # are ignored). A job should be written under another name and then renamed, so
+ * that the daemon never reads a partly written one. The daemon claims a job by renaming it to <name>.running,
+ * runs up to -jobs of them at the same time, and renames each to <name>.done or <name>.failed when it ends, after
+ * appending the status, the run time and the metrics of each NewESAT stage (as # comment lines). The outputs,
+ * including <out>.metrics.json, are written as by a NewESAT run with the same arguments. With -jobs above 1, the
+ * CPU time and allocations of the stages are measured from the threads of each job, and their peak heap (which
+ * would include the other jobs running at the time) is not recorded.
+ *
+ * The daemon stops, after the running jobs have ended, once a file named "stop" appears in the spool directory (a
+ * stop file that is already there when the daemon starts is removed).
+ */
+public class ESATDaemon {
+
+	static final String usage = "Usage: ESATDaemon -spool <job directory>"+
+			"\n\t-jobs <number of jobs run at the same time [default: 1]>"+
+			"\n\t-poll <seconds between scans of the job directory [default: 2]>"+
+			"\n\tRuns the NewESAT jobs <name>.job of the job directory (NewESAT arguments, whitespace separated), keeping"+
+			"\n\tthe annotations in memory between jobs. A job is renamed to <name>.running while it runs, and to <name>.done"+
+			"\n\tor <name>.failed, with its status and metrics appended, when it ends. A file named stop in the job"+
+			"\n\tdirectory stops the daemon once the running jobs have ended.";
+
+	static final Logger logger = Logger.getLogger(ESATDaemon.class.getName());
+
+	static final String JOB = ".job";
+	static final String RUNNING = ".running";
+	static final String DONE = ".done";
+	static final String FAILED = ".failed";
+	static final String STOP = "stop";
+
+	private File spool;
+	private int nJobs;
+	private long pollMillis;
+	private AnnotationCache cache = new AnnotationCache();
+	private ExecutorService pool;
+	private Semaphore slots;       // free places in the pool
+	private int finished = 0;
+	private int failed = 0;
+
+	public ESATDaemon(File spool, int nJobs, long pollMillis) {
+		this.spool = spool;
+		this.nJobs = nJobs;
+		this.pollMillis = pollMillis;
+	}
+
+	/* runs the jobs of the spool directory until it holds a stop file */
+	public void run() throws InterruptedException {
+		pool = Executors.newFixedThreadPool(nJobs);
+		slots = new Semaphore(nJobs);
+		if (new File(spool, STOP).delete()) {
+			logger.info("Removed the stop file of an earlier daemon");
+		}
+		for (File f:listFiles(RUNNING)) {
+			logger.warn("Job "+jobName(f, RUNNING)+" was left running by an earlier daemon; rename "+f+" to "+JOB+" to run it again");
+		}
+		logger.info("Waiting for jobs in "+spool.getAbsolutePath()+" ("+nJobs+" at a time)");
+		while (!new File(spool, STOP).exists()) {
+			for (File f:listFiles(JOB)) {
+				if (!slots.tryAcquire()) {
+					break;
+				}
+				final String name = jobName(f, JOB);
+				final File running = new File(spool, name+RUNNING);
+				if (!f.renameTo(running)) {
+					slots.release();    // (taken by another daemon, or removed)
+					continue;
+				}
+				logger.info("Starting job "+name);
+				pool.submit(new Runnable() {
+					public void run() {
+						try {
+							runJob(name, running);
+						} finally {
+							slots.release();
+						}
+					}
+				});
+			}
+			Thread.sleep(pollMillis);
+		}
+		logger.info("Stop file found: waiting for the running jobs to end");
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		logger.info("Stopped after "+finished+" jobs ("+failed+" failed); annotations loaded "+cache.getLoadCount()+" times");
+	}
+
+	/* runs one job and moves its file to <name>.done or <name>.failed */
+	void runJob(String name, File running) {
+		long start = System.nanoTime();
+		NewESAT esat = null;
+		Throwable error = null;
+		try {
+			esat = new NewESAT(readArguments(running), cache, nJobs>1);
+		} catch (Throwable t) {
+			// (a failing job must not stop the daemon)
+			error = t;
+			logger.error("Job "+name+" failed: "+t, t);
+		}
+		double sec = (System.nanoTime()-start)/1e9;
+		List<String> report = new ArrayList<String>();
+		report.add("# "+(error==null ? "done" : "failed")+" "+new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date())+
+					" in "+String.format("%.2f", sec)+" sec");
+		if (error!=null) {
+			report.add("# error: "+error);
+		} else {
+			for (RunMetrics.Stage s:esat.getMetrics().getStages()) {
+				report.add(String.format("# stage %s: %.2f sec wall, %.2f sec CPU, %d records, %d bytes, %.1f MB allocated%s",
+							s.getName(), s.getWallSec(), s.getCpuSec(), s.getRecords(), s.getBytes(), s.getAllocBytes()/1048576.0,
+							s.getPeakHeap()<0 ? "" : String.format(", %.1f MB peak heap", s.getPeakHeap()/1048576.0)));
+			}
+		}
+		File ended = new File(spool, name+(error==null ? DONE : FAILED));
+		try {
+			FileWriter w = new FileWriter(running, true);
+			for (String line:report) {
+				w.write(line+"\n");
+			}
+			w.close();
+		} catch (IOException e) {
+			logger.error("Could not write the report of job "+name+": "+e);
+		}
+		if (!running.renameTo(ended)) {
+			logger.error("Could not rename "+running+" to "+ended);
+		}
+		synchronized (this) {
+			finished++;
+			if (error!=null) {
+				failed++;
+			}
+		}
+		logger.info("Job "+name+(error==null ? " done" : " failed")+" in "+String.format("%.2f", sec)+" sec");
+	}
+
+	/* the NewESAT arguments of a job file */
+	static String[] readArguments(File job) throws IOException {
+		List<String> args = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(job));
+		String line;
+		while ((line = reader.readLine())!=null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			args.addAll(Arrays.asList(line.split("\\s+")));
+		}
+		reader.close();
+		return args.toArray(new String[args.size()]);
+	}
+
+	/* the files of the spool directory with that suffix, oldest first */
+	private File[] listFiles(final String suffix) {
+		File[] files = spool.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.isFile() && f.getName().endsWith(suffix);
+			}
+		});
+		if (files==null) {
+			return new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				int c = Long.compare(a.lastModified(), b.lastModified());
+				return c!=0 ? c : a.getName().compareTo(b.getName());
+			}
+		});
+		return files;
+	}
+
+	private static String jobName(File f, String suffix) {
+		return f.getName().substring(0, f.getName().length()-suffix.length());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+			BasicConfigurator.configure();
+		}
+		ArgumentMap argMap = CLUtil.getParameters(args, usage, "daemon");
+		if (!argMap.isPresent("spool")) {
+			logger.error("Missing -spool\n"+usage);
+			throw new IllegalArgumentException();
+		}
+		File spool = new File(argMap.get("spool"));
+		if (!spool.isDirectory()) {
+			logger.error("Job directory "+spool+" does not exist");
+			throw new IllegalArgumentException();
+		}
+		int nJobs = argMap.getInteger("jobs", 1);
+		if (nJobs<1) {
+			logger.error("-jobs must be at least 1");
+			throw new IllegalArgumentException();
+		}
+		long pollMillis = (long)(1000*argMap.getDouble("poll", 2));
+		new ESATDaemon(spool, nJobs, pollMillis).run();
+	}
+}
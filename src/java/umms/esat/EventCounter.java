@@ -1,64 +1,119 @@
 package umms.esat;
 
-import umms.esat.Window;
-
+/**
+ * A window or gene counter: a row of a WindowTable, which holds its coordinates, exon segments and counts. 
+ */
 public class EventCounter {
-	private String name;
-	private float[] counts;  // float to handle partial counts from multimapped reads
-	private float sumCounts;  // test feature to make sure that the total number of reads is the sum of counts[]
-	private Window w;
+	private WindowTable table;
+	private int row;
 
-	public EventCounter(String nodeName, int n, Window inW) {
-		name = nodeName;
-		counts = new float[n];
-		w = inW;
+	public EventCounter(WindowTable table, int row) {
+		this.table = table;
+		this.row = row;
 	}
 
-	public void setSumCounts(float x) {
-		sumCounts = x;
+	public WindowTable getTable() {
+		return table;
+	}
+
+	public int getRow() {
+		return row;
 	}
 
 	public void incrementCount(int n) {
-		counts[n]++;
+		table.addCount(row, n, 1);
 	}
 
 	public void addCount(int n, float val) {
-		counts[n]+=val;
+		table.addCount(row, n, val);
 	}
 
 	public String getName() {
-		return name;
+		return table.getName(row);
+	}
+	
+	public float getCounts(int n) {
+		return table.getCount(row, n);
 	}
 	
+	/* the count of column n without rounding to float (for checkpoints of fractional counts) */
+	public double getExactCounts(int n) {
+		return table.getExactCount(row, n);
+	}
+	
+	public void addExactCount(int n, double val) {
+		table.addExactCount(row, n, val);
+	}
+	
+	/* a copy of the counts of all columns (the counts are kept in the table, so changes to the array are not 
+	 * seen by the counter) */
 	public float[] getAllCounts() {
+		float[] counts = new float[table.getColumnCount()];
+		for (int n=0; n<counts.length; n++) {
+			counts[n] = table.getCount(row, n);
+		}
 		return counts;
 	}
 	
-	public float getCounts(int n) {
-		return counts[n];
+	/* the total was only ever set (as a check when testing), never read, so it is not kept */
+	@Deprecated
+	public void setSumCounts(float x) {
 	}
 	
 	public boolean hasIntervalTree() {
-		return w.hasITree();
+		return table.hasSegments(row);
 	}
 	
 	public void incrementIntervalCount(int iStart, int iEnd, int n) {
-		// If the node's window contains an interval tree, need to do a second-level check to see if
-		// the read actually falls into one of the exon ranges. If there is no interval tree, it means that 
-		// this genomic range does not span more than one exon, so just update the count without any further checking.
-
-		if (!w.hasITree() || w.hasOverlap(iStart, iEnd)) { 
-			counts[n]++;
-		} 
+		addIntervalCount(iStart, iEnd, n, 1);
 	}
 
 	public void addIntervalCount(int iStart, int iEnd, int n, float fractCount) {
-		// If the node's window contains an interval tree, need to do a second-level check to see if
-		// the read actually falls into one of the exon ranges. If there is no interval tree, it means that 
-		// this genomic range does not span more than one exon, so just update the count without any further checking.
+		// If the counter has exon segments, need to do a second-level check to see if the read actually 
+		// falls into one of the exon ranges. If there are none, it means that this genomic range does not 
+		// span more than one exon, so just update the count without any further checking. (Reads are counted
+		// by their start, so iStart is the only position checked.)
 
-		if (!w.hasITree() || w.hasOverlap(iStart, iEnd)) { 
-			counts[n]+=fractCount;
+		if (table.contains(row, iStart)) { 
+			table.addCount(row, n, fractCount);
 		} 
 	}
-}
\ No newline at end of file
+
+	public void addStartCounts(SAMSequenceCountingDict dict, String chr, String strand, int n) {
+		// Adds the reads of a read start count dictionary that start in this counter's range to counter n, i.e. 
+		// the same reads that addIntervalCount() would add one at a time. If the counter has exon segments, only
+		// the read starts within them are added; the exons of a gene may overlap, so each position is added 
+		// only once.
+		if (!dict.startCountsHasKey(chr)) {
+			return;
+		}
+		if (!table.hasSegments(row)) {
+			table.addCount(row, n, sumStartCounts(dict, chr, strand, table.getStart(row), table.getEnd(row)));
+			return;
+		}
+		int covered = Integer.MIN_VALUE;    // end of the positions added so far (the segments are sorted by start)
+		for (int k=0; k<table.getSegmentCount(row); k++) {
+			int iStart = Math.max(table.getSegmentStart(row, k), covered);
+			int iEnd = table.getSegmentEnd(row, k);
+			if (iEnd>iStart) {
+				table.addCount(row, n, sumStartCounts(dict, chr, strand, iStart, iEnd));
+				covered = iEnd;
+			}
+		}
+	}
+
+	private static float sumStartCounts(SAMSequenceCountingDict dict, String chr, String strand, int iStart, int iEnd) {
+		iStart = Math.max(iStart, 0);
+		iEnd = Math.min(iEnd, dict.getChrLength(chr));
+		if (iEnd<=iStart) {
+			return 0;
+		}
+		float[] c = new float[iEnd-iStart];
+		dict.copyToLocalCounts(chr, strand, iStart, 0, c.length, c);
+		float sum = 0;
+		for (float x:c) {
+			sum += x;
+		}
+		return sum;
+	}
+}
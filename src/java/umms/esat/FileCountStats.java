@@ -0,0 +1,51 @@
+package umms.esat;
+
+import java.io.File;
+
+public class FileCountStats {
+
+	/* Read counts and timing for a single alignment file in the read start counting pass. These are
+	 * collected by the (possibly parallel) counting workers and reported in input file order.
+	 */
+	String exp;
+	File bamFile;
+	int validReads;
+	int invalidReads;
+	int lowQualityReads;
+	int multimappedReads;
+	double elapsedSec;
+	File mmTempFile;      // valid multimapped reads (-multimap proper), or null
+
+	public FileCountStats(String exp, File bamFile) {
+		this.exp = exp;
+		this.bamFile = bamFile;
+	}
+
+	public String getExperiment() {
+		return exp;
+	}
+
+	public File getFile() {
+		return bamFile;
+	}
+
+	public int getValidReads() {
+		return validReads;
+	}
+
+	public int getInvalidReads() {
+		return invalidReads;
+	}
+
+	public int getLowQualityReads() {
+		return lowQualityReads;
+	}
+
+	public int getMultimappedReads() {
+		return multimappedReads;
+	}
+
+	public double getElapsedSec() {
+		return elapsedSec;
+	}
+}
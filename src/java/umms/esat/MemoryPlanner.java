@@ -0,0 +1,319 @@
+package umms.esat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.BAMIndexMetaData;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import umms.core.annotation.Gene;
+
+/**
+ * Estimates the resident size of a NewESAT run for each read start count representation, before any
+ * reads are read, and picks the fastest representation that fits a memory budget.
+ *
+ * The estimate has two parts:
+ *   - the read start counts, which depend on the representation: dense short or fixed-point (long) arrays
+ *     over every reference with alignments, fixed-point arrays restricted to the annotated exons and
+ *     extensions, or a sparse hash table over the distinct read start positions;
+ *   - a fixed part shared by all representations: the annotations and the window/gene counters, which
+ *     hold one float per experiment (or barcode) each.
+ *
+ * The reference lengths come from the BAM header's sequence dictionary. The number of alignments (and the
+ * references that have any) are taken from the BAM index when there is one, otherwise the alignment count is
+ * estimated from the file sizes. The window count is an upper bound: every window position of every
+ * transcript, but no more than the number of alignments.
+ *
+ * In per-reference (streaming) mode only one reference is held in memory at a time, so the start counts
+ * and window counters are estimated for the largest reference instead of the sum over all of them.
+ *
+ * With several counting threads every thread holds its own read start counts until they are merged, so the
+ * start count estimate is multiplied by the number of threads that get at least one file. Checkpointing keeps
+ * the counts of each thread's current file apart from its earlier counts (which the snapshot writer merges),
+ * and -saveState counts each experiment separately before adding it to the pooled counts.
+ */
+public class MemoryPlanner {
+
+	/* read start count representations, fastest first */
+	public enum Representation {
+		DENSE_SHORT("dense short"),
+		DENSE_FLOAT("dense float"),
+		RESTRICTED("annotation-restricted"),
+		SPARSE("sparse");
+
+		private String label;
+
+		Representation(String label) {
+			this.label = label;
+		}
+
+		public String toString() {
+			return label;
+		}
+	}
+
+	static final Logger logger = Logger.getLogger(MemoryPlanner.class.getName());
+
+	/* rough per-object sizes (bytes) used for the fixed part of the estimate */
+	static final int BYTES_PER_GENE = 600;          // Gene, name, exon set and interval tree entries
+	static final int BYTES_PER_EXON = 200;
+	static final int BYTES_PER_WINDOW = 250;        // Window (until the tree is built), counter table row, EventCounter and tree node
+	static final int BYTES_PER_GENE_COUNTER = 250;  // counter table row with exon segments, EventCounter and tree node
+	static final int BYTES_PER_ARRAY = 16;          // array header
+	static final int COMPRESSED_BYTES_PER_ALIGNMENT = 20;   // low estimate, used if a BAM has no index
+
+	private SAMSequenceDictionary dict;
+	private Map<String, Collection<Gene>> annotations;
+	private String multimap;
+	private int nExp;
+	private int wExt;
+
+	private Set<String> refsWithReads = new HashSet<String>();
+	private HashMap<String, Long> refAlignments = new HashMap<String, Long>();    // alignments per reference (index only)
+	private long nAlignments = 0;
+	private boolean alignmentsFromIndex = true;
+	private boolean perReference = false;
+	private int nFiles = 0;
+	private int countStores = 1;       // read start count dictionaries held at the same time (one per counting thread)
+	private int copies = 1;            // 2 with checkpoint snapshots or per-experiment counts
+	private boolean allPositions = false;    // the start counts must cover every position (-saveState)
+	private long annotationBytes;
+	private HashMap<String, Long> windowBytes = new HashMap<String, Long>();       // window counter estimate per reference
+
+	public MemoryPlanner(SAMSequenceDictionary dict, Map<String, Collection<Gene>> annotations,
+						HashMap<String, ArrayList<File>> bamFiles, int nExp,
+						int wLen, int wOlap, int wExt, String multimap) {
+		this.dict = dict;
+		this.annotations = annotations;
+		this.multimap = multimap;
+		this.nExp = nExp;
+		scanAlignmentFiles(bamFiles);
+		this.wExt = wExt;
+		estimateFixedBytes(wLen, wOlap, wExt);
+	}
+
+	/* estimate for one reference at a time (streaming mode) instead of the whole genome */
+	public void setPerReference(boolean perReference) {
+		this.perReference = perReference;
+	}
+
+	/* number of counting threads (at most one per alignment file) */
+	public void setThreads(int nThreads) {
+		countStores = Math.max(1, Math.min(nThreads, nFiles));
+	}
+
+	/* keep a second copy of the read start counts (-checkpoint snapshots, or the per-experiment counts of -saveState) */
+	public void setSnapshotCopies(boolean snapshots) {
+		copies = snapshots ? 2 : 1;
+	}
+
+	/* The window counters are filled from the saved start counts (-saveState) instead of the alignments, so the start
+	 * counts must include the read starts outside the annotations (a window may span an intron) */
+	public void setAllPositions(boolean allPositions) {
+		this.allPositions = allPositions;
+	}
+
+	/* alignment counts and references with alignments, from the BAM indices (or file sizes) */
+	private void scanAlignmentFiles(HashMap<String, ArrayList<File>> bamFiles) {
+		for (String exp:bamFiles.keySet()) {
+			for (File f:bamFiles.get(exp)) {
+				nFiles++;
+				SAMFileReader reader = new SAMFileReader(f);
+				try {
+					if (reader.hasIndex()) {
+						SAMSequenceDictionary fDict = reader.getFileHeader().getSequenceDictionary();
+						for (int i=0; i<fDict.size(); i++) {
+							BAMIndexMetaData meta = reader.getIndex().getMetaData(i);
+							if (meta!=null && meta.getAlignedRecordCount()>0) {
+								String chr = fDict.getSequence(i).getSequenceName();
+								long n = meta.getAlignedRecordCount();
+								nAlignments += n;
+								refsWithReads.add(chr);
+								refAlignments.put(chr, refAlignments.containsKey(chr) ? refAlignments.get(chr)+n : n);
+							}
+						}
+					} else {
+						alignmentsFromIndex = false;
+						nAlignments += f.length()/COMPRESSED_BYTES_PER_ALIGNMENT;
+					}
+				} finally {
+					reader.close();
+				}
+			}
+		}
+		if (!alignmentsFromIndex) {
+			// without an index we cannot tell which references have alignments, so assume all of them do:
+			for (SAMSequenceRecord seq:dict.getSequences()) {
+				refsWithReads.add(seq.getSequenceName());
+			}
+		}
+	}
+
+	private void estimateFixedBytes(int wLen, int wOlap, int wExt) {
+		long counterBytes = BYTES_PER_ARRAY+(multimap.equals("scale") ? 8L : 4L)*nExp;    // (fixed-point counts if scaled)
+		int step = Math.max(1, wLen-wOlap);
+		annotationBytes = 0;
+		for (String chr:annotations.keySet()) {
+			long genes = 0;
+			long windows = 0;
+			for (Gene g:annotations.get(chr)) {
+				genes++;
+				annotationBytes += BYTES_PER_GENE+g.getExonSet().size()*BYTES_PER_EXON;
+				windows += (g.length()+wExt+step-1)/step;
+			}
+			windows = Math.min(windows, getAlignments(chr));
+			windowBytes.put(chr, genes*(BYTES_PER_GENE_COUNTER+counterBytes)+windows*(BYTES_PER_WINDOW+counterBytes));
+		}
+	}
+
+	/* alignments to a reference: from the index, or the total if it is not known */
+	private long getAlignments(String chr) {
+		if (!alignmentsFromIndex) {
+			return nAlignments;
+		}
+		return refAlignments.containsKey(chr) ? refAlignments.get(chr) : 0;
+	}
+
+	/* combine per-reference estimates: their maximum in per-reference mode, otherwise their sum */
+	private long combine(long total, long x) {
+		return perReference ? Math.max(total, x) : total+x;
+	}
+
+	/* can this representation count reads with the current -multimap (and -saveState) setting? */
+	public boolean isApplicable(Representation r) {
+		// the short counters cannot hold fractional (scaled) counts, and the dense float counters always scale:
+		if (r==Representation.DENSE_SHORT) {
+			return !multimap.equals("scale");
+		} else if (r==Representation.DENSE_FLOAT) {
+			return multimap.equals("scale");
+		} else if (r==Representation.RESTRICTED) {
+			return !allPositions;
+		}
+		return true;
+	}
+
+	/* estimated size (bytes) of the read start counts alone */
+	public long getCountBytes(Representation r) {
+		long bytes = 0;
+		for (String chr:refsWithReads) {
+			SAMSequenceRecord seq = dict.getSequence(chr);
+			if (seq==null || (perReference && !annotations.containsKey(chr))) {
+				// (the streaming mode skips references without annotations)
+				continue;
+			}
+			long refBytes;
+			switch (r) {
+				case DENSE_SHORT:
+					refBytes = 2*(BYTES_PER_ARRAY+2L*seq.getSequenceLength());
+					break;
+				case DENSE_FLOAT:
+					refBytes = 2*(BYTES_PER_ARRAY+8L*seq.getSequenceLength());
+					break;
+				case RESTRICTED:
+					refBytes = SAMSequenceCountingDictRestricted.allocatedBytes(annotations.get(chr), wExt, seq.getSequenceLength());
+					break;
+				default:
+					refBytes = Math.min(getAlignments(chr), 2L*seq.getSequenceLength())*SAMSequenceCountingDictSparse.BYTES_PER_POSITION;
+					break;
+			}
+			bytes = combine(bytes, refBytes);
+		}
+		if (r==Representation.SPARSE && !perReference) {
+			// the per-reference bounds are not additive without an index:
+			bytes = Math.min(bytes, nAlignments*SAMSequenceCountingDictSparse.BYTES_PER_POSITION);
+		}
+		return bytes*countStores*copies;
+	}
+
+	/* estimated size (bytes) of everything that does not depend on the representation */
+	public long getFixedBytes() {
+		long bytes = 0;
+		for (String chr:windowBytes.keySet()) {
+			bytes = combine(bytes, windowBytes.get(chr));
+		}
+		return annotationBytes+bytes;
+	}
+
+	public long getTotalBytes(Representation r) {
+		return getCountBytes(r)+getFixedBytes();
+	}
+
+	/* the fastest applicable representation whose estimate fits maxBytes, or null */
+	public Representation choose(long maxBytes) {
+		for (Representation r:Representation.values()) {
+			if (isApplicable(r) && getTotalBytes(r)<=maxBytes) {
+				return r;
+			}
+		}
+		return null;
+	}
+
+	public static SAMSequenceCountingDict makeCountingDict(Representation r, Map<String, Collection<Gene>> annotations, int wExt) {
+		switch (r) {
+			case DENSE_SHORT:
+				return new SAMSequenceCountingDictShort();
+			case DENSE_FLOAT:
+				return new SAMSequenceCountingDictFloat();
+			case RESTRICTED:
+				return new SAMSequenceCountingDictRestricted(annotations, wExt);
+			default:
+				return new SAMSequenceCountingDictSparse();
+		}
+	}
+
+	public void logEstimates() {
+		logger.info("Memory estimate for "+nAlignments+(alignmentsFromIndex ? "" : " (estimated)")+" alignments, "+
+					refsWithReads.size()+" references and "+nExp+" experiment/barcode columns"+
+					(perReference ? " (largest single reference)" : "")+
+					(countStores>1 ? " with "+countStores+" counting threads" : "")+
+					(copies>1 ? " and a second copy of the start counts" : "")+":");
+		logger.info("  annotations and window counters: "+formatBytes(getFixedBytes()));
+		for (Representation r:Representation.values()) {
+			if (isApplicable(r)) {
+				logger.info(String.format("  %-22s start counts %10s, total %10s", r, formatBytes(getCountBytes(r)), formatBytes(getTotalBytes(r))));
+			}
+		}
+	}
+
+	public static String formatBytes(long b) {
+		if (b>=1L<<30) {
+			return String.format("%.2f GB", b/(double)(1L<<30));
+		}
+		return String.format("%.1f MB", b/(double)(1L<<20));
+	}
+
+	/* parses a memory size such as 8g, 512m, 64k or a plain number of bytes */
+	public static long parseMemory(String s) {
+		String v = s.trim().toLowerCase();
+		long mult = 1;
+		if (v.endsWith("b")) {
+			v = v.substring(0, v.length()-1);
+		}
+		if (v.endsWith("k")) {
+			mult = 1L<<10;
+		} else if (v.endsWith("m")) {
+			mult = 1L<<20;
+		} else if (v.endsWith("g")) {
+			mult = 1L<<30;
+		} else if (v.endsWith("t")) {
+			mult = 1L<<40;
+		}
+		if (mult>1) {
+			v = v.substring(0, v.length()-1);
+		}
+		try {
+			return (long) (Double.parseDouble(v)*mult);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Illegal memory size: "+s+" (expected e.g. 8g, 512m or a number of bytes)");
+		}
+	}
+}
@@ -14,8 +14,12 @@ import java.io.FileWriter;
 import java.lang.annotation.Annotation;
 import java.lang.Runtime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
@@ -26,6 +30,10 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.LogManager;
@@ -35,6 +43,7 @@ import umms.core.annotation.Annotation.Strand;
 import umms.core.annotation.BEDFileParser;
 import umms.core.annotation.BasicAnnotation;
 import umms.core.annotation.Gene;
+import umms.core.annotation.TranscriptTable;
 import umms.core.exception.RuntimeIOException;
 import broad.core.util.CLUtil;
 import broad.core.util.CLUtil.ArgumentMap;
@@ -47,7 +56,10 @@ import umms.esat.SAMSequenceCountingDictShort;
 import umms.esat.SAMSequenceCountingDictFloat;
 import umms.core.readers.MappingTableReader;
 import umms.core.utils.NexteraPreprocess;
+import umms.core.utils.AnnotatedRegions;
 import umms.core.utils.InDropPreprocess;
+import umms.core.utils.LongIntMap;
+import umms.core.utils.BarcodeCensus;
 import umms.core.utils.ExperimentMap;
 
 //import umms.core.utils.ESATUtils;
@@ -64,6 +76,29 @@ public class NewESAT {
 			"\n\t-quality <minimum alignment quality [default: no filtering]>"+ 
 			"\n\t-task <score3p | score5p> [default: score3p]"+
 			"\n\t-unstranded [default: stranded]"+
+			"\n\t-maxMemory <memory budget, e.g. 16g; picks the fastest read start count representation that fits [default: dense]>"+
+			"\n\t-streaming [process one reference at a time; needs coordinate-sorted BAM files, indexed if possible; default: off]"+
+			"\n\t-shard <i/N: process only the i-th of N reference subsets (i=1..N, implies -streaming) and write a partial"+
+			"\n\t\tresult <out>.shard-<i>-of-<N>.bin; combine the N partials with umms.esat.ShardMerge>"+
+			"\n\t-checkpoint [snapshot the counting passes after every alignment file to <out>.checkpoint.*; default: off]"+
+			"\n\t-resume [continue from the last checkpoint snapshot (implies -checkpoint)]"+
+			"\n\t-saveState [keep the per-experiment and pooled read start counts and the window counters in <out>.state, so that"+
+			"\n\t\texperiments can be added later with -addTo; default: off]"+
+			"\n\t-addTo <output basename of an earlier -saveState run: add the experiments in the alignments list to that run,"+
+			"\n\t\treading only their alignment files, and write the combined outputs (implies -saveState)>"+
+			"\n\t-matrix [also write the counts as binary matrices <out>.window.cmat and <out>.gene.cmat, which umms.esat.CountMatrix"+
+			"\n\t\treads by row, column or slice without loading them; default: off]"+
+			"\n\t-geneOnly [write only the gene-level counts <out>.gene.txt, counted in a single pass over the alignments"+
+			"\n\t\twithout finding windows; default: off]"+
+			"\n\t-tracks [write the read start counts of each experiment as bedGraph tracks <out>.<exp>.<plus|minus>.bedGraph"+
+			"\n\t\t(<out>.<exp>.starts.bedGraph if -unstranded); default: off]"+
+			"\n\t-binaryTracks [-tracks, and also binary tracks <out>.<exp>.<strand>.rst with zoom level summaries, which"+
+			"\n\t\tumms.esat.ReadStartTracks.Reader reads by range or zoom level; default: off]"+
+			"\n\t-regions [read only the alignments overlapping the annotated genes and their -wExt extensions, through the BAM"+
+			"\n\t\tindex (created in <out>.indexes if missing or out of date; needs coordinate-sorted alignments), and report the share"+
+			"\n\t\tof each file skipped; default: off]"+
+			"\n\t-threads <number of alignment files (or experiments, in the second pass) read in parallel [default: 1]>"+
+			"\n\t-nBarcodes <expected barcodes per experiment, used for memory planning with -inPrep [default: 3000]>"+
 			"\n\tWindow parameters:"+
 			"\n\t\t-wLen <window length [default: 400]>"+
 			"\n\t\t-wOlap <window overlap [default: 0]"+
@@ -75,53 +110,115 @@ public class NewESAT {
 			"\n\t\t-nextPrep [default: off]"+
 			"\n\tPre-processing alignments from inDrop library reads:"+
 			"\n\t\t-inPrep [default: off]"+
-			"\n\t\t-uMin <minimum number of reads per UMI per transcript to be considered valid [default: 10]";
+			"\n\t\t-bcMin <minimum reads of a cell barcode, or knee to call the cells at the knee of the barcode rank plot"+
+			"\n\t\t\tof each experiment [default: 0, all barcodes]>"+
+			"\n\t\t-bcExact <distinct barcodes per experiment counted exactly; beyond that only the 10*nBarcodes most frequent"+
+			"\n\t\t\tbarcodes are kept, with counts estimated by a sketch [default: "+BarcodeCensus.DEFAULT_MAX_EXACT+"]>"+
+			"\n\t\t-uMin <minimum number of reads per UMI per transcript to be considered valid [default: 10]"+
+			"\n\t\t-umiCollapse [with -inPrep or -nextPrep: merge the UMIs of a gene and cell that are one base from a UMI with"+
+			"\n\t\t\tat least about twice as many reads (directional adjacency); default: off]";
+	
+	/* label columns of the window- and gene-level counts files */
+	static final String WINDOW_LABELS = "Symbol\tchr\tstart\tend\tstrand";
+	static final String GENE_LABELS = "Symbol\tchr\tstrand";
 	
 	// new comment
-	private static HashMap<String,ArrayList<File>> bamFiles;     // key=experiment ID, File[]= list of input files for the experiment
-	private static HashMap<String,ArrayList<File>> mmBamFiles;     // key=experiment ID, File[]= list of input files for the experiment (for 'proper' multimap handling)
-	private static File outFile;
-	private static String annotationFile;
-	private static int windowLength;
-	private static int windowOverlap;
-	private static int windowExtend;
-	private static boolean allWindows;  // save all significant windows (default, only single window position with the highest counts 
+	private HashMap<String,ArrayList<File>> bamFiles;     // key=experiment ID, File[]= list of input files for the experiment
+	private HashMap<String,ArrayList<File>> mmBamFiles;     // key=experiment ID, File[]= list of input files for the experiment (for 'proper' multimap handling)
+	private File outFile;
+	private String annotationFile;
+	private int windowLength;
+	private int windowOverlap;
+	private int windowExtend;
+	private boolean allWindows;  // save all significant windows (default, only single window position with the highest counts 
 										// within a set of contiguous overlapping windows.)
-	private static String multimap;     // one of "ignore", "normal" or "scale"
-	private static boolean qFilter;
-	private static int qThresh;         // quality threshold (reads must be GREATER THAN qThresh, if filtering is on 
-	private static boolean gMapping;
-	private static File gMapFile;       // name of the gene mapping file
-	private static String task; 		// 3' or 5' library
-	private static float pValThresh;		// minimum allowable p-value for window significance testing
-	private static boolean stranded;    // allow for unstranded analysis (defaults to stranded)
+	private String multimap;     // one of "ignore", "normal" or "scale"
+	private boolean qFilter;
+	private int qThresh;         // quality threshold (reads must be GREATER THAN qThresh, if filtering is on 
+	private boolean gMapping;
+	private File gMapFile;       // name of the gene mapping file
+	private String task; 		// 3' or 5' library
+	private float pValThresh;		// minimum allowable p-value for window significance testing
+	private boolean stranded;    // allow for unstranded analysis (defaults to stranded)
 	
 	/* single-cell parameters */
-	private static boolean nextPreprocess;    // Nextera library reads preprocessing flag
+	private boolean nextPreprocess;    // Nextera library reads preprocessing flag
 											  // NOTE: barcode and UMI are in the read name, separated by "_".
-	private static boolean inPreprocess;    // inDrop library reads preprocessing flag
+	private boolean inPreprocess;    // inDrop library reads preprocessing flag
 	  										// NOTE: barcode is encoded in filename, UMIs are in the read name, separated by "_".
-	private static int umiMin;			// minimum number of reads per UMI that must be mapped to a transcript to be considered a valid UMI 
-	private static int bcMin;			// minimum number of reads that must be observed for a barcode to be considered valid (after PCR duplicate removal) 
+	private int umiMin;			// minimum number of reads per UMI that must be mapped to a transcript to be considered a valid UMI 
+	private int bcMin;			// minimum number of reads that must be observed for a barcode to be considered valid (after PCR duplicate removal) 
+	private boolean bcKnee;		// call the cell barcodes at the knee of the barcode rank plot instead of with bcMin
+	private int bcExact;			// distinct barcodes per experiment counted exactly by the barcode census
+	private int nBarcodes;		// expected number of barcodes per experiment (memory planning, barcode census)
+	private boolean umiCollapse;	// error-correct the UMIs of each gene and cell while preprocessing
+	
+	/* memory planning */
+	private long maxMemory;		// memory budget in bytes (0: no budget, use the dense representation)
+	private MemoryPlanner.Representation countRep;    // read start count representation chosen by the planner
+	
+	/* process one reference at a time (peak memory bounded by the largest reference rather than the genome) */
+	private boolean streaming;
+	private boolean regionReading;
+	private boolean writeMatrix;     // also write the counts as binary matrices (CountMatrix)
+	private boolean geneOnly;        // count genes only (no windows, no first pass)
+	private boolean writeTracks;     // write per-experiment read start tracks (ReadStartTracks)
+	private boolean binaryTracks;    // ... also in the binary zoomable format
+	private AnnotatedRegions regions;    // -regions: read only the alignments overlapping the annotations
+	private HashMap<File, File> indexFiles = new HashMap<File, File>();    // the index used for each BAM file (see ensureIndexed)
+	private TranscriptTable transcripts;    // the exons of the annotations, for the counting paths
+	
+	/* sharded execution: this process handles shard shardIndex (1-based) of nShards (0: not sharded) */
+	private int shardIndex;
+	private int nShards;
+	
+	/* checkpoint snapshots of the counting passes, and resuming from them */
+	private boolean checkpointing;
+	private boolean resume;
+	private Checkpoint checkpoint;
+	
+	/* saved run state for adding experiments later, and the saved state of the run to add experiments to */
+	private boolean saveState;
+	private File addTo;
+	private RunState previousState;
+	
+	/* alignment files read in parallel, each thread counting into its own read start counts */
+	private int nThreads;
 	
 	static final Logger logger = LogManager.getLogger(NewESAT.class.getName());
 
-	private static HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap;
-	private static SAMSequenceCountingDict bamDict;
-	private static Hashtable<String, Gene> geneTable;
+	private HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap;
+	private SAMSequenceCountingDict bamDict;
+	private Hashtable<String, Gene> geneTable;
+	
+	private InDropPreprocess inDropData;
+	private ExperimentMap expMap;
 	
-	private static InDropPreprocess inDropData;
-	private static ExperimentMap expMap;
+	/* per-stage metrics of this run (written to <out>.metrics.json) */
+	private RunMetrics metrics = new RunMetrics();
 	
 	public NewESAT(String[] args) throws IOException, ParseException, IllegalArgumentException {
+		this(args, null);
+	}
+	
+	/* a run that takes its annotations from cache (unless it is null) instead of loading them (see ESATDaemon) */
+	public NewESAT(String[] args, AnnotationCache cache) throws IOException, ParseException, IllegalArgumentException {
+		this(args, cache, false);
+	}
+	
+	/* as above; concurrentRuns if other runs may use the JVM at the same time, so that the metrics only measure
+	 * the threads of this run (see RunMetrics) */
+	public NewESAT(String[] args, AnnotationCache cache, boolean concurrentRuns) throws IOException, ParseException, IllegalArgumentException {
 	
 		/*
 		 * @param for ArgumentMap - size, usage, default task
 		 * argMap maps the command line arguments to the respective parameters
 		 */
 	
-		// Configure the logger:
-		BasicConfigurator.configure();
+		// Configure the logger (only once, in case of repeated runs in the same JVM):
+		if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+			BasicConfigurator.configure();
+		}
 		
 		/* seems like a useful utility that can probably be stripped down */
 		ArgumentMap argMap = CLUtil.getParameters(args,usage,"score3p");  /* no default task for now */
@@ -130,20 +227,19 @@ public class NewESAT {
 			throw new IOException();
 		}
 
-		/* Only create floating-point counters if multimap=="scale" */ 
-		if (multimap.equals("scale")) {
-			// multimapped read scaling is not implemented yet:
-			bamDict = new SAMSequenceCountingDictFloat();	
-		} else {
-			bamDict = new SAMSequenceCountingDictShort();
-		}
-
 		/* START TIMING */
 		long startTime = System.nanoTime();
+		metrics = new RunMetrics(concurrentRuns);
 		
 		/* Either use the existing gene-to-transcript mapping table, or load in a genomic annotation file */
 		Map<String, Collection<Gene>> annotations;
-		if (gMapping) {
+		metrics.startStage("annotation");
+		if (cache!=null) {
+			AnnotationCache.Entry cached = cache.get(gMapping ? gMapFile : new File(annotationFile), gMapping);
+			geneTable = cached.getGeneTable();
+			annotations = cached.getAnnotations();
+			transcripts = cached.getTranscripts();
+		} else if (gMapping) {
 			/* If collapsing transcripts down to the gene level, load the gene annotation mapping file */
 			geneTable = loadGeneTableFromFile(gMapFile); 
 			// Create the annotations map, keyed by chromosome:
@@ -152,32 +248,94 @@ public class NewESAT {
 			// load the annotations from the annotation (BED) file:
 			annotations =  BEDFileParser.loadDataByChr(new File(annotationFile));	
 		}
+		metrics.addBytes(gMapping ? gMapFile.length() : new File(annotationFile).length());
+		for (String chr:annotations.keySet()) {
+			metrics.addRecords(annotations.get(chr).size());
+		}
+		if (transcripts==null) {
+			transcripts = new TranscriptTable(annotations);
+		}
+		logger.info("Transcript table: "+transcripts.size()+" transcripts, "+transcripts.getTotalExonCount()+" exons ("+
+					MemoryPlanner.formatBytes(transcripts.getMemoryBytes())+")");
+		if (regionReading) {
+			regions = new AnnotatedRegions(annotations, windowExtend);
+			for (String exp:bamFiles.keySet()) {
+				for (File f:bamFiles.get(exp)) {
+					ensureIndexed(f);
+				}
+			}
+		}
+		
+		/* Choose the read start count representation, before any reads are read */
+		metrics.startStage("plan");
+		if (addTo!=null) {
+			// the new start counts are added to the saved ones, so they must use the same representation:
+			previousState = RunState.load(addTo, describeParameters());
+			countRep = previousState.getRepresentation();
+			logger.info("Using the "+countRep+" read start counts of the saved run "+addTo);
+			for (String exp:bamFiles.keySet()) {
+				if (previousState.getBamFiles().containsKey(exp)) {
+					logger.error("Experiment "+exp+" is already part of the saved run "+addTo+"; only new experiments can be added.");
+					throw new IllegalArgumentException();
+				}
+			}
+		} else if (geneOnly) {
+			// no read start counts are kept (the dictionary only holds the reference lengths):
+			countRep = MemoryPlanner.Representation.DENSE_SHORT;
+		} else {
+			countRep = planCountingDict(annotations);
+		}
+		bamDict = MemoryPlanner.makeCountingDict(countRep, annotations, windowExtend);
 		
 		// This should be done regardless of the type of multimap handling, and the rest of the program needs to be
 		// re-written to be more efficient, but for now, make an IntervalTree for each chromosome and strand and
 		// add all annotations to it. Add extensions to all of the annotations at this point.
 		HashMap<String, HashMap<String, IntervalTree<String>>> occupancyTree = new HashMap<String, HashMap<String, IntervalTree<String>>>();
 		if (multimap.equals("proper")) {
-			fillOccupancyTree(occupancyTree, annotations, windowExtend, task);
+			metrics.startStage("occupancyTree");
+			fillOccupancyTree(occupancyTree, transcripts, windowExtend, task);
 		}
 		
 		/*****************************************************************************************************
 		 * BEGIN Single-cell data preprocessing 
 		 ******************************************************************************************************/
+		if (nextPreprocess || inPreprocess) {
+			metrics.startStage("preprocess");
+			for (String exp:bamFiles.keySet()) {
+				for (File f:bamFiles.get(exp)) {
+					metrics.addBytes(f.length());
+				}
+			}
+		}
 		if (nextPreprocess) {
-			NexteraPreprocess nextData = new NexteraPreprocess(bamFiles, annotations, qFilter, qThresh, multimap, windowExtend, stranded, task, umiMin);
+			NexteraPreprocess nextData = new NexteraPreprocess(bamFiles, annotations, qFilter, qThresh, multimap, windowExtend, stranded, task, umiMin, umiCollapse, regions);
 			bamFiles = nextData.getPreprocessedFiles();
 		} else if (inPreprocess) {
 			//InDropPreprocess inDropData = new InDropPreprocess(bamFiles, annotations, qFilter, qThresh, multimap, windowExtend, stranded, task, umiMin);
 			/* New version of InDropPreprocess: 
 			 * Assumes umiMin=1 and that the barcode and UMI are concatenated with the readID as <readID>:<bc1>:<bc2>:<umi>
 			 */
-			inDropData = new InDropPreprocess(bamFiles, annotations, qFilter, qThresh, multimap, windowExtend, stranded, task);
+			BarcodeCensus census = new BarcodeCensus(bcExact, 10*nBarcodes);
+			inDropData = new InDropPreprocess(bamFiles, annotations, qFilter, qThresh, multimap, windowExtend, stranded, task, census, umiCollapse, regions);
 			bamFiles = inDropData.getPreprocessedFiles();
-			// Fill in barcode counts from preprocessed files, if necessary:
+			// Fill in barcode counts from preprocessed files of an earlier run, if necessary:
 			int rCount = inDropData.fillBarcodeCounts();
-			// Remove low-count barcodes, if -bcMin value is given:
-			if (bcMin>0) {
+			metrics.addRecords(rCount);
+			if (!census.isExact()) {
+				logger.info("Barcode counts are estimated: only the "+10*nBarcodes+" most frequent barcodes of the experiments with more than "+
+							bcExact+" barcodes are kept");
+			}
+			// Remove low-count barcodes, at the knee or if a -bcMin value is given:
+			if (bcKnee) {
+				HashMap<String, Integer> bcStats = inDropData.filterBarcodesAtKnee();
+				for (String exp:new TreeSet<String>(bamFiles.keySet())) {
+					if (bcStats.containsKey("threshold:"+exp)) {
+						logger.info("Experiment "+exp+": cells called at the knee of the barcode rank plot, at "+bcStats.get("threshold:"+exp)+" reads");
+					}
+				}
+				logger.info((bcStats.get("startCount")-bcStats.get("endCount"))+" low-count barcodes removed. "+
+						bcStats.get("endCount")+" remaining.");
+			} else if (bcMin>0) {
 				HashMap<String, Integer> bcStats = inDropData.filterLowcountBarcodes(bcMin);
 				logger.info((bcStats.get("startCount")-bcStats.get("endCount"))+" low-count barcodes removed. "+
 						bcStats.get("endCount")+" remaining.");
@@ -187,59 +345,479 @@ public class NewESAT {
 		/*****************************************************************************************************
 		 * END Single-cell data preprocessing 
 		 ******************************************************************************************************/
-
-		/* collect all read start location counts from the input alignments file(s) */
-		mmBamFiles = new HashMap<String,ArrayList<File>>();
-		bamDict = countReadStartsFromAlignments(bamDict, bamFiles, qFilter, qThresh, multimap, stranded, occupancyTree, mmBamFiles); 
-	
-		// If handling multimapped reads "properly", call the function again with the multimapped temp files:
-		if (multimap.equals("proper")) {
-			bamDict = countReadStartsFromAlignments(bamDict, mmBamFiles, qFilter, qThresh, "ignore", stranded, occupancyTree, mmBamFiles);
-			// add any files in the mmBamFiles list to the list of bamFiles:
-			for (String exp:mmBamFiles.keySet()) {
-				Iterator<File> fIter = mmBamFiles.get(exp).iterator();
-				while (fIter.hasNext()) {
-					File f = fIter.next();
-					bamFiles.get(exp).add(f);
+		if (regions!=null && (nextPreprocess || inPreprocess)) {
+			// the preprocessed files are read by region too:
+			for (String exp:bamFiles.keySet()) {
+				for (File f:bamFiles.get(exp)) {
+					ensureIndexed(f);
 				}
 			}
-			// From here on, ignore multimappers:
-			multimap = "ignore";
+			regions.logCoverage();
 		}
-		
-		/* create the experiment map to be used by makeCountingIntervalTree(), fillExperimentWindowCounter() and writeExperimentCounter(): */
-		if (inPreprocess) {
-			expMap = new ExperimentMap(bamFiles, inDropData);
+
+		if (streaming) {
+			/* count, window, attribute and write one reference at a time */
+			countByReference(annotations);
+			metrics.endStage();
 		} else {
-			expMap = new ExperimentMap(bamFiles);
-		}
+			if (checkpointing) {
+				checkpoint = new Checkpoint(outFile, describeRun(), resume);
+			}
+			try {
+				/* collect all read start location counts from the input alignments file(s) */
+				mmBamFiles = new HashMap<String,ArrayList<File>>();
+				metrics.startStage("count");
+				RunState runState = null;
+				if (geneOnly) {
+					// the gene intervals only depend on the annotations and the reference lengths, so the first pass is skipped:
+					bamDict.copySequences(getFirstDictionary());
+					bamDict.setLogger(logger);
+				} else if (saveState || writeTracks) {
+					// count (and save, or write the tracks of) one experiment at a time, on top of the saved counts when adding 
+					// experiments:
+					if (saveState) {
+						runState = RunState.create(outFile, describeParameters(), previousState);
+					}
+					if (previousState!=null) {
+						previousState.restoreCounts(bamDict);
+					}
+					bamDict = countReadStartsByExperiment(bamDict, runState, occupancyTree);
+					if (previousState!=null) {
+						// from here on, the experiments of the saved run are part of this one:
+						bamFiles.putAll(previousState.getBamFiles());
+					}
+				} else {
+					bamDict = countReadStartsFromAlignments(bamDict, bamFiles, qFilter, qThresh, multimap, stranded, occupancyTree, mmBamFiles); 
+				}
+	
+				// If handling multimapped reads "properly", call the function again with the multimapped temp files:
+				if (multimap.equals("proper")) {
+					metrics.startStage("countMultimap");
+					bamDict = countReadStartsFromAlignments(bamDict, mmBamFiles, qFilter, qThresh, "ignore", stranded, occupancyTree, mmBamFiles);
+					// add any files in the mmBamFiles list to the list of bamFiles:
+					for (String exp:mmBamFiles.keySet()) {
+						Iterator<File> fIter = mmBamFiles.get(exp).iterator();
+						while (fIter.hasNext()) {
+							File f = fIter.next();
+							bamFiles.get(exp).add(f);
+						}
+					}
+					// From here on, ignore multimappers:
+					multimap = "ignore";
+				}
+		
+				/* create the experiment map to be used by makeCountingIntervalTree(), fillExperimentWindowCounter() and writeExperimentCounter(): */
+				if (inPreprocess) {
+					expMap = new ExperimentMap(bamFiles, inDropData);
+				} else {
+					expMap = new ExperimentMap(bamFiles);
+				}
 		
-		/* Count all reads beginning within the exons of each of the transcripts in the annotationFile */
-		countsMap = bamDict.countWindowedTranscriptReadStarts(annotations, windowLength, windowOverlap, windowExtend, task, pValThresh, allWindows);
+				/* Count all reads beginning within the exons of each of the transcripts in the annotationFile */
+				metrics.startStage("windows");
+				if (geneOnly) {
+					countsMap = bamDict.getGeneCountInfo(transcripts, null, windowExtend, task);
+				} else {
+					countsMap = bamDict.countWindowedTranscriptReadStarts(transcripts, null, windowLength, windowOverlap, windowExtend, task, 
+																			pValThresh, allWindows);
+				}
+				for (String chr:countsMap.keySet()) {
+					metrics.addRecords(countsMap.get(chr).size());    // transcripts/genes with windows
+				}
 		
-		/* Make an intervalTree containing only Windows with non-zero counts across ALL experiments */
-		//HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree = makeCountingIntervalTree(countsMap, bamFiles.keySet().size());
-		HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree = makeCountingIntervalTree(countsMap, expMap.getNexp());
+				/* Make an intervalTree containing only Windows with non-zero counts across ALL experiments */
+				//HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree = makeCountingIntervalTree(countsMap, bamFiles.keySet().size());
+				metrics.startStage("tree");
+				HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree = makeCountingIntervalTree(countsMap, expMap.getNexp(), multimap.equals("scale"), metrics);
+				countsMap = null;    // the windows are in the counter table now
 		
-		/* re-process the alignments files to count all reads that start within intervals in the windowTree (i.e., within windows in cleanCountsMap) */
-		//fillExperimentWindowCounter(windowTree, bamFiles, qFilter, qThresh, multimap, stranded);
-		fillExperimentWindowCounter(windowTree, expMap, qFilter, qThresh, multimap, stranded);
+				/* re-process the alignments files to count all reads that start within intervals in the windowTree (i.e., within windows in cleanCountsMap) */
+				//fillExperimentWindowCounter(windowTree, bamFiles, qFilter, qThresh, multimap, stranded);
+				if (runState!=null) {
+					// the saved per-experiment start counts hold the same reads, so the alignments need not be read again:
+					metrics.startStage("attribute");
+					attributeExperimentCounts(windowTree, expMap, runState, previousState);
+				} else {
+					metrics.startStage("secondPass");
+					fillExperimentWindowCounter(windowTree, expMap, qFilter, qThresh, multimap, stranded);
+				}
 		
-		/* write the output file */
-		//writeExperimentCountsFile(windowTree, bamFiles, outFile);
-		writeExperimentCountsFile(windowTree, expMap, outFile);
+				/* write the output file */
+				//writeExperimentCountsFile(windowTree, bamFiles, outFile);
+				metrics.startStage("output");
+				writeExperimentCountsFile(windowTree, expMap, outFile, geneOnly, writeMatrix, metrics);
+				if (runState!=null) {
+					metrics.startStage("saveState");
+					runState.write(bamDict, countRep, windowTree, expMap);
+				}
+				metrics.endStage();
+				if (checkpoint!=null) {
+					checkpoint.close(true);    // the outputs are complete, so the snapshots are not needed any more
+					checkpoint = null;
+				}
+			} finally {
+				if (checkpoint!=null) {
+					// a failed run: keep the snapshots for -resume, and stop the writer thread
+					checkpoint.close(false);
+					checkpoint = null;
+				}
+			}
+		}
+
+		if (regions!=null) {
+			regions.logCoverage();
+		}
 
 		/* STOP AND REPORT TIMING */
 		long stopTime = System.nanoTime();
 		logger.info("Total processing time: "+(stopTime-startTime)/1e9+" sec\n");
+		File metricsFile = new File(outFile.getAbsolutePath()+(nShards>0 ? ".shard-"+shardIndex+"-of-"+nShards : "")+".metrics.json");
+		metrics.writeJSON(metricsFile, args);
+		logger.info("Run metrics written to "+metricsFile);
 	}
 									
 	public static void main(String[] args) throws ParseException, IOException {
 		new NewESAT(args);
 	}
 	
+	/* Streaming mode: for each annotated reference in the sequence dictionary of the first alignment file, 
+	 * query all experiments for that reference, count the read starts, find the windows, attribute the 
+	 * per-experiment counts, append the output rows and free everything before moving to the next reference.
+	 * The rows are the same as in the whole-genome mode, but are written in reference order.
+	 * In sharded mode only the references of this shard are processed, and the counters are written to a partial
+	 * result file (see ShardMerge) instead of the text files.
+	 */
+	private void countByReference(Map<String, Collection<Gene>> annotations) throws IOException {
+		for (String exp:bamFiles.keySet()) {
+			for (File f:bamFiles.get(exp)) {
+				ensureIndexed(f);
+			}
+		}
+		if (inPreprocess) {
+			expMap = new ExperimentMap(bamFiles, inDropData);
+		} else {
+			expMap = new ExperimentMap(bamFiles);
+		}
+		SAMSequenceDictionary dict = getFirstDictionary();
+		
+		String baseName = outFile.getAbsolutePath();
+		File wFile = new File(baseName+".window.txt");  // window-level counts file
+		File gFile = new File(baseName+".gene.txt");  // gene-level counts file
+		File pFile = null;
+		FileWriter wWriter = null;
+		FileWriter gWriter = null;
+		CountMatrix.Writer wMatrix = null;
+		CountMatrix.Writer gMatrix = null;
+		ShardMerge.PartialWriter pWriter = null;
+		Set<String> shardRefs = null;
+		boolean written = false;
+		try {
+			if (nShards>0) {
+				shardRefs = getShardReferences(dict, annotations, shardIndex, nShards);
+				logger.info("Shard "+shardIndex+" of "+nShards+": "+shardRefs.size()+" references "+shardRefs);
+				pFile = ShardMerge.partialFile(outFile, shardIndex, nShards);
+				pWriter = new ShardMerge.PartialWriter(pFile, shardIndex, nShards, expMap);
+			} else {
+				wWriter = geneOnly ? null : new FileWriter(wFile);
+				gWriter = new FileWriter(gFile);
+				writeExperimentCountsHeader(expMap, wWriter, gWriter);
+				if (writeMatrix) {
+					wMatrix = geneOnly ? null : new CountMatrix.Writer(new File(baseName+".window.cmat"), WINDOW_LABELS, expMap.getNames());
+					gMatrix = new CountMatrix.Writer(new File(baseName+".gene.cmat"), GENE_LABELS, expMap.getNames());
+				}
+			}
+		
+			HashMap<String, HashMap<String, IntervalTree<String>>> noOccupancy = new HashMap<String, HashMap<String, IntervalTree<String>>>();
+			for (SAMSequenceRecord seq:dict.getSequences()) {
+				String chr = seq.getSequenceName();
+				if (!annotations.containsKey(chr)) {
+					continue;     // no windows without annotations, so don't read the alignments
+				}
+				if (shardRefs!=null && !shardRefs.contains(chr)) {
+					continue;     // processed by another shard
+				}
+				logger.info("Processing reference "+chr+"...");
+			
+				HashMap<String,HashMap<String,TranscriptCountInfo>> refCounts;
+				if (geneOnly) {
+					// (no first pass: the gene intervals only need the reference length)
+					metrics.startStage("windows");
+					SAMSequenceCountingDict refDict = MemoryPlanner.makeCountingDict(countRep, annotations, windowExtend);
+					refDict.copySequences(dict);
+					refDict.setLogger(logger);
+					refCounts = refDict.getGeneCountInfo(transcripts, chr, windowExtend, task);
+				} else {
+					metrics.startStage("count");
+					SAMSequenceCountingDict refDict = MemoryPlanner.makeCountingDict(countRep, annotations, windowExtend);
+					refDict = countReadStartsFromAlignments(refDict, bamFiles, qFilter, qThresh, multimap, stranded, noOccupancy, 
+															new HashMap<String,ArrayList<File>>(), chr);
+					if (!refDict.startCountsHasKey(chr)) {
+						continue;     // no alignments to this reference
+					}
+				
+					metrics.startStage("windows");
+					refCounts = refDict.countWindowedTranscriptReadStarts(transcripts, chr, windowLength, windowOverlap, windowExtend, task, 
+																			pValThresh, allWindows);
+					refDict = null;   // the start counts are not needed any more
+				}
+				for (String c:refCounts.keySet()) {
+					metrics.addRecords(refCounts.get(c).size());
+				}
+			
+				metrics.startStage("tree");
+				HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree = makeCountingIntervalTree(refCounts, expMap.getNexp(), multimap.equals("scale"), metrics);
+				refCounts = null;
+			
+				metrics.startStage("secondPass");
+				fillExperimentWindowCounter(windowTree, expMap, qFilter, qThresh, multimap, stranded, chr);
+			
+				metrics.startStage("output");
+				if (pWriter!=null) {
+					long rows = pWriter.getRowCount();
+					pWriter.writeReference(windowTree);
+					metrics.addRecords(pWriter.getRowCount()-rows);
+				} else {
+					writeExperimentCounts(windowTree, expMap, wWriter, gWriter, wMatrix, gMatrix, metrics);
+					if (wWriter!=null) {
+						wWriter.flush();
+					}
+					gWriter.flush();
+				}
+			}
+			if (pWriter!=null) {
+				pWriter.close();
+				metrics.addBytes(pFile.length());
+				logger.info("Partial result written to "+pFile);
+			} else {
+				if (wWriter!=null) {
+					wWriter.close();
+				}
+				gWriter.close();
+				metrics.addBytes(wFile.length()+gFile.length());
+				if (writeMatrix) {
+					closeMatrices(wMatrix, gMatrix);
+				}
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				abortOutputs(wWriter, gWriter, wMatrix, gMatrix, pWriter);
+			}
+		}
+	}
+	
+	/* The references (with annotations) handled by shard i (1-based) of n. The references are assigned longest
+	 * first, each to the shard with the fewest bases so far, so that every shard process computes the same split
+	 * from the sequence dictionary alone. */
+	static Set<String> getShardReferences(SAMSequenceDictionary dict, Map<String, Collection<Gene>> annotations, int i, int n) {
+		List<SAMSequenceRecord> refs = new ArrayList<SAMSequenceRecord>();
+		for (SAMSequenceRecord seq:dict.getSequences()) {
+			if (annotations.containsKey(seq.getSequenceName())) {
+				refs.add(seq);
+			}
+		}
+		Collections.sort(refs, new Comparator<SAMSequenceRecord>() {
+			public int compare(SAMSequenceRecord a, SAMSequenceRecord b) {
+				// longest first, then in dictionary order (the sort is stable)
+				return a.getSequenceLength()>b.getSequenceLength() ? -1 : (a.getSequenceLength()<b.getSequenceLength() ? 1 : 0);
+			}
+		});
+		long[] load = new long[n];
+		Set<String> shardRefs = new TreeSet<String>();
+		for (SAMSequenceRecord seq:refs) {
+			int s = 0;
+			for (int j=1; j<n; j++) {
+				if (load[j]<load[s]) {
+					s = j;
+				}
+			}
+			load[s] += seq.getSequenceLength();
+			if (s==i-1) {
+				shardRefs.add(seq.getSequenceName());
+			}
+		}
+		return shardRefs;
+	}
+	
+	/* opens an alignment file (non-eager) for a pass over the files, over a byte-counting stream with -regions */
+	private SAMFileReader openAlignments(File bamFile, String pass) {
+		if (regions!=null) {
+			return regions.open(bamFile, pass);
+		}
+		File indexFile = indexFiles.get(bamFile.getAbsoluteFile());
+		return indexFile!=null ? new SAMFileReader(bamFile, indexFile) : new SAMFileReader(bamFile);
+	}
+	
+	/* the alignments of an open file: all of them, or those of reference refName (if not null); with -regions, only
+	 * those overlapping the annotated regions */
+	private SAMRecordIterator queryAlignments(SAMFileReader reader, String refName) {
+		if (regions!=null) {
+			return regions.query(reader, refName);
+		}
+		return refName==null ? reader.iterator() : reader.query(refName, 0, 0, false);
+	}
+	
+	private void closeAlignments(SAMFileReader reader, File bamFile) {
+		if (regions!=null) {
+			regions.close(reader, bamFile);
+		} else {
+			reader.close();
+		}
+	}
+	
+	/* Makes sure that a BAM file has an up-to-date index and records it for openAlignments() (and -regions). An
+	 * index next to the file is used if it is not older than the file; otherwise the file is indexed (if it is
+	 * coordinate-sorted) into <out>.indexes, where the index is kept for later runs. The input directories may be
+	 * read-only or shared, so nothing is written or removed next to the input files; an out-of-date index there
+	 * (e.g. of a regenerated preprocessed file) is only reported. */
+	private void ensureIndexed(File bamFile) {
+		String path = bamFile.getPath();
+		File indexFile = null;
+		for (File f:new File[] {new File((path.endsWith(".bam") ? path.substring(0, path.length()-4) : path)+".bai"), new File(path+".bai")}) {
+			if (!f.exists()) {
+				continue;
+			}
+			if (f.lastModified()>=bamFile.lastModified()) {
+				indexFile = f;
+				break;
+			}
+			logger.warn("The index "+f+" is older than "+bamFile+" and is not used");
+		}
+		if (indexFile==null) {
+			// (the index name includes a hash of the path, as files in different directories may have the same name)
+			File indexDir = new File(outFile.getAbsolutePath()+".indexes");
+			indexFile = new File(indexDir, bamFile.getName()+"."+Integer.toHexString(bamFile.getAbsolutePath().hashCode())+".bai");
+			if (!indexFile.exists() || indexFile.lastModified()<bamFile.lastModified()) {
+				SAMFileReader reader = new SAMFileReader(bamFile);
+				SAMFileHeader.SortOrder order = reader.getFileHeader().getSortOrder();
+				reader.close();
+				if (order!=SAMFileHeader.SortOrder.coordinate) {
+					logger.error("-streaming and -regions require coordinate-sorted alignments: "+bamFile+" is sorted by "+order);
+					throw new IllegalArgumentException();
+				}
+				logger.info("Indexing "+bamFile+" into "+indexFile+"...");
+				indexDir.mkdirs();
+				// (into a temporary file, so that a failed indexing does not leave an index that later runs would use)
+				File tmp = new File(indexFile.getPath()+".tmp");
+				reader = new SAMFileReader(bamFile);
+				BAMIndexer indexer = null;
+				boolean indexed = false;
+				try {
+					reader.enableFileSource(true);    // the indexer needs the file position of each record
+					indexer = new BAMIndexer(tmp, reader.getFileHeader());
+					SAMRecordIterator iter = reader.iterator();
+					while (iter.hasNext()) {
+						indexer.processAlignment(iter.next());
+					}
+					indexer.finish();
+					indexed = true;
+				} finally {
+					reader.close();
+					if (!indexed) {
+						if (indexer!=null) {
+							indexer.finish();    // (only closes the incomplete index, which is removed)
+						}
+						tmp.delete();
+					}
+				}
+				try {
+					Checkpoint.replace(tmp, indexFile);
+				} catch (IOException e) {
+					throw new RuntimeIOException(e.getMessage());
+				}
+			}
+		}
+		indexFiles.put(bamFile.getAbsoluteFile(), indexFile);
+		if (regions!=null) {
+			regions.setIndexFile(bamFile, indexFile);
+		}
+	}
+	
+	/* the sequence dictionary of the first alignment file, which is used for counting (see countReadStartsFromAlignments) */
+	private SAMSequenceDictionary getFirstDictionary() {
+		File firstFile = bamFiles.values().iterator().next().get(0);
+		SAMFileReader reader = new SAMFileReader(firstFile);
+		SAMSequenceDictionary dict = reader.getFileHeader().getSequenceDictionary();
+		reader.close();
+		return dict;
+	}
+	
+	/* Estimates the memory needed by each read start count representation and returns the one to use: without 
+	 * -maxMemory, dense short counters (dense float if multimap=="scale"), otherwise the fastest representation 
+	 * that fits the budget. Throws an IllegalArgumentException if none fits.
+	 */
+	private MemoryPlanner.Representation planCountingDict(Map<String, Collection<Gene>> annotations) {
+		SAMSequenceDictionary dict = getFirstDictionary();
+		
+		int nExp = inPreprocess ? bamFiles.size()*nBarcodes : bamFiles.size();
+		MemoryPlanner planner = new MemoryPlanner(dict, annotations, bamFiles, nExp, windowLength, windowOverlap, windowExtend, multimap);
+		planner.setPerReference(streaming);
+		planner.setThreads(nThreads);
+		planner.setSnapshotCopies(checkpointing || saveState || writeTracks);
+		planner.setAllPositions(saveState || writeTracks);
+		planner.logEstimates();
+		
+		MemoryPlanner.Representation rep;
+		if (maxMemory==0) {
+			rep = multimap.equals("scale") ? MemoryPlanner.Representation.DENSE_FLOAT : MemoryPlanner.Representation.DENSE_SHORT;
+		} else {
+			if (maxMemory>Runtime.getRuntime().maxMemory()) {
+				logger.warn("-maxMemory ("+MemoryPlanner.formatBytes(maxMemory)+") is larger than the JVM heap limit ("+
+							MemoryPlanner.formatBytes(Runtime.getRuntime().maxMemory())+"); consider raising -Xmx.");
+			}
+			rep = planner.choose(maxMemory);
+			if (rep==null) {
+				MemoryPlanner.Representation smallest = null;
+				for (MemoryPlanner.Representation r:MemoryPlanner.Representation.values()) {
+					if (planner.isApplicable(r) && (smallest==null || planner.getTotalBytes(r)<planner.getTotalBytes(smallest))) {
+						smallest = r;
+					}
+				}
+				logger.error("No read start count representation fits in -maxMemory "+MemoryPlanner.formatBytes(maxMemory)+
+							": the smallest estimate is "+MemoryPlanner.formatBytes(planner.getTotalBytes(smallest))+" ("+smallest+
+							", of which "+MemoryPlanner.formatBytes(planner.getFixedBytes())+" for annotations and window counters).");
+				throw new IllegalArgumentException("Estimated memory use exceeds -maxMemory");
+			}
+		}
+		logger.info("Using "+rep+" read start counts (estimated total "+MemoryPlanner.formatBytes(planner.getTotalBytes(rep))+")");
+		return rep;
+	}
+	
+	/* Everything that determines the checkpointed state: the input files (with their sizes and modification
+	 * times), the annotations and the counting parameters. A snapshot is only resumed by a run with the same
+	 * description. */
+	private String describeRun() {
+		StringBuilder sb = new StringBuilder();
+		for (String exp:new TreeSet<String>(bamFiles.keySet())) {
+			for (File f:bamFiles.get(exp)) {
+				sb.append(exp).append("\t").append(f.getAbsolutePath()).append("\t").append(f.length()).append("\t").append(f.lastModified()).append("\n");
+			}
+		}
+		sb.append("counts\t").append(countRep).append("\n");
+		return sb.toString()+describeParameters();
+	}
+	
+	/* The annotations and counting parameters, which a saved run state shares with the runs that add experiments
+	 * to it. */
+	private String describeParameters() {
+		StringBuilder sb = new StringBuilder();
+		File aFile = gMapping ? gMapFile : new File(annotationFile);
+		sb.append("annotations\t").append(aFile.getAbsolutePath()).append("\t").append(aFile.length()).append("\t").append(aFile.lastModified()).append("\n");
+		sb.append("multimap ").append(multimap).append("\tstranded ").append(stranded);
+		sb.append("\tquality ").append(qFilter ? qThresh : -1).append("\ttask ").append(task);
+		sb.append("\twindows ").append(windowLength).append(",").append(windowOverlap).append(",").append(windowExtend);
+		sb.append("\tall ").append(allWindows).append("\tpval ").append(pValThresh);
+		sb.append("\tsingleCell ").append(inPreprocess).append(",").append(nextPreprocess).append(",").append(bcKnee ? "knee" : ""+bcMin).append("\n");
+		return sb.toString();
+	}
+	
+	/* per-stage metrics of this run */
+	public RunMetrics getMetrics() {
+		return metrics;
+	}
+	
 
-	private static boolean validateArguments(ArgumentMap argMap) throws IOException {
+	private boolean validateArguments(ArgumentMap argMap) throws IOException {
 		/* Validates the input arguments to ensure that all parameters are consistent and
 		 * fills in provided and default values for all required parameters.
 		 * 
@@ -305,7 +883,91 @@ public class NewESAT {
 		nextPreprocess = argMap.isPresent("nextPrep") ? true : false;
 		inPreprocess = argMap.isPresent("inPrep") ? true : false;
 		umiMin = argMap.isPresent("umiMin") ? argMap.getInteger("umiMin") : 10;
-		bcMin = argMap.isPresent("bcMin") ? argMap.getInteger("bcMin") : 0;
+		bcKnee = argMap.isPresent("bcMin") && argMap.get("bcMin").equals("knee");
+		bcMin = argMap.isPresent("bcMin") && !bcKnee ? argMap.getInteger("bcMin") : 0;
+		bcExact = argMap.isPresent("bcExact") ? argMap.getInteger("bcExact") : BarcodeCensus.DEFAULT_MAX_EXACT;
+		nBarcodes = argMap.isPresent("nBarcodes") ? argMap.getInteger("nBarcodes") : 3000;
+		umiCollapse = argMap.isPresent("umiCollapse");
+		
+		/* sharded mode (by reference, so it processes one reference at a time like the streaming mode) */
+		nShards = 0;
+		if (argMap.isPresent("shard")) {
+			String[] sh = argMap.get("shard").split("/");
+			try {
+				shardIndex = Integer.parseInt(sh[0].trim());
+				nShards = sh.length==2 ? Integer.parseInt(sh[1].trim()) : -1;
+			} catch (NumberFormatException e) {
+				nShards = -1;
+			}
+			if (nShards<1 || shardIndex<1 || shardIndex>nShards) {
+				logger.error("Illegal value for shard: "+argMap.get("shard")+" (expected i/N with 1 <= i <= N).");
+				throw new IllegalArgumentException();
+			}
+		}
+		
+		/* streaming mode (cannot resolve multimapped reads across references) */
+		streaming = argMap.isPresent("streaming") || nShards>0;
+		writeMatrix = argMap.isPresent("matrix");
+		
+		/* region-restricted reading (through the BAM index; all alignments of a multimapped read are needed for 
+		 * -multimap proper) */
+		regionReading = argMap.isPresent("regions");
+		if (regionReading && multimap.equals("proper")) {
+			logger.error("-regions cannot be combined with -multimap proper.");
+			throw new IllegalArgumentException();
+		}
+		if (streaming && multimap.equals("proper")) {
+			logger.error((nShards>0 ? "-shard" : "-streaming")+" cannot be combined with -multimap proper (multimapped reads span references).");
+			throw new IllegalArgumentException();
+		}
+		
+		/* checkpointing (whole-genome mode only: the per-reference modes have no global state to save, and the 
+		 * temporary files of -multimap proper do not outlive the run) */
+		resume = argMap.isPresent("resume");
+		checkpointing = argMap.isPresent("checkpoint") || resume;
+		if (checkpointing && (streaming || multimap.equals("proper"))) {
+			logger.error("-checkpoint/-resume cannot be combined with "+(streaming ? "-streaming or -shard." : "-multimap proper."));
+			throw new IllegalArgumentException();
+		}
+		
+		/* saved run state (whole-genome mode only, as for checkpoints; the single-cell columns and the temporary files
+		 * of -multimap proper are not saved) */
+		addTo = argMap.isPresent("addTo") ? new File(argMap.get("addTo")) : null;
+		saveState = argMap.isPresent("saveState") || addTo!=null;
+		if (saveState && (streaming || checkpointing || multimap.equals("proper") || inPreprocess || nextPreprocess)) {
+			logger.error("-saveState/-addTo cannot be combined with -streaming, -shard, -checkpoint, -multimap proper, -inPrep or -nextPrep.");
+			throw new IllegalArgumentException();
+		}
+		
+		/* gene-level counts only: the first pass (read start counts) is only needed for the windows */
+		geneOnly = argMap.isPresent("geneOnly");
+		if (geneOnly && (checkpointing || saveState || multimap.equals("proper"))) {
+			logger.error("-geneOnly cannot be combined with -checkpoint, -saveState/-addTo or -multimap proper.");
+			throw new IllegalArgumentException();
+		}
+		
+		/* read start tracks (per experiment, so the counts are kept by experiment as with -saveState; the temporary files 
+		 * of -multimap proper are counted into the pooled counts only) */
+		binaryTracks = argMap.isPresent("binaryTracks");
+		writeTracks = argMap.isPresent("tracks") || binaryTracks;
+		if (writeTracks && (streaming || checkpointing || multimap.equals("proper") || geneOnly)) {
+			logger.error("-tracks cannot be combined with -streaming, -shard, -checkpoint, -multimap proper or -geneOnly.");
+			throw new IllegalArgumentException();
+		}
+		
+		/* parallel reading of the alignment files */
+		nThreads = argMap.isPresent("threads") ? argMap.getInteger("threads") : 1;
+		if (nThreads<1) {
+			logger.error("Illegal value for threads: "+nThreads+" (must be >= 1).");
+			throw new IllegalArgumentException();
+		}
+		
+		/* memory budget */
+		maxMemory = argMap.isPresent("maxMemory") ? MemoryPlanner.parseMemory(argMap.get("maxMemory")) : 0;
+		if (maxMemory<0) {
+			logger.error("Illegal value for maxMemory: "+argMap.get("maxMemory")+" (memory budget must be > 0.");
+			throw new IllegalArgumentException();
+		}
 		
 		// Allow multiple inputs 
 		if (argMap.isPresent("alignments")){
@@ -394,22 +1056,93 @@ public class NewESAT {
 		writer.close();
 	}
 
-	public void writeExperimentCountsFile(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
+	public static void writeExperimentCountsFile(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
 			//HashMap<String,ArrayList<File>> bamfiles, File outFile) throws IOException {
 			ExperimentMap eMap, File outFile) throws IOException {
+		writeExperimentCountsFile(windowTree, eMap, outFile, false, false, new RunMetrics());
+	}
+	
+	/* as above, with only the gene-level file (geneOnly) and with the count matrices (writeMatrix) */
+	static void writeExperimentCountsFile(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
+			ExperimentMap eMap, File outFile, boolean geneOnly, boolean writeMatrix, RunMetrics metrics) throws IOException {
 				
 		String baseName = outFile.getAbsolutePath();
 		File wFile = new File(baseName+".window.txt");  // window-level counts file
 		File gFile = new File(baseName+".gene.txt");  // gene-level counts file
 		
-		// Open the output files:
-		FileWriter wWriter = new FileWriter(wFile);
-		FileWriter gWriter = new FileWriter(gFile);
+		// Open the output files (only the gene-level file with -geneOnly):
+		FileWriter wWriter = null;
+		FileWriter gWriter = null;
+		CountMatrix.Writer wMatrix = null;
+		CountMatrix.Writer gMatrix = null;
+		boolean written = false;
+		try {
+			wWriter = geneOnly ? null : new FileWriter(wFile);
+			gWriter = new FileWriter(gFile);
+			if (writeMatrix) {
+				wMatrix = geneOnly ? null : new CountMatrix.Writer(new File(baseName+".window.cmat"), WINDOW_LABELS, eMap.getNames());
+				gMatrix = new CountMatrix.Writer(new File(baseName+".gene.cmat"), GENE_LABELS, eMap.getNames());
+			}
+
+			writeExperimentCountsHeader(eMap, wWriter, gWriter);
+			writeExperimentCounts(windowTree, eMap, wWriter, gWriter, wMatrix, gMatrix, metrics);
 
+			// flush and close the writers:
+			if (wWriter!=null) {
+				wWriter.flush();
+				wWriter.close();
+			}
+			gWriter.flush();
+			gWriter.close();
+			metrics.addBytes(wFile.length()+gFile.length());
+			if (writeMatrix) {
+				closeMatrices(wMatrix, gMatrix);
+			}
+			written = true;
+		} finally {
+			if (!written) {
+				abortOutputs(wWriter, gWriter, wMatrix, gMatrix, null);
+			}
+		}
+	}
+	
+	/* closes the output files of a failed run (any of the writers may be null): the count matrices and the partial
+	 * result are incomplete and removed */
+	private static void abortOutputs(FileWriter wWriter, FileWriter gWriter, CountMatrix.Writer wMatrix, CountMatrix.Writer gMatrix,
+										ShardMerge.PartialWriter pWriter) {
+		for (FileWriter w:new FileWriter[] {wWriter, gWriter}) {
+			if (w!=null) {
+				try {
+					w.close();
+				} catch (IOException e) {
+					logger.warn("Could not close an output file: "+e);
+				}
+			}
+		}
+		for (CountMatrix.Writer m:new CountMatrix.Writer[] {wMatrix, gMatrix}) {
+			if (m!=null) {
+				m.abort();
+			}
+		}
+		if (pWriter!=null) {
+			pWriter.abort();
+		}
+	}
+	
+	private static void closeMatrices(CountMatrix.Writer wMatrix, CountMatrix.Writer gMatrix) throws IOException {
+		if (wMatrix!=null) {
+			wMatrix.close();
+		}
+		gMatrix.close();
+		logger.info("Count matrices: "+(wMatrix!=null ? wMatrix.getRowCount()+" windows, " : "")+gMatrix.getRowCount()+" genes");
+	}
+	
+	/* write the header lines of the window- and gene-level counts files */
+	private static void writeExperimentCountsHeader(ExperimentMap eMap, FileWriter wWriter, FileWriter gWriter) throws IOException {
 		// Header line for window file:
-		String wStr = "Symbol\tchr\tstart\tend\tstrand";
+		String wStr = WINDOW_LABELS;
 		// Header line for gene file:
-		String gStr = "Symbol\tchr\tstrand";
+		String gStr = GENE_LABELS;
 //		for (String e:bamfiles.keySet()) {      // before single-cell update
 		int nCols = eMap.getNexp();             // after single-cell update
 		for (int i=0; i<nCols; i++) {				// after single-cell update
@@ -417,8 +1150,17 @@ public class NewESAT {
 			wStr+="\t"+e;
 			gStr+="\t"+e;
 		}
-		wWriter.write(wStr+"\n");   // write the window file header  
+		if (wWriter!=null) {
+			wWriter.write(wStr+"\n");   // write the window file header  
+		}
 		gWriter.write(gStr+"\n");   // write the gene file header  
+	}
+	
+	/* append the counts of all window- and gene-level counters in the windowTree to the open counts files (and
+	 * count matrices, unless they are null) */
+	private static void writeExperimentCounts(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
+			ExperimentMap eMap, FileWriter wWriter, FileWriter gWriter, CountMatrix.Writer wMatrix, CountMatrix.Writer gMatrix, 
+			RunMetrics metrics) throws IOException {
 		
 		//int nExp = bamfiles.keySet().size();   // number of experiments    // before single-cell update
 		int nExp = eMap.getNexp();						// after single-cell update
@@ -429,42 +1171,53 @@ public class NewESAT {
 				Iterator<EventCounter> eIter = windowTree.get(strand).get(chr).valueIterator();
 				while (eIter.hasNext()) {
 					EventCounter e = eIter.next();
-					// extract the gene name:
-					String[] wLoc = e.getName().split("\t");
-					String gName = wLoc[0]; 
+					WindowTable table = e.getTable();
+					int row = e.getRow();
+					String gName = table.getGeneName(row);
 					
-					if (wLoc.length==1) {
-						// if the event counter name only has one field, it is a gene-level counter:
+					if (table.isGene(row)) {
+						// gene-level counter:
 						String oStr = gName+"\t"+chr+"\t"+strand;
 						float counts=0;
 						for (int i=0; i<nExp; i++) {
-							oStr += "\t"+e.getCounts(i);
-							counts+=e.getCounts(i);
+							oStr += "\t"+table.getCount(row, i);
+							counts+=table.getCount(row, i);
 						}
 						if (counts>0) {
 							// don't bother writing genes with no counts
 							gWriter.write(oStr+"\n");	// write to gene-level file
+							metrics.addRecords(1);
+							if (gMatrix!=null) {
+								gMatrix.addRow(gName+"\t"+chr+"\t"+strand, getCounts(table, row));
+							}
 						}
 					} else {
 						// otherwise, it is a window-level counter:
-						String oStr = e.getName();
+						String oStr = gName+"\t"+chr+"\t"+table.getStart(row)+"\t"+table.getEnd(row);
 						oStr += "\t"+strand;
 						for (int i=0; i<nExp; i++) {
-							oStr+="\t"+e.getCounts(i);
+							oStr+="\t"+table.getCount(row, i);
 						}
 						wWriter.write(oStr+"\n"); 	// write to window-level file
+						metrics.addRecords(1);
+						if (wMatrix!=null) {
+							wMatrix.addRow(gName+"\t"+chr+"\t"+table.getStart(row)+"\t"+table.getEnd(row)+"\t"+strand, getCounts(table, row));
+						}
 					}
 				}
 			}
 		}
 
-		// flush and close the writers:
-		wWriter.flush();
-		wWriter.close();
-		gWriter.flush();
-		gWriter.close();
 	}	
 	
+	private static float[] getCounts(WindowTable table, int row) {
+		float[] c = new float[table.getColumnCount()];
+		for (int i=0; i<c.length; i++) {
+			c[i] = table.getCount(row, i);
+		}
+		return c;
+	}
+	
 	public static void writeOutputESATFile(HashMap<String,HashMap<String,LinkedList<Window>>> countsMap, 
 			Map<String, Collection<Gene>> annotations, 
 			File outFile) throws IOException {
@@ -563,20 +1316,19 @@ public class NewESAT {
 	}
 	
 	public void fillOccupancyTree(HashMap<String, HashMap<String, IntervalTree<String>>> oTree,
-									Map<String, Collection<Gene>> annotations, int wExt, String task) {
+									TranscriptTable transcripts, int wExt, String task) {
 		// fill the occupancy tree with gene/transcript intervals:
-		for (String chr:annotations.keySet()) {
+		for (String chr:transcripts.getReferences()) {
 			// add an entry for this chromosome:
 			oTree.put(chr, new HashMap<String, IntervalTree<String>>());
 			// make + and - strand IntervalTrees to avoid testing strand of each gene:
 			oTree.get(chr).put("+", new IntervalTree<String>());
 			oTree.get(chr).put("-", new IntervalTree<String>());
-			for (Gene g:annotations.get(chr)) {
-				String strand = g.getStrand().toString();   // strand
-				String gName = g.getName();    // gene name
-				BasicAnnotation[] eSet = g.getExons();
-				for (BasicAnnotation e:eSet) {
-					oTree.get(chr).get(strand).put(e.getStart(), e.getEnd(), gName);
+			for (int t:transcripts.getTranscripts(chr)) {
+				String strand = transcripts.getStrand(t).toString();   // strand
+				String gName = transcripts.getName(t);    // gene name
+				for (int e=0; e<transcripts.getExonCount(t); e++) {
+					oTree.get(chr).get(strand).put(transcripts.getExonStart(t, e), transcripts.getExonEnd(t, e), gName);
 				}
 				// Add one additional "exon" for the extension. It shouldn't matter if it overlaps another gene,
 				// since this will be dealt with when the reads are windowed.
@@ -585,10 +1337,10 @@ public class NewESAT {
 					int extEnd;    // end of extension
 					
 					if ((strand.equals("+") & task.equals("score5p")) || (strand.equals("-") & task.equals("score3p"))) { 
-						extEnd = g.getStart();
+						extEnd = transcripts.getStart(t);
 						extStart = Math.max(extEnd-wExt,0);
 					} else {
-						extStart = g.getEnd();
+						extStart = transcripts.getEnd(t);
 						extEnd = extStart+wExt;
 					}
 					// Add the extension:
@@ -708,170 +1460,393 @@ public class NewESAT {
 																	boolean qFilter, int qThresh, String multimap, boolean stranded, 
 																	HashMap<String, HashMap<String, IntervalTree<String>>> occupancyTree, 
 																	HashMap<String,ArrayList<File>> mmTempFiles) {
-		boolean firstFile = true;      // only read the header from the first alignment file
-		int goodQualityCount = 0;
+		return countReadStartsFromAlignments(bamDict, bamFiles, qFilter, qThresh, multimap, stranded, occupancyTree, mmTempFiles, null);
+	}
+	
+	/* as above, but if refName is not null, only the alignments to that reference are read (using the BAM index) */
+	public SAMSequenceCountingDict countReadStartsFromAlignments (SAMSequenceCountingDict bamDict, HashMap<String,ArrayList<File>> bamFiles,
+																	boolean qFilter, int qThresh, String multimap, boolean stranded, 
+																	HashMap<String, HashMap<String, IntervalTree<String>>> occupancyTree, 
+																	HashMap<String,ArrayList<File>> mmTempFiles, String refName) {
 		int badQualityCount = 0;
 		int bamFileCount = 0;
-		int validReadCount = 0;
-		int invalidReadCount = 0;		
 		int totalValidReadCount = 0;
-		int totalInvalidReadCount = 0;
-		SAMRecord r;		
-		SAMFileWriterFactory sf = new SAMFileWriterFactory();
-		SAMFileHeader tempHeader = new SAMFileHeader();
-		SAMFileHeader outHeader;
-		// to make compilation errors go away:::
-		SAMFileWriter bamWriter = null;
-		File multimapTempFile = null; 
-		HashMap<String, ArrayList<SAMRecord>> mmMap = null;
-		File mmFile = null;
-		SAMFileWriter mmWriter = null;
+		int totalInvalidReadCount = 0;		
 		
 		// start file loading timer:
 		long startTime = System.nanoTime();
 		
-		/* open the input alignments file */
+		// the input files, in experiment order:
+		List<FileCountStats> fileStats = new ArrayList<FileCountStats>();
 		for (String exp:bamFiles.keySet()) {
-			
-			for (int i=0; i<bamFiles.get(exp).size(); i++){
-
-				long loopStartTime = System.nanoTime();    // loop timer
-				int mmCount=0;     // count saved multimapped reads
-				validReadCount = 0;   // reset read counters
-				invalidReadCount = 0;
-						
-				// open the next bam file in the list:
-				File bamFile = (File) bamFiles.get(exp).get(i);
-				logger.info("Processing file: "+bamFile+"...");
-				SAMFileReader bamReader = new SAMFileReader(bamFile);   // open as a non-eager reader
-				SAMFileHeader bamHeader = bamReader.getFileHeader();
-				
-				//bamReader.setValidationStringency(ValidationStringency.LENIENT);	
-				bamReader.setValidationStringency(ValidationStringency.STRICT);	
-				SAMRecordIterator bamIterator = bamReader.iterator();
-				
-				/* Create a HashMap containing all multimapped reads if -multimap == "proper" */
-				/* SHOULD: Create and open a temporary BAM file for multimapped reads if -multimap == "proper" */
-				if (multimap.equals("proper")) {
-					//mmMap = new HashMap<String, ArrayList<SAMRecord>>();
-					/* to use less memory, open a temporary BAM file for multimapped reads */
-					try {
-						mmFile = File.createTempFile("multimapped_valid_", ".bam");   // !!!should probably include the experiment ID
-						// delete after exit:
-						mmFile.deleteOnExit();
-						mmWriter = sf.makeBAMWriter(bamHeader, false, mmFile);
-					} catch (Exception e) {
-						e.printStackTrace();
-					}		
+			for (File bamFile:bamFiles.get(exp)) {
+				fileStats.add(new FileCountStats(exp, bamFile));
+			}
+		}
+		if (fileStats.isEmpty()) {
+			return bamDict;
+		}
+		
+		// use the header information in the first bam file to create counts storage
+		SAMFileReader headerReader = new SAMFileReader(fileStats.get(0).getFile());
+		bamDict.setLogger(logger);
+		bamDict.copySequences(headerReader.getFileHeader().getSequenceDictionary());    // copy the sequence map from the original dictionary into the counting dict
+		headerReader.close();
+		
+		// continue from the last checkpoint snapshot, if resuming:
+		Checkpoint ckpt = refName==null ? checkpoint : null;
+		List<String> restored = new ArrayList<String>();    // (the counts of these files are part 0 of ckpt)
+		boolean[] countsComplete = {false};
+		if (ckpt!=null && resume) {
+			try {
+				List<String> files = ckpt.restoreCounts(bamDict, countsComplete);
+				if (files!=null) {
+					restored = files;
 				}
-
-				if (firstFile) {
-					// use the header information in the first bam file to create counts storage
-					bamDict.setLogger(logger);
-					bamDict.copySequences(bamHeader.getSequenceDictionary());    // copy the sequence map from the original dictionary into the counting dict
-					firstFile = false;
+			} catch (IOException e) {
+				throw new RuntimeIOException(e.getMessage());
+			}
+			Iterator<FileCountStats> sIter = fileStats.iterator();
+			while (sIter.hasNext()) {
+				FileCountStats stats = sIter.next();
+				if (countsComplete[0] || restored.contains(stats.getFile().getAbsolutePath())) {
+					logger.info("Skipping "+stats.getFile()+" (counted before the checkpoint)");
+					sIter.remove();
+				}
+			}
+		}
+		
+		int nWorkers = Math.min(nThreads, fileStats.size());
+		if (ckpt!=null && nWorkers<=1) {
+			// hand the counts of every file to the checkpoint, and take them all back at the end:
+			for (FileCountStats stats:fileStats) {
+				SAMSequenceCountingDict fileDict = emptyCopy(bamDict);
+				countFileReadStarts(fileDict, stats, qFilter, qThresh, multimap, stranded, occupancyTree, refName);
+				ckpt.countsUpdated(0, fileDict, Arrays.asList(stats.getFile().getAbsolutePath()));
+			}
+			SAMSequenceCountingDict counts = ckpt.takeCounts(0);
+			if (counts!=null) {
+				bamDict.mergeCounts(counts);
+			}
+		} else if (nWorkers<=1) {
+			for (FileCountStats stats:fileStats) {
+				countFileReadStarts(bamDict, stats, qFilter, qThresh, multimap, stranded, occupancyTree, refName);
+			}
+		} else {
+			countReadStartsInParallel(bamDict, fileStats, nWorkers, qFilter, qThresh, multimap, stranded, occupancyTree, refName, ckpt);
+		}
+		if (ckpt!=null && !countsComplete[0]) {
+			List<String> done = new ArrayList<String>(restored);
+			for (FileCountStats stats:fileStats) {
+				done.add(stats.getFile().getAbsolutePath());
+			}
+			ckpt.countsComplete(bamDict, done);
+		}
+		
+		// report the files in input order, whichever thread read them:
+		for (FileCountStats stats:fileStats) {
+			String exp = stats.getExperiment();
+			File bamFile = stats.getFile();
+			if (stats.mmTempFile!=null) {
+				// Add this file to the output HashMap:
+				if (!mmTempFiles.containsKey(exp)) {
+					// initialize, if necessary:
+					mmTempFiles.put(exp, new ArrayList<File>());
 				}
+				mmTempFiles.get(exp).add(stats.mmTempFile);
+			}
+			bamFileCount++;
+			
+			logger.info("Experiment "+exp+" BAM file "+bamFile+" processed in "+stats.getElapsedSec()+" sec\n");
+			logger.info("  "+stats.getValidReads()+" valid reads\n");
+			logger.info("  "+stats.getInvalidReads()+" invalid reads");
 
-				// process each read:
-				while (bamIterator.hasNext()) {
-					try {
-						r = bamIterator.next();
-					} catch (SAMFormatException e) {
-						// skip SAM Format errors but log a warning:
-						logger.warn(e.getMessage());
-						continue;
+			metrics.addRecords(stats.getValidReads()+stats.getInvalidReads());
+			if (refName==null) {
+				metrics.addBytes(bamFile.length());    // (the compressed bytes of a reference query are not known)
+			}
+			metrics.addFile(stats);
+
+			// accumulate counts:
+			totalValidReadCount+=stats.getValidReads();
+			totalInvalidReadCount+=stats.getInvalidReads();
+			badQualityCount+=stats.getLowQualityReads();
+		}
+		
+		long stopTime = System.nanoTime();
+		logger.info(bamFileCount+" BAM files processed in "+(stopTime-startTime)/1e9+" sec"+(nWorkers>1 ? " on "+nWorkers+" threads" : "")+"\n");
+		logger.info("  "+totalValidReadCount+" total valid reads\n");
+		if (qFilter) {
+			//logger.info("     "+goodQualityCount+" reads pass the quality threshold\n");
+			logger.info("     "+badQualityCount+" reads fail the quality threshold\n");
+		}
+		logger.info("  "+totalInvalidReadCount+" total invalid reads");
+		
+		// Return the updated counts dictionary:
+		return bamDict;
+	}
+	
+	/* -saveState, -tracks: counts the read starts of one experiment at a time into a dictionary of its own, which is 
+	 * saved to state (if not null) and written as read start tracks (with -tracks), and then added to bamDict (which may 
+	 * already hold the counts of a saved run) */
+	private SAMSequenceCountingDict countReadStartsByExperiment(SAMSequenceCountingDict bamDict, RunState state,
+											HashMap<String, HashMap<String, IntervalTree<String>>> occupancyTree) throws IOException {
+		bamDict.setLogger(logger);
+		for (String exp:new TreeSet<String>(bamFiles.keySet())) {
+			HashMap<String,ArrayList<File>> expFiles = new HashMap<String,ArrayList<File>>();
+			expFiles.put(exp, bamFiles.get(exp));
+			SAMSequenceCountingDict expDict = countReadStartsFromAlignments(bamDict.newInstance(), expFiles, qFilter, qThresh, multimap, stranded, 
+																			occupancyTree, mmBamFiles);
+			if (bamDict.size()==0) {
+				bamDict.copySequences(expDict);
+			} else {
+				// the counts are only added up (and the windows found) with the sequences of the first experiment:
+				for (SAMSequenceRecord seq:expDict.getSequences()) {
+					SAMSequenceRecord pSeq = bamDict.getSequence(seq.getSequenceName());
+					if (pSeq==null || pSeq.getSequenceLength()!=seq.getSequenceLength()) {
+						logger.error("The alignments of experiment "+exp+" have a different reference ("+seq.getSequenceName()+
+									") than the earlier experiments.");
+						throw new IllegalArgumentException();
 					}
-					// process the read:
-					if (!r.getReadUnmappedFlag()) {
-						// if quality filtering is turned on, skip low-quality reads:
-						if (qFilter==true) {
-							if (r.getMappingQuality()>qThresh){
-								goodQualityCount++;
-							} else {
-								badQualityCount++;
+				}
+			}
+			if (state!=null) {
+				state.writeExperimentCounts(exp, bamFiles.get(exp), expDict);
+			}
+			if (writeTracks) {
+				for (File f:ReadStartTracks.write(expDict, outFile.getAbsolutePath(), exp, stranded, binaryTracks, nThreads, metrics)) {
+					metrics.addBytes(f.length());
+				}
+			}
+			bamDict.mergeCounts(expDict);
+		}
+		return bamDict;
+	}
+	
+	/* Counts the read starts of several files on nWorkers threads. Each thread counts into its own dictionary
+	 * (the first one into bamDict), and the dictionaries are then merged pairwise in a fixed order, in parallel,
+	 * until all counts are in bamDict. The files are assigned to the threads from their sizes alone (largest first,
+	 * each to the thread with the fewest bytes so far). The counts are integers or, for fractional weights, exact
+	 * fixed-point units (see ScaledCounts), so their sums are those of a serial run for any grouping of the files.
+	 * If ckpt is not null, each thread counts every file into a new dictionary and hands it to ckpt, and then
+	 * takes its counts back from ckpt (for the first thread including the restored counts) before the merge.
+	 */
+	private void countReadStartsInParallel(SAMSequenceCountingDict bamDict, List<FileCountStats> fileStats, int nWorkers,
+											final boolean qFilter, final int qThresh, final String multimap, final boolean stranded,
+											final HashMap<String, HashMap<String, IntervalTree<String>>> occupancyTree, final String refName,
+											final Checkpoint ckpt) {
+		// assign the files to the workers:
+		Integer[] bySize = new Integer[fileStats.size()];
+		final long[] fileSize = new long[fileStats.size()];
+		for (int i=0; i<bySize.length; i++) {
+			bySize[i] = i;
+			fileSize[i] = fileStats.get(i).getFile().length();
+		}
+		Arrays.sort(bySize, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return fileSize[a]!=fileSize[b] ? (fileSize[a]>fileSize[b] ? -1 : 1) : a.compareTo(b);
+			}
+		});
+		int[] worker = new int[fileStats.size()];
+		long[] load = new long[nWorkers];
+		for (int i:bySize) {
+			int w = 0;
+			for (int j=1; j<nWorkers; j++) {
+				if (load[j]<load[w]) {
+					w = j;
+				}
+			}
+			worker[i] = w;
+			load[w] += fileSize[i];
+		}
+		final List<List<FileCountStats>> work = new ArrayList<List<FileCountStats>>();
+		for (int w=0; w<nWorkers; w++) {
+			work.add(new ArrayList<FileCountStats>());
+		}
+		for (int i=0; i<fileStats.size(); i++) {
+			work.get(worker[i]).add(fileStats.get(i));    // (each worker reads its files in input order)
+		}
+		
+		final SAMSequenceCountingDict[] dicts = new SAMSequenceCountingDict[nWorkers];
+		dicts[0] = bamDict;
+		for (int w=1; w<nWorkers; w++) {
+			dicts[w] = emptyCopy(bamDict);
+		}
+		
+		ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
+		try {
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int w=0; w<nWorkers; w++) {
+				final int wIdx = w;
+				tasks.add(pool.submit(metrics.measured(new Runnable() {
+					public void run() {
+						for (FileCountStats stats:work.get(wIdx)) {
+							if (ckpt==null) {
+								countFileReadStarts(dicts[wIdx], stats, qFilter, qThresh, multimap, stranded, occupancyTree, refName);
 								continue;
 							}
+							SAMSequenceCountingDict fileDict = emptyCopy(dicts[wIdx]);
+							countFileReadStarts(fileDict, stats, qFilter, qThresh, multimap, stranded, occupancyTree, refName);
+							ckpt.countsUpdated(wIdx, fileDict, Arrays.asList(stats.getFile().getAbsolutePath()));
 						}
-						bamDict.updateCount(r, multimap, stranded);
-						// proper handling of multimapped reads
-						if (multimap.equals("proper") & SAMSequenceCountingDict.getMultimapCount(r)>1) {
-							// To reduce the amount of memory required, write the multimapped reads out to a temp file.
-							// Then, before processing, sort the temp file by read ID.
-							// Write to temp file:     !!!!!!!!!!
-							
-							// Writing to temp file replaces this:
-							// *******
-							//String readName = r.getReadName();
-							// update the list reads with this read name:
-							//if (!mmMap.containsKey(r.getReadName())) {
-							//	mmMap.put(readName, new ArrayList<SAMRecord>());
-							//}
-							//mmMap.get(readName).add(r);
-							// *******
-							
-							// Write the multimapped read out to the temporary BAM file
-							mmWriter.addAlignment(r);
-							mmCount+=1;   // update multimap count for this file
+						if (ckpt!=null) {
+							SAMSequenceCountingDict counts = ckpt.takeCounts(wIdx);
+							if (counts!=null) {
+								dicts[wIdx].mergeCounts(counts);
+							}
 						}
-						// update the read start count
-						validReadCount++;
-					} else {
-						// Skip unmapped reads, but count them 
-						invalidReadCount++;
 					}
+				})));
+			}
+			waitForTasks(tasks);
+			
+			// merge (0,1), (2,3), ..., then (0,2), (4,6), ... and so on:
+			long mergeStart = System.nanoTime();
+			for (int step=1; step<nWorkers; step*=2) {
+				tasks.clear();
+				for (int i=0; i+step<nWorkers; i+=2*step) {
+					final int a = i;
+					final int b = i+step;
+					tasks.add(pool.submit(metrics.measured(new Runnable() {
+						public void run() {
+							dicts[a].mergeCounts(dicts[b]);
+							dicts[b] = null;
+						}
+					})));
 				}
+				waitForTasks(tasks);
+			}
+			logger.info("Merging the read start counts of "+nWorkers+" threads took "+(System.nanoTime()-mergeStart)/1e9+" sec");
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/* a new, empty counting dictionary with the sequences of dict */
+	private static SAMSequenceCountingDict emptyCopy(SAMSequenceCountingDict dict) {
+		SAMSequenceCountingDict d = dict.newInstance();
+		d.setLogger(dict.logger);
+		d.copySequences(dict);
+		return d;
+	}
 
-				// close the bam file reader
-				bamReader.close();
-				if (multimap.equals("proper") & mmCount>0){    // don't bother if there were no multimapped reads
-					//System.out.print("Total unique read IDs: "+mmMap.keySet().size()+"\n");
-					System.out.print("Total multimapped reads: "+mmCount+"\n");
-
-					// close the temporary BAM file:
-					mmWriter.close();
-					
-					// process the multimapped reads and get the file where the reads were written:
-					//multimapTempFile = processMultimapTempFile(mmMap, occupancyTree, bamHeader, sf);  // original
-					multimapTempFile = processMultimapTempFile(mmFile, occupancyTree, bamHeader, sf);  // using temp mm file
-					// !!! Should give the option of saving the temp file as a command-line argument:
-//					if (!saveMMTempFiles) {
-//						multimapTempFile.deleteOnExit();
-//					}
-					// Add this file to the output HashMap:
-					if (!mmTempFiles.containsKey(exp)) {
-						// initialize, if necessary:
-						mmTempFiles.put(exp, new ArrayList<File>());
-					}
-					mmTempFiles.get(exp).add(multimapTempFile);
-					
-					// delete the temp multimapped read file:
-					mmFile.delete();
+	/* waits for all tasks to finish, rethrowing the first failure */
+	private static void waitForTasks(List<Future<?>> tasks) {
+		for (Future<?> t:tasks) {
+			try {
+				t.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				logger.error("Worker thread failed: "+e.getCause());
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
 				}
-				bamFileCount++;
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+	
+	/* Counts the read starts of a single alignment file into bamDict, which must already hold the sequence dictionary.
+	 * The read counts, timing and (for -multimap proper) the file of valid multimapped reads are stored in stats.
+	 * Does not touch any shared state other than bamDict, so it can run on several threads with separate dictionaries.
+	 */
+	private void countFileReadStarts(SAMSequenceCountingDict bamDict, FileCountStats stats,
+										boolean qFilter, int qThresh, String multimap, boolean stranded, 
+										HashMap<String, HashMap<String, IntervalTree<String>>> occupancyTree, String refName) {
+		SAMRecord r;		
+		SAMFileWriterFactory sf = new SAMFileWriterFactory();
+		File mmFile = null;
+		SAMFileWriter mmWriter = null;
+		
+		long loopStartTime = System.nanoTime();    // loop timer
+		int mmCount=0;     // count saved multimapped reads
+		int validReadCount = 0;
+		int invalidReadCount = 0;
+		int badQualityCount = 0;
 				
-				// time the loop:
-				long loopEndTime = System.nanoTime();
-				logger.info("Experiment "+exp+" BAM file "+bamFile+" processed in "+(loopEndTime-loopStartTime)/1e9+" sec\n");
-				logger.info("  "+validReadCount+" valid reads\n");
-				logger.info("  "+invalidReadCount+" invalid reads");
+		// open the next bam file in the list:
+		File bamFile = stats.getFile();
+		logger.info("Processing file: "+bamFile+"...");
+		SAMFileReader bamReader = openAlignments(bamFile, "count");
+		SAMFileHeader bamHeader = bamReader.getFileHeader();
+		
+		//bamReader.setValidationStringency(ValidationStringency.LENIENT);	
+		bamReader.setValidationStringency(ValidationStringency.STRICT);	
+		SAMRecordIterator bamIterator = queryAlignments(bamReader, refName);
+		
+		try {
+			/* Create and open a temporary BAM file for multimapped reads if -multimap == "proper" */
+			if (multimap.equals("proper")) {
+				/* to use less memory, open a temporary BAM file for multimapped reads */
+				try {
+					mmFile = File.createTempFile("multimapped_valid_", ".bam");   // !!!should probably include the experiment ID
+					// delete after exit:
+					mmFile.deleteOnExit();
+					mmWriter = sf.makeBAMWriter(bamHeader, false, mmFile);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}		
+			}
 
-				// accumulate counts:
-				totalValidReadCount+=validReadCount;
-				totalInvalidReadCount+=invalidReadCount;
+			// process each read:
+			while (bamIterator.hasNext()) {
+				try {
+					r = bamIterator.next();
+				} catch (SAMFormatException e) {
+					// skip SAM Format errors but log a warning:
+					logger.warn(e.getMessage());
+					continue;
+				}
+				// process the read:
+				if (!r.getReadUnmappedFlag()) {
+					// if quality filtering is turned on, skip low-quality reads:
+					if (qFilter==true) {
+						if (!(r.getMappingQuality()>qThresh)){
+							badQualityCount++;
+							continue;
+						}
+					}
+					bamDict.updateCount(r, multimap, stranded);
+					// proper handling of multimapped reads
+					if (multimap.equals("proper") & SAMSequenceCountingDict.getMultimapCount(r)>1) {
+						// To reduce the amount of memory required, write the multimapped reads out to a temp file.
+						// Then, before processing, sort the temp file by read ID.
+						mmWriter.addAlignment(r);
+						mmCount+=1;   // update multimap count for this file
+					}
+					// update the read start count
+					validReadCount++;
+				} else {
+					// Skip unmapped reads, but count them 
+					invalidReadCount++;
+				}
+			}
+		} finally {
+			// close the bam file reader (also after a read error):
+			closeAlignments(bamReader, bamFile);
+			if (mmWriter!=null) {
+				// close the temporary BAM file:
+				mmWriter.close();
 			}
 		}
-		
-		long stopTime = System.nanoTime();
-		logger.info(bamFileCount+" BAM files processed in "+(stopTime-startTime)/1e9+" sec\n");
-		logger.info("  "+totalValidReadCount+" total valid reads\n");
-		if (qFilter) {
-			//logger.info("     "+goodQualityCount+" reads pass the quality threshold\n");
-			logger.info("     "+badQualityCount+" reads fail the quality threshold\n");
+		if (multimap.equals("proper") & mmCount>0){    // don't bother if there were no multimapped reads
+			System.out.print("Total multimapped reads: "+mmCount+"\n");
+			
+			// process the multimapped reads and get the file where the reads were written:
+			stats.mmTempFile = processMultimapTempFile(mmFile, occupancyTree, bamHeader, sf);  // using temp mm file
+			// !!! Should give the option of saving the temp file as a command-line argument:
+			
+			// delete the temp multimapped read file:
+			mmFile.delete();
 		}
-		logger.info("  "+totalInvalidReadCount+" total invalid reads");
 		
-		// Return the updated counts dictionary:
-		return bamDict;
+		stats.validReads = validReadCount;
+		stats.invalidReads = invalidReadCount;
+		stats.lowQualityReads = badQualityCount;
+		stats.multimappedReads = mmCount;
+		stats.elapsedSec = (System.nanoTime()-loopStartTime)/1e9;
 	}
 
 	//private File processMultimapTempFile(HashMap<String, ArrayList<SAMRecord>> mmMap,
@@ -1028,7 +2003,19 @@ public class NewESAT {
 		return bestRead;
 	}
 	
-	public HashMap<String, HashMap<String, IntervalTree<EventCounter>>> makeCountingIntervalTree(HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap, int nExp) {
+	public static HashMap<String, HashMap<String, IntervalTree<EventCounter>>> makeCountingIntervalTree(HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap, int nExp) {
+		return makeCountingIntervalTree(countsMap, nExp, false);
+	}
+	
+	/* as above, with exact (fixed-point) counters if fractional read weights are counted (-multimap scale) */
+	public static HashMap<String, HashMap<String, IntervalTree<EventCounter>>> makeCountingIntervalTree(HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap, 
+			int nExp, boolean fractional) {
+		return makeCountingIntervalTree(countsMap, nExp, fractional, new RunMetrics());
+	}
+	
+	/* as above, adding the windows kept to the records of the current stage of metrics */
+	static HashMap<String, HashMap<String, IntervalTree<EventCounter>>> makeCountingIntervalTree(HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap, 
+			int nExp, boolean fractional, RunMetrics metrics) {
 		// Builds a stranded HashMap of IntervalTrees, one per chromosome
 		
 		HashMap<String, HashMap<String, IntervalTree<EventCounter>>> cleanTree = new HashMap<String, HashMap<String, IntervalTree<EventCounter>>>();
@@ -1038,6 +2025,8 @@ public class NewESAT {
 		
 		// keep track of how many non-significant windows there are
 		int inWindowCount = 0;
+		// the counters are rows of one table; the tree nodes only hold their row indices
+		WindowTable table = new WindowTable(nExp);
 
 		// Iterate over chromosomes:
 		for (String chr:countsMap.keySet()) {
@@ -1049,18 +2038,11 @@ public class NewESAT {
 				while (wIter.hasNext()) {
 					Window w = wIter.next();
 					inWindowCount++;
-					// add a new Window to the cleanCountsMap:
-					//strand = w.getStrand();
-					// tab-delimited node name:
-					String nName = gene+"\t"+chr+"\t"+w.getStart()+"\t"+w.getEnd();
-					//String nName = gene+"."+listIdx+" "+chr+":"+w.getStart()+"-"+w.getEnd()+" ("+strand+")";
 					if (w.getStart()>=w.getEnd()) {
 						logger.warn("start>end for "+gene);
 					}
 
-					EventCounter e = new EventCounter(nName, nExp, w);
-					// *** TEST: initialize the event counter with the total alignments
-					e.setSumCounts(w.getCount());
+					EventCounter e = new EventCounter(table, table.addWindow(gene, chr, strand, w));
 					if (!cleanTree.get(strand).containsKey(chr)) {
 						cleanTree.get(strand).put(chr, new IntervalTree<EventCounter>());
 					}
@@ -1068,16 +2050,18 @@ public class NewESAT {
 				}
 				// next, add an event counter for intervals of the full gene/transcript to allow accumulation of gene-level counts:
 				IntervalTree<String> eTree = countsMap.get(chr).get(gene).getITree();
-				Window gWindow = new Window(strand, chr, eTree, gene, nExp);
-				EventCounter e = new EventCounter(gene, nExp, gWindow);
+				int row = table.addGene(gene, chr, strand, eTree);
+				EventCounter e = new EventCounter(table, row);
 				if (!cleanTree.get(strand).containsKey(chr)) {
 					cleanTree.get(strand).put(chr, new IntervalTree<EventCounter>());
 				}
-				cleanTree.get(strand).get(chr).put(gWindow.getStart(), gWindow.getEnd(), e);
+				cleanTree.get(strand).get(chr).put(table.getStart(row), table.getEnd(row), e);
 			}
 		}
+		table.allocateCounts(fractional);
 		
 		logger.info("Total window count: "+inWindowCount);
+		metrics.addRecords(inWindowCount);
 		
 		return cleanTree;
 	}
@@ -1089,34 +2073,179 @@ public class NewESAT {
 											int qThresh,
 											String multimap,
 											boolean stranded) {
+		fillExperimentWindowCounter(windowTree, eMap, qFilter, qThresh, multimap, stranded, null);
+	}
+	
+	/* as above, but if refName is not null, only the alignments to that reference are read (using the BAM index) */
+	public void fillExperimentWindowCounter(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree, 
+											ExperimentMap eMap,
+											boolean qFilter,
+											int qThresh,
+											String multimap,
+											boolean stranded,
+											String refName) {
+		
+		// Get the list of experiment names:
+		//Object[] expList = bamFiles.keySet().toArray();   // before single-cell update
+		Object [] expList = eMap.getBamFiles().keySet().toArray();    // after single cell update
+		
+		// continue from the last checkpoint snapshot, if resuming:
+		final Checkpoint ckpt = refName==null ? checkpoint : null;
+		final List<EventCounter> counters = ckpt!=null ? Checkpoint.getCounters(windowTree) : null;
+		HashMap<String, Set<String>> restored = new HashMap<String, Set<String>>();
+		if (ckpt!=null && resume) {
+			try {
+				restored = ckpt.restoreWindowCounts(counters);
+			} catch (IOException e) {
+				throw new RuntimeIOException(e.getMessage());
+			}
+		}
+		final HashMap<String, Set<String>> done = restored;
+		
+		final long[][] processed = new long[expList.length][];    // records and bytes read for each experiment
+		int nWorkers = Math.min(nThreads, expList.length);
+		int nFiles = 0;
+		for (Object exp:expList) {
+			nFiles += bamFiles.get(exp).size();
+		}
+		if (nThreads>expList.length && nFiles>expList.length && ckpt==null) {
+			// more threads than experiments: read the files in parallel, adding to the shared counter columns
+			fillExperimentWindowCounterByFile(windowTree, eMap, expList, qFilter, qThresh, multimap, stranded, refName);
+			return;
+		}
+		if (nWorkers<=1) {
+			// Iterate over each experiment:
+			for (int eIdx=0; eIdx<expList.length; eIdx++) {
+				processed[eIdx] = fillExperimentWindowCounter(windowTree, eMap, expList[eIdx], bamFiles.get(expList[eIdx]), 
+																qFilter, qThresh, multimap, stranded, refName,
+																ckpt, counters, done.get(expList[eIdx].toString()));
+			}
+		} else {
+			// each experiment (or barcode) has its own counter columns, so the experiments can be read in parallel:
+			ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
+			try {
+				List<Future<?>> tasks = new ArrayList<Future<?>>();
+				for (int eIdx=0; eIdx<expList.length; eIdx++) {
+					final int e = eIdx;
+					final Object exp = expList[eIdx];
+					tasks.add(pool.submit(metrics.measured(new Runnable() {
+						public void run() {
+							processed[e] = fillExperimentWindowCounter(windowTree, eMap, exp, bamFiles.get(exp), 
+																		qFilter, qThresh, multimap, stranded, refName,
+																		ckpt, counters, done.get(exp.toString()));
+						}
+					})));
+				}
+				waitForTasks(tasks);
+			} finally {
+				pool.shutdown();
+			}
+		}
+		for (long[] p:processed) {
+			metrics.addRecords(p[0]);
+			metrics.addBytes(p[1]);
+		}
+	}
+	
+	/* reads all alignment files in parallel (nThreads), one task per file. The files of an experiment add to the
+	 * same counter columns, so the counter tables are switched to concurrent updates while the files are read
+	 * (the fixed-point counters of -multimap scale add up to the same sums in any order). */
+	private void fillExperimentWindowCounterByFile(final HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree, 
+											final ExperimentMap eMap, Object[] expList,
+											final boolean qFilter, final int qThresh, final String multimap, final boolean stranded,
+											final String refName) {
+		Set<WindowTable> tables = getCounterTables(windowTree);
+		for (WindowTable t:tables) {
+			t.setConcurrent(true);
+		}
+		final List<long[]> processed = new ArrayList<long[]>();
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (final Object exp:expList) {
+				for (final File f:bamFiles.get(exp)) {
+					final long[] p = new long[2];
+					processed.add(p);
+					tasks.add(pool.submit(metrics.measured(new Runnable() {
+						public void run() {
+							long[] fp = fillExperimentWindowCounter(windowTree, eMap, exp, Collections.singletonList(f), 
+																	qFilter, qThresh, multimap, stranded, refName, null, null, null);
+							p[0] = fp[0];
+							p[1] = fp[1];
+						}
+					})));
+				}
+			}
+			waitForTasks(tasks);
+		} finally {
+			pool.shutdown();
+			for (WindowTable t:tables) {
+				t.setConcurrent(false);
+			}
+		}
+		for (long[] p:processed) {
+			metrics.addRecords(p[0]);
+			metrics.addBytes(p[1]);
+		}
+	}
+	
+	/* the counter tables of the windowTree (one per makeCountingIntervalTree() call) */
+	public static Set<WindowTable> getCounterTables(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree) {
+		Set<WindowTable> tables = new HashSet<WindowTable>();
+		for (String strand:windowTree.keySet()) {
+			for (IntervalTree<EventCounter> tree:windowTree.get(strand).values()) {
+				if (!tree.isEmpty()) {
+					tables.add(tree.min().getValue().getTable());
+				}
+			}
+		}
+		return tables;
+	}
+	
+	/* fills the counter columns of a single experiment from the given files, skipping the files in doneFiles 
+	 * (restored from a checkpoint) and handing the columns to ckpt after every file, if it is not null; returns 
+	 * the number of records and (whole file) bytes read. */
+	private long[] fillExperimentWindowCounter(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree, 
+											ExperimentMap eMap, Object exp, List<File> files,
+											boolean qFilter, int qThresh, String multimap, boolean stranded,
+											String refName, Checkpoint ckpt, List<EventCounter> counters, Set<String> doneFiles) {
 		
 		SAMRecord r;		// alignment
 		String rStrand;		// alignment strand
 		String rName;		// alignment name (chromosome)
 		int rStart;			// alignment start location
+		long nRecords = 0;
+		long nBytes = 0;
+		List<String> filesRead = new ArrayList<String>();
+		if (doneFiles!=null) {
+			filesRead.addAll(doneFiles);
+		}
+		int[] cols = ckpt!=null ? Checkpoint.getColumns(eMap, exp.toString()) : null;
+		int expCol = eMap.getIndex(exp.toString());    // (bulk data)
+		LongIntMap bcIndex = eMap.isSingleCell() ? eMap.getBarcodeIndex(exp.toString()) : null;    // (single-cell data)
+		List<EventCounter> overlap = new ArrayList<EventCounter>();    // the counters a read start overlaps (single-cell data)
 		
-		// Get the list of experiment names:
-		//Object[] expList = bamFiles.keySet().toArray();   // before single-cell update
-		Object [] expList = eMap.getBamFiles().keySet().toArray();    // after single cell update
-		
-		// Iterate over each experiment:
-		for (int eIdx=0; eIdx<expList.length; eIdx++) {
-			
-			Object exp = expList[eIdx];
-			
-			// Iterate over the files in each experiment:
-			for (int i=0; i<bamFiles.get(exp).size(); i++){
+		// Iterate over the files in each experiment:
+		for (int i=0; i<files.size(); i++){
 
-				//long loopStartTime = System.nanoTime();    // loop timer
-				
-				// open the next bam file in the list:
-				File bamFile = (File) bamFiles.get(exp).get(i);
-				SAMFileReader bamReader = new SAMFileReader(bamFile);   // open as a non-eager reader
-				bamReader.setValidationStringency(ValidationStringency.STRICT);	
-				SAMRecordIterator bamIterator = bamReader.iterator();
-				logger.info("Processing file: "+bamFile+"...");
+			//long loopStartTime = System.nanoTime();    // loop timer
+			
+			// open the next bam file in the list:
+			File bamFile = files.get(i);
+			if (doneFiles!=null && doneFiles.contains(bamFile.getAbsolutePath())) {
+				logger.info("Skipping "+bamFile+" (second pass done before the checkpoint)");
+				continue;
+			}
+			SAMFileReader bamReader = openAlignments(bamFile, "secondPass");
+			bamReader.setValidationStringency(ValidationStringency.STRICT);	
+			SAMRecordIterator bamIterator = queryAlignments(bamReader, refName);
+			logger.info("Processing file: "+bamFile+"...");
+			if (refName==null) {
+				nBytes += bamFile.length();    // (the compressed bytes of a reference query are not known)
+			}
 
-				// process each read:
+			// process each read:
+			try {
 				while (bamIterator.hasNext()) {
 					try {
 						r = bamIterator.next();
@@ -1125,6 +2254,7 @@ public class NewESAT {
 						logger.warn(e.getMessage());
 						continue;
 					}
+					nRecords++;
 					// process the read:
 					if (!r.getReadUnmappedFlag()) {
 						// if quality filtering is turned on, skip low-quality reads:
@@ -1148,53 +2278,191 @@ public class NewESAT {
 				    	//       if SAMRecord had a isMapped() method.
 				    	if (cString!="*") {
 				    		// Deal with multimapped reads:
-				    		float fractCount;
-			    			int mmCount = SAMSequenceCountingDict.getMultimapCount(r);
-				    		if (multimap.equals("normal") || multimap.equals("proper")) {
-				    			fractCount=1;
-				    		} else if (multimap.equals("ignore")) {
-				    			if (mmCount==1) {
-				    				fractCount=1;
-				    			} else {
-				    				fractCount=0;   // hacky way to skip reads... 
-				    			}
-				    		} else {
-				    			// scaled mulitmapped reads:
-				    			fractCount=1f/mmCount;
-				    		}
-
-				    		// check if this read start is contained in any intervals in the tree:
-				    		if (windowTree.get(rStrand).containsKey(rName) && windowTree.get(rStrand).get(rName).numOverlappers(rStart, rStart+1)>0) {
-				    			Iterator<IntervalTree.Node<EventCounter>> oIter = windowTree.get(rStrand).get(rName).overlappers(rStart,rStart+1);
-				    			//logger.info("Read at "+rName+":"+rStart+" ("+rStrand+
-				    			//		") has "+windowTree.get(rStrand).get(rName).numOverlappers(rStart, rStart+1)+" overlapping intervals");
-				    			while (oIter.hasNext()) {
-				    				Node<EventCounter> n = oIter.next();
-				    				// This node might contain multiple EventCounters. Update them all:
-				    				Collection<EventCounter> cvNode = n.getContainedValues();
-				    				for (EventCounter e:cvNode) {
-				    					// 	update the count for this interval:
-				    					if (!eMap.isSingleCell()) {
-				    						int cIdx = eMap.getIndex(exp.toString());
-				    						//e.addIntervalCount(rStart, rStart+1, eIdx, fractCount);   // add (possibly) fractional counts if read is contained in an interval
-				    						e.addIntervalCount(rStart, rStart+1, cIdx, fractCount);   // add (possibly) fractional counts if read is contained in an interval					    								
-				    					} else {
-				    						String bc = InDropPreprocess.getBarcodeFromRead(r);
-				    						String eName = exp+":"+bc;
-				    						int cIdx = eMap.getIndex(eName);
-				    						if (cIdx>=0) {
-				    							// update the count if this is a valid experiment and barcode:
-				    							e.addIntervalCount(rStart, rStart+1, cIdx, fractCount);   // add (possibly) fractional counts if read is contained in an interval
-				    						}
-				    					}
+				    		float fractCount = getFractCount(r, multimap);
+				    		if (!eMap.isSingleCell()) {
+				    			addWindowCounts(windowTree, rName, rStrand, rStart, expCol, fractCount);
+				    		} else if (getOverlappingCounters(windowTree, rName, rStrand, rStart, overlap)) {
+				    			// only the reads that start in a window need their barcode (looked up by its 2-bit packed
+				    			// bases, unless they cannot be packed):
+				    			long bc = InDropPreprocess.packBarcodeFromRead(r);
+				    			int cIdx = bc>=0 ? bcIndex.get(bc) : eMap.getIndex(exp+":"+InDropPreprocess.getBarcodeFromRead(r));
+				    			if (cIdx>=0) {
+				    				// update the count if this is a valid experiment and barcode:
+				    				for (EventCounter e:overlap) {
+				    					e.addIntervalCount(rStart, rStart+1, cIdx, fractCount);
 				    				}
 				    			}
 				    		}
 				    	}
 					}
 				}
-				bamReader.close();
+			} finally {
+				closeAlignments(bamReader, bamFile);
+			}
+			filesRead.add(bamFile.getAbsolutePath());
+			if (ckpt!=null) {
+				ckpt.windowCountsUpdated(exp.toString(), counters, cols, filesRead);
 			}
 		}
+		return new long[] {nRecords, nBytes};
 	} 	
-}	
+	
+	/* -saveState: fills the counter columns from the saved per-experiment read start counts instead of reading the
+	 * alignment files again. When adding experiments to a saved run (previous is not null), the columns of its
+	 * experiments are copied from its counters where the window (or gene) is unchanged; only the new windows and
+	 * those whose boundaries moved are counted from the saved start counts. The experiments are processed in
+	 * parallel (nThreads), each with its own start counts in memory. */
+	private void attributeExperimentCounts(final HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
+											final ExperimentMap eMap, final RunState state, final RunState previous) throws IOException {
+		// all counters with their strand and reference, and those that the saved counters do not cover:
+		final List<EventCounter> counters = new ArrayList<EventCounter>();
+		final List<String[]> counterLocs = new ArrayList<String[]>();
+		final List<EventCounter> changed = new ArrayList<EventCounter>();
+		final List<String[]> changedLocs = new ArrayList<String[]>();
+		int[] prevCols = null;
+		if (previous!=null) {
+			prevCols = new int[previous.getColumns().size()];
+			for (int c=0; c<prevCols.length; c++) {
+				prevCols[c] = eMap.getIndex(previous.getColumns().get(c));
+			}
+		}
+		for (String strand:windowTree.keySet()) {
+			for (String chr:windowTree.get(strand).keySet()) {
+				Iterator<EventCounter> eIter = windowTree.get(strand).get(chr).valueIterator();
+				while (eIter.hasNext()) {
+					EventCounter e = eIter.next();
+					String[] loc = {chr, strand};
+					counters.add(e);
+					counterLocs.add(loc);
+					if (previous==null) {
+						continue;
+					}
+					float[] saved = previous.getWindowCounts(RunState.counterKey(strand, chr, e.getName()));
+					if (saved!=null) {
+						for (int c=0; c<prevCols.length; c++) {
+							e.addCount(prevCols[c], saved[c]);
+						}
+					} else {
+						changed.add(e);
+						changedLocs.add(loc);
+					}
+				}
+			}
+		}
+		
+		// the experiments to count, with the counters they need:
+		final List<String> exps = new ArrayList<String>();
+		final List<RunState> expStates = new ArrayList<RunState>();
+		if (previous!=null) {
+			logger.info((counters.size()-changed.size())+" of "+counters.size()+" window and gene counters are unchanged; "+
+						changed.size()+" are counted from the saved start counts of the "+previous.getExperiments().size()+" earlier experiments");
+			if (!changed.isEmpty()) {
+				for (String exp:previous.getExperiments()) {
+					exps.add(exp);
+					expStates.add(previous);
+				}
+			}
+		}
+		for (String exp:state.getExperiments()) {
+			if (previous==null || !previous.getBamFiles().containsKey(exp)) {
+				exps.add(exp);
+				expStates.add(state);
+			}
+		}
+		
+		final long[] bytes = new long[exps.size()];
+		final ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		for (int i=0; i<exps.size(); i++) {
+			final int eIdx = i;
+			tasks.add(new Runnable() {
+				public void run() {
+					String exp = exps.get(eIdx);
+					RunState expState = expStates.get(eIdx);
+					boolean all = expState==state;
+					List<EventCounter> eCounters = all ? counters : changed;
+					List<String[]> eLocs = all ? counterLocs : changedLocs;
+					int col = eMap.getIndex(exp);
+					SAMSequenceCountingDict expDict;
+					try {
+						expDict = expState.readExperimentCounts(exp, bamDict);
+					} catch (IOException e) {
+						throw new RuntimeIOException(e.getMessage());
+					}
+					for (int k=0; k<eCounters.size(); k++) {
+						eCounters.get(k).addStartCounts(expDict, eLocs.get(k)[0], eLocs.get(k)[1], col);
+					}
+					bytes[eIdx] = expState.getExperimentCountsBytes(exp);
+					logger.info("Counted "+eCounters.size()+" window and gene counters of experiment "+exp+" from its saved start counts");
+				}
+			});
+		}
+		int nWorkers = Math.min(nThreads, tasks.size());
+		if (nWorkers<=1) {
+			for (Runnable t:tasks) {
+				t.run();
+			}
+		} else {
+			// each experiment has its own counter column:
+			ExecutorService pool = Executors.newFixedThreadPool(nWorkers);
+			try {
+				List<Future<?>> futures = new ArrayList<Future<?>>();
+				for (Runnable t:tasks) {
+					futures.add(pool.submit(metrics.measured(t)));
+				}
+				waitForTasks(futures);
+			} finally {
+				pool.shutdown();
+			}
+		}
+		metrics.addRecords(counters.size());
+		for (long b:bytes) {
+			metrics.addBytes(b);
+		}
+	}
+	
+	/* the count of a read: 1, 0 for a multimapped read with -multimap ignore, or 1/NH with -multimap scale */
+	public static float getFractCount(SAMRecord r, String multimap) {
+		int mmCount = SAMSequenceCountingDict.getMultimapCount(r);
+		if (multimap.equals("normal") || multimap.equals("proper")) {
+			return 1;
+		} else if (multimap.equals("ignore")) {
+			return mmCount==1 ? 1 : 0;   // hacky way to skip reads... 
+		} else {
+			// scaled mulitmapped reads:
+			return 1f/mmCount;
+		}
+	}
+	
+	/* sets overlap to the counters of the windowTree nodes that overlap rStart; returns false if there are none */
+	static boolean getOverlappingCounters(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
+										String rName, String rStrand, int rStart, List<EventCounter> overlap) {
+		overlap.clear();
+		IntervalTree<EventCounter> tree = windowTree.get(rStrand).get(rName);
+		if (tree==null) {
+			return false;
+		}
+		Iterator<IntervalTree.Node<EventCounter>> oIter = tree.overlappers(rStart, rStart+1);
+		while (oIter.hasNext()) {
+			overlap.addAll(oIter.next().getContainedValues());
+		}
+		return !overlap.isEmpty();
+	}
+	
+	/* adds a read starting at rStart to column cIdx of all counters in the windowTree that contain the start */
+	public static void addWindowCounts(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
+										String rName, String rStrand, int rStart, int cIdx, float fractCount) {
+		// check if this read start is contained in any intervals in the tree:
+		if (windowTree.get(rStrand).containsKey(rName) && windowTree.get(rStrand).get(rName).numOverlappers(rStart, rStart+1)>0) {
+			Iterator<IntervalTree.Node<EventCounter>> oIter = windowTree.get(rStrand).get(rName).overlappers(rStart,rStart+1);
+			while (oIter.hasNext()) {
+				Node<EventCounter> n = oIter.next();
+				// This node might contain multiple EventCounters. Update them all:
+				Collection<EventCounter> cvNode = n.getContainedValues();
+				for (EventCounter e:cvNode) {
+					// 	update the count for this interval:
+					e.addIntervalCount(rStart, rStart+1, cIdx, fractCount);   // add (possibly) fractional counts if read is contained in an interval
+				}
+			}
+		}
+	}
+}
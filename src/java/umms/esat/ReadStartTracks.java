@@ -0,0 +1,522 @@
+package umms.esat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * Read start coverage tracks of one experiment, written by NewESAT -tracks straight from the read start counts of
+ * a SAMSequenceCountingDict: one bedGraph file per strand (<out>.<exp>.plus.bedGraph and .minus.bedGraph, or
+ * .starts.bedGraph for unstranded counts), with runs of equal counts merged into one row. With -binaryTracks, each
+ * strand is also written as a binary track (.rst) with the same runs in independently deflated blocks and
+ * precomputed summaries (sum and maximum per bin) at the ZOOM_BINS bin sizes, which the Reader fetches for any
+ * range or zoom level without reading the rest of the file.
+ *
+ * The references are encoded in parallel, each on its own part file, and the parts are appended in dictionary order.
+ * The counts are copied out in CHUNK-base pieces (SAMSequenceCountingDict.copyToLocalCounts()) and written as they
+ * are scanned. Binary layout:
+ *
+ *   header     MAGIC, VERSION, number of zoom levels (ints), the bin size of each level (ints), offset of the index (long)
+ *   data       per reference: the run blocks (deflated: number of runs, then per run the distance from the end of the
+ *              previous run, the length (varints) and the count (float)), then one block per zoom level (deflated:
+ *              number of non-empty bins, then per bin the distance to the previous one (varint), sum and maximum (floats))
+ *   index      number of references; per reference: name, length, number of run blocks, per block its first start,
+ *              last end (ints), offset (long) and length (int); per zoom level the offset (long) and length (int)
+ */
+public class ReadStartTracks {
+
+	static Logger logger = Logger.getLogger(ReadStartTracks.class.getName());
+
+	static final int MAGIC = 0x45535254;     // "ESRT"
+	static final int VERSION = 1;
+	static final int[] ZOOM_BINS = {100, 1000, 10000, 100000};    // (multiples of the first)
+	static final int CHUNK = 1<<16;
+	static final int BLOCK_RUNS = 4096;
+
+	/* the encoded track of one reference and strand */
+	static class ReferenceTrack {
+		String chr;
+		int length;
+		File textPart;
+		File binaryPart;
+		List<int[]> blockRange = new ArrayList<int[]>();     // {first start, last end}
+		List<long[]> blocks = new ArrayList<long[]>();       // {offset, length} in the part
+		long[][] levels = new long[ZOOM_BINS.length][];      // {offset, length} in the part
+		long runs = 0;
+	}
+
+	/*************************************************************************************
+	 * writer
+	 *************************************************************************************/
+
+	/* Writes the tracks of experiment exp from the start counts in dict to <baseName>.<exp>.<strand>.bedGraph (and
+	 * .rst if binary), on nThreads threads. Returns the files written. */
+	public static List<File> write(SAMSequenceCountingDict dict, String baseName, String exp, boolean stranded, boolean binary,
+									int nThreads) throws IOException {
+		return write(dict, baseName, exp, stranded, binary, nThreads, new RunMetrics());
+	}
+
+	/* as above, adding the allocations of the encoding threads to the current stage of metrics */
+	public static List<File> write(final SAMSequenceCountingDict dict, String baseName, String exp, boolean stranded, final boolean binary,
+									int nThreads, RunMetrics metrics) throws IOException {
+		long startTime = System.nanoTime();
+		String[] strands = stranded ? new String[] {"+", "-"} : new String[] {"+"};
+		List<File> written = new ArrayList<File>();
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			for (final String strand:strands) {
+				String label = stranded ? (strand.equals("+") ? "plus" : "minus") : "starts";
+				final File textFile = new File(baseName+"."+exp+"."+label+".bedGraph");
+				final File binaryFile = new File(baseName+"."+exp+"."+label+".rst");
+				List<Future<ReferenceTrack>> parts = new ArrayList<Future<ReferenceTrack>>();
+				int nPart = 0;
+				for (SAMSequenceRecord seq:dict.getSequences()) {
+					if (!dict.startCountsHasKey(seq.getSequenceName())) {
+						continue;
+					}
+					final String chr = seq.getSequenceName();
+					final int length = seq.getSequenceLength();
+					final int part = nPart++;
+					parts.add(pool.submit(metrics.measured(new Callable<ReferenceTrack>() {
+						public ReferenceTrack call() throws IOException {
+							return encodeReference(dict, chr, length, strand, new File(textFile.getPath()+".part"+part),
+													binary ? new File(binaryFile.getPath()+".part"+part) : null);
+						}
+					})));
+				}
+				List<ReferenceTrack> tracks = new ArrayList<ReferenceTrack>();
+				for (Future<ReferenceTrack> f:parts) {
+					tracks.add(f.get());
+				}
+
+				OutputStream text = new BufferedOutputStream(new FileOutputStream(textFile), 1<<16);
+				text.write(("track type=bedGraph name=\""+exp+" "+label+"\" description=\"read starts of "+exp+
+							(stranded ? " ("+strand+" strand)" : "")+"\"\n").getBytes("US-ASCII"));
+				text.flush();
+				long runs = 0;
+				for (ReferenceTrack t:tracks) {
+					append(t.textPart, text);
+					runs += t.runs;
+				}
+				text.close();
+				written.add(textFile);
+				if (binary) {
+					writeBinary(binaryFile, tracks);
+					written.add(binaryFile);
+				}
+				logger.info("Track "+textFile+": "+runs+" runs on "+tracks.size()+" references");
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+		logger.info("Tracks of experiment "+exp+" written in "+(System.nanoTime()-startTime)/1e9+" sec");
+		return written;
+	}
+
+	/* the runs of one reference and strand as they are written to its part files */
+	static class RunWriter {
+		ReferenceTrack t;
+		byte[] chrBytes;
+		byte[] line;
+		OutputStream text;
+		DataOutputStream bin = null;
+		ByteArrayOutputStream blockBytes;
+		DataOutputStream block;
+		int blockRuns = 0;
+		int blockStart = 0;
+		int lastEnd = 0;
+		long pos = 0;
+		float[] binSum;     // (finest zoom level)
+		float[] binMax;
+
+		RunWriter(ReferenceTrack t) throws IOException {
+			this.t = t;
+			chrBytes = t.chr.getBytes("US-ASCII");
+			line = new byte[chrBytes.length+64];
+			text = new BufferedOutputStream(new FileOutputStream(t.textPart), 1<<16);
+			if (t.binaryPart!=null) {
+				bin = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(t.binaryPart), 1<<16));
+				blockBytes = new ByteArrayOutputStream();
+				block = new DataOutputStream(blockBytes);
+				binSum = new float[(t.length+ZOOM_BINS[0]-1)/ZOOM_BINS[0]];
+				binMax = new float[binSum.length];
+			}
+		}
+
+		void addRun(int start, int end, float value) throws IOException {
+			text.write(line, 0, formatRow(line, chrBytes, start, end, value));
+			t.runs++;
+			if (bin==null) {
+				return;
+			}
+			if (blockRuns==0) {
+				blockStart = start;
+			}
+			SAMSequenceCountingDict.writeVarInt(block, start-lastEnd);
+			SAMSequenceCountingDict.writeVarInt(block, end-start);
+			block.writeFloat(value);
+			lastEnd = end;
+			addToBins(binSum, binMax, start, end, value);
+			if (++blockRuns==BLOCK_RUNS) {
+				writeBlock();
+			}
+		}
+
+		/* deflates the runs collected in blockBytes to bin */
+		private void writeBlock() throws IOException {
+			ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(deflated));
+			SAMSequenceCountingDict.writeVarInt(out, blockRuns);
+			blockBytes.writeTo(out);
+			out.close();
+			deflated.writeTo(bin);
+			t.blockRange.add(new int[] {blockStart, lastEnd});
+			t.blocks.add(new long[] {pos, deflated.size()});
+			pos += deflated.size();
+			blockBytes.reset();
+			blockRuns = 0;
+			lastEnd = 0;
+		}
+
+		void close() throws IOException {
+			text.close();
+			if (bin==null) {
+				return;
+			}
+			if (blockRuns>0) {
+				writeBlock();
+			}
+			for (int l=0; l<ZOOM_BINS.length; l++) {
+				int f = ZOOM_BINS[l]/ZOOM_BINS[0];
+				int nBins = 0;
+				for (int b=0; b<binSum.length; b+=f) {
+					if (hasCounts(binMax, b, f)) {
+						nBins++;
+					}
+				}
+				ByteArrayOutputStream levelBytes = new ByteArrayOutputStream();
+				DataOutputStream level = new DataOutputStream(new DeflaterOutputStream(levelBytes));
+				SAMSequenceCountingDict.writeVarInt(level, nBins);
+				int last = 0;
+				for (int b=0; b<binSum.length; b+=f) {
+					if (!hasCounts(binMax, b, f)) {
+						continue;
+					}
+					float sum = 0;
+					float max = 0;
+					for (int k=b; k<Math.min(binSum.length, b+f); k++) {
+						sum += binSum[k];
+						max = Math.max(max, binMax[k]);
+					}
+					SAMSequenceCountingDict.writeVarInt(level, b/f-last);
+					level.writeFloat(sum);
+					level.writeFloat(max);
+					last = b/f;
+				}
+				level.close();
+				levelBytes.writeTo(bin);
+				t.levels[l] = new long[] {pos, levelBytes.size()};
+				pos += levelBytes.size();
+			}
+			bin.close();
+		}
+	}
+
+	/* scans the counts of one reference and strand, writing the runs of equal non-zero counts to the part files */
+	private static ReferenceTrack encodeReference(SAMSequenceCountingDict dict, String chr, int length, String strand,
+													File textPart, File binaryPart) throws IOException {
+		ReferenceTrack t = new ReferenceTrack();
+		t.chr = chr;
+		t.length = length;
+		t.textPart = textPart;
+		t.binaryPart = binaryPart;
+		RunWriter w = new RunWriter(t);
+		float[] counts = new float[CHUNK];
+		int runStart = -1;
+		float runValue = 0;
+		for (int c0=0; c0<length; c0+=CHUNK) {
+			int n = Math.min(CHUNK, length-c0);
+			dict.copyToLocalCounts(chr, strand, c0, 0, n, counts);
+			for (int i=0; i<n; i++) {
+				if (counts[i]==runValue) {
+					continue;
+				}
+				if (runStart>=0) {
+					w.addRun(runStart, c0+i, runValue);
+				}
+				runStart = counts[i]!=0 ? c0+i : -1;
+				runValue = counts[i];
+			}
+		}
+		if (runStart>=0) {
+			w.addRun(runStart, length, runValue);
+		}
+		w.close();
+		return t;
+	}
+
+	private static boolean hasCounts(float[] binMax, int from, int n) {
+		for (int k=from; k<Math.min(binMax.length, from+n); k++) {
+			if (binMax[k]>0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/* adds a run to the bins of the finest zoom level */
+	private static void addToBins(float[] binSum, float[] binMax, int start, int end, float value) {
+		int bin = ZOOM_BINS[0];
+		for (int b=start/bin; b*bin<end; b++) {
+			int overlap = Math.min(end, (b+1)*bin)-Math.max(start, b*bin);
+			binSum[b] += overlap*value;
+			binMax[b] = Math.max(binMax[b], value);
+		}
+	}
+
+	/* formats "<chr>\t<start>\t<end>\t<value>\n" into line, returning its length */
+	private static int formatRow(byte[] line, byte[] chr, int start, int end, float value) {
+		System.arraycopy(chr, 0, line, 0, chr.length);
+		int p = chr.length;
+		line[p++] = '\t';
+		p = formatInt(line, p, start);
+		line[p++] = '\t';
+		p = formatInt(line, p, end);
+		line[p++] = '\t';
+		if (value==(int)value) {
+			p = formatInt(line, p, (int)value);
+		} else {
+			for (char c:Float.toString(value).toCharArray()) {
+				line[p++] = (byte)c;
+			}
+		}
+		line[p++] = '\n';
+		return p;
+	}
+
+	private static int formatInt(byte[] line, int p, int v) {
+		if (v<0) {
+			line[p++] = '-';
+			v = -v;
+		}
+		int digits = 1;
+		for (int x=v; x>=10; x/=10) {
+			digits++;
+		}
+		for (int k=p+digits-1; k>=p; k--) {
+			line[k] = (byte)('0'+v%10);
+			v /= 10;
+		}
+		return p+digits;
+	}
+
+	/* appends a part file to out and deletes it */
+	private static void append(File part, OutputStream out) throws IOException {
+		byte[] buf = new byte[1<<16];
+		FileInputStream in = new FileInputStream(part);
+		for (int n=in.read(buf); n>0; n=in.read(buf)) {
+			out.write(buf, 0, n);
+		}
+		in.close();
+		part.delete();
+	}
+
+	private static void writeBinary(File file, List<ReferenceTrack> tracks) throws IOException {
+		int headerSize = 3*4+4*ZOOM_BINS.length+8;
+		FileOutputStream fos = new FileOutputStream(file);
+		FileChannel out = fos.getChannel();
+		out.position(headerSize);
+		long[] base = new long[tracks.size()];
+		for (int i=0; i<tracks.size(); i++) {
+			base[i] = out.position();
+			FileChannel in = new FileInputStream(tracks.get(i).binaryPart).getChannel();
+			long n = in.size();
+			for (long done=0; done<n; ) {
+				done += in.transferTo(done, n-done, out);
+			}
+			in.close();
+			tracks.get(i).binaryPart.delete();
+		}
+		long indexOffset = out.position();
+		DataOutputStream index = new DataOutputStream(new BufferedOutputStream(fos, 1<<16));
+		index.writeInt(tracks.size());
+		for (int i=0; i<tracks.size(); i++) {
+			ReferenceTrack t = tracks.get(i);
+			Checkpoint.writeString(index, t.chr);
+			index.writeInt(t.length);
+			index.writeInt(t.blocks.size());
+			for (int b=0; b<t.blocks.size(); b++) {
+				index.writeInt(t.blockRange.get(b)[0]);
+				index.writeInt(t.blockRange.get(b)[1]);
+				index.writeLong(base[i]+t.blocks.get(b)[0]);
+				index.writeInt((int)t.blocks.get(b)[1]);
+			}
+			for (int l=0; l<ZOOM_BINS.length; l++) {
+				index.writeLong(base[i]+t.levels[l][0]);
+				index.writeInt((int)t.levels[l][1]);
+			}
+		}
+		index.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.writeInt(MAGIC);
+		raf.writeInt(VERSION);
+		raf.writeInt(ZOOM_BINS.length);
+		for (int bin:ZOOM_BINS) {
+			raf.writeInt(bin);
+		}
+		raf.writeLong(indexOffset);
+		raf.close();
+	}
+
+	/*************************************************************************************
+	 * reader
+	 *************************************************************************************/
+
+	/* Reads the counts of a range, or the zoom level summaries of a reference, from a binary track (.rst) */
+	public static class Reader {
+		private RandomAccessFile raf;
+		private int[] zoomBins;
+		private List<String> chrs = new ArrayList<String>();
+		private HashMap<String, Integer> chrLength = new HashMap<String, Integer>();
+		private HashMap<String, int[][]> blockRange = new HashMap<String, int[][]>();
+		private HashMap<String, long[][]> blocks = new HashMap<String, long[][]>();
+		private HashMap<String, long[][]> levels = new HashMap<String, long[][]>();
+
+		public Reader(File file) throws IOException {
+			raf = new RandomAccessFile(file, "r");
+			if (raf.readInt()!=MAGIC) {
+				throw new IOException(file+" is not an ESAT read start track");
+			}
+			int version = raf.readInt();
+			if (version!=VERSION) {
+				throw new IOException(file+" has read start track version "+version+", expected "+VERSION);
+			}
+			zoomBins = new int[raf.readInt()];
+			for (int l=0; l<zoomBins.length; l++) {
+				zoomBins[l] = raf.readInt();
+			}
+			long indexOffset = raf.readLong();
+			raf.seek(indexOffset);
+			DataInputStream index = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), 1<<16));
+			int nChr = index.readInt();
+			for (int i=0; i<nChr; i++) {
+				String chr = Checkpoint.readString(index);
+				chrs.add(chr);
+				chrLength.put(chr, index.readInt());
+				int nBlocks = index.readInt();
+				int[][] range = new int[nBlocks][2];
+				long[][] b = new long[nBlocks][2];
+				for (int k=0; k<nBlocks; k++) {
+					range[k][0] = index.readInt();
+					range[k][1] = index.readInt();
+					b[k][0] = index.readLong();
+					b[k][1] = index.readInt();
+				}
+				long[][] l = new long[zoomBins.length][2];
+				for (int k=0; k<zoomBins.length; k++) {
+					l[k][0] = index.readLong();
+					l[k][1] = index.readInt();
+				}
+				blockRange.put(chr, range);
+				blocks.put(chr, b);
+				levels.put(chr, l);
+			}
+		}
+
+		public List<String> getReferences() {
+			return chrs;
+		}
+
+		public int getReferenceLength(String chr) {
+			return chrLength.get(chr);
+		}
+
+		public int[] getZoomBins() {
+			return zoomBins;
+		}
+
+		/* the read start counts of chr at start..end-1 (0-based), reading only the run blocks that overlap them */
+		public float[] getCounts(String chr, int start, int end) throws IOException {
+			float[] counts = new float[end-start];
+			int[][] range = blockRange.get(chr);
+			if (range==null) {
+				return counts;
+			}
+			for (int k=0; k<range.length; k++) {
+				if (range[k][1]<=start || range[k][0]>=end) {
+					continue;
+				}
+				DataInputStream in = read(blocks.get(chr)[k]);
+				int n = SAMSequenceCountingDict.readVarInt(in);
+				int pos = 0;
+				for (int r=0; r<n; r++) {
+					int rStart = pos+SAMSequenceCountingDict.readVarInt(in);
+					int rEnd = rStart+SAMSequenceCountingDict.readVarInt(in);
+					float x = in.readFloat();
+					for (int i=Math.max(start, rStart); i<Math.min(end, rEnd); i++) {
+						counts[i-start] = x;
+					}
+					pos = rEnd;
+				}
+			}
+			return counts;
+		}
+
+		/* {sums, maxima} of the read start counts in the bins of zoom level l of chr */
+		public float[][] getZoom(String chr, int l) throws IOException {
+			int nBins = (chrLength.get(chr)+zoomBins[l]-1)/zoomBins[l];
+			float[][] zoom = new float[2][nBins];
+			DataInputStream in = read(levels.get(chr)[l]);
+			int n = SAMSequenceCountingDict.readVarInt(in);
+			int b = 0;
+			for (int k=0; k<n; k++) {
+				b += SAMSequenceCountingDict.readVarInt(in);
+				zoom[0][b] = in.readFloat();
+				zoom[1][b] = in.readFloat();
+			}
+			return zoom;
+		}
+
+		private synchronized DataInputStream read(long[] block) throws IOException {
+			byte[] bytes = new byte[(int)block[1]];
+			raf.seek(block[0]);
+			raf.readFully(bytes);
+			return new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(bytes))));
+		}
+
+		public void close() throws IOException {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package umms.esat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Lightweight per-stage metrics for a NewESAT run. A stage is opened with startStage() and closed with
+ * endStage() (or by starting the next stage); while it is open, the processing code can add the number
+ * of records (alignments, annotations, windows, ...) and bytes it has processed.
+ *
+ * For each stage the wall time, the process CPU time, the records and bytes processed, the bytes allocated
+ * on the heap (and from that the allocation rate) and the peak heap usage are recorded. Starting a stage
+ * that has already been recorded accumulates into the existing entry; the peak heap is the maximum.
+ *
+ * The allocated bytes are those of the thread that runs the stages and of the tasks it hands to other threads,
+ * which must be wrapped with measured() (the worker pools of a stage are created and shut down within it, so
+ * their threads cannot be measured from outside). If other runs share the JVM (concurrent ESATDaemon jobs), the
+ * CPU time is measured in the same way, from the threads of this run, and the peak heap, which only the whole JVM
+ * has, is not recorded (-1).
+ *
+ * The read counts and timing of each alignment file of the counting passes can be added with addFile().
+ *
+ * The metrics are written as a JSON report by writeJSON().
+ */
+public class RunMetrics {
+
+	static final Logger logger = Logger.getLogger(RunMetrics.class.getName());
+
+	/* measurements of a single stage */
+	public static class Stage {
+		private String name;
+		private double wallSec;
+		private double cpuSec;
+		private long records;
+		private long bytes;
+		private long allocBytes;
+		private long peakHeap;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		public String getName() { return name; }
+		public double getWallSec() { return wallSec; }
+		public double getCpuSec() { return cpuSec; }
+		public long getRecords() { return records; }
+		public long getBytes() { return bytes; }
+		public long getAllocBytes() { return allocBytes; }
+		public long getPeakHeap() { return peakHeap; }
+
+		/* heap allocation rate in bytes/sec */
+		public double getAllocRate() {
+			return wallSec>0 ? allocBytes/wallSec : 0;
+		}
+	}
+
+	private LinkedHashMap<String, Stage> stages = new LinkedHashMap<String, Stage>();
+	private List<String> files = new ArrayList<String>();    // per-file entries of the JSON report
+	private Stage current = null;
+	private long stageWall0;
+	private long stageCpu0;
+	private long stageAlloc0;
+	private long stageTaskAlloc0;
+	private long stageTaskCpu0;
+	private long stageThread;      // the thread that opened the stage
+	private boolean shared;        // other runs in the same JVM
+	private AtomicLong taskAlloc = new AtomicLong();    // allocated bytes of the measured tasks
+	private AtomicLong taskCpu = new AtomicLong();      // CPU time (ns) of the measured tasks
+
+	private long runWall0;
+	private long runCpu0;
+	private Date runDate;
+
+	private List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+
+	public RunMetrics() {
+		this(false);
+	}
+
+	/* metrics of a run that may share the JVM with other runs (see above) */
+	public RunMetrics(boolean shared) {
+		this.shared = shared;
+		for (MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType()==MemoryType.HEAP) {
+				heapPools.add(pool);
+			}
+		}
+		runDate = new Date();
+		runWall0 = System.nanoTime();
+		runCpu0 = runCpuTime();
+	}
+
+	/* close the current stage (if any) and open the named one */
+	public void startStage(String name) {
+		endStage();
+		current = stages.get(name);
+		if (current==null) {
+			current = new Stage(name);
+			stages.put(name, current);
+		}
+		if (!shared) {
+			for (MemoryPoolMXBean pool:heapPools) {
+				pool.resetPeakUsage();
+			}
+		}
+		stageThread = Thread.currentThread().getId();
+		stageAlloc0 = allocatedBytes(stageThread);
+		stageTaskAlloc0 = taskAlloc.get();
+		stageCpu0 = runCpuTime();
+		stageWall0 = System.nanoTime();
+	}
+
+	public void endStage() {
+		if (current==null) {
+			return;
+		}
+		current.wallSec += (System.nanoTime()-stageWall0)/1e9;
+		current.cpuSec += (runCpuTime()-stageCpu0)/1e9;
+		current.allocBytes += allocatedBytes(stageThread)-stageAlloc0+taskAlloc.get()-stageTaskAlloc0;
+		if (shared) {
+			current.peakHeap = -1;
+		} else {
+			long peak = 0;
+			for (MemoryPoolMXBean pool:heapPools) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+			current.peakHeap = Math.max(current.peakHeap, peak);
+		}
+		logger.info(String.format("Stage %s: %.2f sec wall, %.2f sec CPU, %d records, %d bytes, %.1f MB allocated%s",
+				current.name, current.wallSec, current.cpuSec, current.records, current.bytes, current.allocBytes/1048576.0,
+				current.peakHeap<0 ? "" : String.format(", %.1f MB peak heap", current.peakHeap/1048576.0)));
+		current = null;
+	}
+
+	/* the task, adding the heap bytes (and CPU time) its thread uses while it runs to the current stage; for the
+	 * tasks of a stage that run on other threads */
+	public Runnable measured(final Runnable task) {
+		return new Runnable() {
+			public void run() {
+				long alloc0 = allocatedBytes(Thread.currentThread().getId());
+				long cpu0 = threadCpuTime();
+				try {
+					task.run();
+				} finally {
+					taskAlloc.addAndGet(allocatedBytes(Thread.currentThread().getId())-alloc0);
+					taskCpu.addAndGet(threadCpuTime()-cpu0);
+				}
+			}
+		};
+	}
+
+	public <T> Callable<T> measured(final Callable<T> task) {
+		return new Callable<T>() {
+			public T call() throws Exception {
+				long alloc0 = allocatedBytes(Thread.currentThread().getId());
+				long cpu0 = threadCpuTime();
+				try {
+					return task.call();
+				} finally {
+					taskAlloc.addAndGet(allocatedBytes(Thread.currentThread().getId())-alloc0);
+					taskCpu.addAndGet(threadCpuTime()-cpu0);
+				}
+			}
+		};
+	}
+
+	/* add processed records to the current stage (ignored if no stage is open) */
+	public void addRecords(long n) {
+		if (current!=null) {
+			current.records += n;
+		}
+	}
+
+	/* add processed bytes to the current stage (ignored if no stage is open) */
+	public void addBytes(long n) {
+		if (current!=null) {
+			current.bytes += n;
+		}
+	}
+
+	/* record the counts of one alignment file (under the current stage) */
+	public void addFile(FileCountStats f) {
+		files.add("{\"stage\": "+quote(current!=null ? current.name : "")+
+				", \"experiment\": "+quote(f.getExperiment())+
+				", \"file\": "+quote(f.getFile().getPath())+
+				", \"validReads\": "+f.getValidReads()+
+				", \"invalidReads\": "+f.getInvalidReads()+
+				", \"lowQualityReads\": "+f.getLowQualityReads()+
+				", \"multimappedReads\": "+f.getMultimappedReads()+
+				", \"elapsedSec\": "+f.getElapsedSec()+"}");
+	}
+
+	public Stage getStage(String name) {
+		return stages.get(name);
+	}
+
+	/* all recorded stages, in the order they were first started */
+	public Collection<Stage> getStages() {
+		return stages.values();
+	}
+
+	/* wall time (sec) since the metrics were created */
+	public double getTotalWallSec() {
+		return (System.nanoTime()-runWall0)/1e9;
+	}
+
+	public void writeJSON(File f, String[] args) throws IOException {
+		endStage();
+		FileWriter w = new FileWriter(f);
+		w.write("{\n");
+		w.write("  \"program\": \"NewESAT\",\n");
+		w.write("  \"date\": "+quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(runDate))+",\n");
+		StringBuilder a = new StringBuilder();
+		for (int i=0; i<args.length; i++) {
+			a.append(i>0 ? ", " : "").append(quote(args[i]));
+		}
+		w.write("  \"args\": ["+a+"],\n");
+		w.write("  \"availableProcessors\": "+Runtime.getRuntime().availableProcessors()+",\n");
+		w.write("  \"maxHeapBytes\": "+Runtime.getRuntime().maxMemory()+",\n");
+		w.write("  \"totalWallSec\": "+getTotalWallSec()+",\n");
+		w.write("  \"totalCpuSec\": "+(runCpuTime()-runCpu0)/1e9+",\n");
+		w.write("  \"stages\": [");
+		boolean first = true;
+		for (Stage s:stages.values()) {
+			w.write(first ? "\n" : ",\n");
+			first = false;
+			w.write("    {\"name\": "+quote(s.name)+
+					", \"wallSec\": "+s.wallSec+
+					", \"cpuSec\": "+s.cpuSec+
+					", \"records\": "+s.records+
+					", \"recordsPerSec\": "+(s.wallSec>0 ? s.records/s.wallSec : 0)+
+					", \"bytes\": "+s.bytes+
+					", \"bytesPerSec\": "+(s.wallSec>0 ? s.bytes/s.wallSec : 0)+
+					", \"allocBytes\": "+s.allocBytes+
+					", \"allocBytesPerSec\": "+s.getAllocRate()+
+					", \"peakHeapBytes\": "+(s.peakHeap<0 ? "null" : s.peakHeap)+"}");
+		}
+		w.write("\n  ],\n");
+		w.write("  \"files\": [");
+		first = true;
+		for (String entry:files) {
+			w.write((first ? "\n    " : ",\n    ")+entry);
+			first = false;
+		}
+		w.write("\n  ]\n}\n");
+		w.close();
+	}
+
+	private static String quote(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c:s.toCharArray()) {
+			if (c=='"' || c=='\\') {
+				sb.append('\\').append(c);
+			} else if (c<0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/* CPU time (ns) of this run: of the whole process, or, if the JVM is shared, of the current thread and the
+	 * measured tasks */
+	private long runCpuTime() {
+		return shared ? threadCpuTime()+taskCpu.get() : cpuTime();
+	}
+
+	private static long threadCpuTime() {
+		ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+		return tb.isCurrentThreadCpuTimeSupported() ? tb.getCurrentThreadCpuTime() : 0;
+	}
+
+	/* CPU time (ns) of the whole process if the JVM reports it, otherwise of the current thread */
+	private static long cpuTime() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			long t = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+			if (t>=0) {
+				return t;
+			}
+		}
+		ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+		return tb.isCurrentThreadCpuTimeSupported() ? tb.getCurrentThreadCpuTime() : 0;
+	}
+
+	/* heap bytes allocated so far by a (live) thread (0 if the JVM does not report it) */
+	private static long allocatedBytes(long threadId) {
+		ThreadMXBean tb = ManagementFactory.getThreadMXBean();
+		if (!(tb instanceof com.sun.management.ThreadMXBean)) {
+			return 0;
+		}
+		com.sun.management.ThreadMXBean stb = (com.sun.management.ThreadMXBean) tb;
+		if (!stb.isThreadAllocatedMemorySupported() || !stb.isThreadAllocatedMemoryEnabled()) {
+			return 0;
+		}
+		return Math.max(0, stb.getThreadAllocatedBytes(threadId));
+	}
+}
@@ -0,0 +1,314 @@
+package umms.esat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+import broad.core.datastructures.IntervalTree;
+import umms.core.utils.ExperimentMap;
+
+/**
+ * The saved state of a NewESAT run (-saveState), to which a later run can add experiments (-addTo) without
+ * reading the alignment files of the earlier experiments again.
+ *
+ * The state is a directory <out>.state holding
+ *   - exp-<k>.counts: the read start counts of one experiment, written as soon as the experiment is counted;
+ *   - run.state: the reference sequences, the read start count representation, the experiments (with their start
+ *     count file and alignment files), the pooled read start counts of all experiments, and the window and gene
+ *     counters of the output with their counts. It is written last, to a temporary file that then replaces the
+ *     previous one, so an interrupted run leaves the previous state usable.
+ * Start counts are stored as their non-zero positions only (see SAMSequenceCountingDict.writeCounts()). All
+ * files start with a description of the annotations and counting parameters, and a state is only used by a run
+ * with the same description.
+ */
+public class RunState {
+
+	static final Logger logger = Logger.getLogger(RunState.class.getName());
+
+	static final int MAGIC = 0x45534153;     // "ESAS"
+	static final int VERSION = 1;
+
+	private File dir;
+	private String description;
+
+	private SAMSequenceDictionary sequences;
+	private MemoryPlanner.Representation representation;
+	private List<String> experiments = new ArrayList<String>();                          // in the order they were added
+	private HashMap<String, String> countFiles = new HashMap<String, String>();          // experiment -> start count file in dir
+	private HashMap<String, ArrayList<File>> bamFiles = new HashMap<String, ArrayList<File>>();
+
+	/* counters of the saved output (only after restoreCounts()) */
+	private List<String> columns = new ArrayList<String>();
+	private HashMap<String, float[]> windowCounts = new HashMap<String, float[]>();
+
+	private RunState(File dir, String description) {
+		this.dir = dir;
+		this.description = description;
+	}
+
+	public static File getDirectory(File outFile) {
+		return new File(outFile.getAbsolutePath()+".state");
+	}
+
+	/* A new state for the run writing outFile. The experiments of previous (if not null) are carried over, and
+	 * their start count files copied if the state is written to another directory; otherwise any state of an
+	 * earlier run with the same output name is removed. */
+	public static RunState create(File outFile, String description, RunState previous) throws IOException {
+		RunState state = new RunState(getDirectory(outFile), description);
+		if (!state.dir.isDirectory() && !state.dir.mkdirs()) {
+			throw new IOException("Could not create the state directory "+state.dir);
+		}
+		boolean sameDir = previous!=null && previous.dir.getCanonicalFile().equals(state.dir.getCanonicalFile());
+		if (!sameDir) {
+			File[] old = state.dir.listFiles();
+			for (File f:old) {
+				if (f.getName().equals("run.state") || (f.getName().startsWith("exp-") && f.getName().endsWith(".counts"))) {
+					f.delete();
+				}
+			}
+		}
+		if (previous!=null) {
+			for (String exp:previous.experiments) {
+				String name = previous.countFiles.get(exp);
+				if (!sameDir) {
+					Files.copy(new File(previous.dir, name).toPath(), new File(state.dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				state.experiments.add(exp);
+				state.countFiles.put(exp, name);
+				state.bamFiles.put(exp, previous.bamFiles.get(exp));
+			}
+		}
+		return state;
+	}
+
+	/* Opens the state saved with the run that wrote outFile. The start counts and counters are read by
+	 * restoreCounts(). */
+	public static RunState load(File outFile, String description) throws IOException {
+		RunState state = new RunState(getDirectory(outFile), description);
+		File runFile = new File(state.dir, "run.state");
+		if (!runFile.exists()) {
+			logger.error("No saved state "+runFile+" found; run NewESAT with -saveState first.");
+			throw new IOException("No saved state "+runFile);
+		}
+		DataInputStream in = state.open(runFile);
+		try {
+			state.readHeader(in);
+		} finally {
+			in.close();
+		}
+		logger.info("Loaded the state of "+state.experiments.size()+" experiments from "+state.dir);
+		return state;
+	}
+
+	public MemoryPlanner.Representation getRepresentation() {
+		return representation;
+	}
+
+	/* experiments of the saved run, in the order they were added, and their alignment files */
+	public List<String> getExperiments() {
+		return experiments;
+	}
+
+	public HashMap<String, ArrayList<File>> getBamFiles() {
+		return bamFiles;
+	}
+
+	/* Reads the saved reference sequences and pooled start counts into bamDict (an empty dictionary of the saved
+	 * representation), and the saved counters. */
+	public void restoreCounts(SAMSequenceCountingDict bamDict) throws IOException {
+		DataInputStream in = open(new File(dir, "run.state"));
+		try {
+			readHeader(in);
+			bamDict.copySequences(sequences);
+			bamDict.readCounts(in);
+			columns = Checkpoint.readStrings(in);
+			int n = in.readInt();
+			for (int i=0; i<n; i++) {
+				String key = Checkpoint.readString(in);
+				float[] counts = new float[columns.size()];
+				for (int c=0; c<counts.length; c++) {
+					counts[c] = in.readFloat();
+				}
+				windowCounts.put(key, counts);
+			}
+		} finally {
+			in.close();
+		}
+		logger.info("Restored the pooled read start counts and "+windowCounts.size()+" window and gene counters from "+dir);
+	}
+
+	/* experiment (column) names of the saved counters */
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	/* the saved counts of a counter, or null if the saved output had no counter with the same key */
+	public float[] getWindowCounts(String key) {
+		return windowCounts.get(key);
+	}
+
+	/* a counter is identified by its strand, reference and name (which includes the window coordinates) */
+	static String counterKey(String strand, String chr, String name) {
+		return strand+"\t"+chr+"\t"+name;
+	}
+
+	/*************************************************************************************
+	 * per-experiment start counts
+	 *************************************************************************************/
+
+	public void writeExperimentCounts(String exp, ArrayList<File> files, SAMSequenceCountingDict counts) throws IOException {
+		String name = "exp-"+experiments.size()+".counts";
+		File tmp = new File(dir, name+".tmp");
+		DataOutputStream out = create(tmp);
+		out.writeUTF(exp);
+		counts.writeCounts(out);
+		out.close();
+		Checkpoint.replace(tmp, new File(dir, name));
+		experiments.add(exp);
+		countFiles.put(exp, name);
+		bamFiles.put(exp, files);
+	}
+
+	/* the start counts of an experiment, in a new dictionary like template (which provides the representation and
+	 * the sequences) */
+	public SAMSequenceCountingDict readExperimentCounts(String exp, SAMSequenceCountingDict template) throws IOException {
+		File f = new File(dir, countFiles.get(exp));
+		DataInputStream in = open(f);
+		try {
+			if (!in.readUTF().equals(exp)) {
+				throw new IOException(f+" does not hold the start counts of experiment "+exp);
+			}
+			SAMSequenceCountingDict counts = template.newInstance();
+			counts.setLogger(template.logger);
+			counts.copySequences(template);
+			counts.readCounts(in);
+			return counts;
+		} finally {
+			in.close();
+		}
+	}
+
+	public long getExperimentCountsBytes(String exp) {
+		return new File(dir, countFiles.get(exp)).length();
+	}
+
+	/*************************************************************************************
+	 * run.state
+	 *************************************************************************************/
+
+	/* saves the pooled start counts and the counters of the output, completing the state */
+	public void write(SAMSequenceCountingDict bamDict, MemoryPlanner.Representation rep,
+					HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree, ExperimentMap eMap) throws IOException {
+		File tmp = new File(dir, "run.state.tmp");
+		DataOutputStream out = create(tmp);
+		out.writeInt(bamDict.size());
+		for (SAMSequenceRecord seq:bamDict.getSequences()) {
+			out.writeUTF(seq.getSequenceName());
+			out.writeInt(seq.getSequenceLength());
+		}
+		out.writeUTF(rep.name());
+		out.writeInt(experiments.size());
+		for (String exp:experiments) {
+			out.writeUTF(exp);
+			out.writeUTF(countFiles.get(exp));
+			List<String> files = new ArrayList<String>();
+			for (File f:bamFiles.get(exp)) {
+				files.add(f.getAbsolutePath());
+			}
+			Checkpoint.writeStrings(out, files);
+		}
+		bamDict.writeCounts(out);
+
+		List<String> cols = new ArrayList<String>();
+		for (int i=0; i<eMap.getNexp(); i++) {
+			cols.add(eMap.getName(i));
+		}
+		Checkpoint.writeStrings(out, cols);
+		List<String> keys = new ArrayList<String>();
+		List<EventCounter> counters = new ArrayList<EventCounter>();
+		for (String strand:new TreeMap<String, HashMap<String, IntervalTree<EventCounter>>>(windowTree).keySet()) {
+			for (String chr:new TreeMap<String, IntervalTree<EventCounter>>(windowTree.get(strand)).keySet()) {
+				Iterator<EventCounter> eIter = windowTree.get(strand).get(chr).valueIterator();
+				while (eIter.hasNext()) {
+					EventCounter e = eIter.next();
+					keys.add(counterKey(strand, chr, e.getName()));
+					counters.add(e);
+				}
+			}
+		}
+		out.writeInt(counters.size());
+		for (int i=0; i<counters.size(); i++) {
+			Checkpoint.writeString(out, keys.get(i));
+			for (int c=0; c<cols.size(); c++) {
+				out.writeFloat(counters.get(i).getCounts(c));
+			}
+		}
+		out.close();
+		Checkpoint.replace(tmp, new File(dir, "run.state"));
+		logger.info("Saved the state of "+experiments.size()+" experiments to "+dir);
+	}
+
+	/* sequences, representation and experiments */
+	private void readHeader(DataInputStream in) throws IOException {
+		int nSeq = in.readInt();
+		List<SAMSequenceRecord> seqs = new ArrayList<SAMSequenceRecord>();
+		for (int i=0; i<nSeq; i++) {
+			String name = in.readUTF();
+			seqs.add(new SAMSequenceRecord(name, in.readInt()));
+		}
+		sequences = new SAMSequenceDictionary(seqs);
+		representation = MemoryPlanner.Representation.valueOf(in.readUTF());
+		experiments.clear();
+		int nExp = in.readInt();
+		for (int i=0; i<nExp; i++) {
+			String exp = in.readUTF();
+			experiments.add(exp);
+			countFiles.put(exp, in.readUTF());
+			ArrayList<File> files = new ArrayList<File>();
+			for (String f:Checkpoint.readStrings(in)) {
+				files.add(new File(f));
+			}
+			bamFiles.put(exp, files);
+		}
+	}
+
+	private DataOutputStream create(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1<<16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		Checkpoint.writeString(out, description);
+		return out;
+	}
+
+	private DataInputStream open(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16));
+		if (in.readInt()!=MAGIC || in.readInt()!=VERSION) {
+			in.close();
+			throw new IOException(f+" is not a saved state of this version of NewESAT");
+		}
+		if (!Checkpoint.readString(in).equals(description)) {
+			in.close();
+			logger.error("The saved state "+f+" was written with different annotations or counting parameters; "+
+						"experiments can only be added with the same ones.");
+			throw new IOException("Saved state does not match this run");
+		}
+		return in;
+	}
+}
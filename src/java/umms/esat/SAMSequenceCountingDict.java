@@ -2,6 +2,11 @@ package umms.esat;
 
 import umms.esat.Window;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -9,7 +14,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
 
 
 import net.sf.samtools.SAMRecord;
@@ -25,6 +29,7 @@ import broad.core.math.ScanStatistics;
 import umms.core.annotation.Annotation;
 import umms.core.annotation.Annotation.Strand;
 import umms.core.annotation.Gene;
+import umms.core.annotation.TranscriptTable;
 
 abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
 /**
@@ -116,28 +121,28 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     }
     
 //    public LinkedList<Window> countWindowedReadStarts(final Set<Annotation> eSet, 
-   	public TranscriptCountInfo countWindowedReadStarts(final Set<Annotation> eSet,    
+   	public TranscriptCountInfo countWindowedReadStarts(final TranscriptTable transcripts,
+    		final int t,
     		final HashMap<String, HashMap<String,IntervalTree<String>>> iTree,
     		final int window, 
     		final int overlap, 
     		final int extend,
     		String task,
-    		final Gene gene,
     		float pValThresh,
     		boolean allWindows) {
     	/**
     	 * sums the count of all reads starting within sliding windows across all of the 
-    	 * exons in this Set. An array is created by concatenating the exons and extending by
+    	 * exons of transcript t. An array is created by concatenating the exons and extending by
     	 * "extend" bases, then a window is stepped across the array overlapping "overlap" bases 
     	 * with the previous window, counting the number of reads in each window.  
     	 * 
-    	 * @param	eSet	a Set of Annotations defining the boundaries of a set of exons
+    	 * @param	transcripts	the transcripts of the annotations
+    	 * @param	t	the transcript in transcripts
     	 * @param	iTree	an interval tree containing ...
     	 * @param	window	sliding window width
     	 * @param	overlap	overlap from one sliding window position and the next
     	 * @param	extend	maximum number of bases to extend past the boundary of the transcript
     	 * @param	task	library source 3' ("score3p") or 5' ("score5p")
-    	 * @param	gene	source gene for this exon set
     	 * @param	pValThresh	if only "significant" windows are being processed, this indicates
     	 * 						the significance threshold. Windows with a p-value of greater than 
     	 * 						this value are ignored. If this value is 1.0, it indicates that 
@@ -153,7 +158,6 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	String gStrand;   // strand of the gene
     	int localExtend = extend;    // default extension
     	IntervalTree<String> exonTree = new IntervalTree<String>();
-		String oStr = null;
 		boolean sigTesting;
 		double lambda;
 		
@@ -170,21 +174,17 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	LinkedList<Window> wList = new LinkedList<Window>();    
 
     	// get the gene strand
-    	if (gene.isNegativeStrand()) {
+    	if (transcripts.isNegativeStrand(t)) {
     		gStrand = "-";
     	} else {
     		gStrand = "+";
     	}
 
     	/* get the BED file segment to which this segment is aligned: */
-    	Iterator<Annotation> eIter = eSet.iterator();    // iterator over the exons
-    	Annotation e = eIter.next(); 
-    	String chr = e.getChr();
-    	String strand = e.getStrand().toString();
-    	int nExons = eSet.size();      // number of exons for this gene
-    	
-    	// reset the iterator:
-    	eIter = eSet.iterator();
+    	String gName = transcripts.getName(t);
+    	String chr = transcripts.getChr(t);
+    	String strand = transcripts.getStrand(t).toString();
+    	int nExons = transcripts.getExonCount(t);      // number of exons for this gene
 
     	/* Step 1: determine the start and end coordinate range for this gene, and the total number
     	 * of bases over all exons.
@@ -192,16 +192,13 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	int gMin = Integer.MAX_VALUE;
     	int gMax = 0;
     	int tLen = 0;   // transcript length, in bases
-    	int eID = 0;    // exon ID
 
-    	while (eIter.hasNext()) {
-    		e = eIter.next();
-    		eStart = e.getStart();
-    		eEnd = e.getEnd();
+    	for (int eID=0; eID<nExons; eID++) {
+    		eStart = transcripts.getExonStart(t, eID);
+    		eEnd = transcripts.getExonEnd(t, eID);
 
     		// add an interval to the interval tree:
-    		exonTree.put(eStart,  eEnd, gene.getName()+".e"+eID);
-    		eID++;
+    		exonTree.put(eStart,  eEnd, gName+".e"+eID);
     		
     		/* find earliest start and latest end */
     		if (eStart<gMin) {
@@ -218,79 +215,14 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	/* Step 2: Determine the maximum length, up to "extend" bases, that the transcript can be extended without
     	 * overlapping a nearby gene. This will be the new value of "localExtend"
     	 */
-    	//if (gStrand.equals("-")) {
-    	if ((gStrand.equals("-") && task.equals("score3p")) || (gStrand.equals("+") && task.equals("score5p"))) {
-    		/* "-" strand (with 3prime libraries, or "+" strand with 5prime libraries) */
-    		eStart = exonTree.min().getStart();           // "leftmost" transcript genomic coordinate
-    		int minExt = Math.max(0, eStart-extend);      // initial minimum of extension
-    		int maxExt = eStart;
-    		if (iTree.get(strand).get(chr).numOverlappers(minExt, maxExt) > 0) {
-    			// trim overlap
-    			Iterator<Node<String>> iIter = iTree.get(strand).get(chr).overlappers(minExt, maxExt);
-    			oStr = null;
-    			while (iIter.hasNext()) {
-    				Node<String> n = iIter.next();
-    				// construct string of names of overlappers
-    				String iName = n.getValue();
-    				if (oStr==null) {
-    					oStr = iName;
-    				} else {
-    					oStr += ","+iName;
-    				}
-    				int iEnd = n.getEnd();
-    				if (iEnd>minExt) {
-    					minExt = Math.min(iEnd,maxExt);   
-    				}
-    			}
-    		}
-			localExtend = maxExt-minExt;   // final extension value
-			if (localExtend<extend) {
-				logger.warn("Gene "+gene.getName()+" ("+strand+") extension overlaps "+oStr+". "+extend+"-base extension shortened to "+localExtend);
-			}
-			// if the there is an extension past the transcript, andd an interval to the tree:
-			if (localExtend>0) {
-				exonTree.put(minExt, maxExt, gene.getName()+".ext");
-			}
-    	} else {
-    		/* "+" strand (with 3prime libraries, or "-" strand with 5prime libraries) */
-    		eEnd = exonTree.max().getEnd();             // "rightmost" transcript genomic coordinate
-    		int minExt = eEnd;
-    		int maxExt = Math.min(eEnd+extend, getChrLength(chr));  // initial maximum of extension 
-    		if (iTree.get(strand).get(chr).numOverlappers(minExt, maxExt) > 0) {
-    			// trim overlap
-    			Iterator<Node<String>> iIter = iTree.get(strand).get(chr).overlappers(minExt, maxExt);
-    			oStr = null;
-    			while (iIter.hasNext()) {
-    				Node<String> n = iIter.next();
-    				// construct string of names of overlappers
-    				String iName = n.getValue();
-    				if (oStr==null) {
-    					oStr = iName;
-    				} else {
-    					oStr += ","+iName;
-    				}
-    				int iStart = n.getStart();
-    				if (iStart<maxExt) {
-    					maxExt = Math.max(iStart,minExt);   
-    				}
-    			}
-    		}
-			localExtend = maxExt-minExt;   // final extension value
-			if (localExtend<extend) {
-				logger.warn("Gene "+gene.getName()+" ("+strand+") extension overlaps "+oStr+". "+extend+"-base extension shortened to "+localExtend);
-			}
-			// if the there is an extension past the transcript, add an interval to the tree:
-			if (localExtend>0) {
-				exonTree.put(minExt, maxExt, gene.getName()+".ext");
-			}
-    	}
+    	localExtend = extendExonTree(exonTree, iTree, extend, task, gName, gStrand, strand, chr);
     	
     	/* Step 3: Copy the counts and genomic coordinates for all locations within
     	 * this gene's transcript, plus the extension.
     	 */
     	/* allocate the storage */
     	floatCounts = new float[tLen+localExtend];
-    	gCoords = new int[tLen+localExtend];
+    	gCoords = getTranscriptCoords(transcripts, t, gMin, gMax, tLen, localExtend, gStrand, task);
     	int cStart = 0;     // index of where to start copying
 
     	/* If 3' library and negative strand, or 5' library and positive strand copy counts and genomic coordinates 
@@ -302,22 +234,14 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     		eStart = gMin-localExtend;
     		eLen = localExtend;
 			copyToLocalCounts(chr, gStrand, eStart, cStart, eLen, floatCounts);
-			for (int i=0; i<localExtend; i++) {
-				gCoords[cStart+i] = eStart+i;      // corresponding genomic coordinates of the counts
-    		}
 			cStart+=localExtend;
     	}
     	
     	/* For all exons, copy the counts and genomic coordinates */
-    	eIter = eSet.iterator();
-    	while (eIter.hasNext()) {
-    		e = eIter.next();
-    		eStart = e.getStart();
-    		eLen = e.getEnd()-e.getStart();
+    	for (int eID=0; eID<nExons; eID++) {
+    		eStart = transcripts.getExonStart(t, eID);
+    		eLen = transcripts.getExonEnd(t, eID)-eStart;
 			copyToLocalCounts(chr, gStrand, eStart, cStart, eLen, floatCounts);
-    		for (int i=0; i<eLen; i++) {
-    			gCoords[cStart+i] = eStart+i;
-    		}
     		cStart+=eLen;
     	}
     	
@@ -330,9 +254,6 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     		eStart = gMax;   // +1?
     		eLen = localExtend;
 			copyToLocalCounts(chr, gStrand, eStart, cStart, eLen, floatCounts);
-			for (int i=0; i<localExtend; i++) {
-				gCoords[cStart+i] = eStart+i;      // corresponding genomic coordinates of the counts
-    		}
 			cStart+=localExtend;
     	}
     	
@@ -365,7 +286,7 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
 			if (countSum>0.0) {
 				if (sigTesting && ScanStatistics.calculatePVal((int)countSum, lambda, (double)window, (double)aLen)>pValThresh) {
 				} else {
-					Window thisWindow = new Window(gStrand, chr, gCoords[sumStart], gCoords[sumEnd], gene.getName());
+					Window thisWindow = new Window(gStrand, chr, gCoords[sumStart], gCoords[sumEnd], gName);
 					thisWindow.setCount(countSum);    // update count for this window
 					// if the gene has more than one exon, check to see if the window spans more than one
 					if (nExons > 1) {
@@ -384,7 +305,7 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     			if (countSum>0.0) {
     				if (sigTesting && ScanStatistics.calculatePVal((int)countSum, lambda, (double)window, (double)aLen)>pValThresh) {
     				} else {
-    					Window thisWindow = new Window(gStrand, chr, gCoords[sumStart], gCoords[sumEnd], gene.getName(),
+    					Window thisWindow = new Window(gStrand, chr, gCoords[sumStart], gCoords[sumEnd], gName,
     													sumStart, sumEnd);
     					thisWindow.setCount(countSum);    // update count for this window
     					// if the gene has more than one exon, check to see if the window spans more than one
@@ -406,64 +327,181 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	// contiguous set of overlapping windows:
     	if (!allWindows & wList.size()>1) {
     		// Since the windows are added from lowest to highest genomic coordinates, two successive windows
-    		// where the start of one is less than the beginning of the previous one overlap.
+    		// where the start of one is less than the beginning of the previous one overlap. One pass over the
+    		// windows finds each block of overlapping windows; the windows of a block are marked in olapSet.
     		/* set the initial interval conditions */
+    		ArrayList<Window> wArray = new ArrayList<Window>(wList);   // indexed access to the windows
         	LinkedList<Window> bestList = new LinkedList<Window>();    // list of "best" replacement windows    
-    		int iStart = wList.get(0).getRelStart();   // start of interval
-    		int iEnd = wList.get(0).getRelEnd();       // end of interval   
+    		int iStart = wArray.get(0).getRelStart();   // start of interval
+    		int iEnd = wArray.get(0).getRelEnd();       // end of interval   
     		int idxStart = 0;	// index of first (possibly) overlapping window
-    		Vector<Integer> olapList = new Vector<Integer>();  // list of windows to remove from this gene
-    		int wCount = 1;     // overlapping window counter
-    		for (int i=1; i<wList.size(); i++) {
-    			if (wList.get(i).getRelStart()<=iEnd) {
-    				// update the list of overlapping windows
-    				if (!olapList.contains(idxStart)) {
-    					olapList.add(idxStart);   // make sure the start of this group is added to the list of windows to remove
-    				}
-    				olapList.add(i);   // add this window to the list
-    				iEnd = wList.get(i).getRelEnd();
-    				wCount+=1;         // update the overlapping window count
+    		BitSet olapSet = new BitSet(wArray.size());  // windows to remove from this gene
+    		for (int i=1; i<=wArray.size(); i++) {
+    			if (i<wArray.size() && wArray.get(i).getRelStart()<=iEnd) {
+    				iEnd = wArray.get(i).getRelEnd();   // extend the block of overlapping windows
     			} else {
-    				if (wCount>1) {
-        				// process any overlapping windows
+    				if (i-idxStart>1) {
+        				// process the overlapping windows idxStart..i-1
     					Window bestWindow = findBestWindow(iStart, iEnd, gCoords, floatCounts, 
-    												window, nExons, chr, gStrand, gene.getName(), exonTree);
+    												window, nExons, chr, gStrand, gName, exonTree);
     					// add the best window to the bestWindow list:
     					bestList.add(bestWindow);
+    					olapSet.set(idxStart, i);
+    				}
+    				if (i<wArray.size()) {
+    					// reset the window parameters:
+    					iStart = wArray.get(i).getRelStart();
+    					iEnd = wArray.get(i).getRelEnd();
+    					idxStart = i;
     				}
-					// reset the window parameters:
-					iStart = wList.get(i).getRelStart();
-					iEnd = wList.get(i).getRelEnd();
-					idxStart = i;
-					wCount = 1;
     			}
     		}
-    		// if there is a block of windows left, process them:
-    		if (wCount>1) {
-    			// process any overlapping windows
-				Window bestWindow = findBestWindow(iStart, iEnd, gCoords, floatCounts, 
-													window, nExons, chr, gStrand, gene.getName(), exonTree);
-				// add the best window to the bestWindow list:
-				bestList.add(bestWindow);
-    		}
     		// Add any non-overlapping windows from the original list to the best window list:
-    		for (int wIdx=0; wIdx<wList.size(); wIdx++) {
-    			if (!olapList.contains(wIdx)) {
-    				bestList.add(wList.get(wIdx));
-    			}
+    		for (int wIdx=olapSet.nextClearBit(0); wIdx<wArray.size(); wIdx=olapSet.nextClearBit(wIdx+1)) {
+    			bestList.add(wArray.get(wIdx));
     		}
     		// Finally, replace the original window list with the best window list:
     		wList = bestList;
     	}
 
     	// Create output object containing the windows and transcript ranges:
-    	IntervalTree<String> gTree = makeITreeFromCoords(gCoords, gene);
-    	TranscriptCountInfo tInfo = new TranscriptCountInfo(gene.getName(), strand, wList, gTree);
+    	IntervalTree<String> gTree = makeITreeFromCoords(gCoords, gName);
+    	TranscriptCountInfo tInfo = new TranscriptCountInfo(gName, strand, wList, gTree);
     	
     	//return wList;
     	return tInfo;
     }
 
+    /* adds the extension of a gene past its 3' end (5' end for "score5p"), up to "extend" bases but not into the exons of 
+     * another gene (iTree), to its exonTree; returns the length of the extension */
+    private int extendExonTree(IntervalTree<String> exonTree, final HashMap<String, HashMap<String,IntervalTree<String>>> iTree,
+    							int extend, String task, String gName, String gStrand, String strand, String chr) {
+    	int eStart;
+    	int eEnd;
+    	int localExtend;
+    	String oStr = null;
+    	//if (gStrand.equals("-")) {
+    	if ((gStrand.equals("-") && task.equals("score3p")) || (gStrand.equals("+") && task.equals("score5p"))) {
+    		/* "-" strand (with 3prime libraries, or "+" strand with 5prime libraries) */
+    		eStart = exonTree.min().getStart();           // "leftmost" transcript genomic coordinate
+    		int minExt = Math.max(0, eStart-extend);      // initial minimum of extension
+    		int maxExt = eStart;
+    		if (iTree.get(strand).get(chr).numOverlappers(minExt, maxExt) > 0) {
+    			// trim overlap
+    			Iterator<Node<String>> iIter = iTree.get(strand).get(chr).overlappers(minExt, maxExt);
+    			oStr = null;
+    			while (iIter.hasNext()) {
+    				Node<String> n = iIter.next();
+    				// construct string of names of overlappers
+    				String iName = n.getValue();
+    				if (oStr==null) {
+    					oStr = iName;
+    				} else {
+    					oStr += ","+iName;
+    				}
+    				int iEnd = n.getEnd();
+    				if (iEnd>minExt) {
+    					minExt = Math.min(iEnd,maxExt);   
+    				}
+    			}
+    		}
+			localExtend = maxExt-minExt;   // final extension value
+			if (localExtend<extend) {
+				logger.warn("Gene "+gName+" ("+strand+") extension overlaps "+oStr+". "+extend+"-base extension shortened to "+localExtend);
+			}
+			// if the there is an extension past the transcript, andd an interval to the tree:
+			if (localExtend>0) {
+				exonTree.put(minExt, maxExt, gName+".ext");
+			}
+    	} else {
+    		/* "+" strand (with 3prime libraries, or "-" strand with 5prime libraries) */
+    		eEnd = exonTree.max().getEnd();             // "rightmost" transcript genomic coordinate
+    		int minExt = eEnd;
+    		int maxExt = Math.min(eEnd+extend, getChrLength(chr));  // initial maximum of extension 
+    		if (iTree.get(strand).get(chr).numOverlappers(minExt, maxExt) > 0) {
+    			// trim overlap
+    			Iterator<Node<String>> iIter = iTree.get(strand).get(chr).overlappers(minExt, maxExt);
+    			oStr = null;
+    			while (iIter.hasNext()) {
+    				Node<String> n = iIter.next();
+    				// construct string of names of overlappers
+    				String iName = n.getValue();
+    				if (oStr==null) {
+    					oStr = iName;
+    				} else {
+    					oStr += ","+iName;
+    				}
+    				int iStart = n.getStart();
+    				if (iStart<maxExt) {
+    					maxExt = Math.max(iStart,minExt);   
+    				}
+    			}
+    		}
+			localExtend = maxExt-minExt;   // final extension value
+			if (localExtend<extend) {
+				logger.warn("Gene "+gName+" ("+strand+") extension overlaps "+oStr+". "+extend+"-base extension shortened to "+localExtend);
+			}
+			// if the there is an extension past the transcript, add an interval to the tree:
+			if (localExtend>0) {
+				exonTree.put(minExt, maxExt, gName+".ext");
+			}
+    	}
+    	return localExtend;
+    }
+    
+    /* the genomic coordinates of the concatenated exons of a gene and its extension (of localExtend bases, before the 
+     * first exon or after the last one, depending on the strand and the task), in the order their counts are copied */
+    private static int[] getTranscriptCoords(final TranscriptTable transcripts, int t, int gMin, int gMax, int tLen, 
+    											int localExtend, String gStrand, String task) {
+    	int[] gCoords = new int[tLen+localExtend];
+    	int cStart = 0;
+    	if ((gStrand.equals("-") && task.equals("score3p")) || (gStrand.equals("+") && task.equals("score5p"))) {
+    		for (int i=0; i<localExtend; i++) {
+    			gCoords[cStart+i] = gMin-localExtend+i;
+    		}
+    		cStart+=localExtend;
+    	}
+    	for (int e=0; e<transcripts.getExonCount(t); e++) {
+    		int eStart = transcripts.getExonStart(t, e);
+    		int eLen = transcripts.getExonEnd(t, e)-eStart;
+    		for (int i=0; i<eLen; i++) {
+    			gCoords[cStart+i] = eStart+i;
+    		}
+    		cStart+=eLen;
+    	}
+    	if ((gStrand.equals("+") && task.equals("score3p")) || (gStrand.equals("-") && task.equals("score5p"))) {
+    		for (int i=0; i<localExtend; i++) {
+    			gCoords[cStart+i] = gMax+i;
+    		}
+    	}
+    	return gCoords;
+    }
+    
+    /* -geneOnly: the gene-level counting interval of a gene (its exons and extension, as in countWindowedReadStarts()),
+     * without any windows; no read start counts are needed */
+    public TranscriptCountInfo getGeneCountInfo(final TranscriptTable transcripts, final int t,
+    		final HashMap<String, HashMap<String,IntervalTree<String>>> iTree, final int extend, String task) {
+    	String gName = transcripts.getName(t);
+    	String gStrand = transcripts.isNegativeStrand(t) ? "-" : "+";
+    	String chr = transcripts.getChr(t);
+    	String strand = transcripts.getStrand(t).toString();
+    	IntervalTree<String> exonTree = new IntervalTree<String>();
+    	int gMin = Integer.MAX_VALUE;
+    	int gMax = 0;
+    	int tLen = 0;
+    	for (int eID=0; eID<transcripts.getExonCount(t); eID++) {
+    		int eStart = transcripts.getExonStart(t, eID);
+    		int eEnd = transcripts.getExonEnd(t, eID);
+    		exonTree.put(eStart, eEnd, gName+".e"+eID);
+    		gMin = Math.min(gMin, eStart);
+    		gMax = Math.max(gMax, eEnd);
+    		tLen += eEnd-eStart;
+    	}
+    	int localExtend = extendExonTree(exonTree, iTree, extend, task, gName, gStrand, strand, chr);
+    	int[] gCoords = getTranscriptCoords(transcripts, t, gMin, gMax, tLen, localExtend, gStrand, task);
+    	return new TranscriptCountInfo(gName, strand, new LinkedList<Window>(), makeITreeFromCoords(gCoords, gName));
+    }
+    
    	public Window findBestWindow(int iStart, int iEnd, int[] gCoords, float[] counts, 
    									int wLen, int nExons, String chr, String strand, String gName, IntervalTree<String> eTree) {
    		// Slide a window of width wLen across the region, and find the window position with the highest counts:
@@ -518,11 +556,8 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	return lambda;
     }
 
-    private IntervalTree<String> makeITreeFromCoords(int[] coords, Gene gene) {
+    private IntervalTree<String> makeITreeFromCoords(int[] coords, String gName) {
     	IntervalTree<String> myTree = new IntervalTree<String>();
-    	
-    	// use the gene name as the node name:
-    	String gName = gene.getName();
 
     	// scan through the coordinates to locate discontinuities:
     	// initialize:
@@ -575,12 +610,24 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     												String task,
     												float pValThresh,
     												boolean allWindows) {
+    	return countWindowedTranscriptReadStarts(new TranscriptTable(annotations), null, window, overlap, extend, task, pValThresh, allWindows);
+    }
+    
+    public HashMap<String,HashMap<String, TranscriptCountInfo>> countWindowedTranscriptReadStarts (final TranscriptTable transcripts,
+    												final String refName,
+    												final int window, 
+    												final int overlap,
+    												final int extend,
+    												String task,
+    												float pValThresh,
+    												boolean allWindows) {
     	/**
     	 * counts the number of reads starting within each sliding window of "window" bases with and
     	 * overlap of "overlap" bases. The transcript is extended past the last exon "extend" bases past
     	 * the end of the last exon, unless it collides with the next gene in the Annotation Set.
     	 * 
-    	 * @param	annotations	a Map of all available Gene Annotations
+    	 * @param	transcripts	all available transcripts (see TranscriptTable)
+    	 * @param	refName	the only reference to count, or null for all of them
     	 * @param	window	the length of the sliding window, in bases
     	 * @param	overlap	as the window slides, the overlap of each window with the previous one
     	 * @param	extend	number of bases past the last exon to extend the counting
@@ -588,12 +635,9 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	 * @param	pValThresh	p-value threshold for significance testing
     	 */
     	// countsMap[chr][transID][Window]
-//    	HashMap<String,HashMap<String,LinkedList<Window>>> countsMap = 
-//    			new HashMap<String,HashMap<String,LinkedList<Window>>>();
     	HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap =     	
     			new HashMap<String,HashMap<String,TranscriptCountInfo>>();   
     	
-    	//LinkedList<Window> eCount;  
     	TranscriptCountInfo eCount;
     	// iTree[strand][chromosome]<tree>
     	HashMap<String, HashMap<String, IntervalTree<String>>> iTree = new HashMap<String, HashMap<String, IntervalTree<String>>>();
@@ -601,41 +645,21 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	iTree.put("-", new HashMap<String, IntervalTree<String>>());
 
 		// Iterate over all "chromosomes":
-    	for(String chr:annotations.keySet()){
-    		/* Build strand-specific IntervalTrees containing all exons for this segment */
-    		iTree.get("+").put(chr, new IntervalTree<String>());
-    		iTree.get("-").put(chr, new IntervalTree<String>());
-			// Iterate over all transcripts:
-    		for(Gene gene : annotations.get(chr)) {
-				Set eSet = gene.getExonSet();
-				String gName = gene.getName();   // gene/transcript name
-				Iterator<Annotation> eIter = eSet.iterator();
-				int eID = 0;    // exon ID
-				while (eIter.hasNext()) {
-					Annotation exon = eIter.next();
-					int eStart = exon.getStart();
-					int eEnd = exon.getEnd();
-					Strand strand = exon.getStrand();
-					String intervalName = gName+"_"+eID;
-					if (strand.toString().equals("+")) {
-						// forward strand interval tree
-						iTree.get("+").get(chr).put(eStart, eEnd, intervalName);
-					} else {
-						iTree.get("-").get(chr).put(eStart, eEnd, intervalName);
-					}						
-					eID++;	// increment the exon ID
-				}
+    	for(String chr:transcripts.getReferences()){
+    		if (refName!=null && !refName.equals(chr)) {
+    			continue;
     		}
+    		/* Build strand-specific IntervalTrees containing all exons for this segment */
+    		addExonIntervals(iTree, chr, transcripts);
 
+			// skip any chromosomes/segments that were not observed in the alignments files:
+			if (!startCountsHasKey(chr)) {
+				continue;
+			}
+			
     		// Count windowed read starts over all genes:
-    		for(Gene gene : annotations.get(chr)) {
-    			String gName = gene.getName();
-				Set eSet = gene.getExonSet();
-				
-				// skip any chromosomes/segments that were not observed in the alignments files:
-				if (!startCountsHasKey(chr)) {
-					continue;
-				}
+    		for(int t:transcripts.getTranscripts(chr)) {
+    			String gName = transcripts.getName(t);
 				
 				// test to see if this is a duplicate transcript:
 				if (countsMap.containsKey(chr)) {	
@@ -646,7 +670,7 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
 				}
 
 				// sum all counts starting within this exon set:
-				eCount = countWindowedReadStarts(eSet, iTree, window, overlap, extend, task, gene, pValThresh, allWindows);
+				eCount = countWindowedReadStarts(transcripts, t, iTree, window, overlap, extend, task, pValThresh, allWindows);
 				
 				// add this window set to the HashMap:
 				if (!countsMap.containsKey(chr)) {
@@ -660,6 +684,53 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	
     }    
     
+    /* adds strand-specific IntervalTrees containing all exons of the transcripts on chr to iTree */
+    private static void addExonIntervals(HashMap<String, HashMap<String, IntervalTree<String>>> iTree, String chr, TranscriptTable transcripts) {
+		iTree.get("+").put(chr, new IntervalTree<String>());
+		iTree.get("-").put(chr, new IntervalTree<String>());
+		// Iterate over all transcripts:
+		for(int t:transcripts.getTranscripts(chr)) {
+			String gName = transcripts.getName(t);   // gene/transcript name
+			// (exons of unstranded transcripts go to the "-" tree)
+			IntervalTree<String> tree = iTree.get(transcripts.getStrand(t)==Strand.POSITIVE ? "+" : "-").get(chr);
+			for (int eID=0; eID<transcripts.getExonCount(t); eID++) {
+				tree.put(transcripts.getExonStart(t, eID), transcripts.getExonEnd(t, eID), gName+"_"+eID);
+			}
+		}
+    }
+    
+    /* -geneOnly: the gene-level counting intervals of all genes (see getGeneCountInfo()), for the references of this
+     * dictionary; the result is keyed like that of countWindowedTranscriptReadStarts(), but has no windows */
+    public HashMap<String,HashMap<String, TranscriptCountInfo>> getGeneCountInfo(final Map<String,Collection<Gene>> annotations,
+    												final int extend, String task) {
+    	return getGeneCountInfo(new TranscriptTable(annotations), null, extend, task);
+    }
+    
+    /* as above, for the transcripts of one reference only, unless refName is null */
+    public HashMap<String,HashMap<String, TranscriptCountInfo>> getGeneCountInfo(final TranscriptTable transcripts, final String refName,
+    												final int extend, String task) {
+    	HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap = new HashMap<String,HashMap<String,TranscriptCountInfo>>();
+    	HashMap<String, HashMap<String, IntervalTree<String>>> iTree = new HashMap<String, HashMap<String, IntervalTree<String>>>();
+    	iTree.put("+", new HashMap<String, IntervalTree<String>>());
+    	iTree.put("-", new HashMap<String, IntervalTree<String>>());
+    	for (String chr:transcripts.getReferences()) {
+    		// (no reads can start on references that are not in the dictionary)
+    		if ((refName!=null && !refName.equals(chr)) || getSequence(chr)==null) {
+    			continue;
+    		}
+    		addExonIntervals(iTree, chr, transcripts);
+    		countsMap.put(chr, new HashMap<String,TranscriptCountInfo>());
+    		for (int t:transcripts.getTranscripts(chr)) {
+    			if (countsMap.get(chr).containsKey(transcripts.getName(t))) {
+    				logger.warn("Duplicate entry for transcript "+transcripts.getName(t)+". Skipping...");
+    				continue;
+    			}
+    			countsMap.get(chr).put(transcripts.getName(t), getGeneCountInfo(transcripts, t, iTree, extend, task));
+    		}
+    	}
+    	return countsMap;
+    }
+    
     public int getChrLength(String chr) {
     	//return startCounts.get(chr).length;
     	return getSequence(chr).getSequenceLength();
@@ -680,4 +751,87 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     abstract public void updateCount(SAMRecord r, String multimap, boolean stranded);
     abstract boolean startCountsHasKey(String chr);
     abstract float getStartCounts(String chr, String strand, int i);
+    /* an empty counting dictionary of the same representation (for counting files on separate threads) */
+    abstract SAMSequenceCountingDict newInstance();
+    /* add the start counts of other (same representation) to this dictionary; other must not be used afterwards (its arrays may be taken over) */
+    abstract void mergeCounts(SAMSequenceCountingDict other);
+    /* write/read the start counts in a compact binary form (only the non-zero positions); readCounts() expects 
+     * an empty dictionary with the same sequences */
+    abstract void writeCounts(DataOutputStream out) throws IOException;
+    abstract void readCounts(DataInputStream in) throws IOException;
+    
+    /* variable-length encoding of non-negative ints (7 bits per byte) */
+    static void writeVarInt(DataOutputStream out, int v) throws IOException {
+    	while ((v & ~0x7f)!=0) {
+    		out.writeByte((v & 0x7f)|0x80);
+    		v >>>= 7;
+    	}
+    	out.writeByte(v);
+    }
+    
+    static int readVarInt(DataInputStream in) throws IOException {
+    	int v = 0;
+    	for (int shift=0; ; shift+=7) {
+    		int b = in.readUnsignedByte();
+    		v |= (b & 0x7f)<<shift;
+    		if ((b & 0x80)==0) {
+    			return v;
+    		}
+    	}
+    }
+    
+    /* the non-zero entries of a, as their number followed by (distance to the previous entry, value) pairs */
+    static void writeNonZero(DataOutputStream out, float[] a) throws IOException {
+    	int n = 0;
+    	for (float x:a) {
+    		if (x!=0) {
+    			n++;
+    		}
+    	}
+    	writeVarInt(out, n);
+    	int last = 0;
+    	for (int i=0; i<a.length; i++) {
+    		if (a[i]!=0) {
+    			writeVarInt(out, i-last);
+    			out.writeFloat(a[i]);
+    			last = i;
+    		}
+    	}
+    }
+    
+    static void readNonZero(DataInputStream in, float[] a) throws IOException {
+    	int n = readVarInt(in);
+    	int i = 0;
+    	for (int k=0; k<n; k++) {
+    		i += readVarInt(in);
+    		a[i] = in.readFloat();
+    	}
+    }
+    
+    static void writeNonZero(DataOutputStream out, long[] a) throws IOException {
+    	int n = 0;
+    	for (long x:a) {
+    		if (x!=0) {
+    			n++;
+    		}
+    	}
+    	writeVarInt(out, n);
+    	int last = 0;
+    	for (int i=0; i<a.length; i++) {
+    		if (a[i]!=0) {
+    			writeVarInt(out, i-last);
+    			out.writeLong(a[i]);
+    			last = i;
+    		}
+    	}
+    }
+    
+    static void readNonZero(DataInputStream in, long[] a) throws IOException {
+    	int n = readVarInt(in);
+    	int i = 0;
+    	for (int k=0; k<n; k++) {
+    		i += readVarInt(in);
+    		a[i] = in.readLong();
+    	}
+    }
 }
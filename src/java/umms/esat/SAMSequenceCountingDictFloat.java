@@ -1,21 +1,29 @@
 package umms.esat;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMSequenceRecord;
 
+/* fractional (-multimap scale) counts, kept as fixed-point units (see ScaledCounts) so that their sums do not
+ * depend on the order the reads are counted in */
 public class SAMSequenceCountingDictFloat extends SAMSequenceCountingDict {
 	
-	protected HashMap<String, HashMap<String,float[]>> startCounts = new HashMap<String, HashMap<String, float[]>>(); 	
+	protected HashMap<String, HashMap<String,long[]>> startCounts = new HashMap<String, HashMap<String, long[]>>(); 	
 
 	// **** FLOATING-POINT version simply increments the count by x
     public void incrementStartCounts(String refName, String strand, int alignStart, float fractCount) {
-    	startCounts.get(refName).get(strand)[alignStart]+=fractCount;   // increment the counter
+    	startCounts.get(refName).get(strand)[alignStart]+=ScaledCounts.toUnits(fractCount);   // increment the counter
     }
 
     public void copyToLocalCounts(String chr, String strand, int eStart, int cStart, int eLen, float[] floatCounts) {
-    	System.arraycopy(startCounts.get(chr).get(strand), eStart, floatCounts, cStart, eLen);
+    	long[] counts = startCounts.get(chr).get(strand);
+    	for (int i=0; i<eLen; i++) {
+    		floatCounts[cStart+i] = ScaledCounts.toFloat(counts[eStart+i]);
+    	}
     }
     
     public void updateCount(final SAMRecord r, String multimap, boolean stranded) {
@@ -48,10 +56,10 @@ public class SAMSequenceCountingDictFloat extends SAMSequenceCountingDict {
     	if (cString!="*" && !startCounts.containsKey(refName)) {
     		// Find the maximum coordinate of the refName in the dictionary
     		SAMSequenceRecord seq = this.getSequence(refName);
-    		// Allocate a float array for storage of the number of reads starting at each location on each strand
-    		startCounts.put(refName, new HashMap<String, float[]>());
-    		startCounts.get(refName).put("+", new float[seq.getSequenceLength()]);   // forward strand
-    		startCounts.get(refName).put("-", new float[seq.getSequenceLength()]);   // forward strand
+    		// Allocate a long array for storage of the number of reads starting at each location on each strand
+    		startCounts.put(refName, new HashMap<String, long[]>());
+    		startCounts.get(refName).put("+", new long[seq.getSequenceLength()]);   // forward strand
+    		startCounts.get(refName).put("-", new long[seq.getSequenceLength()]);   // forward strand
     		
     	}
     	// Skip unaligned reads:
@@ -68,6 +76,50 @@ public class SAMSequenceCountingDictFloat extends SAMSequenceCountingDict {
     }
     
     public float getStartCounts(String chr, String strand, int i) {
-		return startCounts.get(chr).get(strand)[i];
+		return ScaledCounts.toFloat(startCounts.get(chr).get(strand)[i]);
+    }
+
+    SAMSequenceCountingDict newInstance() {
+    	return new SAMSequenceCountingDictFloat();
+    }
+
+    void mergeCounts(SAMSequenceCountingDict other) {
+    	HashMap<String, HashMap<String, long[]>> oCounts = ((SAMSequenceCountingDictFloat) other).startCounts;
+    	for (String chr:oCounts.keySet()) {
+    		if (!startCounts.containsKey(chr)) {
+    			startCounts.put(chr, oCounts.get(chr));
+    			continue;
+    		}
+    		for (String strand:oCounts.get(chr).keySet()) {
+    			long[] a = startCounts.get(chr).get(strand);
+    			long[] b = oCounts.get(chr).get(strand);
+    			for (int i=0; i<a.length; i++) {
+    				a[i] += b[i];
+    			}
+    		}
+    	}
+    }
+
+    void writeCounts(DataOutputStream out) throws IOException {
+    	out.writeInt(startCounts.size());
+    	for (String chr:startCounts.keySet()) {
+    		out.writeUTF(chr);
+    		writeNonZero(out, startCounts.get(chr).get("+"));
+    		writeNonZero(out, startCounts.get(chr).get("-"));
+    	}
+    }
+
+    void readCounts(DataInputStream in) throws IOException {
+    	int nChr = in.readInt();
+    	for (int c=0; c<nChr; c++) {
+    		String chr = in.readUTF();
+    		int len = getSequence(chr).getSequenceLength();
+    		startCounts.put(chr, new HashMap<String, long[]>());
+    		for (String strand:new String[] {"+", "-"}) {
+    			long[] a = new long[len];
+    			readNonZero(in, a);
+    			startCounts.get(chr).put(strand, a);
+    		}
+    	}
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,256 @@
+package umms.esat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import umms.core.annotation.Annotation;
+import umms.core.annotation.Gene;
+
+/**
+ * Counting dictionary that only stores read start counts for the bases that can contribute to a window:
+ * the exons of each annotated gene/transcript plus up to "extend" bases on either side of it (on the gene's
+ * strand). Read starts outside these regions are dropped, since they are never copied into a transcript's
+ * counts array. The counts are fixed-point units (see ScaledCounts), so this representation works for every
+ * -multimap mode, and fractional counts do not depend on the order they are added in.
+ *
+ * For each chromosome and strand the merged regions are kept as sorted start/end/offset arrays into a
+ * single long[] of counts, which is allocated the first time a read is seen on that chromosome.
+ */
+public class SAMSequenceCountingDictRestricted extends SAMSequenceCountingDict {
+
+	/* counted regions and counts for one chromosome strand */
+	static class RegionCounts {
+		int[] rStart;     // region starts (0-based, sorted)
+		int[] rEnd;       // region ends (exclusive)
+		int[] rOffset;    // offset of each region in counts[]
+		int length;       // total number of bases in all regions
+		long[] counts;
+
+		/* index of the region containing loc, or -1 */
+		int findRegion(int loc) {
+			int idx = Arrays.binarySearch(rStart, loc);
+			if (idx<0) {
+				idx = -idx-2;    // last region starting before loc
+			}
+			if (idx>=0 && loc<rEnd[idx]) {
+				return idx;
+			}
+			return -1;
+		}
+	}
+
+	private Map<String, Collection<Gene>> annotations;
+	private int extend;
+	protected HashMap<String, HashMap<String, RegionCounts>> startCounts = new HashMap<String, HashMap<String, RegionCounts>>();   // startCounts[chr][strand]
+
+	public SAMSequenceCountingDictRestricted(Map<String, Collection<Gene>> annotations, int extend) {
+		super();
+		this.annotations = annotations;
+		this.extend = extend;
+	}
+
+	/* merged regions (exons and extensions, padded by one base for the 1-based exon counting) of all genes on this 
+	 * strand. The counts array is not allocated. */
+	static RegionCounts makeRegions(Collection<Gene> genes, boolean negStrand, int extend, int chrLen) {
+		List<int[]> iv = new ArrayList<int[]>();
+		if (genes!=null) {
+			for (Gene g:genes) {
+				if (g.isNegativeStrand()!=negStrand) {
+					continue;
+				}
+				for (Object o:g.getExonSet()) {
+					Annotation e = (Annotation) o;
+					iv.add(new int[] {e.getStart()-1, e.getEnd()+1});
+				}
+				iv.add(new int[] {g.getStart()-extend-1, g.getStart()});
+				iv.add(new int[] {g.getEnd(), g.getEnd()+extend+1});
+			}
+		}
+		Collections.sort(iv, new java.util.Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return a[0]<b[0] ? -1 : (a[0]>b[0] ? 1 : 0);
+			}
+		});
+		// merge overlapping and adjacent intervals:
+		List<int[]> merged = new ArrayList<int[]>();
+		for (int[] i:iv) {
+			int s = Math.max(0, i[0]);
+			int e = Math.min(chrLen, i[1]);
+			if (e<=s) {
+				continue;
+			}
+			if (!merged.isEmpty() && s<=merged.get(merged.size()-1)[1]) {
+				int[] last = merged.get(merged.size()-1);
+				last[1] = Math.max(last[1], e);
+			} else {
+				merged.add(new int[] {s, e});
+			}
+		}
+		RegionCounts rc = new RegionCounts();
+		int n = merged.size();
+		rc.rStart = new int[n];
+		rc.rEnd = new int[n];
+		rc.rOffset = new int[n];
+		int len = 0;
+		for (int i=0; i<n; i++) {
+			rc.rStart[i] = merged.get(i)[0];
+			rc.rEnd[i] = merged.get(i)[1];
+			rc.rOffset[i] = len;
+			len += rc.rEnd[i]-rc.rStart[i];
+		}
+		rc.length = len;
+		return rc;
+	}
+
+	public void incrementStartCounts(String refName, String strand, int alignStart, float fractCount) {
+		RegionCounts rc = startCounts.get(refName).get(strand);
+		int idx = rc.findRegion(alignStart);
+		if (idx>=0) {
+			rc.counts[rc.rOffset[idx]+alignStart-rc.rStart[idx]] += ScaledCounts.toUnits(fractCount);
+		}
+	}
+
+	public void copyToLocalCounts(String chr, String strand, int eStart, int cStart, int eLen, float[] floatCounts) {
+		RegionCounts rc = startCounts.get(chr).get(strand);
+		int i = 0;
+		while (i<eLen) {
+			int gLoc = eStart+i;
+			int idx = rc.findRegion(gLoc);
+			if (idx<0) {
+				floatCounts[cStart+i] = 0;
+				i++;
+			} else {
+				// copy the rest of this region in one go:
+				int n = Math.min(eLen-i, rc.rEnd[idx]-gLoc);
+				int offset = rc.rOffset[idx]+gLoc-rc.rStart[idx];
+				for (int k=0; k<n; k++) {
+					floatCounts[cStart+i+k] = ScaledCounts.toFloat(rc.counts[offset+k]);
+				}
+				i += n;
+			}
+		}
+	}
+
+	public void updateCount(final SAMRecord r, final String multimap, boolean stranded) {
+		/**
+		 * increments the counter for how many reads had alignments beginning at this position, if the
+		 * position is within an annotated region. Multimapped reads are handled as in the dense
+		 * representations: "normal" counts them as single reads, "scale" adds 1/NH, otherwise they are skipped.
+		 *
+		 * @param	r	a SAMRecord, a single alignment record
+		 * @param	multimap	how to handle multimapped reads
+		 * @see		SAMRecord
+		 */
+		String strand;
+		if (stranded & r.getReadNegativeStrandFlag()) {
+			strand = "-";
+		} else  {
+			strand = "+";
+		}
+		String refName = r.getReferenceName();
+		int alignStart = r.getAlignmentStart()-1;   // alignments are 1-based, arrays are 0-based
+		String cString = r.getCigarString();
+
+		if (cString!="*" && !startCounts.containsKey(refName)) {
+			SAMSequenceRecord seq = this.getSequence(refName);
+			Collection<Gene> genes = annotations.get(refName);
+			startCounts.put(refName, new HashMap<String, RegionCounts>());
+			for (String s:new String[] {"+", "-"}) {
+				RegionCounts rc = makeRegions(genes, s.equals("-"), extend, seq.getSequenceLength());
+				rc.counts = new long[rc.length];
+				startCounts.get(refName).put(s, rc);
+			}
+		}
+		if (cString!="*") {
+			int n = getMultimapCount(r);
+			if (multimap.equals("scale")) {
+				incrementStartCounts(refName, strand, alignStart, 1f/n);
+			} else if (multimap.equals("normal") || n==1) {
+				incrementStartCounts(refName, strand, alignStart, 1);
+			}
+		}
+	}
+
+	public boolean startCountsHasKey(String chr) {
+		return startCounts.containsKey(chr);
+	}
+
+	public float getStartCounts(String chr, String strand, int i) {
+		RegionCounts rc = startCounts.get(chr).get(strand);
+		int idx = rc.findRegion(i);
+		return idx<0 ? 0 : ScaledCounts.toFloat(rc.counts[rc.rOffset[idx]+i-rc.rStart[idx]]);
+	}
+
+	SAMSequenceCountingDict newInstance() {
+		return new SAMSequenceCountingDictRestricted(annotations, extend);
+	}
+
+	void mergeCounts(SAMSequenceCountingDict other) {
+		// both dictionaries build the same regions from the same annotations, so the counts line up:
+		HashMap<String, HashMap<String, RegionCounts>> oCounts = ((SAMSequenceCountingDictRestricted) other).startCounts;
+		for (String chr:oCounts.keySet()) {
+			if (!startCounts.containsKey(chr)) {
+				startCounts.put(chr, oCounts.get(chr));
+				continue;
+			}
+			for (String strand:oCounts.get(chr).keySet()) {
+				long[] a = startCounts.get(chr).get(strand).counts;
+				long[] b = oCounts.get(chr).get(strand).counts;
+				for (int i=0; i<a.length; i++) {
+					a[i] += b[i];
+				}
+			}
+		}
+	}
+
+	void writeCounts(DataOutputStream out) throws IOException {
+		out.writeInt(startCounts.size());
+		for (String chr:startCounts.keySet()) {
+			out.writeUTF(chr);
+			for (String strand:new String[] {"+", "-"}) {
+				long[] counts = startCounts.get(chr).get(strand).counts;
+				out.writeInt(counts.length);
+				writeNonZero(out, counts);
+			}
+		}
+	}
+
+	void readCounts(DataInputStream in) throws IOException {
+		int nChr = in.readInt();
+		for (int c=0; c<nChr; c++) {
+			String chr = in.readUTF();
+			Collection<Gene> genes = annotations.get(chr);
+			startCounts.put(chr, new HashMap<String, RegionCounts>());
+			for (String s:new String[] {"+", "-"}) {
+				RegionCounts rc = makeRegions(genes, s.equals("-"), extend, getSequence(chr).getSequenceLength());
+				if (in.readInt()!=rc.length) {
+					throw new IOException("The counted regions of "+chr+" do not match the annotations (different annotations or -wExt?)");
+				}
+				rc.counts = new long[rc.length];
+				readNonZero(in, rc.counts);
+				startCounts.get(chr).put(s, rc);
+			}
+		}
+	}
+
+	/* bytes that updateCount() allocates for this chromosome (both strands): the counts and the region arrays */
+	static long allocatedBytes(Collection<Gene> genes, int extend, int chrLen) {
+		long bytes = 0;
+		for (boolean negStrand:new boolean[] {false, true}) {
+			RegionCounts rc = makeRegions(genes, negStrand, extend, chrLen);
+			bytes += 4*MemoryPlanner.BYTES_PER_ARRAY+3*4L*rc.rStart.length+8L*rc.length;    // (rStart, rEnd, rOffset and counts)
+		}
+		return bytes;
+	}
+}
@@ -1,5 +1,8 @@
 package umms.esat;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.TreeMap;
@@ -130,5 +133,121 @@ public class SAMSequenceCountingDictShort extends SAMSequenceCountingDict {
     public float getStartCounts(String chr, String strand, int i) {
     		return (float) startCounts.get(chr).get(strand)[i];
     }
-    
-}
\ No newline at end of file
+
+    SAMSequenceCountingDict newInstance() {
+    	return new SAMSequenceCountingDictShort();
+    }
+
+    /* unsigned count at one location, including any overflow past 65535 */
+    private static int totalCount(short x, TreeMap<Integer, Integer> ovf, int gLoc) {
+    	if (x==-1 && ovf!=null && ovf.containsKey(gLoc)) {
+    		return 65535+ovf.get(gLoc);
+    	}
+    	return x & 0xffff;
+    }
+
+    void mergeCounts(SAMSequenceCountingDict other) {
+    	SAMSequenceCountingDictShort o = (SAMSequenceCountingDictShort) other;
+    	for (String chr:o.startCounts.keySet()) {
+    		if (!startCounts.containsKey(chr)) {
+    			startCounts.put(chr, o.startCounts.get(chr));
+    			if (o.overflow.containsKey(chr)) {
+    				overflow.put(chr, o.overflow.get(chr));
+    			}
+    			continue;
+    		}
+    		for (String strand:o.startCounts.get(chr).keySet()) {
+    			short[] a = startCounts.get(chr).get(strand);
+    			short[] b = o.startCounts.get(chr).get(strand);
+    			TreeMap<Integer, Integer> oOvf = o.overflow.containsKey(chr) ? o.overflow.get(chr).get(strand) : null;
+    			for (int i=0; i<a.length; i++) {
+    				if (b[i]==0) {
+    					continue;
+    				}
+    				TreeMap<Integer, Integer> ovf = overflow.containsKey(chr) ? overflow.get(chr).get(strand) : null;
+    				int t = totalCount(a[i], ovf, i)+totalCount(b[i], oOvf, i);
+    				if (t<65535) {
+    					a[i] = (short) t;
+    				} else {
+    					// saturate as in incrementStartCounts() and keep the rest in the overflow map:
+    					a[i] = -1;
+    					if (t>65535) {
+    						if (ovf==null) {
+    							overflow.put(chr, new HashMap<String, TreeMap<Integer, Integer>>());
+    							overflow.get(chr).put("+", new TreeMap<Integer, Integer>());
+    							overflow.get(chr).put("-", new TreeMap<Integer, Integer>());
+    							ovf = overflow.get(chr).get(strand);
+    						}
+    						if (!ovf.containsKey(i)) {
+    							logger.warn("location "+i+" in "+chr+" ("+strand+") has >65535 counts.");
+    						}
+    						ovf.put(i, t-65535);
+    					}
+    				}
+    			}
+    		}
+    	}
+    }
+
+    void writeCounts(DataOutputStream out) throws IOException {
+    	out.writeInt(startCounts.size());
+    	for (String chr:startCounts.keySet()) {
+    		out.writeUTF(chr);
+    		for (String strand:new String[] {"+", "-"}) {
+    			short[] a = startCounts.get(chr).get(strand);
+    			int n = 0;
+    			for (short x:a) {
+    				if (x!=0) {
+    					n++;
+    				}
+    			}
+    			writeVarInt(out, n);
+    			int last = 0;
+    			for (int i=0; i<a.length; i++) {
+    				if (a[i]!=0) {
+    					writeVarInt(out, i-last);
+    					out.writeShort(a[i]);
+    					last = i;
+    				}
+    			}
+    			TreeMap<Integer, Integer> ovf = overflow.containsKey(chr) ? overflow.get(chr).get(strand) : null;
+    			writeVarInt(out, ovf==null ? 0 : ovf.size());
+    			if (ovf!=null) {
+    				for (Integer loc:ovf.keySet()) {
+    					writeVarInt(out, loc);
+    					writeVarInt(out, ovf.get(loc));
+    				}
+    			}
+    		}
+    	}
+    }
+
+    void readCounts(DataInputStream in) throws IOException {
+    	int nChr = in.readInt();
+    	for (int c=0; c<nChr; c++) {
+    		String chr = in.readUTF();
+    		int len = getSequence(chr).getSequenceLength();
+    		startCounts.put(chr, new HashMap<String, short[]>());
+    		for (String strand:new String[] {"+", "-"}) {
+    			short[] a = new short[len];
+    			int n = readVarInt(in);
+    			int i = 0;
+    			for (int k=0; k<n; k++) {
+    				i += readVarInt(in);
+    				a[i] = in.readShort();
+    			}
+    			startCounts.get(chr).put(strand, a);
+    			int nOvf = readVarInt(in);
+    			for (int k=0; k<nOvf; k++) {
+    				if (!overflow.containsKey(chr)) {
+    					overflow.put(chr, new HashMap<String, TreeMap<Integer, Integer>>());
+    					overflow.get(chr).put("+", new TreeMap<Integer, Integer>());
+    					overflow.get(chr).put("-", new TreeMap<Integer, Integer>());
+    				}
+    				int loc = readVarInt(in);
+    				overflow.get(chr).get(strand).put(loc, readVarInt(in));
+    			}
+    		}
+    	}
+    }
+}
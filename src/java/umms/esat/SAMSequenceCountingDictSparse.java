@@ -0,0 +1,216 @@
+package umms.esat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Counting dictionary that stores only the positions with at least one read start, in an open-addressing
+ * hash table (int position -> count) per chromosome and strand. Memory scales with the number of
+ * distinct read start positions instead of the genome size, at the cost of a hash lookup per read and
+ * per copied base. The counts are fixed-point units (see ScaledCounts), so this representation works for
+ * every -multimap mode, and fractional counts do not depend on the order they are added in.
+ */
+public class SAMSequenceCountingDictSparse extends SAMSequenceCountingDict {
+
+	/* open-addressing int->long map with linear probing; keys are >=0, so -1 marks an empty slot */
+	static class PositionCounts {
+		private static final int EMPTY = -1;
+		private int[] keys;
+		private long[] values;
+		private int size = 0;
+		private int mask;
+
+		PositionCounts() {
+			this(1024);
+		}
+
+		PositionCounts(int capacity) {
+			int c = Integer.highestOneBit(Math.max(capacity, 16)-1)<<1;
+			keys = new int[c];
+			Arrays.fill(keys, EMPTY);
+			values = new long[c];
+			mask = c-1;
+		}
+
+		private static int hash(int key) {
+			int h = key*0x9E3779B9;
+			return h^(h>>>16);
+		}
+
+		void add(int key, long val) {
+			int i = hash(key)&mask;
+			while (keys[i]!=EMPTY) {
+				if (keys[i]==key) {
+					values[i] += val;
+					return;
+				}
+				i = (i+1)&mask;
+			}
+			keys[i] = key;
+			values[i] = val;
+			size++;
+			if (size*2>keys.length) {
+				rehash(keys.length*2);
+			}
+		}
+
+		long get(int key) {
+			int i = hash(key)&mask;
+			while (keys[i]!=EMPTY) {
+				if (keys[i]==key) {
+					return values[i];
+				}
+				i = (i+1)&mask;
+			}
+			return 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int i=0; i<keys.length; i++) {
+				if (keys[i]!=EMPTY) {
+					out.writeInt(keys[i]);
+					out.writeLong(values[i]);
+				}
+			}
+		}
+
+		static PositionCounts read(DataInputStream in) throws IOException {
+			int n = in.readInt();
+			PositionCounts pc = new PositionCounts(2*n+1);
+			for (int k=0; k<n; k++) {
+				int key = in.readInt();
+				pc.add(key, in.readLong());
+			}
+			return pc;
+		}
+
+		/* add all entries of other, in other's slot order */
+		void addAll(PositionCounts other) {
+			for (int i=0; i<other.keys.length; i++) {
+				if (other.keys[i]!=EMPTY) {
+					add(other.keys[i], other.values[i]);
+				}
+			}
+		}
+
+		private void rehash(int capacity) {
+			int[] oldKeys = keys;
+			long[] oldValues = values;
+			keys = new int[capacity];
+			Arrays.fill(keys, EMPTY);
+			values = new long[capacity];
+			mask = capacity-1;
+			size = 0;
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i]!=EMPTY) {
+					add(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+	}
+
+	/* bytes per stored position: an int key and a long value at a load factor between 0.25 and 0.5 */
+	static final int BYTES_PER_POSITION = 36;
+
+	protected HashMap<String, HashMap<String, PositionCounts>> startCounts = new HashMap<String, HashMap<String, PositionCounts>>();   // startCounts[chr][strand]
+
+	public void incrementStartCounts(String refName, String strand, int alignStart, float fractCount) {
+		startCounts.get(refName).get(strand).add(alignStart, ScaledCounts.toUnits(fractCount));
+	}
+
+	public void copyToLocalCounts(String chr, String strand, int eStart, int cStart, int eLen, float[] floatCounts) {
+		PositionCounts pc = startCounts.get(chr).get(strand);
+		for (int i=0; i<eLen; i++) {
+			floatCounts[cStart+i] = ScaledCounts.toFloat(pc.get(eStart+i));
+		}
+	}
+
+	public void updateCount(final SAMRecord r, final String multimap, boolean stranded) {
+		/**
+		 * increments the counter for how many reads had alignments beginning at this position.
+		 * Multimapped reads are handled as in the dense representations: "normal" counts them as single
+		 * reads, "scale" adds 1/NH, otherwise they are skipped.
+		 *
+		 * @param	r	a SAMRecord, a single alignment record
+		 * @param	multimap	how to handle multimapped reads
+		 * @see		SAMRecord
+		 */
+		String strand;
+		if (stranded & r.getReadNegativeStrandFlag()) {
+			strand = "-";
+		} else  {
+			strand = "+";
+		}
+		String refName = r.getReferenceName();
+		int alignStart = r.getAlignmentStart()-1;   // alignments are 1-based, arrays are 0-based
+		String cString = r.getCigarString();
+
+		if (cString!="*" && !startCounts.containsKey(refName)) {
+			startCounts.put(refName, new HashMap<String, PositionCounts>());
+			startCounts.get(refName).put("+", new PositionCounts());
+			startCounts.get(refName).put("-", new PositionCounts());
+		}
+		if (cString!="*") {
+			int n = getMultimapCount(r);
+			if (multimap.equals("scale")) {
+				incrementStartCounts(refName, strand, alignStart, 1f/n);
+			} else if (multimap.equals("normal") || n==1) {
+				incrementStartCounts(refName, strand, alignStart, 1);
+			}
+		}
+	}
+
+	SAMSequenceCountingDict newInstance() {
+		return new SAMSequenceCountingDictSparse();
+	}
+
+	void mergeCounts(SAMSequenceCountingDict other) {
+		HashMap<String, HashMap<String, PositionCounts>> oCounts = ((SAMSequenceCountingDictSparse) other).startCounts;
+		for (String chr:oCounts.keySet()) {
+			if (!startCounts.containsKey(chr)) {
+				startCounts.put(chr, oCounts.get(chr));
+				continue;
+			}
+			for (String strand:oCounts.get(chr).keySet()) {
+				startCounts.get(chr).get(strand).addAll(oCounts.get(chr).get(strand));
+			}
+		}
+	}
+
+	void writeCounts(DataOutputStream out) throws IOException {
+		out.writeInt(startCounts.size());
+		for (String chr:startCounts.keySet()) {
+			out.writeUTF(chr);
+			startCounts.get(chr).get("+").write(out);
+			startCounts.get(chr).get("-").write(out);
+		}
+	}
+
+	void readCounts(DataInputStream in) throws IOException {
+		int nChr = in.readInt();
+		for (int c=0; c<nChr; c++) {
+			String chr = in.readUTF();
+			startCounts.put(chr, new HashMap<String, PositionCounts>());
+			startCounts.get(chr).put("+", PositionCounts.read(in));
+			startCounts.get(chr).put("-", PositionCounts.read(in));
+		}
+	}
+
+	public boolean startCountsHasKey(String chr) {
+		return startCounts.containsKey(chr);
+	}
+
+	public float getStartCounts(String chr, String strand, int i) {
+		return ScaledCounts.toFloat(startCounts.get(chr).get(strand).get(i));
+	}
+}
@@ -0,0 +1,31 @@
+package umms.esat;
+
+/**
+ * Fixed-point counts for fractional read weights (-multimap scale, where a read with n alignments adds 1/n).
+ * Float sums of such weights depend on the order they are added in, which changes with the number of threads
+ * and with how the files are grouped. The start counts and window counters that can hold fractional weights
+ * therefore keep long multiples of 1/UNIT, which add up exactly in any order, and are only rounded to float
+ * when they are read. UNIT is the least common multiple of 1..16, so the weight of a read with up to 16
+ * alignments is exact; other weights are rounded once, to the nearest 1/UNIT. A long holds more than 10^13 reads.
+ */
+final class ScaledCounts {
+
+	static final long UNIT = 720720;
+
+	private ScaledCounts() {
+	}
+
+	/* the units of a weight (or of a count read back as a double) */
+	static long toUnits(double weight) {
+		return Math.round(weight*UNIT);
+	}
+
+	static float toFloat(long units) {
+		return (float)((double)units/UNIT);
+	}
+
+	/* the count as a double, from which toUnits() gives back the same units (for checkpoints) */
+	static double toDouble(long units) {
+		return (double)units/UNIT;
+	}
+}
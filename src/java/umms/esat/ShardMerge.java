@@ -0,0 +1,478 @@
+package umms.esat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+import umms.core.utils.ExperimentMap;
+
+/**
+ * Partial results of a sharded NewESAT run (-shard i/N) and the tool that merges them.
+ *
+ * Each shard processes a subset of the references and writes one partial result file,
+ * <out>.shard-<i>-of-<N>.bin, instead of the text output. The file holds the experiment (or barcode) columns
+ * and, for every reference and strand (a block), the window definitions with their per-experiment counts and the
+ * gene-level counts, in the order of the window interval tree. Gene rows are stored even if all their counts
+ * are zero; the zero rows are dropped when the merged output is written, as in a single run. Layout:
+ *
+ *   header     MAGIC, VERSION, shard, number of shards, number of columns (ints), the column names
+ *   blocks     per block: BLOCK, strand, reference, number of rows, then per row its kind, the gene name, (for
+ *              windows) start and end, and the counts (floats)
+ *              END
+ *   index      number of blocks, then per block strand, reference, offset (long) and number of rows (int)
+ *              offset of the index (long)
+ *
+ * The merge reads the headers and block indexes of all N partials, and then copies the blocks, one row at a
+ * time, to the same .window.txt and .gene.txt files that a single run over all references produces, in the
+ * order of that run; so it never holds more than one row. As the shards split the run by reference, no block is
+ * in more than one partial (partials that share a block are from different runs, and are rejected).
+ */
+public class ShardMerge {
+
+	static final String usage = "Usage: ShardMerge -shards <output basename of the shard runs> | -partial <partial result file> [-partial ...]"+
+			"\n\t-out <output file basename>"+
+			"\n\t-matrix [also write the binary count matrices <out>.window.cmat and <out>.gene.cmat, as NewESAT -matrix]"+
+			"\n\tMerges the partial results of NewESAT -shard i/N runs into the .window.txt and .gene.txt files.";
+
+	static final Logger logger = Logger.getLogger(ShardMerge.class.getName());
+
+	static final int MAGIC = 0x45534154;     // "ESAT"
+	static final int VERSION = 2;
+	static final byte END = 0;
+	static final byte BLOCK = 1;
+	static final byte GENE_ROW = 0;
+	static final byte WINDOW_ROW = 1;
+
+	private static final Pattern SHARD_NAME = Pattern.compile("\\.shard-(\\d+)-of-(\\d+)\\.bin$");
+
+	/* name of the partial result file of shard i (1-based) of n */
+	public static File partialFile(File outFile, int i, int n) {
+		return new File(outFile.getAbsolutePath()+".shard-"+i+"-of-"+n+".bin");
+	}
+
+	/* the location of a block in a partial result file */
+	static class BlockRef {
+		PartialReader partial;
+		String strand;
+		String chr;
+		long offset;
+		int rows;
+	}
+
+	/**
+	 * Writes the partial result of one shard. The header is written when the writer is created, then
+	 * writeReference() is called once per processed reference, and close() marks the file as complete.
+	 */
+	public static class PartialWriter {
+		private File partialFile;
+		private FileOutputStream file;
+		private DataOutputStream out;
+		private int nCols;
+		private long rows = 0;
+		private List<BlockRef> index = new ArrayList<BlockRef>();
+
+		public PartialWriter(File f, int shard, int nShards, ExperimentMap eMap) throws IOException {
+			partialFile = f;
+			file = new FileOutputStream(f);
+			out = new DataOutputStream(new BufferedOutputStream(file, 1<<16));
+			nCols = eMap.getNexp();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(shard);
+			out.writeInt(nShards);
+			out.writeInt(nCols);
+			for (int i=0; i<nCols; i++) {
+				out.writeUTF(eMap.getName(i));
+			}
+		}
+
+		/* append all window and gene counters of the tree (one reference) */
+		public void writeReference(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree) throws IOException {
+			for (String strand:windowTree.keySet()) {
+				for (String chr:windowTree.get(strand).keySet()) {
+					List<EventCounter> counters = new ArrayList<EventCounter>();
+					Iterator<EventCounter> eIter = windowTree.get(strand).get(chr).valueIterator();
+					while (eIter.hasNext()) {
+						counters.add(eIter.next());
+					}
+					BlockRef b = new BlockRef();
+					b.strand = strand;
+					b.chr = chr;
+					b.offset = position();
+					b.rows = counters.size();
+					index.add(b);
+					out.writeByte(BLOCK);
+					out.writeUTF(strand);
+					out.writeUTF(chr);
+					out.writeInt(counters.size());
+					for (EventCounter e:counters) {
+						WindowTable table = e.getTable();
+						int row = e.getRow();
+						if (table.isGene(row)) {
+							out.writeByte(GENE_ROW);
+							out.writeUTF(table.getGeneName(row));
+						} else {
+							out.writeByte(WINDOW_ROW);
+							out.writeUTF(table.getGeneName(row));
+							out.writeInt(table.getStart(row));
+							out.writeInt(table.getEnd(row));
+						}
+						for (int i=0; i<nCols; i++) {
+							out.writeFloat(table.getCount(row, i));
+						}
+					}
+					rows += counters.size();
+				}
+			}
+		}
+
+		public long getRowCount() {
+			return rows;
+		}
+
+		/* the file offset of the next byte written */
+		private long position() throws IOException {
+			out.flush();
+			return file.getChannel().position();
+		}
+
+		/* ends the blocks and writes the block index */
+		public void close() throws IOException {
+			out.writeByte(END);
+			long indexOffset = position();
+			out.writeInt(index.size());
+			for (BlockRef b:index) {
+				out.writeUTF(b.strand);
+				out.writeUTF(b.chr);
+				out.writeLong(b.offset);
+				out.writeInt(b.rows);
+			}
+			out.writeLong(indexOffset);
+			out.close();
+		}
+
+		/* closes the file without completing it and removes it (after a failed run) */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// (the file is removed anyway)
+			}
+			partialFile.delete();
+		}
+	}
+
+	/* a partial result file: its header and block index, and the blocks read on demand */
+	static class PartialReader {
+		File file;
+		RandomAccessFile raf;
+		int shard;
+		int nShards;
+		String[] columns;
+		List<BlockRef> blocks = new ArrayList<BlockRef>();
+
+		PartialReader(File f) throws IOException {
+			file = f;
+			raf = new RandomAccessFile(f, "r");
+			try {
+				DataInputStream in = stream(0);
+				if (in.readInt()!=MAGIC) {
+					throw new IOException(f+" is not an ESAT partial result file");
+				}
+				int version = in.readInt();
+				if (version!=VERSION) {
+					throw new IOException(f+" has partial result format version "+version+" (expected "+VERSION+")");
+				}
+				shard = in.readInt();
+				nShards = in.readInt();
+				columns = new String[in.readInt()];
+				for (int i=0; i<columns.length; i++) {
+					columns[i] = in.readUTF();
+				}
+				long length = raf.length();
+				long indexOffset = -1;
+				if (length>=8) {
+					raf.seek(length-8);
+					indexOffset = raf.readLong();
+				}
+				if (indexOffset<1 || indexOffset>length-8) {
+					throw new EOFException();
+				}
+				raf.seek(indexOffset-1);
+				if (raf.readByte()!=END) {
+					throw new EOFException();
+				}
+				in = stream(indexOffset);
+				int n = in.readInt();
+				for (int k=0; k<n; k++) {
+					BlockRef b = new BlockRef();
+					b.partial = this;
+					b.strand = in.readUTF();
+					b.chr = in.readUTF();
+					b.offset = in.readLong();
+					b.rows = in.readInt();
+					blocks.add(b);
+				}
+			} catch (EOFException e) {
+				raf.close();
+				throw new IOException(f+" is incomplete; was the shard run interrupted?");
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+		}
+
+		/* a stream reading the file from offset on */
+		DataInputStream stream(long offset) throws IOException {
+			raf.seek(offset);
+			return new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), 1<<16));
+		}
+
+		/* the rows of a block of this file, positioned after its block header */
+		DataInputStream openBlock(BlockRef b) throws IOException {
+			DataInputStream in = stream(b.offset);
+			if (in.readByte()!=BLOCK || !in.readUTF().equals(b.strand) || !in.readUTF().equals(b.chr) || in.readInt()!=b.rows) {
+				throw new IOException(file+" is corrupt (block "+b.strand+" "+b.chr+" not found at "+b.offset+")");
+			}
+			return in;
+		}
+
+		void close() throws IOException {
+			raf.close();
+		}
+	}
+
+	/* finds the partial result files <base>.shard-<i>-of-<N>.bin for i=1..N */
+	static List<File> findPartials(String base) throws IOException {
+		File b = new File(base).getAbsoluteFile();
+		File dir = b.getParentFile();
+		String prefix = b.getName();
+		int nShards = -1;
+		File[] found = null;
+		String[] names = dir.list();
+		if (names!=null) {
+			Arrays.sort(names);
+			for (String name:names) {
+				if (!name.startsWith(prefix)) {
+					continue;
+				}
+				Matcher m = SHARD_NAME.matcher(name.substring(prefix.length()));
+				if (!m.matches()) {
+					continue;
+				}
+				int i = Integer.parseInt(m.group(1));
+				int n = Integer.parseInt(m.group(2));
+				if (nShards<0) {
+					nShards = n;
+					found = new File[n];
+				} else if (n!=nShards) {
+					throw new IOException("Partial results of runs with different shard counts ("+nShards+" and "+n+") found for "+base);
+				}
+				if (i>=1 && i<=n) {
+					found[i-1] = new File(dir, name);
+				}
+			}
+		}
+		if (nShards<0) {
+			throw new IOException("No partial results found for "+base+" (expected "+base+".shard-<i>-of-<N>.bin)");
+		}
+		List<File> files = new ArrayList<File>();
+		for (int i=0; i<nShards; i++) {
+			if (found[i]==null) {
+				throw new IOException("Missing partial result "+partialFile(b, i+1, nShards));
+			}
+			files.add(found[i]);
+		}
+		return files;
+	}
+
+	/* merges the partial results and writes <out>.window.txt and <out>.gene.txt */
+	public static void merge(List<File> partialFiles, File outFile) throws IOException {
+		merge(partialFiles, outFile, false);
+	}
+	
+	/* as above, and with writeMatrix also <out>.window.cmat and <out>.gene.cmat (see CountMatrix) */
+	public static void merge(List<File> partialFiles, File outFile, boolean writeMatrix) throws IOException {
+		long startTime = System.nanoTime();
+		String[] columns = null;
+		int nShards = -1;
+		boolean[] seen = null;
+		List<PartialReader> partials = new ArrayList<PartialReader>();
+		// blocks by strand and reference, in the same kind of maps as the window tree of a single run:
+		HashMap<String, HashMap<String, BlockRef>> blocks = new HashMap<String, HashMap<String, BlockRef>>();
+		try {
+			for (File f:partialFiles) {
+				PartialReader p = new PartialReader(f);
+				partials.add(p);
+				logger.info("Read partial result "+f+" (shard "+p.shard+" of "+p.nShards+", "+p.blocks.size()+" blocks)");
+				if (columns==null) {
+					columns = p.columns;
+					nShards = p.nShards;
+					seen = new boolean[nShards+1];
+				} else if (!Arrays.equals(columns, p.columns)) {
+					throw new IOException(f+" has different experiment/barcode columns than "+partialFiles.get(0));
+				} else if (p.nShards!=nShards) {
+					throw new IOException(f+" is shard "+p.shard+" of "+p.nShards+", expected one of "+nShards);
+				}
+				if (p.shard<1 || p.shard>nShards || seen[p.shard]) {
+					throw new IOException(f+": shard "+p.shard+" is out of range or given twice");
+				}
+				seen[p.shard] = true;
+				for (BlockRef b:p.blocks) {
+					if (!blocks.containsKey(b.strand)) {
+						blocks.put(b.strand, new HashMap<String, BlockRef>());
+					}
+					BlockRef other = blocks.get(b.strand).get(b.chr);
+					if (other!=null) {
+						// (the shards of one run never process the same reference)
+						throw new IOException(f+" and "+other.partial.file+" both hold reference "+b.chr+" ("+b.strand+"); are they from the same run?");
+					}
+					blocks.get(b.strand).put(b.chr, b);
+				}
+			}
+			if (columns==null) {
+				throw new IOException("No partial results to merge");
+			}
+			// (the output of an incomplete merge would silently lack the references of the missing shards)
+			List<Integer> missing = new ArrayList<Integer>();
+			for (int i=1; i<=nShards; i++) {
+				if (!seen[i]) {
+					missing.add(i);
+				}
+			}
+			if (!missing.isEmpty()) {
+				throw new IOException("Missing partial results of shards "+missing+" of "+nShards);
+			}
+			writeMerged(blocks, columns, outFile, writeMatrix, startTime, partialFiles.size());
+		} finally {
+			for (PartialReader p:partials) {
+				p.close();
+			}
+		}
+	}
+
+	/* copies the blocks to the output files, row by row */
+	private static void writeMerged(HashMap<String, HashMap<String, BlockRef>> blocks, String[] columns, File outFile, boolean writeMatrix,
+									long startTime, int nPartials) throws IOException {
+		String baseName = outFile.getAbsolutePath();
+		File wFile = new File(baseName+".window.txt");  // window-level counts file
+		File gFile = new File(baseName+".gene.txt");  // gene-level counts file
+		BufferedWriter wWriter = new BufferedWriter(new FileWriter(wFile), 1<<16);
+		BufferedWriter gWriter = new BufferedWriter(new FileWriter(gFile), 1<<16);
+		CountMatrix.Writer wMatrix = null;
+		CountMatrix.Writer gMatrix = null;
+		if (writeMatrix) {
+			wMatrix = new CountMatrix.Writer(new File(baseName+".window.cmat"), NewESAT.WINDOW_LABELS, Arrays.asList(columns));
+			gMatrix = new CountMatrix.Writer(new File(baseName+".gene.cmat"), NewESAT.GENE_LABELS, Arrays.asList(columns));
+		}
+		// header lines, as written by NewESAT:
+		String wStr = NewESAT.WINDOW_LABELS;
+		String gStr = NewESAT.GENE_LABELS;
+		for (String e:columns) {
+			wStr+="\t"+e;
+			gStr+="\t"+e;
+		}
+		wWriter.write(wStr+"\n");
+		gWriter.write(gStr+"\n");
+
+		int nWindows = 0;
+		int nGenes = 0;
+		float[] counts = new float[columns.length];
+		StringBuilder oStr = new StringBuilder();
+		for (String strand:blocks.keySet()) {
+			for (String chr:blocks.get(strand).keySet()) {
+				BlockRef b = blocks.get(strand).get(chr);
+				DataInputStream in = b.partial.openBlock(b);
+				for (int r=0; r<b.rows; r++) {
+					byte kind = in.readByte();
+					String gene = in.readUTF();
+					int start = 0;
+					int end = 0;
+					if (kind==WINDOW_ROW) {
+						start = in.readInt();
+						end = in.readInt();
+					}
+					for (int i=0; i<columns.length; i++) {
+						counts[i] = in.readFloat();
+					}
+					oStr.setLength(0);
+					if (kind==GENE_ROW) {
+						oStr.append(gene).append('\t').append(chr).append('\t').append(strand);
+						float total=0;
+						for (int i=0; i<columns.length; i++) {
+							oStr.append('\t').append(counts[i]);
+							total+=counts[i];
+						}
+						if (total>0) {
+							// don't bother writing genes with no counts
+							gWriter.write(oStr.append('\n').toString());
+							nGenes++;
+							if (gMatrix!=null) {
+								gMatrix.addRow(gene+"\t"+chr+"\t"+strand, counts);
+							}
+						}
+					} else {
+						oStr.append(gene).append('\t').append(chr).append('\t').append(start).append('\t').append(end).append('\t').append(strand);
+						for (int i=0; i<columns.length; i++) {
+							oStr.append('\t').append(counts[i]);
+						}
+						wWriter.write(oStr.append('\n').toString());
+						nWindows++;
+						if (wMatrix!=null) {
+							wMatrix.addRow(gene+"\t"+chr+"\t"+start+"\t"+end+"\t"+strand, counts);
+						}
+					}
+				}
+			}
+		}
+		wWriter.close();
+		gWriter.close();
+		if (writeMatrix) {
+			wMatrix.close();
+			gMatrix.close();
+		}
+		logger.info("Merged "+nPartials+" partial results into "+nWindows+" windows and "+nGenes+" genes in "+
+					(System.nanoTime()-startTime)/1e9+" sec");
+	}
+
+	public static void main(String[] args) throws IOException {
+		ArgumentMap argMap = CLUtil.getParameters(args, usage, "merge");
+		if (!argMap.isOutputSet()) {
+			logger.error("Missing -out\n"+usage);
+			throw new IllegalArgumentException();
+		}
+		List<File> partialFiles = new ArrayList<File>();
+		if (argMap.isPresent("shards")) {
+			partialFiles.addAll(findPartials(argMap.get("shards")));
+		}
+		for (String p:argMap.getAll("partial")) {
+			partialFiles.add(new File(p));
+		}
+		if (partialFiles.isEmpty()) {
+			logger.error("No partial results given\n"+usage);
+			throw new IllegalArgumentException();
+		}
+		merge(partialFiles, new File(argMap.getOutput()), argMap.isPresent("matrix"));
+	}
+}
@@ -169,6 +169,10 @@ public class Window {
 		}
 	}
 	
+	public IntervalTree<String> getITree() {
+		return iTree;
+	}
+	
 	// Create an interval tree:
 	public void addITree() {
 		iTree = new IntervalTree<String>();
@@ -0,0 +1,413 @@
+package umms.esat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.datastructures.IntervalTree.Node;
+
+/**
+ * Column-oriented store of the window and gene counters built by makeCountingIntervalTree(). Each counter is a
+ * row with int columns for its gene (an ID into the interned gene names), reference, strand, genomic start and
+ * end, and its start and end within the transcript (-1 for gene counters). The exon segments of counters that
+ * span more than one exon are kept in one compressed row list (segOffset[row]..segOffset[row+1]-1 index
+ * segStart/segEnd, sorted by start); a counter without segments counts every read starting in [start, end).
+ *
+ * The counts are a row-major matrix of nExp columns: one float array for the whole table (dense), or, for
+ * tables with many columns (single cell data) or too many cells for one array, one array per row that is only
+ * allocated when the row gets its first count (sparse). Different columns may be updated by different threads.
+ *
+ * If several threads update the same counts, the counts are moved to AtomicIntegerArrays of their float bits
+ * while they are concurrent (setConcurrent()), and each update is a compare-and-set of the single count it adds
+ * to, so no update is lost and concurrent reads of different counters do not contend. The weights are added in
+ * the order the threads get to them, so this is only for integer weights, whose sums do not depend on the order.
+ * Tables for fractional weights (-multimap scale, allocateCounts(true)) keep the counts as fixed-point units
+ * (ScaledCounts) in AtomicLongArrays instead, whose sums are exact in any order and any number of threads; they
+ * are only rounded to float when they are read.
+ */
+public class WindowTable {
+
+	static final int MINUS = 1;      // strand column: 0 for +, 1 for -
+	static final int SPARSE_COLUMNS = 256;    // tables with more columns keep their counts in per-row arrays
+	static final long MAX_DENSE_CELLS = Integer.MAX_VALUE-8;
+
+	private ArrayList<String> geneNames = new ArrayList<String>();
+	private HashMap<String, Integer> geneIds = new HashMap<String, Integer>();
+	private ArrayList<String> refNames = new ArrayList<String>();
+	private HashMap<String, Integer> refIds = new HashMap<String, Integer>();
+
+	private int size = 0;
+	private int[] gene = new int[1024];
+	private int[] ref = new int[1024];
+	private int[] strand = new int[1024];
+	private int[] start = new int[1024];
+	private int[] end = new int[1024];
+	private int[] relStart = new int[1024];
+	private int[] relEnd = new int[1024];
+	private boolean[] geneLevel = new boolean[1024];
+
+	/* exon segments, in compressed row format */
+	private int[] segOffset = new int[1025];
+	private int nSegs = 0;
+	private int[] segStart = new int[1024];
+	private int[] segEnd = new int[1024];
+
+	private int nExp;
+	private float[] dense;
+	private float[][] sparse;
+	/* the float bits of the counts while the table is concurrent (in place of dense or sparse) */
+	private AtomicIntegerArray atomicDense;
+	private AtomicIntegerArray[] atomicSparse;
+	/* the fixed-point counts of a table for fractional weights (in place of all of the above) */
+	private AtomicLongArray unitsDense;
+	private AtomicLongArray[] unitsSparse;
+
+	public WindowTable(int nExp) {
+		this.nExp = nExp;
+	}
+
+	/* adds a window of gene on chr, with its exon segments if the window spans more than one exon */
+	public int addWindow(String gName, String chr, String wStrand, Window w) {
+		int row = addRow(gName, chr, wStrand, w.getStart(), w.getEnd(), w.getRelStart(), w.getRelEnd(), false);
+		if (w.hasITree()) {
+			addSegments(w.getITree());
+		}
+		segOffset[size] = nSegs;
+		return row;
+	}
+
+	/* adds a gene-level counter covering the exons in eTree */
+	public int addGene(String gName, String chr, String gStrand, IntervalTree<String> eTree) {
+		int row = addRow(gName, chr, gStrand, eTree.min().getStart(), eTree.max().getEnd(), -1, -1, true);
+		addSegments(eTree);
+		segOffset[size] = nSegs;
+		return row;
+	}
+
+	private int addRow(String gName, String chr, String rStrand, int rStart, int rEnd, int rRelStart, int rRelEnd, boolean isGene) {
+		if (dense!=null || sparse!=null || unitsDense!=null || unitsSparse!=null) {
+			throw new IllegalStateException("Rows cannot be added after the counts are allocated");
+		}
+		if (size==gene.length) {
+			int n = 2*size;
+			gene = Arrays.copyOf(gene, n);
+			ref = Arrays.copyOf(ref, n);
+			strand = Arrays.copyOf(strand, n);
+			start = Arrays.copyOf(start, n);
+			end = Arrays.copyOf(end, n);
+			relStart = Arrays.copyOf(relStart, n);
+			relEnd = Arrays.copyOf(relEnd, n);
+			geneLevel = Arrays.copyOf(geneLevel, n);
+			segOffset = Arrays.copyOf(segOffset, n+1);
+		}
+		int row = size++;
+		gene[row] = intern(gName, geneNames, geneIds);
+		ref[row] = intern(chr, refNames, refIds);
+		strand[row] = rStrand.equals("-") ? MINUS : 0;
+		start[row] = rStart;
+		end[row] = rEnd;
+		relStart[row] = rRelStart;
+		relEnd[row] = rRelEnd;
+		geneLevel[row] = isGene;
+		return row;
+	}
+
+	private static int intern(String name, ArrayList<String> names, HashMap<String, Integer> ids) {
+		Integer id = ids.get(name);
+		if (id==null) {
+			id = names.size();
+			names.add(name);
+			ids.put(name, id);
+		}
+		return id;
+	}
+
+	/* the intervals of the tree, in the order of their start */
+	private void addSegments(IntervalTree<String> iTree) {
+		Iterator<Node<String>> iIter = iTree.iterator();
+		while (iIter.hasNext()) {
+			Node<String> node = iIter.next();
+			if (nSegs==segStart.length) {
+				segStart = Arrays.copyOf(segStart, 2*nSegs);
+				segEnd = Arrays.copyOf(segEnd, 2*nSegs);
+			}
+			segStart[nSegs] = node.getStart();
+			segEnd[nSegs] = node.getEnd();
+			nSegs++;
+		}
+	}
+
+	/* allocates the (zero) counts; called once all rows are added */
+	public void allocateCounts() {
+		allocateCounts(false);
+	}
+
+	/* as above, with fixed-point counts if fractional weights (-multimap scale) are added */
+	public void allocateCounts(boolean fractional) {
+		boolean isSparse = (nExp>SPARSE_COLUMNS || (long)size*nExp>MAX_DENSE_CELLS) && nExp>1;
+		if (fractional && isSparse) {
+			unitsSparse = new AtomicLongArray[size];
+		} else if (fractional) {
+			unitsDense = new AtomicLongArray(size*nExp);
+		} else if (isSparse) {
+			sparse = new float[size][];
+		} else {
+			dense = new float[size*nExp];
+		}
+	}
+
+	/* whether several threads may add (integer weights) to the same counts (set before the threads are started,
+	 * and reset after they are done); the counts of fractional tables can always be updated concurrently */
+	public void setConcurrent(boolean concurrent) {
+		if (concurrent && dense!=null) {
+			atomicDense = new AtomicIntegerArray(dense.length);
+			for (int i=0; i<dense.length; i++) {
+				atomicDense.set(i, Float.floatToIntBits(dense[i]));
+			}
+			dense = null;
+		} else if (concurrent && sparse!=null) {
+			atomicSparse = new AtomicIntegerArray[size];
+			for (int row=0; row<size; row++) {
+				if (sparse[row]!=null) {
+					atomicSparse[row] = new AtomicIntegerArray(nExp);
+					for (int col=0; col<nExp; col++) {
+						atomicSparse[row].set(col, Float.floatToIntBits(sparse[row][col]));
+					}
+				}
+			}
+			sparse = null;
+		} else if (!concurrent && atomicDense!=null) {
+			dense = new float[atomicDense.length()];
+			for (int i=0; i<dense.length; i++) {
+				dense[i] = Float.intBitsToFloat(atomicDense.get(i));
+			}
+			atomicDense = null;
+		} else if (!concurrent && atomicSparse!=null) {
+			sparse = new float[size][];
+			for (int row=0; row<size; row++) {
+				if (atomicSparse[row]!=null) {
+					sparse[row] = new float[nExp];
+					for (int col=0; col<nExp; col++) {
+						sparse[row][col] = Float.intBitsToFloat(atomicSparse[row].get(col));
+					}
+				}
+			}
+			atomicSparse = null;
+		}
+	}
+
+	public boolean isSparse() {
+		return sparse!=null || atomicSparse!=null || unitsSparse!=null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getColumnCount() {
+		return nExp;
+	}
+
+	/*************************************************************************************
+	 * columns
+	 *************************************************************************************/
+
+	public String getGeneName(int row) {
+		return geneNames.get(gene[row]);
+	}
+
+	public String getRefName(int row) {
+		return refNames.get(ref[row]);
+	}
+
+	public String getStrand(int row) {
+		return strand[row]==MINUS ? "-" : "+";
+	}
+
+	public int getStart(int row) {
+		return start[row];
+	}
+
+	public int getEnd(int row) {
+		return end[row];
+	}
+
+	public int getRelStart(int row) {
+		return relStart[row];
+	}
+
+	public int getRelEnd(int row) {
+		return relEnd[row];
+	}
+
+	public boolean isGene(int row) {
+		return geneLevel[row];
+	}
+
+	/* gene counters are named by the gene, window counters <gene>\t<chr>\t<start>\t<end> */
+	public String getName(int row) {
+		if (geneLevel[row]) {
+			return getGeneName(row);
+		}
+		return getGeneName(row)+"\t"+getRefName(row)+"\t"+start[row]+"\t"+end[row];
+	}
+
+	public boolean hasSegments(int row) {
+		return segOffset[row+1]>segOffset[row];
+	}
+
+	public int getSegmentCount(int row) {
+		return segOffset[row+1]-segOffset[row];
+	}
+
+	public int getSegmentStart(int row, int k) {
+		return segStart[segOffset[row]+k];
+	}
+
+	public int getSegmentEnd(int row, int k) {
+		return segEnd[segOffset[row]+k];
+	}
+
+	/* true if the counter counts reads that start at pos: it has no segments, or pos is in one of them */
+	public boolean contains(int row, int pos) {
+		int last = segOffset[row+1];
+		if (last==segOffset[row]) {
+			return true;
+		}
+		for (int k=segOffset[row]; k<last && segStart[k]<=pos; k++) {
+			if (pos<segEnd[k]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*************************************************************************************
+	 * counts
+	 *************************************************************************************/
+
+	public float getCount(int row, int col) {
+		if (dense!=null) {
+			return dense[row*nExp+col];
+		}
+		if (sparse!=null) {
+			float[] c = sparse[row];
+			return c==null ? 0 : c[col];
+		}
+		if (atomicDense!=null) {
+			return Float.intBitsToFloat(atomicDense.get(row*nExp+col));
+		}
+		if (atomicSparse!=null) {
+			AtomicIntegerArray c = atomicSparse[row];
+			return c==null ? 0 : Float.intBitsToFloat(c.get(col));
+		}
+		return ScaledCounts.toFloat(getUnits(row, col));
+	}
+
+	/* the count without rounding to float (for checkpoints; the same as getCount() for integer weights) */
+	public double getExactCount(int row, int col) {
+		if (unitsDense==null && unitsSparse==null) {
+			return getCount(row, col);
+		}
+		return ScaledCounts.toDouble(getUnits(row, col));
+	}
+
+	private long getUnits(int row, int col) {
+		if (unitsDense!=null) {
+			return unitsDense.get(row*nExp+col);
+		}
+		AtomicLongArray c = unitsSparse[row];
+		return c==null ? 0 : c.get(col);
+	}
+
+	public void addCount(int row, int col, float val) {
+		if (unitsDense!=null || unitsSparse!=null) {
+			addUnits(row, col, ScaledCounts.toUnits(val));
+			return;
+		}
+		if (dense!=null) {
+			dense[row*nExp+col] += val;
+			return;
+		}
+		if (sparse!=null) {
+			float[] c = sparse[row];
+			if (c==null) {
+				if (val==0) {
+					return;
+				}
+				c = allocateRow(row);
+			}
+			c[col] += val;
+			return;
+		}
+		if (atomicDense!=null) {
+			add(atomicDense, row*nExp+col, val);
+			return;
+		}
+		AtomicIntegerArray c = atomicSparse[row];
+		if (c==null) {
+			if (val==0) {
+				return;
+			}
+			c = allocateAtomicRow(row);
+		}
+		add(c, col, val);
+	}
+
+	/* adds a count read with getExactCount() */
+	public void addExactCount(int row, int col, double val) {
+		if (unitsDense==null && unitsSparse==null) {
+			addCount(row, col, (float)val);
+		} else {
+			addUnits(row, col, ScaledCounts.toUnits(val));
+		}
+	}
+
+	private void addUnits(int row, int col, long units) {
+		if (unitsDense!=null) {
+			unitsDense.addAndGet(row*nExp+col, units);
+			return;
+		}
+		AtomicLongArray c = unitsSparse[row];
+		if (c==null) {
+			if (units==0) {
+				return;
+			}
+			c = allocateUnitsRow(row);
+		}
+		c.addAndGet(col, units);
+	}
+
+	private static void add(AtomicIntegerArray c, int i, float val) {
+		int x;
+		do {
+			x = c.get(i);
+		} while (!c.compareAndSet(i, x, Float.floatToIntBits(Float.intBitsToFloat(x)+val)));
+	}
+
+	/* (the row may be allocated by several threads at the same time; all of them must get the same array) */
+	private synchronized float[] allocateRow(int row) {
+		if (sparse[row]==null) {
+			sparse[row] = new float[nExp];
+		}
+		return sparse[row];
+	}
+
+	private synchronized AtomicIntegerArray allocateAtomicRow(int row) {
+		if (atomicSparse[row]==null) {
+			atomicSparse[row] = new AtomicIntegerArray(nExp);
+		}
+		return atomicSparse[row];
+	}
+
+	private synchronized AtomicLongArray allocateUnitsRow(int row) {
+		if (unitsSparse[row]==null) {
+			unitsSparse[row] = new AtomicLongArray(nExp);
+		}
+		return unitsSparse[row];
+	}
+}
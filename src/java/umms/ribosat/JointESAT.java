@@ -0,0 +1,274 @@
+package umms.ribosat;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import broad.core.datastructures.IntervalTree;
+import broad.core.util.CLUtil;
+import broad.core.util.CLUtil.ArgumentMap;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileReader.ValidationStringency;
+import net.sf.samtools.SAMFormatException;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import umms.core.annotation.BEDFileParser;
+import umms.core.annotation.Gene;
+import umms.core.utils.ExperimentMap;
+import umms.esat.NewESAT;
+
+/**
+ * Runs NewESAT and RIBOSAT on the same alignments, decoding every alignment file once per pass instead of once
+ * per pass and tool.
+ *
+ * Both tools count the read starts of all alignments, find their windows from the pooled counts and then read
+ * the alignments again to attribute the reads in the windows to the experiments. Here each read of the first pass
+ * updates the start counts of both tools, and each read of the second pass the window counters of both tools; the
+ * window finding, p-value annotation and output of each tool are their own. The outputs are the same as those of
+ * separate runs with the same parameters, written to <out>.esat.window.txt/.gene.txt and
+ * <out>.ribosat.window.txt/.gene.txt.
+ *
+ * Only the options the two tools share are supported (no -multimap proper, single-cell preprocessing or the
+ * NewESAT-only memory, streaming and checkpoint options).
+ */
+public class JointESAT {
+
+	static final String usage = "Usage: JointESAT -in <input Bam File> | -alignments <input filelist file>"+
+			"\n\t-annotations <reference annotation file [BED file]> | -geneMapping <gene-to-transcript map file>"+
+			"\n\t-out <output file basename; writes <out>.esat.* (NewESAT) and <out>.ribosat.* (RIBOSAT)>"+
+			"\n\t**************************************************************"+
+			"\n\t\tOPTIONAL arguments"+
+			"\n\t**************************************************************"+
+			"\n\t-quality <minimum alignment quality [default: no filtering]>"+
+			"\n\t-task <score3p | score5p> [default: score3p]"+
+			"\n\t-unstranded [default: stranded]"+
+			"\n\t-multimap <ignore | normal | scale> [default: normal]"+
+			"\n\tWindow parameters:"+
+			"\n\t\t-wLen <window length [default: 400]>"+
+			"\n\t\t-wOlap <window overlap [default: 0]"+
+			"\n\t\t-wExt <extension past end of transcript [default: 400]>"+
+			"\n\t\t-all [default: disabled]"+
+			"\n\tSignificance testing:"+
+			"\n\t\t-sigTest <minimum allowable p-value>\n";
+
+	static final Logger logger = LogManager.getLogger(JointESAT.class.getName());
+
+	private HashMap<String,ArrayList<File>> bamFiles;     // key=experiment ID, File[]= list of input files for the experiment
+	private File outFile;
+	private File annotationFile;
+	private File gMapFile;         // gene mapping file (instead of annotationFile), or null
+	private int windowLength;
+	private int windowOverlap;
+	private int windowExtend;
+	private boolean allWindows;
+	private String multimap;
+	private boolean qFilter;
+	private int qThresh;
+	private String task;
+	private float pValThresh;
+	private boolean stranded;
+
+	public JointESAT(String[] args) throws IOException, ParseException {
+		if (!Logger.getRootLogger().getAllAppenders().hasMoreElements()) {
+			BasicConfigurator.configure();
+		}
+		ArgumentMap argMap = CLUtil.getParameters(args, usage, "score3p");
+		validateArguments(argMap);
+
+		long startTime = System.nanoTime();
+
+		Map<String, Collection<Gene>> annotations;
+		if (gMapFile!=null) {
+			annotations = NewESAT.geneMapToAnnotations(NewESAT.loadGeneTableFromFile(gMapFile));
+		} else {
+			annotations = BEDFileParser.loadDataByChr(annotationFile);
+		}
+
+		/* the read start counts of both tools (as they choose them without a memory budget) */
+		umms.esat.SAMSequenceCountingDict esatDict;
+		SAMSequenceCountingDict riboDict;
+		if (multimap.equals("scale")) {
+			esatDict = new umms.esat.SAMSequenceCountingDictFloat();
+			riboDict = new SAMSequenceCountingDictFloat();
+		} else {
+			esatDict = new umms.esat.SAMSequenceCountingDictShort();
+			riboDict = new SAMSequenceCountingDictShort();
+		}
+		countReadStarts(esatDict, riboDict);
+
+		/* each tool finds its own windows */
+		HashMap<String, HashMap<String, umms.esat.TranscriptCountInfo>> esatCounts =
+				esatDict.countWindowedTranscriptReadStarts(annotations, windowLength, windowOverlap, windowExtend, task, pValThresh, allWindows);
+		HashMap<String, HashMap<String, TranscriptCountInfo>> riboCounts =
+				riboDict.countWindowedTranscriptReadStarts(annotations, windowLength, windowOverlap, windowExtend, task, pValThresh, allWindows);
+		esatDict = null;    // (the start counts are not needed any more)
+		riboDict = null;
+
+		ExperimentMap expMap = new ExperimentMap(bamFiles);
+		HashMap<String, HashMap<String, IntervalTree<umms.esat.EventCounter>>> esatTree = NewESAT.makeCountingIntervalTree(esatCounts, expMap.getNexp(), multimap.equals("scale"));
+		HashMap<String, HashMap<String, IntervalTree<EventCounter>>> riboTree = RIBOSAT.makeCountingIntervalTree(riboCounts, bamFiles.keySet().size());
+
+		fillWindowCounters(esatTree, expMap, riboTree);
+
+		NewESAT.writeExperimentCountsFile(esatTree, expMap, new File(outFile.getAbsolutePath()+".esat"));
+		RIBOSAT.writeExperimentCountsFile(riboTree, bamFiles, new File(outFile.getAbsolutePath()+".ribosat"));
+
+		logger.info("Total processing time: "+(System.nanoTime()-startTime)/1e9+" sec\n");
+	}
+
+	public static void main(String[] args) throws ParseException, IOException {
+		new JointESAT(args);
+	}
+
+	/* first pass: every valid read start is counted by both tools */
+	private void countReadStarts(umms.esat.SAMSequenceCountingDict esatDict, SAMSequenceCountingDict riboDict) {
+		long startTime = System.nanoTime();
+		int totalValidReadCount = 0;
+		int totalInvalidReadCount = 0;
+		boolean firstFile = true;      // only read the header from the first alignment file
+		for (String exp:bamFiles.keySet()) {
+			for (File bamFile:bamFiles.get(exp)) {
+				long loopStartTime = System.nanoTime();
+				int validReadCount = 0;
+				int invalidReadCount = 0;
+				logger.info("Processing file: "+bamFile+"...");
+				SAMFileReader bamReader = new SAMFileReader(bamFile);
+				bamReader.setValidationStringency(ValidationStringency.STRICT);
+				if (firstFile) {
+					esatDict.setLogger(logger);
+					esatDict.copySequences(bamReader.getFileHeader().getSequenceDictionary());
+					riboDict.setLogger(logger);
+					riboDict.copySequences(bamReader.getFileHeader().getSequenceDictionary());
+					firstFile = false;
+				}
+				SAMRecordIterator bamIterator = bamReader.iterator();
+				while (bamIterator.hasNext()) {
+					SAMRecord r;
+					try {
+						r = bamIterator.next();
+					} catch (SAMFormatException e) {
+						logger.warn(e.getMessage());
+						continue;
+					}
+					if (r.getReadUnmappedFlag()) {
+						invalidReadCount++;
+						continue;
+					}
+					if (qFilter && !(r.getMappingQuality()>qThresh)) {
+						continue;
+					}
+					esatDict.updateCount(r, multimap, stranded);
+					riboDict.updateCount(r, multimap, stranded);
+					validReadCount++;
+				}
+				bamReader.close();
+				logger.info("Experiment "+exp+" BAM file "+bamFile+" processed in "+(System.nanoTime()-loopStartTime)/1e9+" sec\n");
+				logger.info("  "+validReadCount+" valid reads\n");
+				logger.info("  "+invalidReadCount+" invalid reads");
+				totalValidReadCount += validReadCount;
+				totalInvalidReadCount += invalidReadCount;
+			}
+		}
+		logger.info("Read starts counted in "+(System.nanoTime()-startTime)/1e9+" sec\n");
+		logger.info("  "+totalValidReadCount+" total valid reads\n");
+		logger.info("  "+totalInvalidReadCount+" total invalid reads");
+	}
+
+	/* second pass: every read that starts in a window is added to the counters of both tools (each with its own
+	 * experiment columns) */
+	private void fillWindowCounters(HashMap<String, HashMap<String, IntervalTree<umms.esat.EventCounter>>> esatTree, ExperimentMap expMap,
+									HashMap<String, HashMap<String, IntervalTree<EventCounter>>> riboTree) {
+		int eIdx = 0;    // RIBOSAT column (experiments in file list order)
+		for (String exp:bamFiles.keySet()) {
+			int cIdx = expMap.getIndex(exp);    // NewESAT column (experiments sorted by name)
+			for (File bamFile:bamFiles.get(exp)) {
+				logger.info("Processing file: "+bamFile+"...");
+				SAMFileReader bamReader = new SAMFileReader(bamFile);
+				bamReader.setValidationStringency(ValidationStringency.STRICT);
+				SAMRecordIterator bamIterator = bamReader.iterator();
+				while (bamIterator.hasNext()) {
+					SAMRecord r;
+					try {
+						r = bamIterator.next();
+					} catch (SAMFormatException e) {
+						logger.warn(e.getMessage());
+						continue;
+					}
+					if (r.getReadUnmappedFlag() || (qFilter && !(r.getMappingQuality()>qThresh))) {
+						continue;
+					}
+					String cString = r.getCigarString();
+					if (cString!="*") {    // (as in both tools)
+						String rName = r.getReferenceName();
+						int rStart = r.getAlignmentStart()-1;   // alignments are 1-based, arrays are 0-based
+						String rStrand = stranded && r.getReadNegativeStrandFlag() ? "-" : "+";
+						float fractCount = NewESAT.getFractCount(r, multimap);
+						NewESAT.addWindowCounts(esatTree, rName, rStrand, rStart, cIdx, fractCount);
+						RIBOSAT.addWindowCounts(riboTree, rName, rStrand, rStart, eIdx, fractCount);
+					}
+				}
+				bamReader.close();
+			}
+			eIdx++;
+		}
+	}
+
+	private void validateArguments(ArgumentMap argMap) throws IOException {
+		windowLength = argMap.isPresent("wLen") ? argMap.getInteger("wLen") : 400;
+		windowOverlap = argMap.isPresent("wOlap") ? argMap.getInteger("wOlap") : 0;
+		windowExtend = argMap.isPresent("wExt") ? argMap.getInteger("wExt") : 400;
+		if (windowLength<1 || windowOverlap<0 || windowExtend<0) {
+			logger.error("Illegal window parameters: wLen must be >= 1, wOlap and wExt >= 0.");
+			throw new IllegalArgumentException();
+		}
+		allWindows = argMap.isPresent("all");
+		multimap = argMap.isPresent("multimap") ? argMap.get("multimap") : "normal";
+		if (!(multimap.equals("ignore") || multimap.equals("normal") || multimap.equals("scale"))) {
+			logger.error("-multimap flag must be one of ignore, normal, or scale (is set to "+multimap+")");
+			throw new IllegalArgumentException();
+		}
+		task = argMap.getTask();
+		qFilter = argMap.isPresent("quality");
+		if (qFilter) {
+			qThresh = argMap.getInteger("quality");   // quality must be GREATER THAN qThresh for read to be processed
+			if (qThresh<0) {
+				logger.error("Illegal value for quality: "+qThresh+" (quality threshold must be >= 0.");
+				throw new IllegalArgumentException();
+			}
+		}
+		stranded = !argMap.isPresent("unstranded");
+		pValThresh = argMap.isPresent("sigTest") ? argMap.getFloat("sigTest") : 1;
+
+		if (argMap.isPresent("alignments")) {
+			bamFiles = NewESAT.loadBamFileList(argMap.get("alignments"));
+		}
+		if (argMap.hasInputFile()) {
+			bamFiles = new HashMap<String, ArrayList<File>>();
+			bamFiles.put("Exp1", new ArrayList<File>());
+			bamFiles.get("Exp1").add(new File(argMap.getInput()));
+		}
+		outFile = new File(argMap.getOutput());
+
+		if (argMap.isPresent("geneMapping")) {
+			gMapFile = new File(argMap.get("geneMapping"));
+		} else if (argMap.isPresent("annotations")) {
+			String aFile = argMap.get("annotations");
+			if (!aFile.endsWith(".bed") && !aFile.endsWith(".BED")) {
+				logger.error("Please supply an annotation file in the BED format");
+				throw new IllegalArgumentException();
+			}
+			annotationFile = new File(aFile);
+		} else {
+			logger.error("Either an annotation file or gene-to-transcript mapping file must be provided.");
+			throw new IllegalArgumentException();
+		}
+	}
+}
@@ -361,7 +361,7 @@ public class RIBOSAT {
 		writer.close();
 	}
 
-	public void writeExperimentCountsFile(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
+	public static void writeExperimentCountsFile(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
 			HashMap<String,ArrayList<File>> bamfiles, File outFile) throws IOException {
 				
 		String baseName = outFile.getAbsolutePath();
@@ -995,7 +995,7 @@ public class RIBOSAT {
 		return bestRead;
 	}
 	
-	public HashMap<String, HashMap<String, IntervalTree<EventCounter>>> makeCountingIntervalTree(HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap, int nExp) {
+	public static HashMap<String, HashMap<String, IntervalTree<EventCounter>>> makeCountingIntervalTree(HashMap<String,HashMap<String,TranscriptCountInfo>> countsMap, int nExp) {
 		// Builds a stranded HashMap of IntervalTrees, one per chromosome
 		
 		HashMap<String, HashMap<String, IntervalTree<EventCounter>>> cleanTree = new HashMap<String, HashMap<String, IntervalTree<EventCounter>>>();
@@ -1127,27 +1127,29 @@ public class RIBOSAT {
 				    			fractCount=1f/mmCount;
 				    		}
 
-				    		// check if this read start is contained in any intervals in the tree:
-				    		if (windowTree.get(rStrand).containsKey(rName) && windowTree.get(rStrand).get(rName).numOverlappers(rStart, rStart+1)>0) {
-				    			Iterator<IntervalTree.Node<EventCounter>> oIter = windowTree.get(rStrand).get(rName).overlappers(rStart,rStart+1);
-				    			//logger.info("Read at "+rName+":"+rStart+" ("+rStrand+
-				    			//		") has "+windowTree.get(rStrand).get(rName).numOverlappers(rStart, rStart+1)+" overlapping intervals");
-				    			while (oIter.hasNext()) {
-				    				Node<EventCounter> n = oIter.next();
-				    				// This node might contain multiple EventCounters. Update them all:
-				    				Collection<EventCounter> cvNode = n.getContainedValues();
-				    				for (EventCounter e:cvNode) {
-				    					// 	update the count for this interval:
-				    					//n.getValue().addIntervalCount(rStart, rStart+1, eIdx, fractCount);   // add (possibly) fractional counts if read is contained in an interval
-				    					e.addIntervalCount(rStart, rStart+1, eIdx, fractCount);   // add (possibly) fractional counts if read is contained in an interval
-				    				}
-				    			}
-				    		}
+				    		addWindowCounts(windowTree, rName, rStrand, rStart, eIdx, fractCount);
 				    	}
 					}
 				}
 			}
 		}
-	} 	
-
+	}
+	
+	/* adds a read starting at rStart to column eIdx of all counters in the windowTree that contain the start */
+	public static void addWindowCounts(HashMap<String, HashMap<String, IntervalTree<EventCounter>>> windowTree,
+										String rName, String rStrand, int rStart, int eIdx, float fractCount) {
+		// check if this read start is contained in any intervals in the tree:
+		if (windowTree.get(rStrand).containsKey(rName) && windowTree.get(rStrand).get(rName).numOverlappers(rStart, rStart+1)>0) {
+			Iterator<IntervalTree.Node<EventCounter>> oIter = windowTree.get(rStrand).get(rName).overlappers(rStart,rStart+1);
+			while (oIter.hasNext()) {
+				Node<EventCounter> n = oIter.next();
+				// This node might contain multiple EventCounters. Update them all:
+				Collection<EventCounter> cvNode = n.getContainedValues();
+				for (EventCounter e:cvNode) {
+					// 	update the count for this interval:
+					e.addIntervalCount(rStart, rStart+1, eIdx, fractCount);   // add (possibly) fractional counts if read is contained in an interval
+				}
+			}
+		}
+	}
 }
@@ -3,6 +3,8 @@ package umms.ribosat;
 import umms.ribosat.TranscriptCountInfo;
 import umms.ribosat.Window;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -10,7 +12,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
 
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMSequenceDictionary;
@@ -414,53 +415,40 @@ abstract public class SAMSequenceCountingDict extends SAMSequenceDictionary {
     	// contiguous set of overlapping windows:
     	if (!allWindows & wList.size()>1) {
     		// Since the windows are added from lowest to highest genomic coordinates, two successive windows
-    		// where the start of one is less than the beginning of the previous one overlap.
+    		// where the start of one is less than the beginning of the previous one overlap. One pass over the
+    		// windows finds each block of overlapping windows; the windows of a block are marked in olapSet.
     		/* set the initial interval conditions */
+    		ArrayList<Window> wArray = new ArrayList<Window>(wList);   // indexed access to the windows
         	LinkedList<Window> bestList = new LinkedList<Window>();    // list of "best" replacement windows    
-    		int iStart = wList.get(0).getRelStart();   // start of interval
-    		int iEnd = wList.get(0).getRelEnd();       // end of interval
-    		double iLambda = wList.get(0).getLambda(); // *********************** maybe clean this?
-    		int iaLen = wList.get(0).getaLen();
+    		int iStart = wArray.get(0).getRelStart();   // start of interval
+    		int iEnd = wArray.get(0).getRelEnd();       // end of interval   
+    		double iLambda = wArray.get(0).getLambda(); // *********************** maybe clean this?
+    		int iaLen = wArray.get(0).getaLen();
     		int idxStart = 0;	// index of first (possibly) overlapping window
-    		Vector<Integer> olapList = new Vector<Integer>();  // list of windows to remove from this gene
-    		int wCount = 1;     // overlapping window counter
-    		for (int i=1; i<wList.size(); i++) {
-    			if (wList.get(i).getRelStart()<=iEnd) {
-    				// update the list of overlapping windows
-    				if (!olapList.contains(idxStart)) {
-    					olapList.add(idxStart);   // make sure the start of this group is added to the list of windows to remove
-    				}
-    				olapList.add(i);   // add this window to the list
-    				iEnd = wList.get(i).getRelEnd();
-    				wCount+=1;         // update the overlapping window count
+    		BitSet olapSet = new BitSet(wArray.size());  // windows to remove from this gene
+    		for (int i=1; i<=wArray.size(); i++) {
+    			if (i<wArray.size() && wArray.get(i).getRelStart()<=iEnd) {
+    				iEnd = wArray.get(i).getRelEnd();   // extend the block of overlapping windows
     			} else {
-    				if (wCount>1) {
-        				// process any overlapping windows
+    				if (i-idxStart>1) {
+        				// process the overlapping windows idxStart..i-1
     					Window bestWindow = findBestWindow(iStart, iEnd, gCoords, floatCounts, 
     												window, nExons, chr, gStrand, iLambda, iaLen, gene.getName(), exonTree);
     					// add the best window to the bestWindow list:
     					bestList.add(bestWindow);
+    					olapSet.set(idxStart, i);
+    				}
+    				if (i<wArray.size()) {
+    					// reset the window parameters:
+    					iStart = wArray.get(i).getRelStart();
+    					iEnd = wArray.get(i).getRelEnd();
+    					idxStart = i;
     				}
-					// reset the window parameters:
-					iStart = wList.get(i).getRelStart();
-					iEnd = wList.get(i).getRelEnd();
-					idxStart = i;
-					wCount = 1;
     			}
     		}
-    		// if there is a block of windows left, process them:
-    		if (wCount>1) {
-    			// process any overlapping windows
-				Window bestWindow = findBestWindow(iStart, iEnd, gCoords, floatCounts, 
-													window, nExons, chr, gStrand, iLambda, iaLen, gene.getName(), exonTree);
-				// add the best window to the bestWindow list:
-				bestList.add(bestWindow);
-    		}
     		// Add any non-overlapping windows from the original list to the best window list:
-    		for (int wIdx=0; wIdx<wList.size(); wIdx++) {
-    			if (!olapList.contains(wIdx)) {
-    				bestList.add(wList.get(wIdx));
-    			}
+    		for (int wIdx=olapSet.nextClearBit(0); wIdx<wArray.size(); wIdx=olapSet.nextClearBit(wIdx+1)) {
+    			bestList.add(wArray.get(wIdx));
     		}
     		// Finally, replace the original window list with the best window list:
     		wList = bestList;
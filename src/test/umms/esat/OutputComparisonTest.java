@@ -0,0 +1,219 @@
+package umms.esat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.samtools.*;
+import umms.ribosat.JointESAT;
+import umms.ribosat.RIBOSAT;
+
+/* Compares the outputs of runs that must give the same results on a small synthetic fixture:
+ *   - JointESAT against separate NewESAT and RIBOSAT runs (-multimap normal and scale)
+ *   - NewESAT -threads 2 and 3 against the serial run (-multimap normal and scale), and the read start tracks
+ *     (-tracks) of these runs with -multimap scale; with three files per experiment, some threads count several
+ *     files in the first pass, and the piles of reads at a single position sum many fractional weights
+ *   - NewESAT -geneOnly against the gene counts of the full pipeline
+ * The fixture (two experiments of three BAM files each and a BED annotation) is written to the directory given as
+ * the first argument, or to a new temporary directory. Prints one line per comparison and exits with status 1
+ * if any differ (so that "ant compare" fails).
+ */
+public class OutputComparisonTest {
+
+		private static final int CHR_LEN = 60000;
+		private static final int READ_LEN = 50;
+		private static final int READS_PER_FILE = 4000;
+
+		private static int failures = 0;
+
+		public static void main(String[] args) throws Exception {
+
+			File dir;
+			if (args.length>0) {
+				dir = new File(args[0]);
+			} else {
+				dir = File.createTempFile("esat-compare", "");
+				dir.delete();
+			}
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create the fixture directory "+dir);
+			}
+			System.out.println("Fixture in "+dir);
+
+			/* fixture */
+			Random rnd = new Random(17);
+			SAMFileHeader header = new SAMFileHeader();
+			SAMSequenceDictionary dict = new SAMSequenceDictionary();
+			dict.addSequence(new SAMSequenceRecord("chr1", CHR_LEN));
+			dict.addSequence(new SAMSequenceRecord("chr2", CHR_LEN));
+			header.setSequenceDictionary(dict);
+			header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+			// genes of three exons (200 bases, 1000 base introns) every 8000 bases, alternating strands:
+			File bed = new File(dir, "annotation.bed");
+			List<int[]> genes = new ArrayList<int[]>();    // {chr index, start, end, negative}
+			BufferedWriter w = new BufferedWriter(new FileWriter(bed));
+			for (int c=0; c<2; c++) {
+				for (int start=2000; start+3000<CHR_LEN; start+=8000) {
+					int negative = genes.size()%2;
+					int end = start+2600;
+					genes.add(new int[] {c, start, end, negative});
+					w.write("chr"+(c+1)+"\t"+start+"\t"+end+"\tGENE"+genes.size()+"\t0\t"+(negative==1 ? "-" : "+")+"\t"+
+							start+"\t"+end+"\t0\t3\t200,200,200,\t0,1200,2400,\n");
+				}
+			}
+			w.close();
+
+			File alignments = new File(dir, "alignments.txt");
+			w = new BufferedWriter(new FileWriter(alignments));
+			for (String exp:new String[] {"exp1", "exp2"}) {
+				for (int f=1; f<=3; f++) {
+					File bam = new File(dir, exp+"_"+f+".bam");
+					writeBAM(bam, header, genes, rnd);
+					w.write(exp+"\t"+bam.getAbsolutePath()+"\n");
+				}
+			}
+			w.close();
+
+			String[] common = {"-alignments", alignments.getAbsolutePath(), "-annotations", bed.getAbsolutePath()};
+
+			/* JointESAT == NewESAT + RIBOSAT */
+			for (String mm:new String[] {"normal", "scale"}) {
+				String n = new File(dir, "esat."+mm).getAbsolutePath();
+				String r = new File(dir, "ribosat."+mm).getAbsolutePath();
+				String j = new File(dir, "joint."+mm).getAbsolutePath();
+				NewESAT.main(args(common, "-out", n, "-multimap", mm));
+				RIBOSAT.main(args(common, "-out", r, "-multimap", mm));
+				JointESAT.main(args(common, "-out", j, "-multimap", mm));
+				for (String level:new String[] {"window", "gene"}) {
+					compare("JointESAT -multimap "+mm+" "+level+" (ESAT)", n+"."+level+".txt", j+".esat."+level+".txt");
+					compare("JointESAT -multimap "+mm+" "+level+" (RIBOSAT)", r+"."+level+".txt", j+".ribosat."+level+".txt");
+				}
+			}
+
+			/* -threads 2, 3 == serial */
+			for (String mm:new String[] {"normal", "scale"}) {
+				String serial = new File(dir, "esat."+mm).getAbsolutePath();
+				for (String t:new String[] {"2", "3"}) {
+					String threaded = new File(dir, "esat.threads"+t+"."+mm).getAbsolutePath();
+					NewESAT.main(args(common, "-out", threaded, "-multimap", mm, "-threads", t));
+					for (String level:new String[] {"window", "gene"}) {
+						compare("NewESAT -multimap "+mm+" -threads "+t+" "+level, serial+"."+level+".txt", threaded+"."+level+".txt");
+					}
+				}
+			}
+			String serialTracks = new File(dir, "tracks1").getAbsolutePath();
+			NewESAT.main(args(common, "-out", serialTracks, "-multimap", "scale", "-tracks"));
+			for (String t:new String[] {"2", "3"}) {
+				String tracks = new File(dir, "tracks"+t).getAbsolutePath();
+				NewESAT.main(args(common, "-out", tracks, "-multimap", "scale", "-tracks", "-threads", t));
+				for (String exp:new String[] {"exp1", "exp2"}) {
+					for (String strand:new String[] {"plus", "minus"}) {
+						String track = "."+exp+"."+strand+".bedGraph";
+						compare("NewESAT -multimap scale -threads "+t+" "+exp+" "+strand+" track", serialTracks+track, tracks+track);
+					}
+				}
+			}
+
+			/* -geneOnly == gene counts of the full pipeline */
+			String serial = new File(dir, "esat.normal").getAbsolutePath();
+			String geneOnly = new File(dir, "esat.geneOnly").getAbsolutePath();
+			NewESAT.main(args(common, "-out", geneOnly, "-geneOnly"));
+			compare("NewESAT -geneOnly gene", serial+".gene.txt", geneOnly+".gene.txt");
+
+			if (failures>0) {
+				System.out.println(failures+" comparisons differ (outputs in "+dir+")");
+				System.exit(1);
+			}
+			System.out.println("All outputs match");
+		}
+
+		private static String[] args(String[] common, String... more) {
+			String[] a = Arrays.copyOf(common, common.length+more.length);
+			System.arraycopy(more, 0, a, common.length, more.length);
+			return a;
+		}
+
+		/* most reads start in the last 300 bases of the 3' exon of a gene (a third of them at a single position),
+		 * the others anywhere; a quarter are multimapped, with their secondary alignments at random positions */
+		private static void writeBAM(File bam, SAMFileHeader header, List<int[]> genes, Random rnd) {
+			SAMFileWriterFactory sf = new SAMFileWriterFactory();
+			sf.setCreateIndex(true);
+			SAMFileWriter writer = sf.makeBAMWriter(header, false, bam);
+			for (int i=0; i<READS_PER_FILE; i++) {
+				String chr;
+				int pos;
+				boolean negative;
+				if (rnd.nextDouble()<0.1) {
+					chr = "chr"+(1+rnd.nextInt(2));
+					pos = 1+rnd.nextInt(CHR_LEN-READ_LEN);
+					negative = rnd.nextBoolean();
+				} else {
+					int[] g = genes.get(rnd.nextInt(genes.size()));
+					chr = "chr"+(g[0]+1);
+					negative = g[3]==1;
+					int spread = rnd.nextDouble()<0.3 ? 1 : 300;
+					pos = negative ? g[1]+1+rnd.nextInt(spread) : g[2]-READ_LEN-rnd.nextInt(spread);
+				}
+				int nh = rnd.nextDouble()<0.25 ? 2+rnd.nextInt(2) : 1;
+				writer.addAlignment(makeRecord(header, "r"+i, chr, pos, negative, nh, false));
+				for (int m=1; m<nh; m++) {
+					writer.addAlignment(makeRecord(header, "r"+i, "chr"+(1+rnd.nextInt(2)), 1+rnd.nextInt(CHR_LEN-READ_LEN),
+													rnd.nextBoolean(), nh, true));
+				}
+			}
+			writer.close();
+		}
+
+		private static SAMRecord makeRecord(SAMFileHeader header, String name, String chr, int start, boolean negative,
+											int nh, boolean secondary) {
+			SAMRecord r = new SAMRecord(header);
+			r.setReadName(name);
+			r.setReferenceName(chr);
+			r.setAlignmentStart(start);
+			r.setReadNegativeStrandFlag(negative);
+			r.setNotPrimaryAlignmentFlag(secondary);
+			r.setCigarString(READ_LEN+"M");
+			r.setMappingQuality(nh>1 ? 0 : 50);
+			char[] bases = new char[READ_LEN];
+			Arrays.fill(bases, 'A');
+			r.setReadString(new String(bases));
+			Arrays.fill(bases, 'I');
+			r.setBaseQualityString(new String(bases));
+			r.setAttribute("NH", nh);
+			return r;
+		}
+
+		private static void compare(String what, String expected, String actual) throws IOException {
+			boolean same = Arrays.equals(readFile(new File(expected)), readFile(new File(actual)));
+			System.out.println((same ? "same    " : "DIFFERS ")+what+": "+expected+" "+actual);
+			if (!same) {
+				failures++;
+			}
+		}
+
+		private static byte[] readFile(File f) throws IOException {
+			byte[] b = new byte[(int) f.length()];
+			InputStream in = new FileInputStream(f);
+			try {
+				int off = 0;
+				while (off<b.length) {
+					int n = in.read(b, off, b.length-off);
+					if (n<0) {
+						throw new IOException("Unexpected end of "+f);
+					}
+					off += n;
+				}
+			} finally {
+				in.close();
+			}
+			return b;
+		}
+}